@@ -0,0 +1,607 @@
+package org.ubilab.cicp2011.cv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+
+/**
+ * 画像処理をステージに分割してパイプライン実行するクラス
+ * <pre>
+ * キャプチャ・前処理・盤検出・マス検出・駒認識・結果出力の各ステージを別スレッドで実行し，
+ * ステージ間を有限長のキューで接続する．フレームNのマス検出とフレームN+1の盤検出が
+ * 重なって実行されるため，スループットは全ステージの合計ではなく最も遅いステージで決まる．
+ * 結果は結果出力ステージでフレーム順に並べ替えてから出力する．
+ * RoiDetectorを設定した場合は盤検出ステージでまずそれを用い，検出できたフレームはエッジ画像の生成とHough変換を省く．
+ * RoiDetector・BandedLineDetector・OcclusionDetectorは前フレームからの状態を持つため，
+ * preprocessThreadsの値によらずフレーム順に実行される盤検出ステージ（1スレッド）のみで用いる．
+ * OcclusionDetectorを設定した場合，盤が遮蔽されているフレームはマス検出・駒認識を省き，マス目の数-1の結果として出力する．
+ * StageImageSinkを設定した場合，前処理ステージで元画像を，各ステージでデバッグ表示と同じ画像をフレーム番号とともに渡す．
+ * ResultCacheを設定した場合，マス検出ステージの前に盤の領域の知覚ハッシュを求め，一致した結果があればマス検出・駒認識を省いて結果出力へ渡す．
+ * QualityControllerを設定した場合，出力した結果の処理時間を記録し，その品質の段階に応じて
+ * 前処理ステージでのROIの再利用，マス検出ステージでの解像度の縮小，キャプチャステージでの取得間隔の調整を行う．
+ * ネイティブメモリが上限（NativeMemoryを参照）を超えている間はキャプチャを待たせ，
+ * budgetWaitで指定した時間を過ぎても解放されない場合はそのフレームを捨てる．
+ * インスタンスの生成にはBuilderクラスを使用する
+ * <blockquote>
+ * new AnalyticPipeline.Builder(source, delegate).build().start();
+ * </blockquote>
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/06
+ */
+public class AnalyticPipeline {
+    /**
+     * キャプチャ以降のステージ
+     * <pre>
+     * 各ステージの入力キューの長さをgetQueueDepthで取得できる．
+     * </pre>
+     */
+    public enum Stage {
+        /** 前処理（グレースケール変換・平滑化・エッジ検出） */
+        PREPROCESS,
+        /** 盤検出（Hough変換によるROI検出） */
+        BOARD_DETECTION,
+        /** マス検出（ROI切り出し・輪郭抽出） */
+        SQUARE_DETECTION,
+        /** 駒認識（テンプレート照合）．PieceRecognizerを設定しない場合は何もしない */
+        PIECE_RECOGNITION,
+        /** 結果出力 */
+        PUBLISH
+    }
+
+    /** ステージ間で受け渡すフレーム */
+    private static class Frame {
+        final long id;
+        final long captureTime;
+        IplImage src;
+        IplImage edge = null;
+        IplImage clean = null;
+        CvRect roi = null;
+        CvRect region = null;
+        int count = -1;
+        BoardState state = null;
+        PieceRecognizer.Piece[] pieces = null;
+        boolean failed = false;
+        boolean occluded = false;
+        ResultCache.Key hash = null;
+        boolean cached = false;
+        boolean roiReused = false;
+        /** QualityControllerが発行した通し番号 */
+        long sequence = 0;
+
+        Frame(long id, IplImage src, long captureTime) {
+            this.id = id;
+            this.src = src;
+            this.captureTime = captureTime;
+        }
+    }
+
+    /** 終端を表すフレーム */
+    private static final Frame END = new Frame(-1, null, 0);
+
+    private static final Logger logger;
+    private final FrameSource source;
+    private final AnalyticPipelineDelegate delegate;
+    private final TiledExecutor tiler;
+    private final PieceRecognizer recognizer;
+    private final AnalyticProcess.Backend backend;
+    private final RoiDetector roiDetector;
+    private final BandedLineDetector lineDetector;
+    private final LensCorrector lensCorrector;
+    private final OcclusionDetector occlusion;
+    private final ResultCache cache;
+    private final StageImageSink sink;
+    private final QualityController quality;
+    private final int[] stageThreads;
+    private final long budgetWait;
+    private final List<BlockingQueue<Frame>> queues;
+    private final List<Thread> threads;
+    private final AtomicLong published;
+    private volatile boolean running = false;
+    private int lastRoiX = 0, lastRoiY = 0, lastRoiWidth = 0, lastRoiHeight = 0;
+
+    static {
+        logger = Logger.getLogger(AnalyticPipeline.class.getName());
+    }
+
+    /**
+     * AnalyticPipelineのインスタンス生成クラス
+     * @since 2011/12/06
+     */
+    public static class Builder {
+        // Required param
+        private final FrameSource source;
+        private final AnalyticPipelineDelegate delegate;
+
+        // Optional param
+        private int queueSize           = 2;
+        private int preprocessThreads   = 1;
+        private int squareThreads       = 1;
+        private TiledExecutor tiler     = null;
+        private long budgetWait         = 500;
+        private PieceRecognizer recognizer = null;
+        private AnalyticProcess.Backend backend = AnalyticProcess.Backend.OPENCV;
+        private RoiDetector roiDetector = null;
+        private BandedLineDetector lineDetector = null;
+        private LensCorrector lensCorrector = null;
+        private OcclusionDetector occlusion = null;
+        private ResultCache cache = null;
+        private StageImageSink sink = null;
+        private QualityController quality = null;
+
+        /**
+         * 必須パラメータを指定
+         * @param source フレームの供給元
+         * @param delegate 処理結果の出力先
+         * @since 2011/12/06
+         */
+        public Builder(FrameSource source, AnalyticPipelineDelegate delegate) {
+            this.source = source;
+            this.delegate = delegate;
+        }
+
+        public Builder queueSize(int val)           { queueSize = val; return this; }
+        public Builder preprocessThreads(int val)   { preprocessThreads = val; return this; }
+        public Builder squareThreads(int val)       { squareThreads = val; return this; }
+        public Builder tiledExecutor(TiledExecutor val) { tiler = val; return this; }
+        public Builder budgetWait(long val)         { budgetWait = val; return this; }
+        public Builder pieceRecognizer(PieceRecognizer val) { recognizer = val; return this; }
+        public Builder backend(AnalyticProcess.Backend val) { backend = val; return this; }
+        public Builder roiDetector(RoiDetector val) { roiDetector = val; return this; }
+        public Builder lineDetector(BandedLineDetector val) { lineDetector = val; return this; }
+        public Builder lensCorrector(LensCorrector val) { lensCorrector = val; return this; }
+        public Builder occlusionDetector(OcclusionDetector val) { occlusion = val; return this; }
+        public Builder resultCache(ResultCache val) { cache = val; return this; }
+        public Builder stageImageSink(StageImageSink val) { sink = val; return this; }
+        public Builder qualityController(QualityController val) { quality = val; return this; }
+
+        /**
+         * AnalyticPipelineのインスタンスを生成する
+         * @return AnalyticPipelineのインスタンス
+         * @since 2011/12/06
+         */
+        public AnalyticPipeline build() {
+            return new AnalyticPipeline(this);
+        }
+    }
+
+    /**
+     * Builderクラスからパラメータを受け取りインスタンスを生成する
+     * @param param Builderクラスのインスタンス
+     * @since 2011/12/06
+     */
+    private AnalyticPipeline(Builder param) {
+        source = param.source;
+        delegate = param.delegate;
+        tiler = param.tiler;
+        recognizer = param.recognizer;
+        backend = param.backend;
+        roiDetector = param.roiDetector;
+        lineDetector = param.lineDetector;
+        lensCorrector = param.lensCorrector;
+        occlusion = param.occlusion;
+        cache = param.cache;
+        sink = param.sink;
+        quality = param.quality;
+        budgetWait = Math.max(0, param.budgetWait);
+        stageThreads = new int[]{param.preprocessThreads, 1, param.squareThreads, 1, 1};
+
+        queues = new ArrayList<BlockingQueue<Frame>>();
+        for (int i = 0; i < Stage.values().length; i++) {
+            queues.add(new ArrayBlockingQueue<Frame>(Math.max(1, param.queueSize)));
+        }
+        threads = new ArrayList<Thread>();
+        published = new AtomicLong(0);
+    }
+
+    /**
+     * パイプラインの実行を開始する
+     * @since 2011/12/06
+     */
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        threads.clear();
+
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                captureLoop();
+            }
+        }, "AnalyticPipeline-capture"));
+
+        for (final Stage stage : new Stage[]{Stage.PREPROCESS, Stage.BOARD_DETECTION, Stage.SQUARE_DETECTION, Stage.PIECE_RECOGNITION}) {
+            final AtomicInteger alive = new AtomicInteger(stageThreads[stage.ordinal()]);
+            for (int i = 0; i < stageThreads[stage.ordinal()]; i++) {
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        stageLoop(stage, alive);
+                    }
+                }, "AnalyticPipeline-" + stage.name().toLowerCase() + "-" + i));
+            }
+        }
+
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                publishLoop();
+            }
+        }, "AnalyticPipeline-publish"));
+
+        for (Thread th : threads) th.start();
+        logger.log(Level.INFO, "AnalyticPipeline start: {0} threads", threads.size());
+    }
+
+    /**
+     * キャプチャを停止し，処理中のフレームをすべて出力してから終了する
+     * @since 2011/12/06
+     */
+    public void stop() {
+        synchronized(this) {
+            if (!running) return;
+            running = false;
+        }
+        for (Thread th : threads) {
+            try {
+                th.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        logger.log(Level.INFO, "AnalyticPipeline stop: {0} frames published, {1} shed",
+                new Object[]{published.get(), NativeMemory.getShedCount()});
+    }
+
+    /**
+     * 実行中かどうかを返す
+     * @return 実行中の場合true
+     * @since 2011/12/06
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 指定したステージの入力キューに溜まっているフレーム数を返す
+     * @param stage ステージ
+     * @return キューの長さ
+     * @since 2011/12/06
+     */
+    public int getQueueDepth(Stage stage) {
+        return queues.get(stage.ordinal()).size();
+    }
+
+    /**
+     * 出力済みのフレーム数を返す
+     * @return 出力済みのフレーム数
+     * @since 2011/12/06
+     */
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    /**
+     * 各ステージのキュー長を文字列で返す
+     * @return キュー長の一覧
+     * @since 2011/12/06
+     */
+    public String getQueueDepths() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(stage.name()).append('=').append(getQueueDepth(stage));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * キャプチャステージ
+     * @since 2011/12/06
+     */
+    private void captureLoop() {
+        long id = 0;
+        BlockingQueue<Frame> out = queues.get(Stage.PREPROCESS.ordinal());
+        try {
+            while (running) {
+                // ネイティブメモリが上限を超えている場合は解放されるまで待ち，待ちきれなければフレームを捨てる
+                if (!NativeMemory.awaitBudget(budgetWait)) {
+                    NativeMemory.frameShed();
+                    continue;
+                }
+                // 品質を最も下げている間はフレームの取得間隔を空ける
+                if (quality != null) quality.awaitSlot();
+                IplImage img = source.grab();
+                if (img == null) break;
+                if (PipelineTrace.isEnabled()) PipelineTrace.frameCaptured(id, img.imageSize());
+                Frame f = new Frame(id++, img, System.nanoTime());
+                if (quality != null) f.sequence = quality.nextSequence();
+                // 次段のキューが一杯の場合はここで待機する
+                out.put(f);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            putQuietly(out, END);
+        }
+    }
+
+    /**
+     * 前処理・盤検出・マス検出ステージ
+     * @param stage 実行するステージ
+     * @param alive 同じステージで実行中のスレッド数
+     * @since 2011/12/06
+     */
+    private void stageLoop(Stage stage, AtomicInteger alive) {
+        BlockingQueue<Frame> in = queues.get(stage.ordinal());
+        BlockingQueue<Frame> out = queues.get(stage.ordinal() + 1);
+        BlockingQueue<Frame> publish = queues.get(Stage.PUBLISH.ordinal());
+        CvMemStorage workStorage = NativeMemory.createStorage();
+        AnalyticProcess proc = new AnalyticProcess(null, false, null, workStorage);
+        proc.setTiledExecutor(tiler);
+        proc.setPieceRecognizer(recognizer);
+        proc.setBackend(backend);
+        proc.setRoiDetector(roiDetector);
+        proc.setLineDetector(lineDetector);
+        proc.setLensCorrector(lensCorrector);
+        proc.setOcclusionDetector(occlusion);
+        proc.setStageImageSink(sink);
+
+        try {
+            while (true) {
+                Frame f = in.take();
+                if (f == END) {
+                    // 同じステージの他のスレッドにも終端を伝え，最後のスレッドが次段へ伝える
+                    if (alive.decrementAndGet() == 0) out.put(END);
+                    else in.put(END);
+                    break;
+                }
+                if (process(stage, proc, f)) {
+                    out.put(f);
+                } else {
+                    publish.put(f);
+                }
+                cvClearMemStorage(workStorage);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            NativeMemory.releaseStorage(workStorage);
+        }
+    }
+
+    /**
+     * 1フレーム分のステージ処理を行う
+     * @param stage 実行するステージ
+     * @param proc 処理に用いるAnalyticProcess
+     * @param f 処理するフレーム
+     * @return 後段のステージへ渡す場合true．失敗またはキャッシュの結果を用いて結果出力へ直接渡す場合false
+     * @since 2011/12/06
+     */
+    private boolean process(Stage stage, AnalyticProcess proc, Frame f) {
+        PipelineTrace.stageBegin(stage, f.id);
+        proc.setCurrentFrame(f.id);
+        try {
+            int bytes = 0;
+            switch (stage) {
+                case PREPROCESS:
+                    if (sink != null) sink.stageImage(f.id, "Source", f.src);
+                    // 品質を下げている間は前回のROIを再利用する
+                    if (quality != null) f.roi = quality.reuseRoi(f.sequence);
+                    if (f.roi != null) {
+                        f.roiReused = true;
+                        break;
+                    }
+                    // RoiDetectorを設定していない場合はHough変換用のエッジ画像をここで並列に生成する．
+                    // RoiDetectorは状態を持つため，盤検出ステージでフレーム順に呼ぶ
+                    if (roiDetector == null) {
+                        f.edge = proc.getEdgeImage(f.src);
+                        bytes = f.edge.imageSize();
+                    }
+                    break;
+                case BOARD_DETECTION:
+                    // 状態を持つ検出処理（RoiDetector・OcclusionDetector）はすべて1スレッドのこのステージで呼ぶ
+                    if (!f.roiReused) {
+                        f.roi = proc.detectROI(f.src);
+                        if (f.roi == null) {
+                            // 色によるROI検出に失敗した場合のみエッジ画像を生成する
+                            if (f.edge == null) {
+                                f.edge = proc.getEdgeImage(f.src);
+                                bytes = f.edge.imageSize();
+                            }
+                            f.roi = proc.getROIFromEdge(f.edge);
+                            proc.roiRedetected(f.src, f.roi);
+                        }
+                        if (f.edge != null) {
+                            NativeMemory.releaseImage(f.edge);
+                            f.edge = null;
+                        }
+                        if (quality != null) quality.roiDetected(f.sequence, f.roi);
+                    }
+                    traceRoi(f);
+                    // 遮蔽の判定はフレーム順に行う必要があるため，1スレッドの盤検出ステージで行う
+                    f.occluded = !proc.checkOcclusion(f.src, f.roi);
+                    break;
+                case SQUARE_DETECTION:
+                    if (f.occluded) break;
+                    f.count = 0;
+                    // 盤検出・遮蔽の判定を済ませた後，盤の領域が以前と同じであればキャッシュの結果を用いる
+                    if (f.roi.width() * f.roi.height() > 0 && cache != null && lookup(f)) break;
+                    if (f.roi.width() * f.roi.height() > 0) {
+                        f.region = cvRect(0, 0, 0, 0);
+                        IplImage roiFrame = proc.getROIView(f.src, f.roi, f.region);
+                        bytes = roiFrame.imageSize();
+                        // getRectsは輪郭を描画するため，駒の認識用に複製しておく
+                        if (recognizer != null) f.clean = NativeMemory.cloneImage(NativeMemory.Category.SCRATCH, roiFrame);
+                        f.state = new BoardState();
+                        f.count = quality != null && quality.reduceResolution()
+                                ? proc.getRectsReduced(roiFrame, f.state) : proc.getRects(roiFrame, f.state);
+                        NativeMemory.releaseImage(roiFrame);
+                    }
+                    break;
+                case PIECE_RECOGNITION:
+                    if (f.clean != null) {
+                        f.pieces = proc.getPieces(f.clean, f.state);
+                        NativeMemory.releaseImage(f.clean);
+                        f.clean = null;
+                        // 駒認識の途中で割り込まれた場合は処理できなかったフレームとして出力する
+                        if (Thread.currentThread().isInterrupted()) {
+                            f.failed = true;
+                            return false;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+            PipelineTrace.stageEnd(stage, f.id, bytes);
+            return !f.cached;
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Frame " + f.id + " failed at " + stage, e);
+            if (f.edge != null) {
+                NativeMemory.releaseImage(f.edge);
+                f.edge = null;
+            }
+            if (f.clean != null) {
+                NativeMemory.releaseImage(f.clean);
+                f.clean = null;
+            }
+            f.failed = true;
+            return false;
+        }
+    }
+
+    /**
+     * キャッシュから解析結果を探す
+     * @param f 盤検出と遮蔽の判定を済ませたフレーム（ROIの幅・高さが正であること）
+     * @return 結果が見つかりフレームに設定した場合true
+     * @since 2011/12/22
+     */
+    private boolean lookup(Frame f) {
+        f.hash = cache.hash(f.src, f.roi);
+        AnalyticResult r = cache.get(f.hash, f.id, f.captureTime);
+        if (r == null) return false;
+        f.region = cvRect(r.getRegionX(), r.getRegionY(), r.getRegionWidth(), r.getRegionHeight());
+        f.count = r.getSquareCount();
+        f.state = r.getBoardState();
+        f.pieces = r.getPieces();
+        f.cached = true;
+        return true;
+    }
+
+    /**
+     * ROIが前フレームから変化した場合に記録する
+     * <pre>
+     * 盤検出ステージは単一スレッドで実行されるため同期は不要．
+     * </pre>
+     * @param f 盤検出済みのフレーム
+     * @since 2011/12/07
+     */
+    private void traceRoi(Frame f) {
+        int x = f.roi.x(), y = f.roi.y(), w = f.roi.width(), h = f.roi.height();
+        if (x != lastRoiX || y != lastRoiY || w != lastRoiWidth || h != lastRoiHeight) {
+            PipelineTrace.roiChanged(f.id, x, y, w, h);
+            lastRoiX = x;
+            lastRoiY = y;
+            lastRoiWidth = w;
+            lastRoiHeight = h;
+        }
+    }
+
+    /**
+     * 結果出力ステージ
+     * <pre>
+     * 前段から届いたフレームをフレーム番号順に並べ替えて出力する．
+     * </pre>
+     * @since 2011/12/06
+     */
+    private void publishLoop() {
+        BlockingQueue<Frame> in = queues.get(Stage.PUBLISH.ordinal());
+        TreeMap<Long, Frame> pending = new TreeMap<Long, Frame>();
+        long next = 0;
+
+        try {
+            while (true) {
+                Frame f = in.take();
+                if (f == END) break;
+                pending.put(f.id, f);
+                while (!pending.isEmpty() && pending.firstKey() == next) {
+                    publish(pending.remove(next));
+                    next++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // 途中で中断された場合は残りのフレームを順に出力する
+            for (Frame f : pending.values()) publish(f);
+            pending.clear();
+        }
+    }
+
+    /**
+     * 1フレーム分の結果を出力し，フレームを解放する
+     * @param f 出力するフレーム
+     * @since 2011/12/06
+     */
+    private void publish(Frame f) {
+        AnalyticResult result;
+        if (f.roi != null) {
+            CvRect region = f.region != null ? f.region : f.roi;
+            result = new AnalyticResult(f.id, f.roi.x(), f.roi.y(), f.roi.width(), f.roi.height(),
+                    region.x(), region.y(), region.width(), region.height(),
+                    f.failed ? -1 : f.count, f.failed ? null : f.state, f.failed ? null : f.pieces,
+                    f.captureTime, System.nanoTime());
+        } else {
+            result = new AnalyticResult(f.id, 0, 0, 0, 0, -1, null, f.captureTime, System.nanoTime());
+        }
+        if (f.src != null) {
+            NativeMemory.releaseImage(f.src);
+            f.src = null;
+        }
+        if (cache != null && !f.cached && !f.failed) cache.put(f.hash, result);
+        if (quality != null) quality.record(result);
+        published.incrementAndGet();
+        PipelineTrace.stageBegin(Stage.PUBLISH, f.id);
+
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "{0} [{1}]", new Object[]{result, getQueueDepths()});
+        }
+        if (delegate != null) {
+            try {
+                delegate.publishResult(result);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Delegate failed to publish result", e);
+            }
+        }
+        PipelineTrace.stageEnd(Stage.PUBLISH, f.id, 0);
+        PipelineTrace.resultPublished(f.id, result.getSquareCount());
+    }
+
+    /**
+     * 割り込みを無視してキューへ追加する
+     * @param q 追加先のキュー
+     * @param f 追加するフレーム
+     * @since 2011/12/06
+     */
+    private static void putQuietly(BlockingQueue<Frame> q, Frame f) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                q.put(f);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
@@ -0,0 +1,18 @@
+package org.ubilab.cicp2011.cv;
+
+/**
+ * AnalyticPipelineのデリゲートインターフェース
+ * @author atsushi-o
+ * @since 2011/12/06
+ */
+public interface AnalyticPipelineDelegate {
+    /**
+     * 処理結果を出力する
+     * <pre>
+     * 結果はフレーム順に結果出力スレッドから呼び出される．
+     * </pre>
+     * @param result 1フレーム分の処理結果
+     * @since 2011/12/06
+     */
+    public void publishResult(AnalyticResult result);
+}
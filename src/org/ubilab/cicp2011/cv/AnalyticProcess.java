@@ -1,5 +1,8 @@
 package org.ubilab.cicp2011.cv;
 
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import com.googlecode.javacpp.Pointer;
@@ -18,17 +21,52 @@ import static com.googlecode.javacpp.Loader.*;
  * @since 2011/11/17
  */
 public class AnalyticProcess extends Thread {
-    private static final CvMemStorage storage;
+    /**
+     * 画像処理の実装
+     * @since 2011/12/15
+     */
+    public enum Backend {
+        /** OpenCV（JavaCV経由） */
+        OPENCV,
+        /** Javaによる実装（JavaVision） */
+        JAVA
+    }
+
+    /** ROI検出のCannyの閾値 */
+    public static final double EDGE_CANNY_LOW = 50.0, EDGE_CANNY_HIGH = 200.0;
+    /** ROI検出の確率的Hough変換の投票数の閾値・線分の最小長・線分の最大間隔 */
+    public static final int HOUGH_THRESHOLD = 50, HOUGH_MIN_LENGTH = 100, HOUGH_MAX_GAP = 15;
+    /** マス目検出のCannyの閾値 */
+    public static final double SQUARE_CANNY_LOW = 80.0, SQUARE_CANNY_HIGH = 300.0;
+    /** マス目とみなす輪郭の面積の範囲 */
+    public static final double SQUARE_AREA_MIN = 1050*4, SQUARE_AREA_MAX = 2100*4;
+
+    private static final CvMemStorage mainStorage;
     private static final Logger logger;
+    private static final AtomicLong frameCounter;
+    private final CvMemStorage storage;
     private IplImage src = null;
     private CvRect roiRect = null;
+    private AnalyticResult result = null;
     private boolean debug = false;
     private AnalyticProcessDelegate delegate = null;
-    private CvController cController = null;
+    private TiledExecutor tiler = null;
+    private PieceRecognizer recognizer = null;
+    private Backend backend = Backend.OPENCV;
+    private RoiDetector roiDetector = null;
+    private BandedLineDetector lineDetector = null;
+    private LensCorrector lensCorrector = null;
+    private OcclusionDetector occlusion = null;
+    private ResultCache resultCache = null;
+    private StageImageSink sink = null;
+    private QualityController quality = null;
+    private long currentFrame = -1;
+    private volatile boolean cancelled = false;
 
     static {
-        storage = CvMemStorage.create();
+        mainStorage = NativeMemory.createStorage();
         logger = Logger.getLogger(AnalyticProcess.class.getName());
+        frameCounter = new AtomicLong(0);
     }
 
     /**
@@ -58,20 +96,208 @@ public class AnalyticProcess extends Thread {
      * @since 2011/11/21
      */
     public AnalyticProcess(IplImage input, boolean db, AnalyticProcessDelegate instance) {
+        this(input, db, instance, mainStorage);
+    }
+
+    /**
+     * 作業用メモリストレージを指定してインスタンスを生成する
+     * <pre>
+     * 子ストレージの確保は親ストレージに対してスレッドセーフではないため，
+     * 複数スレッドから同時に処理を行う場合はスレッドごとにストレージを与える．
+     * </pre>
+     * @param input 処理対象のフレーム
+     * @param db デバッグフラグ
+     * @param instance delegateクラスのインスタンス
+     * @param workStorage 作業用メモリストレージ
+     * @since 2011/12/06
+     */
+    AnalyticProcess(IplImage input, boolean db, AnalyticProcessDelegate instance, CvMemStorage workStorage) {
         super();
+        storage = workStorage;
         src = input;
         debug = db;
 
         // デリゲートクラスのインスタンスを保持
         delegate = instance;
-        
-        if (db) cController = CvController.getInstance();
     }
 
     @Override
     public void finalize() throws Throwable {
         super.finalize();
-        //if (src != null) cvReleaseImage(src);
+        //if (src != null) NativeMemory.releaseImage(src);
+    }
+
+    /**
+     * ストリップ分割による並列実行を設定する
+     * @param executor 並列実行に用いるTiledExecutor．nullの場合は単一スレッドで実行する
+     * @since 2011/12/05
+     */
+    public void setTiledExecutor(TiledExecutor executor) {
+        tiler = executor;
+    }
+
+    /**
+     * 画像処理の実装を設定する
+     * <pre>
+     * JAVAを指定した場合，前処理・Hough変換・マス検出をJavaVisionで行う．TiledExecutorは用いない．
+     * </pre>
+     * @param b 画像処理の実装
+     * @since 2011/12/15
+     */
+    public void setBackend(Backend b) {
+        backend = b == null ? Backend.OPENCV : b;
+    }
+
+    /**
+     * Hough変換の前に用いるROI検出処理を設定する
+     * @param detector ROI検出処理．nullの場合はHough変換のみを用いる
+     * @since 2011/12/16
+     */
+    public void setRoiDetector(RoiDetector detector) {
+        roiDetector = detector;
+    }
+
+    /**
+     * 格子線の向きに限定した線分検出を設定する
+     * <pre>
+     * 設定した場合，Hough変換によるROI検出はBackendに関わらずBandedLineDetectorで行う．
+     * </pre>
+     * @param detector 線分検出に用いるBandedLineDetector．nullの場合は全角度で検出する
+     * @since 2011/12/17
+     */
+    public void setLineDetector(BandedLineDetector detector) {
+        lineDetector = detector;
+    }
+
+    /**
+     * レンズの歪み補正を設定する
+     * <pre>
+     * 設定した場合，getROIViewで切り出すROI領域の画像を補正する．盤検出は補正前のフレームで行う．
+     * 結果のROIは補正前のフレームの座標のままとし，マス目を検出した補正後の領域はAnalyticResult#getRegionXなどで返す．
+     * </pre>
+     * @param corrector 歪み補正に用いるLensCorrector．nullの場合は補正しない
+     * @since 2011/12/18
+     */
+    public void setLensCorrector(LensCorrector corrector) {
+        lensCorrector = corrector;
+    }
+
+    /**
+     * 手などによる盤の遮蔽の検出を設定する
+     * <pre>
+     * 設定した場合，遮蔽中のフレームはマス検出・駒認識を行わず，ROI検出も遮蔽前のROIで代用する．
+     * </pre>
+     * @param detector 遮蔽の検出に用いるOcclusionDetector．nullの場合は検出しない
+     * @since 2011/12/21
+     */
+    public void setOcclusionDetector(OcclusionDetector detector) {
+        occlusion = detector;
+    }
+
+    /**
+     * 解析結果のキャッシュを設定する
+     * <pre>
+     * 設定した場合，盤の検出と遮蔽の判定の後，ROIと盤の領域の知覚ハッシュが一致するフレームは
+     * マス目の検出と駒の認識を行わずにキャッシュの結果を用いる．
+     * </pre>
+     * @param cache 解析結果のキャッシュ．nullの場合はキャッシュしない
+     * @since 2011/12/22
+     */
+    public void setResultCache(ResultCache cache) {
+        resultCache = cache;
+    }
+
+    /**
+     * 処理途中の画像の受け取り先を設定する
+     * <pre>
+     * 設定した場合，デバッグ表示と同じ箇所の画像（元画像・Hough変換の結果・マス目の輪郭）を渡す．
+     * デバッグ表示を行わない場合も輪郭などを描画する．
+     * </pre>
+     * @param s 画像の受け取り先．nullの場合は渡さない
+     * @since 2011/12/24
+     */
+    public void setStageImageSink(StageImageSink s) {
+        sink = s;
+    }
+
+    /**
+     * 処理時間に応じて解析の品質を切り替えるQualityControllerを設定する
+     * <pre>
+     * 設定した場合，品質の段階に応じてROIを再利用し，マス検出の解像度を下げる．
+     * 処理時間はrunの終了時に記録する．
+     * </pre>
+     * @param qc 品質の切り替え．nullの場合は常に省略なしで処理する
+     * @since 2011/12/28
+     */
+    public void setQualityController(QualityController qc) {
+        quality = qc;
+    }
+
+    /**
+     * 処理の中止を要求する
+     * <pre>
+     * runはステージの区切り（盤検出・マス検出・駒認識の前）で要求を確認し，
+     * 確保した画像を解放して結果を出力せずに終了する．実行中のステージは最後まで行う．
+     * </pre>
+     * @since 2011/12/29
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * 処理の中止が要求されたかどうかを返す
+     * @return cancelを呼んだ場合true
+     * @since 2011/12/29
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 中止が要求されていれば作業用メモリを消去する
+     * @param stage 次に実行するステージ
+     * @return 中止する場合true
+     * @since 2011/12/29
+     */
+    private boolean abandon(AnalyticPipeline.Stage stage) {
+        if (!cancelled) return false;
+        if (verbose()) _printf("* %sの前で処理を中止\n", stage);
+        cvClearMemStorage(storage);
+        return true;
+    }
+
+    /**
+     * 以降の処理途中の画像に付けるフレーム番号を設定する
+     * @param frameId フレーム番号
+     * @since 2011/12/24
+     */
+    void setCurrentFrame(long frameId) {
+        currentFrame = frameId;
+    }
+
+    /**
+     * 駒の認識を設定する
+     * @param pr 駒の認識に用いるPieceRecognizer．nullの場合は認識しない
+     * @since 2011/12/14
+     */
+    public void setPieceRecognizer(PieceRecognizer pr) {
+        recognizer = pr;
+    }
+
+    /**
+     * 検出の閾値を表す文字列を返す
+     * <pre>
+     * 保存した検出結果が現在の設定で得られたものかどうかの判定に用いる．
+     * </pre>
+     * @return 閾値をカンマで区切った文字列
+     * @since 2011/12/22
+     */
+    static String thresholdSignature() {
+        return EDGE_CANNY_LOW + "," + EDGE_CANNY_HIGH + ","
+                + HOUGH_THRESHOLD + "," + HOUGH_MIN_LENGTH + "," + HOUGH_MAX_GAP + ","
+                + SQUARE_CANNY_LOW + "," + SQUARE_CANNY_HIGH + ","
+                + SQUARE_AREA_MIN + "," + SQUARE_AREA_MAX;
     }
 
     /**
@@ -79,7 +305,7 @@ public class AnalyticProcess extends Thread {
      */
     public static synchronized final void releaseMemStorage() {
         logger.info("Release main memory storage.");
-        cvReleaseMemStorage(storage);
+        NativeMemory.releaseStorage(mainStorage);
     }
 
     /**
@@ -90,6 +316,7 @@ public class AnalyticProcess extends Thread {
      * @since 2011/11/22
      */
     private void showImage(String key, IplImage image) {
+        if (sink != null) sink.stageImage(currentFrame, key, image);
         if (debug && delegate != null) {
             logger.log(Level.FINER, "Call delegate method (showImage) at {0}.", delegate);
             delegate.showImage(key, image);
@@ -98,28 +325,109 @@ public class AnalyticProcess extends Thread {
 
     /**
      * 画像処理本体
+     * <pre>
+     * cancelで中止した場合，getResultは前回の結果（初回はnull）のままとなる．
+     * </pre>
      * @since 2011/11/17
      */
     @Override
     public void run() {
+        long frameId = frameCounter.getAndIncrement();
+        long captureTime = System.nanoTime();
+        int count = 0;
+        BoardState state = null;
+        PieceRecognizer.Piece[] pieces = null;
+        CvRect region = null;
+        ResultCache.Key key = null;
+        AnalyticResult cached = null;
+        if (PipelineTrace.isEnabled()) PipelineTrace.frameCaptured(frameId, src.imageSize());
         _print("完了\n");
-        // 盤検出
-        roiRect = getROI(src);
+        // 元画像の表示はキャプチャ時にCvMainが行うため，受け取り先にのみ渡す
+        currentFrame = frameId;
+        if (sink != null) sink.stageImage(frameId, "Source", src);
+        if (abandon(AnalyticPipeline.Stage.PREPROCESS)) return;
+        // 盤検出（品質を下げている間は前回のROIを再利用する）
+        PipelineTrace.stageBegin(AnalyticPipeline.Stage.PREPROCESS, frameId);
+        long sequence = quality != null ? quality.nextSequence() : 0;
+        CvRect held = quality != null ? quality.reuseRoi(sequence) : null;
+        CvRect detected = held != null ? held : detectROI(src);
+        IplImage canny = detected == null ? getEdgeImage(src) : null;
+        if (PipelineTrace.isEnabled()) PipelineTrace.stageEnd(AnalyticPipeline.Stage.PREPROCESS, frameId, canny == null ? 0 : canny.imageSize());
+        if (abandon(AnalyticPipeline.Stage.BOARD_DETECTION)) {
+            if (canny != null) NativeMemory.releaseImage(canny);
+            return;
+        }
+        PipelineTrace.stageBegin(AnalyticPipeline.Stage.BOARD_DETECTION, frameId);
+        if (canny != null) {
+            roiRect = getROIFromEdge(canny);
+            NativeMemory.releaseImage(canny);
+            roiRedetected(src, roiRect);
+        } else {
+            roiRect = detected;
+        }
+        if (quality != null && held == null) quality.roiDetected(sequence, roiRect);
+        PipelineTrace.stageEnd(AnalyticPipeline.Stage.BOARD_DETECTION, frameId, 0);
+        if (PipelineTrace.isEnabled()) PipelineTrace.roiChanged(frameId, roiRect.x(), roiRect.y(), roiRect.width(), roiRect.height());
 
-        _print(String.format("* 検出ROI領域: (%d, %d), (%d, %d)\n",
-                roiRect.x(), roiRect.y(), roiRect.x()+roiRect.width(), roiRect.y()+roiRect.height()));
+        if (verbose()) _printf("* 検出ROI領域: (%d, %d), (%d, %d)\n",
+                roiRect.x(), roiRect.y(), roiRect.x()+roiRect.width(), roiRect.y()+roiRect.height());
         
-        if (roiRect.width() * roiRect.height() > 0) {
-            // ROI領域切り出し
-            IplImage roiFrame = getROIView(src, roiRect);
+        if (abandon(AnalyticPipeline.Stage.SQUARE_DETECTION)) return;
+        if (!checkOcclusion(src, roiRect)) {
+            count = -1;
+        } else if (roiRect.width() * roiRect.height() > 0 && resultCache != null) {
+            // 盤の領域が以前に解析したフレームと同じであれば，マス目の検出と駒の認識を省く．
+            // 盤検出・遮蔽の判定は状態を持つため，キャッシュの有無にかかわらず毎フレーム行う
+            key = resultCache.hash(src, roiRect);
+            cached = resultCache.get(key, frameId, captureTime);
+            if (cached != null) _print("* キャッシュの解析結果を使用\n");
+        }
+        if (count >= 0 && cached == null && roiRect.width() * roiRect.height() > 0) {
+            PipelineTrace.stageBegin(AnalyticPipeline.Stage.SQUARE_DETECTION, frameId);
+            // ROI領域切り出し（歪みを補正した場合，マス目は補正後の座標の領域で検出する）
+            region = cvRect(0, 0, 0, 0);
+            IplImage roiFrame = getROIView(src, roiRect, region);
+            // getRectsは輪郭を描画するため，駒の認識用に複製しておく
+            IplImage clean = recognizer != null ? NativeMemory.cloneImage(NativeMemory.Category.SCRATCH, roiFrame) : null;
 
             // マス検出
-            getRects(roiFrame);
+            state = new BoardState();
+            count = quality != null && quality.reduceResolution() ? getRectsReduced(roiFrame, state) : getRects(roiFrame, state);
+
+            if (PipelineTrace.isEnabled()) PipelineTrace.stageEnd(AnalyticPipeline.Stage.SQUARE_DETECTION, frameId, roiFrame.imageSize());
+            NativeMemory.releaseImage(roiFrame);
 
-            cvReleaseImage(roiFrame);
+            // 駒認識
+            if (clean != null && abandon(AnalyticPipeline.Stage.PIECE_RECOGNITION)) {
+                NativeMemory.releaseImage(clean);
+                return;
+            }
+            if (clean != null) {
+                PipelineTrace.stageBegin(AnalyticPipeline.Stage.PIECE_RECOGNITION, frameId);
+                pieces = getPieces(clean, state);
+                PipelineTrace.stageEnd(AnalyticPipeline.Stage.PIECE_RECOGNITION, frameId, 0);
+                NativeMemory.releaseImage(clean);
+                // 駒認識の途中で割り込まれた場合は結果を出力しない
+                if (Thread.currentThread().isInterrupted()) {
+                    cvClearMemStorage(storage);
+                    return;
+                }
+            }
         }
 
         cvClearMemStorage(storage);
+        synchronized(this) {
+            if (cached != null) {
+                result = cached;
+            } else {
+                if (region == null) region = roiRect;
+                result = new AnalyticResult(frameId, roiRect.x(), roiRect.y(), roiRect.width(), roiRect.height(),
+                        region.x(), region.y(), region.width(), region.height(), count, state, pieces, captureTime, System.nanoTime());
+            }
+        }
+        if (cached == null && key != null) resultCache.put(key, result);
+        if (quality != null) quality.record(result);
+        PipelineTrace.resultPublished(frameId, result.getSquareCount());
         
         _print("位置推定処理スレッドを終了...");
     }
@@ -131,14 +439,74 @@ public class AnalyticProcess extends Thread {
      * @since 2011/11/17
      */
     public CvRect getROI(IplImage input) {
+        CvRect detected = detectROI(input);
+        if (detected != null) return detected;
+        IplImage canny = getEdgeImage(input);
+        CvRect rect = getROIFromEdge(canny);
+        NativeMemory.releaseImage(canny);
+        roiRedetected(input, rect);
+        return rect;
+    }
+
+    /**
+     * 設定されたROI検出処理でROIを検出する
+     * @param input 入力画像
+     * @return 検出されたROI．検出処理が設定されていないか確信度が低い場合はnull
+     * @since 2011/12/16
+     */
+    public CvRect detectROI(IplImage input) {
+        if (occlusion != null) {
+            CvRect held = occlusion.getHeldRoi();
+            if (held != null) return held;
+        }
+        if (roiDetector == null) return null;
+        _print("ROI領域検出処理 (色)...");
+        CvRect rect = roiDetector.detect(input);
+        _print(rect == null ? "失敗．Hough変換を用いる\n" : "完了\n");
+        return rect;
+    }
+
+    /**
+     * 盤が遮蔽されていないか調べる
+     * @param input 入力画像
+     * @param roi 盤のROI
+     * @return マス検出・駒認識を行う場合true．遮蔽中または遮蔽後の静止待ちの場合false
+     * @since 2011/12/21
+     */
+    public boolean checkOcclusion(IplImage input, CvRect roi) {
+        if (occlusion == null) return true;
+        boolean analyze = occlusion.shouldAnalyze(input, roi);
+        if (!analyze && verbose()) _printf("* 盤が遮蔽されているため解析を省略 (%s)\n", occlusion.getState());
+        return analyze;
+    }
+
+    /**
+     * Hough変換で検出し直したROIをRoiTrackerに通知する
+     * @param input ROIを検出したフレーム
+     * @param roi 検出されたROI
+     * @since 2011/12/20
+     */
+    void roiRedetected(IplImage input, CvRect roi) {
+        if (roiDetector instanceof RoiTracker && roi.width() * roi.height() > 0) {
+            ((RoiTracker)roiDetector).redetected(input, roi);
+        }
+    }
+
+    /**
+     * ROI検出の前処理としてエッジ画像を生成する
+     * <pre>
+     * グレースケール変換・平滑化・Canny・二値化を行う．
+     * 返された画像は呼び出し側で解放すること．
+     * </pre>
+     * @param input 入力画像
+     * @return 二値化済みのエッジ画像
+     * @since 2011/12/06
+     */
+    public IplImage getEdgeImage(IplImage input) {
+        if (backend == Backend.JAVA) return getEdgeImageJava(input);
         CvSize srcSize = cvGetSize(input);
-        IplImage colorDst = cvCreateImage(srcSize, IPL_DEPTH_8U, 3);
-        //colorDst = IplImage.create(srcSize, IPL_DEPTH_8U, 3);
-        IplImage canny = cvCreateImage(srcSize, IPL_DEPTH_8U, 1);
-        IplImage tmp = cvCreateImage(srcSize, IPL_DEPTH_8U, 1);
-        CvMemStorage houghStorage = cvCreateChildMemStorage(storage);
-        CvMemStorage pointsStorage = cvCreateChildMemStorage(storage);
-        CvSeq lines, points;
+        IplImage canny = NativeMemory.createImage(NativeMemory.Category.SCRATCH, srcSize, IPL_DEPTH_8U, 1);
+        IplImage tmp = NativeMemory.createImage(NativeMemory.Category.SCRATCH, srcSize, IPL_DEPTH_8U, 1);
 
         _print("ROI領域検出処理...\n");
         /*
@@ -146,29 +514,68 @@ public class AnalyticProcess extends Thread {
          */
         // グレースケールに変更
         _print("    - グレースケール変換...");
-        cvCvtColor(input, tmp, CV_RGB2GRAY);
+        cvtColor(input, tmp, CV_RGB2GRAY);
         _print("完了\n");
 
         // 単純平滑化
         _print("    - 単純平滑化処理...");
-        cvSmooth(tmp, tmp, CV_BLUR, 2);
+        smooth(tmp, tmp, CV_BLUR, 2);
         _print("完了\n");
 
         // Canny
         _print("    - エッジ検出処理...");
-        cvCanny(tmp, canny, 50.0, 200.0, 3);
+        canny(tmp, canny, EDGE_CANNY_LOW, EDGE_CANNY_HIGH, 3);
         _print("完了\n");
 
         // 2値化
         _print("    - 二値化処理...");
-        cvThreshold(canny, canny, 128, 255, CV_THRESH_BINARY);
+        threshold(canny, canny, 128, 255, CV_THRESH_BINARY);
         _print("完了\n");
 
+        NativeMemory.releaseImage(tmp);
+        return canny;
+    }
+
+    /**
+     * getEdgeImageのJava実装
+     * @param input 入力画像
+     * @return 二値化済みのエッジ画像
+     * @since 2011/12/15
+     */
+    private IplImage getEdgeImageJava(IplImage input) {
+        _print("ROI領域検出処理 (Java)...");
+        JavaVision.Plane gray = JavaVision.gray(PixelView.of(input));
+        JavaVision.Plane edge = new JavaVision.Plane(gray.width, gray.height);
+        JavaVision.boxBlur(gray, gray, 2);
+        JavaVision.canny(gray, edge, EDGE_CANNY_LOW, EDGE_CANNY_HIGH);
+        JavaVision.threshold(edge, edge, 128, 255);
+
+        IplImage canny = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvGetSize(input), IPL_DEPTH_8U, 1);
+        JavaVision.copyTo(edge, canny);
+        _print("完了\n");
+        return canny;
+    }
+
+    /**
+     * エッジ画像から確率的Hough変換によりROIを検出する
+     * @param canny getEdgeImageで生成したエッジ画像
+     * @return 検出されたROIを表すCvRect
+     * @since 2011/12/06
+     */
+    public CvRect getROIFromEdge(IplImage canny) {
+        if (backend == Backend.JAVA || lineDetector != null) return getROIFromEdgeJava(canny);
+        CvSize srcSize = cvGetSize(canny);
+        IplImage colorDst = NativeMemory.createImage(NativeMemory.Category.SCRATCH, srcSize, IPL_DEPTH_8U, 3);
+        //colorDst = IplImage.create(srcSize, IPL_DEPTH_8U, 3);
+        CvMemStorage houghStorage = cvCreateChildMemStorage(storage);
+        CvMemStorage pointsStorage = cvCreateChildMemStorage(storage);
+        CvSeq lines, points;
+
         // 確率的Hough変換
         _print("    - 確率的Hough変換処理...");
-        cvCvtColor(canny, colorDst, CV_GRAY2BGR);
+        cvtColor(canny, colorDst, CV_GRAY2BGR);
         points = cvCreateSeq(CV_SEQ_ELTYPE_POINT, sizeof(CvSeq.class), sizeof(CvPoint.class), pointsStorage);
-        lines = cvHoughLines2(canny, houghStorage, CV_HOUGH_PROBABILISTIC, 1, Math.PI/180, 50, 100, 15);
+        lines = cvHoughLines2(canny, houghStorage, CV_HOUGH_PROBABILISTIC, 1, Math.PI/180, HOUGH_THRESHOLD, HOUGH_MIN_LENGTH, HOUGH_MAX_GAP);
         for (int i = 0; i < lines.total(); i++) {
             Pointer line = cvGetSeqElem(lines, i);
             CvPoint pt1 = new CvPoint(line).position(0);
@@ -186,18 +593,48 @@ public class AnalyticProcess extends Thread {
         showImage("Hough", colorDst);
 
         // 後処理
-        cvReleaseImage(tmp);
-        cvReleaseImage(canny);
-        cvReleaseImage(colorDst);
+        NativeMemory.releaseImage(colorDst);
         cvClearSeq(lines);
         cvClearSeq(points);
         cvReleaseMemStorage(houghStorage);
         cvReleaseMemStorage(pointsStorage);
+        NativeMemory.updateStorage(storage);
 
         _print("完了\n");
         return roiRect;
     }
 
+    /**
+     * getROIFromEdgeのJava実装
+     * <pre>
+     * BandedLineDetectorを設定した場合は格子線の向きの角度のみで投票する．
+     * </pre>
+     * @param canny getEdgeImageで生成したエッジ画像
+     * @return 検出されたROIを表すCvRect
+     * @since 2011/12/15
+     */
+    private CvRect getROIFromEdgeJava(IplImage canny) {
+        _print(lineDetector != null ? "    - 格子線の向きに限定したHough変換処理..." : "    - 確率的Hough変換処理 (Java)...");
+        JavaVision.Plane edge = JavaVision.gray(PixelView.of(canny));
+        int[] lines = lineDetector != null ? lineDetector.detect(edge)
+                : JavaVision.houghLinesP(edge, 1, Math.PI/180, HOUGH_THRESHOLD, HOUGH_MIN_LENGTH, HOUGH_MAX_GAP, new Random(0));
+        int[] r = JavaVision.boundingRect(lines);
+        CvRect roiRect = cvRect(r[0], r[1], r[2], r[3]);
+        _print("完了\n");
+
+        if (debug && delegate != null || sink != null) {
+            IplImage colorDst = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvGetSize(canny), IPL_DEPTH_8U, 3);
+            cvCvtColor(canny, colorDst, CV_GRAY2BGR);
+            for (int i = 0; i + 3 < lines.length; i += 4) {
+                cvLine(colorDst, cvPoint(lines[i], lines[i+1]), cvPoint(lines[i+2], lines[i+3]), CV_RGB(255, 0, 0), 1, 8, 0);
+            }
+            cvRectangle(colorDst, cvPoint(roiRect.x(), roiRect.y()), cvPoint(roiRect.x()+roiRect.width(), roiRect.y()+roiRect.height()), CV_RGB(0, 255, 0), 2, CV_AA, 0);
+            showImage("Hough", colorDst);
+            NativeMemory.releaseImage(colorDst);
+        }
+        return roiRect;
+    }
+
     /**
      * 計算済みのROIを取得する
      * @return 既に計算済みの場合はそのCvRectを．そうでない場合はnullを返す
@@ -207,28 +644,73 @@ public class AnalyticProcess extends Thread {
         return roiRect;
     }
 
+    /**
+     * 処理結果を取得する
+     * @return 処理が完了している場合はその結果を．そうでない場合はnullを返す
+     * @since 2011/12/08
+     */
+    public synchronized AnalyticResult getResult() {
+        return result;
+    }
+
     /**
      * 指定されたROI領域を切り出して返す
+     * <pre>
+     * LensCorrectorを設定した場合は歪みを補正した領域を返す．
+     * </pre>
      * @param input 入力画像
      * @param roi ROI領域
      * @return ROI領域の画像
      * @since 2011/11/21
      */
     public IplImage getROIView(IplImage input, CvRect roi) {
+        return getROIView(input, roi, null);
+    }
+
+    /**
+     * 指定されたROI領域を切り出して，画像の領域とともに返す
+     * <pre>
+     * LensCorrectorを設定した場合は歪みを補正した領域を返し，regionには補正後の座標での領域が入る．
+     * 設定していない場合，regionはroiと同じになる．
+     * </pre>
+     * @param input 入力画像
+     * @param roi ROI領域
+     * @param region 返す画像の領域を受け取る矩形．nullの場合は受け取らない
+     * @return ROI領域の画像
+     * @since 2011/12/30
+     */
+    public IplImage getROIView(IplImage input, CvRect roi, CvRect region) {
+        if (lensCorrector != null) return lensCorrector.undistortRegion(input, roi, region);
+        if (region != null) region.x(roi.x()).y(roi.y()).width(roi.width()).height(roi.height());
         CvSize srcSize = cvGetSize(input);
         CvSize roiSize = cvSize(roi.width(), roi.height());
-        IplImage tmp = cvCreateImage(srcSize, IPL_DEPTH_8U, 3);
-        IplImage roiImage = cvCreateImage(roiSize, IPL_DEPTH_8U, 3);
+        IplImage tmp = NativeMemory.createImage(NativeMemory.Category.SCRATCH, srcSize, IPL_DEPTH_8U, 3);
+        IplImage roiImage = NativeMemory.createImage(NativeMemory.Category.SCRATCH, roiSize, IPL_DEPTH_8U, 3);
 
         cvCopy(input, tmp);
         cvSetImageROI(tmp, roi);
         cvCopy(tmp, roiImage);
 
-        cvReleaseImage(tmp);
+        NativeMemory.releaseImage(tmp);
 
         return roiImage;
     }
 
+    /**
+     * ROI領域の画像から81マスそれぞれの輝度の平均・分散とエッジ画素数を求める
+     * <pre>
+     * 画像はコピーせずに参照する．getRectsは入力画像に輪郭を描画するため，その前に呼ぶこと．
+     * </pre>
+     * @param roiImage getROIViewで切り出したROI領域の画像
+     * @return マスごとの統計量
+     * @since 2011/12/13
+     */
+    public CellStatistics getCellStatistics(IplImage roiImage) {
+        CellStatistics stats = CellStatistics.compute(PixelView.of(roiImage));
+        if (verbose()) _printf("* マスごとの輝度平均/分散/エッジ割合:\n%s", stats);
+        return stats;
+    }
+
     /**
      * 画像のダウン・アップサンプリングを行いノイズを除去する
      * @param input 入力画像
@@ -238,13 +720,13 @@ public class AnalyticProcess extends Thread {
     public IplImage resamplingImage(IplImage input) {
         CvSize srcSize = cvGetSize(input);
         CvSize half = cvSize(srcSize.width()/2, srcSize.height()/2);
-        IplImage tmp = cvCreateImage(half, IPL_DEPTH_8U, 3);
+        IplImage tmp = NativeMemory.createImage(NativeMemory.Category.SCRATCH, half, IPL_DEPTH_8U, 3);
 
         _print("ノイズ除去処理...");
         cvPyrDown(input, tmp, CV_GAUSSIAN_5x5);
         cvPyrUp(tmp, input, CV_GAUSSIAN_5x5);
 
-        cvReleaseImage(tmp);
+        NativeMemory.releaseImage(tmp);
 
         _print("完了\n");
         return input;
@@ -253,12 +735,56 @@ public class AnalyticProcess extends Thread {
     /**
      * マス目を検出する
      * @param input 入力画像
+     * @return 検出されたマス目の数
      * @since 2011/11/17
      */
-    public void getRects(IplImage input) {
+    public int getRects(IplImage input) {
+        return getRects(input, null);
+    }
+
+    /**
+     * マス目を検出し，検出されたマスを盤面上で空きとして記録する
+     * @param input 入力画像（ROI領域の画像）
+     * @param state 検出結果を記録する盤面．nullの場合は記録しない
+     * @return 検出されたマス目の数
+     * @since 2011/12/08
+     */
+    public int getRects(IplImage input, BoardState state) {
+        return getRects(input, state, 1.0);
+    }
+
+    /**
+     * ROI領域の画像を縦横1/2に縮小してマス目を検出する
+     * <pre>
+     * マス目とみなす輪郭の面積の範囲も1/4にする．輪郭は縮小した画像に描画し，入力画像は変更しない．
+     * </pre>
+     * @param input 入力画像（ROI領域の画像）
+     * @param state 検出結果を記録する盤面．nullの場合は記録しない
+     * @return 検出されたマス目の数
+     * @since 2011/12/28
+     */
+    public int getRectsReduced(IplImage input, BoardState state) {
+        IplImage half = NativeMemory.createImage(NativeMemory.Category.SCRATCH,
+                cvSize((input.width()+1)/2, (input.height()+1)/2), IPL_DEPTH_8U, 3);
+        cvPyrDown(input, half, CV_GAUSSIAN_5x5);
+        int count = getRects(half, state, 0.25);
+        NativeMemory.releaseImage(half);
+        return count;
+    }
+
+    /**
+     * マス目とみなす輪郭の面積の範囲を倍率で指定してマス目を検出する
+     * @param input 入力画像（ROI領域の画像）
+     * @param state 検出結果を記録する盤面．nullの場合は記録しない
+     * @param areaScale SQUARE_AREA_MIN・SQUARE_AREA_MAXに掛ける倍率
+     * @return 検出されたマス目の数
+     * @since 2011/12/28
+     */
+    private int getRects(IplImage input, BoardState state, double areaScale) {
+        if (backend == Backend.JAVA) return getRectsJava(input, state, areaScale);
         CvSize srcSize = cvGetSize(input);
-        IplImage tmp1 = cvCreateImage(srcSize, IPL_DEPTH_8U, 1);
-        IplImage tmp2 = cvCreateImage(srcSize, IPL_DEPTH_8U, 1);
+        IplImage tmp1 = NativeMemory.createImage(NativeMemory.Category.SCRATCH, srcSize, IPL_DEPTH_8U, 1);
+        IplImage tmp2 = NativeMemory.createImage(NativeMemory.Category.SCRATCH, srcSize, IPL_DEPTH_8U, 1);
         CvMemStorage contoursStorage = cvCreateChildMemStorage(storage);
         CvMemStorage squaresStorage  = cvCreateChildMemStorage(storage);
         CvSeq squares = cvCreateSeq(CV_SEQ_ELTYPE_POINT, sizeof(CvSeq.class), sizeof(CvPoint.class), squaresStorage);
@@ -269,16 +795,16 @@ public class AnalyticProcess extends Thread {
             // COI設定・切り出し処理
             //cvSetImageCOI(input, 1);
             //cvCopy(input, tmp1);
-            cvCvtColor(input, tmp1, CV_RGB2GRAY);
+            cvtColor(input, tmp1, CV_RGB2GRAY);
 
             // エッジ検出
             _print("    - エッジ検出処理...");
-            cvCanny(tmp1, tmp2, 80.0, 300.0, 3);
+            canny(tmp1, tmp2, SQUARE_CANNY_LOW, SQUARE_CANNY_HIGH, 3);
             _print("完了\n");
 
             // エッジ強調
             _print("    - エッジ強調処理...");
-            cvDilate(tmp2, tmp2, null, 1);
+            dilate(tmp2, tmp2, 1);
             _print("完了\n");
 
             // 輪郭端点抽出
@@ -294,7 +820,13 @@ public class AnalyticProcess extends Thread {
                 double area = cvContourArea(contours, CV_WHOLE_SEQ, 0);
 
                 // 閾値による升目判定
-                if (area > 1050*4 && area < 2100*4){
+                if (area > SQUARE_AREA_MIN * areaScale && area < SQUARE_AREA_MAX * areaScale){
+                    if (state != null) {
+                        // 外接矩形の中心が含まれるマスを空きとする
+                        CvRect r = cvBoundingRect(contours, 0);
+                        int index = BoardState.cellIndex(r.x()+r.width()/2, r.y()+r.height()/2, srcSize.width(), srcSize.height());
+                        if (index >= 0) state.set(index, BoardState.EMPTY);
+                    }
                     // 輪郭端点表示用：輪郭
                     cvDrawContours(input, contours, CV_RGB(255, 0, 0), CV_RGB(0, 255, 0), -1, 2, CV_AA, cvPoint(0, 0));
                     count++;
@@ -302,27 +834,231 @@ public class AnalyticProcess extends Thread {
             }
             contours = contours.h_next();
         }
-        _print(String.format("* 検出されたマス目の数: %d\n", count));
+        if (verbose()) _printf("* 検出されたマス目の数: %d\n", count);
 
         // 結果を出力
         showImage("ROI View", input);
 
-        cvReleaseImage(tmp1);
-        cvReleaseImage(tmp2);
+        NativeMemory.releaseImage(tmp1);
+        NativeMemory.releaseImage(tmp2);
         cvClearSeq(squares);
         cvReleaseMemStorage(contoursStorage);
         cvReleaseMemStorage(squaresStorage);
+        NativeMemory.updateStorage(storage);
         
         _print("完了\n");
+        return count;
     }
     
+    /**
+     * getRectsのJava実装
+     * @param input 入力画像（ROI領域の画像）
+     * @param state 検出結果を記録する盤面．nullの場合は記録しない
+     * @param areaScale SQUARE_AREA_MIN・SQUARE_AREA_MAXに掛ける倍率
+     * @return 検出されたマス目の数
+     * @since 2011/12/15
+     */
+    private int getRectsJava(IplImage input, BoardState state, double areaScale) {
+        int width = input.width(), height = input.height();
+        _print("マス目検出処理 (Java)...");
+        JavaVision.Plane gray = JavaVision.gray(PixelView.of(input));
+        JavaVision.Plane edge = new JavaVision.Plane(width, height);
+        JavaVision.canny(gray, edge, SQUARE_CANNY_LOW, SQUARE_CANNY_HIGH);
+        JavaVision.dilate(edge, edge, 1);
+        List<int[]> contours = JavaVision.findContours(edge);
+
+        boolean draw = debug && delegate != null || sink != null;
+        int count = 0;
+        for (int[] c : contours) {
+            double area = JavaVision.contourArea(c);
+
+            // 閾値による升目判定
+            if (area > SQUARE_AREA_MIN * areaScale && area < SQUARE_AREA_MAX * areaScale) {
+                if (state != null) {
+                    // 外接矩形の中心が含まれるマスを空きとする
+                    int[] r = JavaVision.boundingRect(c);
+                    int index = BoardState.cellIndex(r[0]+r[2]/2, r[1]+r[3]/2, width, height);
+                    if (index >= 0) state.set(index, BoardState.EMPTY);
+                }
+                if (draw) {
+                    // 輪郭端点表示用：輪郭
+                    int n = c.length / 2;
+                    for (int i = 0; i < n; i++) {
+                        int j = (i + 1) % n;
+                        cvLine(input, cvPoint(c[2*i], c[2*i+1]), cvPoint(c[2*j], c[2*j+1]), CV_RGB(255, 0, 0), 2, CV_AA, 0);
+                    }
+                }
+                count++;
+            }
+        }
+        _print("完了\n");
+        if (verbose()) _printf("* 検出されたマス目の数: %d\n", count);
+
+        // 結果を出力
+        showImage("ROI View", input);
+        return count;
+    }
+
+    /**
+     * 駒のあるマスの駒の種類と向きを認識する
+     * @param roiImage 輪郭を描画する前のROI領域の画像
+     * @param state getRectsで求めた盤面
+     * @return マスごとの駒（81要素）．認識を設定していない場合，認識の途中で割り込まれた場合はnull
+     * @since 2011/12/14
+     */
+    public PieceRecognizer.Piece[] getPieces(IplImage roiImage, BoardState state) {
+        if (recognizer == null) return null;
+        _print("駒認識処理...");
+        PieceRecognizer.Piece[] pieces = recognizer.recognize(roiImage, state);
+        if (verbose()) _printf("完了 (%.1f ms)\n", recognizer.getLastMillis());
+        return pieces;
+    }
+
+    /**
+     * 色空間を変換する（cvCvtColor）
+     * @param src 入力画像
+     * @param dst 出力画像
+     * @param code 変換コード
+     * @since 2011/12/05
+     */
+    private void cvtColor(IplImage src, IplImage dst, final int code) {
+        if (tiler == null) {
+            cvCvtColor(src, dst, code);
+            return;
+        }
+        tiler.apply(src, dst, TiledExecutor.HALO_POINT, new TiledExecutor.StripOperation() {
+            @Override
+            public void apply(CvArr s, CvArr d) { cvCvtColor(s, d, code); }
+        });
+    }
+
+    /**
+     * 平滑化する（cvSmooth）
+     * @param src 入力画像
+     * @param dst 出力画像
+     * @param type 平滑化の種類
+     * @param size カーネルサイズ
+     * @since 2011/12/05
+     */
+    private void smooth(IplImage src, IplImage dst, final int type, final int size) {
+        if (tiler == null) {
+            cvSmooth(src, dst, type, size);
+            return;
+        }
+        tiler.apply(src, dst, Math.max(TiledExecutor.HALO_3x3, size/2), new TiledExecutor.StripOperation() {
+            @Override
+            public void apply(CvArr s, CvArr d) { cvSmooth(s, d, type, size); }
+        });
+    }
+
+    /**
+     * エッジを検出する（cvCanny）
+     * @param src 入力画像
+     * @param dst 出力画像
+     * @param th1 下側閾値
+     * @param th2 上側閾値
+     * @param aperture Sobelのアパーチャサイズ
+     * @since 2011/12/05
+     */
+    private void canny(IplImage src, IplImage dst, double th1, double th2, int aperture) {
+        if (tiler == null) {
+            cvCanny(src, dst, th1, th2, aperture);
+            return;
+        }
+        tiler.canny(src, dst, th1, th2, aperture);
+    }
+
+    /**
+     * 二値化する（cvThreshold）
+     * @param src 入力画像
+     * @param dst 出力画像
+     * @param th 閾値
+     * @param max 最大値
+     * @param type 二値化の種類
+     * @since 2011/12/05
+     */
+    private void threshold(IplImage src, IplImage dst, final double th, final double max, final int type) {
+        if (tiler == null) {
+            cvThreshold(src, dst, th, max, type);
+            return;
+        }
+        tiler.apply(src, dst, TiledExecutor.HALO_POINT, new TiledExecutor.StripOperation() {
+            @Override
+            public void apply(CvArr s, CvArr d) { cvThreshold(s, d, th, max, type); }
+        });
+    }
+
+    /**
+     * 3x3の矩形カーネルで膨張する（cvDilate）
+     * @param src 入力画像
+     * @param dst 出力画像
+     * @param iterations 繰り返し回数
+     * @since 2011/12/05
+     */
+    private void dilate(IplImage src, IplImage dst, final int iterations) {
+        if (tiler == null) {
+            cvDilate(src, dst, null, iterations);
+            return;
+        }
+        tiler.apply(src, dst, TiledExecutor.HALO_3x3 * iterations, new TiledExecutor.StripOperation() {
+            @Override
+            public void apply(CvArr s, CvArr d) { cvDilate(s, d, null, iterations); }
+        });
+    }
+
     /**
      * デバッグ用出力関数
+     * <pre>
+     * デバッグ出力先がなくFINEログも無効な場合は何もしない．
+     * </pre>
      * @param str 出力文字列
      * @since 2011/12/01
      */
     private void _print(String str) {
-        if (cController != null) cController.addText(str);
-        logger.fine(str.replaceAll("\n", ""));
+        if (debug && delegate != null) delegate.addText(str);
+        if (logger.isLoggable(Level.FINE)) logger.fine(removeNewLine(str));
+    }
+
+    /**
+     * デバッグ出力先があるかFINEログが有効かを返す
+     * <pre>
+     * 可変長引数の配列生成とボクシングは呼び出し側で行われるため，
+     * 処理の途中で_printfを呼ぶ箇所はこれで囲む．
+     * </pre>
+     * @return 出力する場合true
+     * @since 2011/12/07
+     */
+    private boolean verbose() {
+        return debug && delegate != null || logger.isLoggable(Level.FINE);
+    }
+
+    /**
+     * 書式を指定するデバッグ用出力関数
+     * <pre>
+     * 出力先がない場合は文字列の整形を行わない．
+     * </pre>
+     * @param format 書式文字列
+     * @param args 書式引数
+     * @since 2011/12/07
+     */
+    private void _printf(String format, Object... args) {
+        if (!verbose()) return;
+        _print(String.format(format, args));
+    }
+
+    /**
+     * 改行文字を取り除く
+     * @param str 対象文字列
+     * @return 改行を除いた文字列
+     * @since 2011/12/07
+     */
+    private static String removeNewLine(String str) {
+        if (str.indexOf('\n') < 0) return str;
+        StringBuilder sb = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c != '\n') sb.append(c);
+        }
+        return sb.toString();
     }
 }
@@ -21,4 +21,10 @@ public interface AnalyticProcessDelegate {
      * @since 2011/11/21
      */
     public void showImage(String key, IplImage image);
+    /**
+     * デバッグ用の処理経過を出力する
+     * @param str 出力文字列
+     * @since 2011/12/10
+     */
+    public void addText(String str);
 }
@@ -0,0 +1,135 @@
+package org.ubilab.cicp2011.cv;
+
+/**
+ * 1フレーム分の画像処理結果を保持するクラス
+ * <pre>
+ * ROIは入力フレーム上で検出した盤の矩形である．マス目と駒はROIを切り出した画像の領域（region）で検出し，
+ * LensCorrectorで歪みを補正した場合，この領域は補正後の座標でROIを囲む矩形となる．補正しない場合はROIと同じ．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/06
+ */
+public class AnalyticResult {
+    private final long frameId;
+    private final int roiX, roiY, roiWidth, roiHeight;
+    private final int regionX, regionY, regionWidth, regionHeight;
+    private final int squareCount;
+    private final BoardState state;
+    private final PieceRecognizer.Piece[] pieces;
+    private final long captureTime;
+    private final long publishTime;
+
+    /**
+     * 処理結果のインスタンスを生成する
+     * @param frameId フレーム番号
+     * @param roiX ROI領域の左上x座標
+     * @param roiY ROI領域の左上y座標
+     * @param roiWidth ROI領域の幅
+     * @param roiHeight ROI領域の高さ
+     * @param squareCount 検出されたマス目の数．処理できなかった場合は負の値
+     * @param state 盤面の状態．盤が検出されなかった場合はnull
+     * @param captureTime キャプチャ時刻（System.nanoTime）
+     * @param publishTime 結果出力時刻（System.nanoTime）
+     * @since 2011/12/06
+     */
+    AnalyticResult(long frameId, int roiX, int roiY, int roiWidth, int roiHeight,
+            int squareCount, BoardState state, long captureTime, long publishTime) {
+        this(frameId, roiX, roiY, roiWidth, roiHeight, squareCount, state, null, captureTime, publishTime);
+    }
+
+    /**
+     * 駒の認識結果を含む処理結果のインスタンスを生成する
+     * @param frameId フレーム番号
+     * @param roiX ROI領域の左上x座標
+     * @param roiY ROI領域の左上y座標
+     * @param roiWidth ROI領域の幅
+     * @param roiHeight ROI領域の高さ
+     * @param squareCount 検出されたマス目の数．処理できなかった場合は負の値
+     * @param state 盤面の状態．盤が検出されなかった場合はnull
+     * @param pieces マスごとの駒（81要素）．駒の認識を行わなかった場合はnull
+     * @param captureTime キャプチャ時刻（System.nanoTime）
+     * @param publishTime 結果出力時刻（System.nanoTime）
+     * @since 2011/12/14
+     */
+    AnalyticResult(long frameId, int roiX, int roiY, int roiWidth, int roiHeight,
+            int squareCount, BoardState state, PieceRecognizer.Piece[] pieces, long captureTime, long publishTime) {
+        this(frameId, roiX, roiY, roiWidth, roiHeight, roiX, roiY, roiWidth, roiHeight,
+                squareCount, state, pieces, captureTime, publishTime);
+    }
+
+    /**
+     * マス目を検出した領域がROIと異なる処理結果のインスタンスを生成する
+     * @param frameId フレーム番号
+     * @param roiX ROI領域の左上x座標
+     * @param roiY ROI領域の左上y座標
+     * @param roiWidth ROI領域の幅
+     * @param roiHeight ROI領域の高さ
+     * @param regionX マス目を検出した領域の左上x座標
+     * @param regionY マス目を検出した領域の左上y座標
+     * @param regionWidth マス目を検出した領域の幅
+     * @param regionHeight マス目を検出した領域の高さ
+     * @param squareCount 検出されたマス目の数．処理できなかった場合は負の値
+     * @param state 盤面の状態．盤が検出されなかった場合はnull
+     * @param pieces マスごとの駒（81要素）．駒の認識を行わなかった場合はnull
+     * @param captureTime キャプチャ時刻（System.nanoTime）
+     * @param publishTime 結果出力時刻（System.nanoTime）
+     * @since 2011/12/30
+     */
+    AnalyticResult(long frameId, int roiX, int roiY, int roiWidth, int roiHeight,
+            int regionX, int regionY, int regionWidth, int regionHeight,
+            int squareCount, BoardState state, PieceRecognizer.Piece[] pieces, long captureTime, long publishTime) {
+        this.frameId = frameId;
+        this.roiX = roiX;
+        this.roiY = roiY;
+        this.roiWidth = roiWidth;
+        this.roiHeight = roiHeight;
+        this.regionX = regionX;
+        this.regionY = regionY;
+        this.regionWidth = regionWidth;
+        this.regionHeight = regionHeight;
+        this.squareCount = squareCount;
+        this.state = state;
+        this.pieces = pieces;
+        this.captureTime = captureTime;
+        this.publishTime = publishTime;
+    }
+
+    public long getFrameId()    { return frameId; }
+    public int getRoiX()        { return roiX; }
+    public int getRoiY()        { return roiY; }
+    public int getRoiWidth()    { return roiWidth; }
+    public int getRoiHeight()   { return roiHeight; }
+    public int getRegionX()     { return regionX; }
+    public int getRegionY()     { return regionY; }
+    public int getRegionWidth() { return regionWidth; }
+    public int getRegionHeight(){ return regionHeight; }
+    public int getSquareCount() { return squareCount; }
+    public BoardState getBoardState() { return state; }
+    public long getCaptureTime(){ return captureTime; }
+    public PieceRecognizer.Piece[] getPieces() { return pieces == null ? null : pieces.clone(); }
+    public long getPublishTime(){ return publishTime; }
+
+    /**
+     * フレームを処理できたかどうかを返す
+     * @return 処理できた場合true
+     * @since 2011/12/06
+     */
+    public boolean isValid() {
+        return squareCount >= 0;
+    }
+
+    /**
+     * キャプチャから結果出力までの処理時間を返す
+     * @return 処理時間[ms]
+     * @since 2011/12/06
+     */
+    public double getLatencyMillis() {
+        return (publishTime - captureTime) / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("frame %d: ROI (%d, %d, %d, %d), squares %d, %.1f ms",
+                frameId, roiX, roiY, roiWidth, roiHeight, squareCount, getLatencyMillis());
+    }
+}
@@ -0,0 +1,295 @@
+package org.ubilab.cicp2011.cv;
+
+import java.util.Random;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * 盤の格子線の向きに投票を限定して線分を検出するクラス
+ * <pre>
+ * 盤の格子線はほぼ直交する2つの向きに集中しているため，全角度で投票する確率的Hough変換の大半の投票は無駄になる．
+ * 最初のフレーム（または追跡を失ったとき）は全角度で検出して線分の向きの分布から主要な向き2つを推定し，
+ * 以降のフレームはその前後±bandWidthの帯に含まれる角度だけで投票する．
+ * 帯の中心は検出された線分の向きの長さ重み付き平均へ毎フレーム近づけて追跡する．
+ * いずれかの帯で検出された線分がminLines本未満のフレームがlostFrames回続いた場合は次のフレームで推定し直す．
+ * 角度は確率的Hough変換と同じく直線の法線の向き（0〜180°）で表す．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/17
+ */
+public class BandedLineDetector {
+    /** 角度の分解能[rad] */
+    private static final double THETA = Math.PI / 180;
+    /** 角度の添字の数（180°） */
+    private static final int NUM_ANGLE = 180;
+    /** 既定の帯の半幅[°] */
+    public static final int DEFAULT_BAND_WIDTH = 3;
+    /** 2つ目の向きを探す直交からのずれの範囲[°] */
+    private static final int MAX_SKEW = 15;
+    /** 帯の中心を追跡する際の更新率 */
+    private static final double TRACK_RATE = 0.5;
+
+    private static final Logger logger;
+    private final int threshold, lineLength, lineGap;
+    private final int bandWidth;
+    private final int minLines = 2;
+    private final int lostFrames = 3;
+    private final Random random = new Random(0);
+    private double[] centers = null;
+    private int[] angles = null;
+    private int lost = 0;
+    private long estimations = 0, frames = 0;
+
+    static {
+        logger = Logger.getLogger(BandedLineDetector.class.getName());
+    }
+
+    /**
+     * AnalyticProcessと同じパラメータでインスタンスを生成する
+     * @since 2011/12/17
+     */
+    public BandedLineDetector() {
+        this(AnalyticProcess.HOUGH_THRESHOLD, AnalyticProcess.HOUGH_MIN_LENGTH, AnalyticProcess.HOUGH_MAX_GAP, DEFAULT_BAND_WIDTH);
+    }
+
+    /**
+     * 確率的Hough変換のパラメータと帯の半幅を指定してインスタンスを生成する
+     * @param threshold 投票数の閾値
+     * @param lineLength 線分の最小長
+     * @param lineGap 同じ線分とみなす点の最大間隔
+     * @param bandWidth 帯の半幅[°]
+     * @since 2011/12/17
+     */
+    public BandedLineDetector(int threshold, int lineLength, int lineGap, int bandWidth) {
+        this.threshold = threshold;
+        this.lineLength = lineLength;
+        this.lineGap = lineGap;
+        this.bandWidth = Math.max(0, bandWidth);
+    }
+
+    /**
+     * エッジ画像から格子線の線分を検出する
+     * @param edge 二値化済みのエッジ画像
+     * @return 検出された線分の端点（x1, y1, x2, y2の繰り返し）
+     * @since 2011/12/17
+     */
+    public synchronized int[] detect(JavaVision.Plane edge) {
+        frames++;
+        if (angles == null) {
+            // 全角度で検出して向きを推定する
+            int[] lines = JavaVision.houghLinesP(edge, 1, THETA, threshold, lineLength, lineGap, random);
+            estimate(lines);
+            return angles == null ? lines : select(lines);
+        }
+
+        int[] lines = JavaVision.houghLinesP(edge, 1, THETA, threshold, lineLength, lineGap, random, angles);
+        track(lines);
+        return lines;
+    }
+
+    /**
+     * 線分の向きの分布から主要な向き2つを推定し，投票する角度を設定する
+     * @param lines 全角度で検出した線分
+     * @since 2011/12/17
+     */
+    private void estimate(int[] lines) {
+        estimations++;
+        double[] hist = new double[NUM_ANGLE];
+        for (int i = 0; i + 3 < lines.length; i += 4) {
+            hist[angleIndex(lines, i)] += length(lines, i);
+        }
+        // 隣接する角度を合わせて量子化の境界で票が割れるのを防ぐ
+        double[] smooth = new double[NUM_ANGLE];
+        for (int n = 0; n < NUM_ANGLE; n++) {
+            smooth[n] = hist[wrap(n - 1)] + hist[n] + hist[wrap(n + 1)];
+        }
+
+        int first = 0;
+        for (int n = 1; n < NUM_ANGLE; n++) {
+            if (smooth[n] > smooth[first]) first = n;
+        }
+        if (smooth[first] <= 0) {
+            logger.fine("Banded lines: no line to estimate orientation.");
+            return;
+        }
+        // 直交する向きの付近で2つ目を探す．見つからない場合は直交とみなす
+        int second = wrap(first + NUM_ANGLE / 2);
+        double best = 0;
+        for (int d = -MAX_SKEW; d <= MAX_SKEW; d++) {
+            int n = wrap(first + NUM_ANGLE / 2 + d);
+            if (smooth[n] > best) {
+                best = smooth[n];
+                second = n;
+            }
+        }
+        centers = new double[]{first, second};
+        lost = 0;
+        updateAngles();
+        if (logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "Banded lines: estimated orientation {0}°, {1}°", new Object[]{first, second});
+    }
+
+    /**
+     * 検出された線分の向きに帯の中心を近づける
+     * @param lines 帯の中で検出した線分
+     * @since 2011/12/17
+     */
+    private void track(int[] lines) {
+        double[] sum = new double[2], weight = new double[2];
+        int[] count = new int[2];
+        for (int i = 0; i + 3 < lines.length; i += 4) {
+            int a = angleIndex(lines, i);
+            int band = Math.abs(offset(a, centers[0])) <= Math.abs(offset(a, centers[1])) ? 0 : 1;
+            double len = length(lines, i);
+            sum[band] += offset(a, centers[band]) * len;
+            weight[band] += len;
+            count[band]++;
+        }
+
+        if (count[0] < minLines || count[1] < minLines) {
+            if (++lost >= lostFrames) {
+                // 次のフレームで推定し直す
+                if (logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "Banded lines: lost orientation ({0}, {1} lines)", new Object[]{count[0], count[1]});
+                centers = null;
+                angles = null;
+            }
+            return;
+        }
+        lost = 0;
+        for (int b = 0; b < 2; b++) {
+            centers[b] = (centers[b] + TRACK_RATE * sum[b] / weight[b] + NUM_ANGLE) % NUM_ANGLE;
+        }
+        updateAngles();
+    }
+
+    /**
+     * 帯の中心から投票する角度の添字を求める
+     * @since 2011/12/17
+     */
+    private void updateAngles() {
+        int[] c = {wrap((int)Math.round(centers[0])), wrap((int)Math.round(centers[1]))};
+        boolean[] use = new boolean[NUM_ANGLE];
+        int n = 0;
+        for (int b = 0; b < 2; b++) {
+            for (int d = -bandWidth; d <= bandWidth; d++) {
+                int a = wrap(c[b] + d);
+                if (!use[a]) {
+                    use[a] = true;
+                    n++;
+                }
+            }
+        }
+        angles = new int[n];
+        n = 0;
+        for (int a = 0; a < NUM_ANGLE; a++) {
+            if (use[a]) angles[n++] = a;
+        }
+    }
+
+    /**
+     * 全角度で検出した線分のうち帯に含まれるものを選ぶ
+     * @since 2011/12/17
+     */
+    private int[] select(int[] lines) {
+        int[] selected = new int[lines.length];
+        int n = 0;
+        for (int i = 0; i + 3 < lines.length; i += 4) {
+            int a = angleIndex(lines, i);
+            if (Math.abs(offset(a, centers[0])) <= bandWidth + 0.5 || Math.abs(offset(a, centers[1])) <= bandWidth + 0.5) {
+                System.arraycopy(lines, i, selected, n, 4);
+                n += 4;
+            }
+        }
+        int[] result = new int[n];
+        System.arraycopy(selected, 0, result, 0, n);
+        return result;
+    }
+
+    /**
+     * 線分の法線の向きを角度の添字で求める
+     * @since 2011/12/17
+     */
+    private static int angleIndex(int[] lines, int i) {
+        double t = Math.atan2(lines[i+2] - lines[i], -(lines[i+3] - lines[i+1]));
+        return wrap((int)Math.round(Math.toDegrees(t)));
+    }
+
+    private static double length(int[] lines, int i) {
+        return Math.hypot(lines[i+2] - lines[i], lines[i+3] - lines[i+1]);
+    }
+
+    /**
+     * 帯の中心からの角度のずれ（-90〜90°）を求める
+     * @since 2011/12/17
+     */
+    private static double offset(int angle, double center) {
+        double d = (angle - center) % NUM_ANGLE;
+        if (d >= NUM_ANGLE / 2) d -= NUM_ANGLE;
+        if (d < -NUM_ANGLE / 2) d += NUM_ANGLE;
+        return d;
+    }
+
+    private static int wrap(int angle) {
+        return ((angle % NUM_ANGLE) + NUM_ANGLE) % NUM_ANGLE;
+    }
+
+    /**
+     * 現在の帯の中心を返す
+     * @return 2つの帯の中心[°]．推定前の場合はnull
+     * @since 2011/12/17
+     */
+    public synchronized double[] getBandCenters() {
+        return centers == null ? null : centers.clone();
+    }
+
+    /**
+     * 1点あたりの投票する角度の数を返す
+     * @return 角度の数．推定前の場合は全角度の数
+     * @since 2011/12/17
+     */
+    public synchronized int getAngleCount() {
+        return angles == null ? NUM_ANGLE : angles.length;
+    }
+
+    /**
+     * 向きを推定した回数を返す
+     * @return 推定した回数
+     * @since 2011/12/17
+     */
+    public synchronized long getEstimationCount() {
+        return estimations;
+    }
+
+    /**
+     * 処理したフレーム数を返す
+     * @return フレーム数
+     * @since 2011/12/17
+     */
+    public synchronized long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * 以前に推定した帯の中心を設定し，最初のフレームでの推定を省く
+     * <pre>
+     * 追跡に失敗した場合は通常どおり推定し直す．
+     * </pre>
+     * @param bands 2つの帯の中心[°]
+     * @since 2011/12/19
+     */
+    public synchronized void restore(double[] bands) {
+        if (bands == null || bands.length != 2) return;
+        centers = new double[]{(bands[0] % NUM_ANGLE + NUM_ANGLE) % NUM_ANGLE, (bands[1] % NUM_ANGLE + NUM_ANGLE) % NUM_ANGLE};
+        lost = 0;
+        updateAngles();
+    }
+
+    /**
+     * 推定した向きを破棄し，次のフレームで推定し直す
+     * @since 2011/12/17
+     */
+    public synchronized void reset() {
+        centers = null;
+        angles = null;
+        lost = 0;
+    }
+}
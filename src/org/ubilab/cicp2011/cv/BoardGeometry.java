@@ -0,0 +1,349 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+
+/**
+ * 検出した盤の位置と形状のスナップショット
+ * <pre>
+ * ROI・盤の四隅・格子線の位置と向き・検出に用いた閾値を保持し，Propertiesファイルに保存・読み込みする．
+ * 再起動時は読み込んだスナップショットを最初のフレームと照合し（fits），
+ * 格子線の位置にエッジがあれば盤の検出を待たずにそのROIを用いる．
+ * 照合はROI付近だけのエッジ検出と格子線上の画素の参照のみで行う．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/19
+ */
+public final class BoardGeometry {
+    /** ファイル形式のバージョン */
+    public static final int VERSION = 1;
+    /** 格子線上のエッジの割合の下限 */
+    public static final double MIN_SUPPORT = 0.4;
+    /** 格子線上とマスの中央を通る線上のエッジの割合の比の下限 */
+    public static final double MIN_CONTRAST = 2.0;
+    /** 照合の際に格子線からのずれを許容する画素数（膨張の回数） */
+    private static final int TOLERANCE = 2;
+    /** 照合の際に格子線上の画素を参照する間隔 */
+    private static final int SAMPLE_STEP = 2;
+
+    private final int frameWidth, frameHeight;
+    private final int roiX, roiY, roiWidth, roiHeight;
+    private final float[] corners;
+    private final int[] columns, rows;
+    private final double[] bands;
+    private final int squares;
+    private final String thresholds;
+    private final long timestamp;
+
+    /**
+     * 検出結果からスナップショットを生成する
+     * <pre>
+     * 格子線の位置はROIを9等分した位置とする（BoardState.cellIndexと同じ）．
+     * </pre>
+     * @param result 検出結果
+     * @param frameWidth フレームの幅
+     * @param frameHeight フレームの高さ
+     * @param corners 盤の四隅（x, yの繰り返し）．不明の場合null
+     * @param bands 格子線の向き[°]（BandedLineDetector）．不明の場合null
+     * @since 2011/12/19
+     */
+    public BoardGeometry(AnalyticResult result, int frameWidth, int frameHeight, float[] corners, double[] bands) {
+        this(frameWidth, frameHeight, result.getRoiX(), result.getRoiY(), result.getRoiWidth(), result.getRoiHeight(),
+                corners != null ? corners.clone() : rectCorners(result.getRoiX(), result.getRoiY(), result.getRoiWidth(), result.getRoiHeight()),
+                gridLines(result.getRoiX(), result.getRoiWidth()), gridLines(result.getRoiY(), result.getRoiHeight()),
+                bands == null ? null : bands.clone(), result.getSquareCount(), AnalyticProcess.thresholdSignature(), System.currentTimeMillis());
+    }
+
+    private BoardGeometry(int frameWidth, int frameHeight, int roiX, int roiY, int roiWidth, int roiHeight,
+            float[] corners, int[] columns, int[] rows, double[] bands, int squares, String thresholds, long timestamp) {
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        this.roiX = roiX;
+        this.roiY = roiY;
+        this.roiWidth = roiWidth;
+        this.roiHeight = roiHeight;
+        this.corners = corners;
+        this.columns = columns;
+        this.rows = rows;
+        this.bands = bands;
+        this.squares = squares;
+        this.thresholds = thresholds;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * ファイルに保存する
+     * <pre>
+     * 一時ファイルに書き出してから置き換えるため，書き込み中に終了しても以前の内容は失われない．
+     * </pre>
+     * @param file 保存先のファイル
+     * @throws IOException 書き込みに失敗した場合
+     * @since 2011/12/19
+     */
+    public void save(File file) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("version", Integer.toString(VERSION));
+        p.setProperty("frame.width", Integer.toString(frameWidth));
+        p.setProperty("frame.height", Integer.toString(frameHeight));
+        p.setProperty("roi.x", Integer.toString(roiX));
+        p.setProperty("roi.y", Integer.toString(roiY));
+        p.setProperty("roi.width", Integer.toString(roiWidth));
+        p.setProperty("roi.height", Integer.toString(roiHeight));
+        p.setProperty("corners", join(corners));
+        p.setProperty("grid.columns", join(columns));
+        p.setProperty("grid.rows", join(rows));
+        if (bands != null) p.setProperty("grid.bands", join(bands));
+        p.setProperty("squares", Integer.toString(squares));
+        p.setProperty("thresholds", thresholds);
+        p.setProperty("timestamp", Long.toString(timestamp));
+
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            p.store(out, "Board geometry");
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // 置き換えできない環境では削除してから移動する
+            if (!file.delete() || !tmp.renameTo(file)) throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * ファイルから読み込む
+     * @param file 読み込むファイル
+     * @return 読み込んだスナップショット
+     * @throws IOException 読み込みに失敗した場合，または形式が異なる場合
+     * @since 2011/12/19
+     */
+    public static BoardGeometry load(File file) throws IOException {
+        Properties p = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        try {
+            if (Integer.parseInt(p.getProperty("version", "0")) != VERSION) {
+                throw new IOException("Unsupported board geometry version: " + file);
+            }
+            String bands = p.getProperty("grid.bands");
+            int[] columns = parseInts(require(p, "grid.columns", file));
+            int[] rows = parseInts(require(p, "grid.rows", file));
+            float[] corners = parseFloats(require(p, "corners", file));
+            if (columns.length != BoardState.SIZE + 1 || rows.length != BoardState.SIZE + 1 || corners.length != 8) {
+                throw new IOException("Broken board geometry: " + file);
+            }
+            return new BoardGeometry(
+                    Integer.parseInt(require(p, "frame.width", file)), Integer.parseInt(require(p, "frame.height", file)),
+                    Integer.parseInt(require(p, "roi.x", file)), Integer.parseInt(require(p, "roi.y", file)),
+                    Integer.parseInt(require(p, "roi.width", file)), Integer.parseInt(require(p, "roi.height", file)),
+                    corners, columns, rows, bands == null ? null : parseDoubles(bands),
+                    Integer.parseInt(p.getProperty("squares", "0")), p.getProperty("thresholds", ""),
+                    Long.parseLong(p.getProperty("timestamp", "0")));
+        } catch (NumberFormatException e) {
+            throw new IOException("Broken board geometry: " + file + " (" + e.getMessage() + ")");
+        }
+    }
+
+    private static String require(Properties p, String key, File file) throws IOException {
+        String value = p.getProperty(key);
+        if (value == null) throw new IOException("Missing board geometry entry " + key + ": " + file);
+        return value;
+    }
+
+    /**
+     * フレームに対してスナップショットがまだ有効か照合する
+     * <pre>
+     * フレームサイズと検出の閾値が保存時と同じで，ROI付近のエッジ画像で格子線上のエッジの割合がMIN_SUPPORT以上，
+     * かつマスの中央を通る線上の割合のMIN_CONTRAST倍以上の場合に有効とする．
+     * 駒で隠れた格子線があっても残りの線で判定できる．
+     * </pre>
+     * @param frame 照合するフレーム
+     * @return 有効な場合true
+     * @since 2011/12/19
+     */
+    public boolean fits(IplImage frame) {
+        return support(frame) != null;
+    }
+
+    /**
+     * 格子線上とマスの中央を通る線上のエッジの割合を求める
+     * @param frame 照合するフレーム
+     * @return 格子線上・マスの中央の割合．スナップショットが有効でない場合null
+     * @since 2011/12/19
+     */
+    double[] support(IplImage frame) {
+        if (frame.width() != frameWidth || frame.height() != frameHeight) return null;
+        if (!thresholds.equals(AnalyticProcess.thresholdSignature())) return null;
+        if (roiWidth < BoardState.SIZE || roiHeight < BoardState.SIZE) return null;
+
+        // ROIの少し外側までのエッジ画像（AnalyticProcess.getEdgeImageと同じ処理）
+        int x0 = Math.max(0, roiX - TOLERANCE * 2), y0 = Math.max(0, roiY - TOLERANCE * 2);
+        int x1 = Math.min(frameWidth, roiX + roiWidth + TOLERANCE * 2), y1 = Math.min(frameHeight, roiY + roiHeight + TOLERANCE * 2);
+        if (x1 <= x0 || y1 <= y0) return null;
+        JavaVision.Plane gray = JavaVision.gray(PixelView.of(frame, cvRect(x0, y0, x1 - x0, y1 - y0)));
+        JavaVision.Plane edge = new JavaVision.Plane(gray.width, gray.height);
+        JavaVision.boxBlur(gray, gray, 2);
+        JavaVision.canny(gray, edge, AnalyticProcess.EDGE_CANNY_LOW, AnalyticProcess.EDGE_CANNY_HIGH);
+        JavaVision.dilate(edge, edge, TOLERANCE);
+
+        int[] on = new int[2], total = new int[2];
+        for (int i = 0; i < columns.length; i++) {
+            // 格子線と，隣の格子線との中間
+            sampleColumn(edge, columns[i] - x0, y0, on, total, 0);
+            if (i + 1 < columns.length) sampleColumn(edge, (columns[i] + columns[i + 1]) / 2 - x0, y0, on, total, 1);
+        }
+        for (int i = 0; i < rows.length; i++) {
+            sampleRow(edge, rows[i] - y0, x0, on, total, 0);
+            if (i + 1 < rows.length) sampleRow(edge, (rows[i] + rows[i + 1]) / 2 - y0, x0, on, total, 1);
+        }
+        double grid = total[0] == 0 ? 0 : (double)on[0] / total[0];
+        double cell = total[1] == 0 ? 0 : (double)on[1] / total[1];
+        if (grid < MIN_SUPPORT || grid < cell * MIN_CONTRAST) return null;
+        return new double[]{grid, cell};
+    }
+
+    private void sampleColumn(JavaVision.Plane edge, int x, int y0, int[] on, int[] total, int k) {
+        if (x < 0 || x >= edge.width) return;
+        for (int y = roiY - y0; y < roiY + roiHeight - y0 && y < edge.height; y += SAMPLE_STEP) {
+            if (y < 0) continue;
+            total[k]++;
+            if (edge.data[y * edge.width + x] != 0) on[k]++;
+        }
+    }
+
+    private void sampleRow(JavaVision.Plane edge, int y, int x0, int[] on, int[] total, int k) {
+        if (y < 0 || y >= edge.height) return;
+        for (int x = roiX - x0; x < roiX + roiWidth - x0 && x < edge.width; x += SAMPLE_STEP) {
+            if (x < 0) continue;
+            total[k]++;
+            if (edge.data[y * edge.width + x] != 0) on[k]++;
+        }
+    }
+
+    /**
+     * ROIを返す
+     * @return ROIを表すCvRect
+     * @since 2011/12/19
+     */
+    public CvRect getROI() {
+        return cvRect(roiX, roiY, roiWidth, roiHeight);
+    }
+
+    /**
+     * 盤の四隅を返す
+     * @return 4頂点の座標（x, yの繰り返し）
+     * @since 2011/12/19
+     */
+    public float[] getCorners() {
+        return corners.clone();
+    }
+
+    /**
+     * 縦の格子線のx座標を返す
+     * @return 左から10本の格子線の位置
+     * @since 2011/12/19
+     */
+    public int[] getColumns() {
+        return columns.clone();
+    }
+
+    /**
+     * 横の格子線のy座標を返す
+     * @return 上から10本の格子線の位置
+     * @since 2011/12/19
+     */
+    public int[] getRows() {
+        return rows.clone();
+    }
+
+    /**
+     * 格子線の向きを返す
+     * @return 2つの向き[°]．記録されていない場合null
+     * @since 2011/12/19
+     */
+    public double[] getBandCenters() {
+        return bands == null ? null : bands.clone();
+    }
+
+    /**
+     * 保存時に検出されていたマス目の数を返す
+     * @return マス目の数
+     * @since 2011/12/19
+     */
+    public int getSquareCount() {
+        return squares;
+    }
+
+    /**
+     * スナップショットを生成した時刻を返す
+     * @return 時刻（System.currentTimeMillis）
+     * @since 2011/12/19
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ROI (%d, %d, %d, %d) in %dx%d, squares %d", roiX, roiY, roiWidth, roiHeight, frameWidth, frameHeight, squares);
+    }
+
+    private static int[] gridLines(int origin, int length) {
+        int[] lines = new int[BoardState.SIZE + 1];
+        for (int i = 0; i < lines.length; i++) lines[i] = origin + Math.min(length - 1, length * i / BoardState.SIZE);
+        return lines;
+    }
+
+    private static float[] rectCorners(int x, int y, int w, int h) {
+        return new float[]{x, y, x + w, y, x + w, y + h, x, y + h};
+    }
+
+    private static String join(int[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) sb.append(i == 0 ? "" : ",").append(values[i]);
+        return sb.toString();
+    }
+
+    private static String join(float[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) sb.append(i == 0 ? "" : ",").append(values[i]);
+        return sb.toString();
+    }
+
+    private static String join(double[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) sb.append(i == 0 ? "" : ",").append(values[i]);
+        return sb.toString();
+    }
+
+    private static int[] parseInts(String s) {
+        String[] t = s.split(",");
+        int[] v = new int[t.length];
+        for (int i = 0; i < t.length; i++) v[i] = Integer.parseInt(t[i].trim());
+        return v;
+    }
+
+    private static float[] parseFloats(String s) {
+        String[] t = s.split(",");
+        float[] v = new float[t.length];
+        for (int i = 0; i < t.length; i++) v[i] = Float.parseFloat(t[i].trim());
+        return v;
+    }
+
+    private static double[] parseDoubles(String s) {
+        String[] t = s.split(",");
+        double[] v = new double[t.length];
+        for (int i = 0; i < t.length; i++) v[i] = Double.parseDouble(t[i].trim());
+        return v;
+    }
+}
@@ -0,0 +1,157 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+
+/**
+ * 盤の位置と形状を保存し，再起動時に復元するクラス
+ * <pre>
+ * 起動時にファイルからBoardGeometryを読み込み，最初のフレームと照合して有効であればそのROIを返す．
+ * 以降もREVALIDATE_FRAMESフレームごとに照合し，無効になった時点で後段のRoiDetector（またはHough変換）に切り替える．
+ * 一方，マス目がMIN_SQUARES以上検出された結果をrecordで受け取って最新のスナップショットとし，
+ * saveIntervalごとと終了時（save）にファイルに書き出す．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/19
+ */
+public class BoardGeometryStore implements RoiDetector {
+    /** スナップショットとして記録する結果のマス目の数の下限 */
+    public static final int MIN_SQUARES = 20;
+    /** 復元したROIを照合し直す間隔[フレーム] */
+    public static final int REVALIDATE_FRAMES = 30;
+    /** 既定の保存間隔[ms] */
+    public static final long DEFAULT_SAVE_INTERVAL = 60 * 1000;
+
+    private static final Logger logger;
+    private final File file;
+    private final RoiDetector next;
+    private final long saveInterval;
+    private final BoardGeometry loaded;
+    private BoardGeometry restored = null;
+    private int sinceCheck = 0;
+    private BoardGeometry latest = null;
+    private boolean dirty = false;
+    private long lastSave;
+    private volatile int frameWidth = 0, frameHeight = 0;
+    private long restoredFrames = 0;
+
+    static {
+        logger = Logger.getLogger(BoardGeometryStore.class.getName());
+    }
+
+    /**
+     * 保存先を指定してインスタンスを生成し，保存済みのスナップショットを読み込む
+     * @param file 保存先のファイル
+     * @param next 復元したROIが無効な場合に用いるRoiDetector．nullの場合はHough変換を用いる
+     * @param saveInterval 保存間隔[ms]
+     * @since 2011/12/19
+     */
+    public BoardGeometryStore(File file, RoiDetector next, long saveInterval) {
+        this.file = file;
+        this.next = next;
+        this.saveInterval = saveInterval;
+        lastSave = System.currentTimeMillis();
+
+        BoardGeometry g = null;
+        if (file.exists()) {
+            try {
+                g = BoardGeometry.load(file);
+                logger.log(Level.INFO, "Loaded board geometry: {0}", g);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot load board geometry, detect from scratch", e);
+            }
+        }
+        loaded = g;
+        restored = g;
+    }
+
+    @Override
+    public CvRect detect(IplImage input) {
+        frameWidth = input.width();
+        frameHeight = input.height();
+        synchronized (this) {
+            if (restored != null) {
+                if (sinceCheck == 0) {
+                    double[] s = restored.support(input);
+                    if (s == null) {
+                        logger.log(Level.INFO, "Board geometry no longer fits after {0} frames, detect from scratch", restoredFrames);
+                        restored = null;
+                    } else {
+                        logger.log(Level.FINE, "Board geometry fits (grid {0}, cell {1})",
+                                new Object[]{String.format("%.2f", s[0]), String.format("%.2f", s[1])});
+                    }
+                }
+                if (restored != null) {
+                    sinceCheck = (sinceCheck + 1) % REVALIDATE_FRAMES;
+                    restoredFrames++;
+                    return restored.getROI();
+                }
+            }
+        }
+        return next == null ? null : next.detect(input);
+    }
+
+    /**
+     * 検出結果をスナップショットとして記録する
+     * <pre>
+     * マス目がMIN_SQUARES未満の結果は無視する．前回の保存からsaveInterval以上経過している場合はファイルに書き出す．
+     * </pre>
+     * @param result 検出結果
+     * @param corners 盤の四隅（x, yの繰り返し）．不明の場合null
+     * @param bands 格子線の向き[°]．不明の場合null
+     * @since 2011/12/19
+     */
+    public void record(AnalyticResult result, float[] corners, double[] bands) {
+        if (!result.isValid() || result.getSquareCount() < MIN_SQUARES || frameWidth <= 0) return;
+        boolean due;
+        synchronized (this) {
+            latest = new BoardGeometry(result, frameWidth, frameHeight, corners, bands);
+            dirty = true;
+            due = System.currentTimeMillis() - lastSave >= saveInterval;
+        }
+        if (due) save();
+    }
+
+    /**
+     * 最新のスナップショットをファイルに書き出す
+     * <pre>
+     * 前回の保存以降に記録がない場合は何もしない．
+     * </pre>
+     * @return 書き出した場合true
+     * @since 2011/12/19
+     */
+    public synchronized boolean save() {
+        lastSave = System.currentTimeMillis();
+        if (!dirty) return false;
+        try {
+            latest.save(file);
+            dirty = false;
+            logger.log(Level.FINE, "Saved board geometry: {0}", latest);
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot save board geometry", e);
+            return false;
+        }
+    }
+
+    /**
+     * 起動時に読み込んだスナップショットを返す
+     * @return スナップショット．読み込めなかった場合null
+     * @since 2011/12/19
+     */
+    public BoardGeometry getLoaded() {
+        return loaded;
+    }
+
+    /**
+     * 復元したROIを用いたフレーム数を返す
+     * @return フレーム数
+     * @since 2011/12/19
+     */
+    public synchronized long getRestoredFrames() {
+        return restoredFrames;
+    }
+}
@@ -0,0 +1,132 @@
+package org.ubilab.cicp2011.cv;
+
+import java.util.Arrays;
+
+/**
+ * 盤面（9x9マス）の状態を保持するクラス
+ * <pre>
+ * 各マスの状態を1バイトで表す．マス番号は左上を0として行優先で0〜80．
+ * マス目の輪郭が検出されたマスを空き（EMPTY），検出されなかったマスを
+ * 駒などで隠されたマス（OCCUPIED）とする．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/08
+ */
+public class BoardState {
+    /** 盤の一辺のマス数 */
+    public static final int SIZE    = 9;
+    /** 盤のマス数 */
+    public static final int CELLS   = SIZE * SIZE;
+    /** 空きマス */
+    public static final byte EMPTY      = 0;
+    /** 駒などで隠されたマス */
+    public static final byte OCCUPIED   = 1;
+
+    private final byte[] cells;
+
+    /**
+     * すべてのマスがOCCUPIEDの盤面を生成する
+     * @since 2011/12/08
+     */
+    public BoardState() {
+        cells = new byte[CELLS];
+        Arrays.fill(cells, OCCUPIED);
+    }
+
+    /**
+     * 配列から盤面を生成する
+     * @param src 81要素の状態配列（コピーされる）
+     * @since 2011/12/08
+     */
+    public BoardState(byte[] src) {
+        if (src.length != CELLS) throw new IllegalArgumentException("cells must be " + CELLS);
+        cells = src.clone();
+    }
+
+    /**
+     * マスの状態を返す
+     * @param index マス番号
+     * @return マスの状態
+     * @since 2011/12/08
+     */
+    public byte get(int index) {
+        return cells[index];
+    }
+
+    /**
+     * マスの状態を返す
+     * @param col 列（左から0）
+     * @param row 行（上から0）
+     * @return マスの状態
+     * @since 2011/12/08
+     */
+    public byte get(int col, int row) {
+        return cells[row * SIZE + col];
+    }
+
+    /**
+     * マスの状態を設定する
+     * @param index マス番号
+     * @param value マスの状態
+     * @since 2011/12/08
+     */
+    public void set(int index, byte value) {
+        cells[index] = value;
+    }
+
+    /**
+     * ROI画像上の座標が含まれるマスの番号を返す
+     * @param x ROI画像上のx座標
+     * @param y ROI画像上のy座標
+     * @param width ROI画像の幅
+     * @param height ROI画像の高さ
+     * @return マス番号．盤外の場合は-1
+     * @since 2011/12/08
+     */
+    public static int cellIndex(int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || x >= width || y >= height) return -1;
+        return (y * SIZE / height) * SIZE + (x * SIZE / width);
+    }
+
+    /**
+     * 状態配列を指定した配列へコピーする
+     * @param dst コピー先
+     * @param offset コピー先の開始位置
+     * @since 2011/12/08
+     */
+    public void copyTo(byte[] dst, int offset) {
+        System.arraycopy(cells, 0, dst, offset, CELLS);
+    }
+
+    /**
+     * 盤面の複製を返す
+     * @return 複製した盤面
+     * @since 2011/12/08
+     */
+    public BoardState copy() {
+        return new BoardState(cells);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof BoardState)) return false;
+        return Arrays.equals(cells, ((BoardState)obj).cells);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(cells);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(CELLS * 3);
+        for (int row = 0; row < SIZE; row++) {
+            for (int col = 0; col < SIZE; col++) {
+                sb.append(String.format("%2d ", get(col, row)));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
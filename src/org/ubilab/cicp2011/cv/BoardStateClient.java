@@ -0,0 +1,109 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * BoardStateServerの購読クライアント
+ * <pre>
+ * 受信したスナップショットと差分を手元の盤面に適用する．
+ * スコアボードなど実際の購読側の代わりとして，ローカルでの動作確認にも用いる．
+ * <blockquote>
+ * java org.ubilab.cicp2011.cv.BoardStateClient [ポート] [ホスト]
+ * </blockquote>
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/08
+ */
+public class BoardStateClient {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final byte[] cells;
+    private long frameId = -1;
+    private long received = 0;
+
+    /**
+     * サーバに接続する
+     * @param host ホスト名
+     * @param port ポート番号
+     * @throws IOException 接続できない場合
+     * @since 2011/12/08
+     */
+    public BoardStateClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        cells = new byte[BoardState.CELLS];
+    }
+
+    /**
+     * 次のメッセージを受信するまで待機し，盤面に適用する
+     * @return 受信したメッセージのフレーム番号
+     * @throws IOException 受信に失敗した場合．切断された場合はEOFException
+     * @since 2011/12/08
+     */
+    public long readUpdate() throws IOException {
+        int length = in.readUnsignedShort();
+        byte[] body = new byte[length];
+        in.readFully(body);
+        frameId = BoardStateCodec.decode(ByteBuffer.wrap(body), cells);
+        received++;
+        return frameId;
+    }
+
+    /**
+     * 手元の盤面を返す
+     * @return 盤面の複製
+     * @since 2011/12/08
+     */
+    public BoardState getState() {
+        return new BoardState(cells);
+    }
+
+    /**
+     * 最後に受信したフレーム番号を返す
+     * @return フレーム番号．未受信の場合は-1
+     * @since 2011/12/08
+     */
+    public long getFrameId() {
+        return frameId;
+    }
+
+    /**
+     * 受信したメッセージ数を返す
+     * @return メッセージ数
+     * @since 2011/12/08
+     */
+    public long getReceivedCount() {
+        return received;
+    }
+
+    /**
+     * 接続を閉じる
+     * @since 2011/12/08
+     */
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        String host = args.length > 1 ? args[1] : "localhost";
+        BoardStateClient client = new BoardStateClient(host, port);
+        try {
+            while (true) {
+                long id = client.readUpdate();
+                System.out.println("frame " + id);
+                System.out.print(client.getState());
+            }
+        } finally {
+            client.close();
+        }
+    }
+}
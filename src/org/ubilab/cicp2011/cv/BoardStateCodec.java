@@ -0,0 +1,104 @@
+package org.ubilab.cicp2011.cv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 盤面の配信メッセージを符号化・復号するクラス
+ * <pre>
+ * メッセージはビッグエンディアンで以下の形式とする．
+ * <blockquote>
+ * short  以降のバイト数
+ * byte   種別（1: スナップショット, 2: 差分）
+ * long   フレーム番号
+ * スナップショット: byte[81] 全マスの状態
+ * 差分:             byte 変化したマス数n, n x (byte マス番号, byte 状態)
+ * </blockquote>
+ * 差分は直前に送ったメッセージの盤面に対する変化のみを含む．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/08
+ */
+public final class BoardStateCodec {
+    /** スナップショット */
+    public static final byte SNAPSHOT   = 1;
+    /** 差分 */
+    public static final byte DELTA      = 2;
+    /** メッセージ長フィールドのバイト数 */
+    public static final int LENGTH_BYTES = 2;
+    private static final int HEADER_BYTES = 1 + 8;
+
+    private BoardStateCodec() {}
+
+    /**
+     * スナップショットを符号化する
+     * @param frameId フレーム番号
+     * @param cells 全マスの状態
+     * @return 読み出し可能な状態のバッファ
+     * @since 2011/12/08
+     */
+    public static ByteBuffer encodeSnapshot(long frameId, byte[] cells) {
+        ByteBuffer buf = ByteBuffer.allocate(LENGTH_BYTES + HEADER_BYTES + BoardState.CELLS);
+        buf.putShort((short)(HEADER_BYTES + BoardState.CELLS));
+        buf.put(SNAPSHOT);
+        buf.putLong(frameId);
+        buf.put(cells, 0, BoardState.CELLS);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * 差分を符号化する
+     * @param frameId フレーム番号
+     * @param prev 前回送った全マスの状態
+     * @param cells 今回の全マスの状態
+     * @return 読み出し可能な状態のバッファ．変化がない場合はnull
+     * @since 2011/12/08
+     */
+    public static ByteBuffer encodeDelta(long frameId, byte[] prev, byte[] cells) {
+        int changed = 0;
+        for (int i = 0; i < BoardState.CELLS; i++) {
+            if (prev[i] != cells[i]) changed++;
+        }
+        if (changed == 0) return null;
+
+        ByteBuffer buf = ByteBuffer.allocate(LENGTH_BYTES + HEADER_BYTES + 1 + changed * 2);
+        buf.putShort((short)(HEADER_BYTES + 1 + changed * 2));
+        buf.put(DELTA);
+        buf.putLong(frameId);
+        buf.put((byte)changed);
+        for (int i = 0; i < BoardState.CELLS; i++) {
+            if (prev[i] != cells[i]) {
+                buf.put((byte)i);
+                buf.put(cells[i]);
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * メッセージ本体（長さフィールドを除く）を復号し，盤面に適用する
+     * @param body メッセージ本体
+     * @param cells 適用先の全マスの状態
+     * @return メッセージのフレーム番号
+     * @throws IllegalArgumentException 不正なメッセージの場合
+     * @since 2011/12/08
+     */
+    public static long decode(ByteBuffer body, byte[] cells) {
+        byte type = body.get();
+        long frameId = body.getLong();
+        if (type == SNAPSHOT) {
+            body.get(cells, 0, BoardState.CELLS);
+        } else if (type == DELTA) {
+            int n = body.get() & 0xff;
+            for (int i = 0; i < n; i++) {
+                int index = body.get() & 0xff;
+                if (index >= BoardState.CELLS) throw new IllegalArgumentException("Invalid cell index: " + index);
+                cells[index] = body.get();
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown message type: " + type);
+        }
+        return frameId;
+    }
+}
@@ -0,0 +1,314 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * 盤面の状態を購読クライアントへ配信するサーバ
+ * <pre>
+ * localhostのTCPポートで待ち受け，接続したクライアントへ最初に全マスのスナップショットを，
+ * 以降は変化したマスのみの差分を送る（形式はBoardStateCodecを参照）．
+ * 符号化は配信1回につき1度だけ行い，送信は1本のセレクタスレッドが非ブロッキングで行う．
+ * クライアントごとの送信キューが上限に達した場合は溜まった差分を破棄して次回スナップショットを送るため，
+ * 遅いクライアントが画像処理や他のクライアントを待たせることはない．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/08
+ */
+public class BoardStateServer {
+    private static final Logger logger;
+    private final int requestedPort;
+    private final int maxQueue;
+    private final List<Client> clients;
+    private final AtomicLong dropped;
+    private final Object publishLock = new Object();
+    private Selector selector = null;
+    private ServerSocketChannel server = null;
+    private Thread thread = null;
+    private volatile boolean running = false;
+    private byte[] last = null;
+    private ByteBuffer lastSnapshot = null;
+
+    static {
+        logger = Logger.getLogger(BoardStateServer.class.getName());
+    }
+
+    /** 接続中のクライアント */
+    private static class Client {
+        final SocketChannel channel;
+        final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+        ByteBuffer writing = null;
+        boolean needsSnapshot = true;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * 送信キューにメッセージを追加する
+         * @return 溜まった差分を破棄した場合true
+         */
+        synchronized boolean offer(ByteBuffer delta, ByteBuffer snapshot, int max) {
+            if (needsSnapshot) {
+                queue.clear();
+                queue.add(snapshot.duplicate());
+                needsSnapshot = false;
+                return false;
+            }
+            if (delta == null) return false;
+            if (queue.size() >= max) {
+                // 追いつけないクライアントには差分の代わりに最新のスナップショットを送る
+                queue.clear();
+                queue.add(snapshot.duplicate());
+                return true;
+            }
+            queue.add(delta.duplicate());
+            return false;
+        }
+
+        synchronized boolean hasPending() {
+            return writing != null || !queue.isEmpty();
+        }
+
+        /**
+         * 送信できるだけ送信する
+         * @return 送信し残りがない場合true
+         */
+        synchronized boolean flush() throws IOException {
+            while (true) {
+                if (writing == null) {
+                    writing = queue.poll();
+                    if (writing == null) return true;
+                }
+                channel.write(writing);
+                if (writing.hasRemaining()) return false;
+                writing = null;
+            }
+        }
+    }
+
+    /**
+     * 送信キュー長4でサーバを生成する
+     * @param port 待ち受けポート．0の場合は空きポートを使用する
+     * @since 2011/12/08
+     */
+    public BoardStateServer(int port) {
+        this(port, 4);
+    }
+
+    /**
+     * サーバを生成する
+     * @param port 待ち受けポート．0の場合は空きポートを使用する
+     * @param maxQueue クライアントごとの送信キューの上限
+     * @since 2011/12/08
+     */
+    public BoardStateServer(int port, int maxQueue) {
+        this.requestedPort = port;
+        this.maxQueue = Math.max(1, maxQueue);
+        clients = new CopyOnWriteArrayList<Client>();
+        dropped = new AtomicLong(0);
+    }
+
+    /**
+     * 待ち受けを開始する
+     * @throws IOException ポートを開けない場合
+     * @since 2011/12/08
+     */
+    public synchronized void start() throws IOException {
+        if (running) return;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName(null), requestedPort));
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                selectLoop();
+            }
+        }, "BoardStateServer");
+        thread.setDaemon(true);
+        thread.start();
+        logger.log(Level.INFO, "BoardStateServer start: localhost:{0}", String.valueOf(getPort()));
+    }
+
+    /**
+     * 待ち受けを停止し，すべての接続を閉じる
+     * @since 2011/12/08
+     */
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("BoardStateServer stop.");
+    }
+
+    /**
+     * 待ち受けているポート番号を返す
+     * @return ポート番号．待ち受けていない場合は-1
+     * @since 2011/12/08
+     */
+    public int getPort() {
+        ServerSocketChannel s = server;
+        return s == null ? -1 : s.socket().getLocalPort();
+    }
+
+    /**
+     * 接続中のクライアント数を返す
+     * @return クライアント数
+     * @since 2011/12/08
+     */
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * 送信が追いつかず差分を破棄した回数を返す
+     * @return 破棄した回数
+     * @since 2011/12/08
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * 盤面を配信する
+     * <pre>
+     * 送信キューへの追加のみを行い，送信の完了を待たずに戻る．
+     * </pre>
+     * @param frameId フレーム番号
+     * @param state 盤面の状態
+     * @since 2011/12/08
+     */
+    public void publish(long frameId, BoardState state) {
+        if (!running || state == null) return;
+        synchronized(publishLock) {
+            byte[] cells = new byte[BoardState.CELLS];
+            state.copyTo(cells, 0);
+            ByteBuffer delta = last == null ? null : BoardStateCodec.encodeDelta(frameId, last, cells);
+            if (last != null && delta == null) return;
+            lastSnapshot = BoardStateCodec.encodeSnapshot(frameId, cells);
+            last = cells;
+            for (Client c : clients) {
+                if (c.offer(delta, lastSnapshot, maxQueue)) dropped.incrementAndGet();
+            }
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * 接続の受け付けと送信を行う
+     * @since 2011/12/08
+     */
+    private void selectLoop() {
+        try {
+            while (running) {
+                // 送信待ちのあるクライアントの書き込みを有効にする
+                for (Client c : clients) {
+                    SelectionKey key = c.channel.keyFor(selector);
+                    if (key != null && key.isValid() && c.hasPending()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+                selector.select();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Client c = (Client)key.attachment();
+                            if (key.isReadable() && !read(c)) continue;
+                            if (key.isValid() && key.isWritable() && c.flush()) {
+                                key.interestOps(SelectionKey.OP_READ);
+                            }
+                        }
+                    } catch (IOException e) {
+                        logger.log(Level.FINE, "Client connection error", e);
+                        close((Client)key.attachment());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "BoardStateServer stopped by error", e);
+        } finally {
+            for (Client c : clients) close(c);
+            try {
+                server.close();
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * 新しい接続を受け付け，最新の盤面を送信キューへ入れる
+     * @since 2011/12/08
+     */
+    private void accept() throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) return;
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        Client c = new Client(ch);
+        ch.register(selector, SelectionKey.OP_READ, c);
+        synchronized(publishLock) {
+            if (lastSnapshot != null) c.offer(null, lastSnapshot, maxQueue);
+            clients.add(c);
+        }
+        logger.log(Level.FINE, "Client connected: {0}", ch.socket().getRemoteSocketAddress());
+    }
+
+    /**
+     * クライアントからの受信を読み捨て，切断を検出する
+     * @return 接続が続いている場合true
+     * @since 2011/12/08
+     */
+    private boolean read(Client c) throws IOException {
+        ByteBuffer discard = ByteBuffer.allocate(256);
+        if (c.channel.read(discard) < 0) {
+            close(c);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * クライアントの接続を閉じる
+     * @param c 閉じるクライアント
+     * @since 2011/12/08
+     */
+    private void close(Client c) {
+        if (c == null) return;
+        clients.remove(c);
+        try {
+            c.channel.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package org.ubilab.cicp2011.cv;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * キャプチャ要求を1つのスレッドで順に処理するクラス
+ * <pre>
+ * 解析中に届いた要求はまとめて1回の要求として扱い，解析が終わった時点の最新のフレームを1回だけ解析する．
+ * 新しい要求が届くと実行中の解析は古いフレームの結果となるため，AnalyticProcess#cancelで中止を要求する．
+ * 中止はステージの区切りで行われ，中止した解析の結果は出力しない．
+ * <blockquote>
+ * CaptureScheduler s = new CaptureScheduler(handler);
+ * s.start();
+ * s.request();   // キャプチャボタンが押されるたびに呼ぶ
+ * </blockquote>
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/29
+ */
+public class CaptureScheduler {
+    /**
+     * 解析の準備と結果の受け取りを行うインターフェース
+     * @since 2011/12/29
+     */
+    public interface Handler {
+        /**
+         * 最新のフレームをキャプチャし，解析処理を生成する
+         * <pre>
+         * スケジューラのスレッドから呼ばれる．生成した解析処理はスケジューラのスレッドでrunする．
+         * </pre>
+         * @return 解析処理．キャプチャしない場合null
+         * @throws InterruptedException 準備の待機中に割り込まれた場合
+         * @since 2011/12/29
+         */
+        AnalyticProcess prepare() throws InterruptedException;
+
+        /**
+         * 中止されずに終了した解析の結果を受け取る
+         * @param result 解析結果
+         * @since 2011/12/29
+         */
+        void completed(AnalyticResult result);
+    }
+
+    private static final Logger logger;
+    private final Handler handler;
+    private final Object lock = new Object();
+    private Thread thread = null;
+    private boolean pending = false;
+    private boolean stopped = false;
+    private AnalyticProcess current = null;
+    private long requests = 0, analyses = 0, coalesced = 0, cancelled = 0;
+
+    static {
+        logger = Logger.getLogger(CaptureScheduler.class.getName());
+    }
+
+    /**
+     * インスタンスを生成する
+     * @param handler 解析の準備と結果の受け取り
+     * @since 2011/12/29
+     */
+    public CaptureScheduler(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * スケジューラのスレッドを開始する
+     * @since 2011/12/29
+     */
+    public void start() {
+        synchronized (lock) {
+            if (thread != null || stopped) return;
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    schedule();
+                }
+            }, "CaptureScheduler");
+            // 終了処理を呼ばずにプログラムを終える場合に残らないようにする
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * キャプチャを要求する
+     * <pre>
+     * 実行中の解析があれば中止を要求し，解析の終了後に最新のフレームを解析する．
+     * まだ開始していない要求がある場合はそれとまとめる．
+     * </pre>
+     * @return 要求を受け付けた場合true．終了後はfalse
+     * @since 2011/12/29
+     */
+    public boolean request() {
+        synchronized (lock) {
+            if (stopped) return false;
+            requests++;
+            if (pending) coalesced++;
+            pending = true;
+            if (current != null && !current.isCancelled()) {
+                current.cancel();
+                cancelled++;
+            }
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * スケジューラのスレッド：要求を待ち，最新のフレームを解析する
+     */
+    private void schedule() {
+        try {
+            while (true) {
+                synchronized (lock) {
+                    while (!pending && !stopped) lock.wait();
+                    // 終了時は実行前の要求を捨てる
+                    if (stopped) break;
+                    pending = false;
+                }
+                AnalyticProcess proc = handler.prepare();
+                if (proc == null) continue;
+                synchronized (lock) {
+                    // 準備中に次の要求が届いた場合も，解析は最新のフレームで行うため中止しない
+                    current = proc;
+                    analyses++;
+                }
+                try {
+                    proc.run();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Capture analysis failed", e);
+                } finally {
+                    synchronized (lock) {
+                        current = null;
+                    }
+                }
+                AnalyticResult result = proc.getResult();
+                if (!proc.isCancelled() && result != null) {
+                    try {
+                        handler.completed(result);
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Handler failed to receive result", e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // shutdownで中断された
+        }
+    }
+
+    /**
+     * 新たな要求の受け付けを止め，実行中の解析が終わるまで待機する
+     * <pre>
+     * 実行中の解析は中止せず，結果を出力してから戻る．まだ開始していない要求は捨てる．
+     * </pre>
+     * @since 2011/12/29
+     */
+    public void shutdown() {
+        Thread th;
+        synchronized (lock) {
+            if (stopped) return;
+            stopped = true;
+            th = thread;
+            lock.notifyAll();
+        }
+        if (th == null) return;
+        try {
+            th.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 受け付けた要求の数を返す
+     * @return 要求の数
+     * @since 2011/12/29
+     */
+    public long getRequestCount() {
+        synchronized (lock) {
+            return requests;
+        }
+    }
+
+    /**
+     * 開始した解析の数を返す
+     * @return 解析の数
+     * @since 2011/12/29
+     */
+    public long getAnalysisCount() {
+        synchronized (lock) {
+            return analyses;
+        }
+    }
+
+    /**
+     * 開始前の要求とまとめた要求の数を返す
+     * @return 要求の数
+     * @since 2011/12/29
+     */
+    public long getCoalescedCount() {
+        synchronized (lock) {
+            return coalesced;
+        }
+    }
+
+    /**
+     * 中止を要求した解析の数を返す
+     * @return 解析の数
+     * @since 2011/12/29
+     */
+    public long getCancelledCount() {
+        synchronized (lock) {
+            return cancelled;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return String.format("%d requests, %d analyses, %d coalesced, %d cancelled", requests, analyses, coalesced, cancelled);
+        }
+    }
+}
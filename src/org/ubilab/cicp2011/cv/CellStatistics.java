@@ -0,0 +1,170 @@
+package org.ubilab.cicp2011.cv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 盤面の81マスそれぞれの輝度の平均・分散とエッジ画素数
+ * <pre>
+ * ROI画像（AnalyticProcess#getROIViewの出力）をPixelViewで参照し，1回の走査で全マスの統計量を求める．
+ * マスの境界はBoardState#cellIndexと同じ分割に従う．
+ * 3チャンネルの画像は輝度（0.30R + 0.59G + 0.11B の整数近似）に変換しながら集計する．
+ * エッジ画素は右隣・上隣の画素との輝度差の絶対値の和が閾値を超える画素とする．
+ * 各行はマスの列ごとに区切った区間を分岐なしで走査するため，内側のループはJITで展開されやすい．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/13
+ */
+public final class CellStatistics {
+    /** エッジ判定の既定の閾値 */
+    public static final int DEFAULT_EDGE_THRESHOLD = 48;
+
+    private final long[] sum;
+    private final long[] sumSq;
+    private final int[] edges;
+    private final int[] pixels;
+
+    private CellStatistics() {
+        sum = new long[BoardState.CELLS];
+        sumSq = new long[BoardState.CELLS];
+        edges = new int[BoardState.CELLS];
+        pixels = new int[BoardState.CELLS];
+    }
+
+    /**
+     * 既定の閾値で統計量を計算する
+     * @param view ROI画像のビュー（1または3チャンネル）
+     * @return 統計量
+     * @since 2011/12/13
+     */
+    public static CellStatistics compute(PixelView view) {
+        return compute(view, DEFAULT_EDGE_THRESHOLD);
+    }
+
+    /**
+     * 統計量を計算する
+     * @param view ROI画像のビュー（1または3チャンネル）
+     * @param edgeThreshold エッジ判定の閾値
+     * @return 統計量
+     * @since 2011/12/13
+     */
+    public static CellStatistics compute(PixelView view, int edgeThreshold) {
+        int w = view.getWidth(), h = view.getHeight(), ch = view.getChannels();
+        if (ch != 1 && ch != 3) throw new IllegalArgumentException("Unsupported channels: " + ch);
+        CellStatistics st = new CellStatistics();
+        if (w == 0 || h == 0) return st;
+
+        // マスの列の境界（x * SIZE / w == c となる最小のx）
+        int[] colStart = new int[BoardState.SIZE + 1];
+        for (int c = 0; c <= BoardState.SIZE; c++) colStart[c] = (c * w + BoardState.SIZE - 1) / BoardState.SIZE;
+
+        ByteBuffer buf = view.getBuffer();
+        int[] cur = new int[w];
+        int[] prev = new int[w];
+        for (int y = 0; y < h; y++) {
+            // 1行分の輝度を求める
+            int p = view.offset(0, y);
+            if (ch == 1) {
+                for (int x = 0; x < w; x++) cur[x] = buf.get(p + x) & 0xff;
+            } else {
+                for (int x = 0; x < w; x++, p += 3) {
+                    // チャンネルの順序はcvCvtColor CV_RGB2GRAYと同じ（0番目をR）とみなす
+                    int r = buf.get(p) & 0xff, g = buf.get(p + 1) & 0xff, b = buf.get(p + 2) & 0xff;
+                    cur[x] = (r * 77 + g * 150 + b * 29) >> 8;
+                }
+            }
+
+            int base = (y * BoardState.SIZE / h) * BoardState.SIZE;
+            boolean first = y == 0;
+            for (int c = 0; c < BoardState.SIZE; c++) {
+                int xs = colStart[c], xe = colStart[c + 1];
+                long s = 0, sq = 0;
+                int e = 0;
+                for (int x = xs; x < xe; x++) {
+                    int v = cur[x];
+                    s += v;
+                    sq += v * v;
+                    int dx = x + 1 < w ? cur[x + 1] - v : 0;
+                    int dy = first ? 0 : v - prev[x];
+                    e += ((dx < 0 ? -dx : dx) + (dy < 0 ? -dy : dy)) > edgeThreshold ? 1 : 0;
+                }
+                int i = base + c;
+                st.sum[i] += s;
+                st.sumSq[i] += sq;
+                st.edges[i] += e;
+                st.pixels[i] += xe - xs;
+            }
+
+            int[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return st;
+    }
+
+    /**
+     * マスの輝度の平均を返す
+     * @param index マス番号
+     * @return 平均
+     * @since 2011/12/13
+     */
+    public double getMean(int index) {
+        return pixels[index] == 0 ? 0 : (double)sum[index] / pixels[index];
+    }
+
+    /**
+     * マスの輝度の分散を返す
+     * @param index マス番号
+     * @return 分散
+     * @since 2011/12/13
+     */
+    public double getVariance(int index) {
+        int n = pixels[index];
+        if (n == 0) return 0;
+        double m = (double)sum[index] / n;
+        return Math.max(0, (double)sumSq[index] / n - m * m);
+    }
+
+    /**
+     * マスのエッジ画素数を返す
+     * @param index マス番号
+     * @return エッジ画素数
+     * @since 2011/12/13
+     */
+    public int getEdgeCount(int index) {
+        return edges[index];
+    }
+
+    /**
+     * マスのエッジ画素の割合を返す
+     * @param index マス番号
+     * @return 0〜1の割合
+     * @since 2011/12/13
+     */
+    public double getEdgeDensity(int index) {
+        return pixels[index] == 0 ? 0 : (double)edges[index] / pixels[index];
+    }
+
+    /**
+     * マスの画素数を返す
+     * @param index マス番号
+     * @return 画素数
+     * @since 2011/12/13
+     */
+    public int getPixelCount(int index) {
+        return pixels[index];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int row = 0; row < BoardState.SIZE; row++) {
+            for (int col = 0; col < BoardState.SIZE; col++) {
+                int i = row * BoardState.SIZE + col;
+                if (col > 0) sb.append(' ');
+                sb.append(String.format("%5.1f/%4.0f/%4.2f", getMean(i), getVariance(i), getEdgeDensity(i)));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,235 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_highgui.*;
+
+/**
+ * 1つの対局台のカメラ画像をJPEGで圧縮してClusterCoordinatorに送るキャプチャ側
+ * <pre>
+ * -roiを指定した場合はROI_INTERVALフレームごとに盤を検出し，盤の領域だけを切り出して送る．
+ * 転送量は減るが，盤の検出はワーカではなくこのプロセスで行うことになる．
+ * コーディネータとの接続が切れている間のフレームは捨て，一定時間ごとに接続し直す．
+ * <blockquote>
+ * java org.ubilab.cicp2011.cv.ClusterCaptureNode ホスト [ポート] 対局台 [-camera N] [-dummy FILE] [-roi] [-fps F] [-quality Q]
+ * </blockquote>
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/27
+ */
+public class ClusterCaptureNode {
+    /** 既定のJPEGの品質 */
+    public static final int DEFAULT_QUALITY = 90;
+    /** 盤を検出し直す間隔[フレーム] */
+    public static final int ROI_INTERVAL = 30;
+    /** 接続し直すまでの時間[ms] */
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private static final Logger logger;
+    private final String host;
+    private final int port;
+    private final int table;
+    private final int quality;
+    private final AnalyticProcess roiProcess;
+    private Socket socket = null;
+    private DataOutputStream out = null;
+    private long lastAttempt = 0;
+    private long frames = 0, sent = 0, dropped = 0, bytes = 0;
+    private CvRect roi = null;
+
+    static {
+        logger = Logger.getLogger(ClusterCaptureNode.class.getName());
+    }
+
+    /**
+     * キャプチャ側を生成する
+     * @param host コーディネータのホスト名
+     * @param port コーディネータのポート
+     * @param table 対局台の番号
+     * @param quality JPEGの品質（0〜100）
+     * @param cropRoi 盤の領域だけを送る場合true
+     * @since 2011/12/27
+     */
+    public ClusterCaptureNode(String host, int port, int table, int quality, boolean cropRoi) {
+        this.host = host;
+        this.port = port;
+        this.table = table;
+        this.quality = quality;
+        this.roiProcess = cropRoi ? new AnalyticProcess(null, false, null, NativeMemory.createStorage()) : null;
+    }
+
+    /**
+     * 1フレームを送る
+     * <pre>
+     * 接続していない場合はフレームを捨てる．
+     * </pre>
+     * @param frame キャプチャしたフレーム
+     * @return 送った場合true
+     * @since 2011/12/27
+     */
+    public boolean send(IplImage frame) {
+        long frameNumber = frames++;
+        if (!connect()) {
+            dropped++;
+            return false;
+        }
+        CvArr image = frame;
+        int roiX = 0, roiY = 0;
+        if (roiProcess != null) {
+            if (roi == null || frameNumber % ROI_INTERVAL == 0) roi = roiProcess.getROI(frame);
+            if (roi.width() * roi.height() > 0) {
+                image = cvGetSubRect(frame, new CvMat(), roi);
+                roiX = roi.x();
+                roiY = roi.y();
+            }
+        }
+        byte[] jpeg = encode(image);
+        try {
+            ClusterProtocol.writeFrame(out, 0, table, frameNumber, roiX, roiY, image != frame, jpeg);
+            sent++;
+            bytes += jpeg.length;
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot send frame to coordinator {0}:{1}: {2}", new Object[]{host, port, e.getMessage()});
+            disconnect();
+            dropped++;
+            return false;
+        }
+    }
+
+    /**
+     * 画像をJPEGで圧縮する
+     */
+    private byte[] encode(CvArr image) {
+        CvMat mat = cvEncodeImage(".jpg", image, new int[]{CV_IMWRITE_JPEG_QUALITY, quality, 0});
+        byte[] data = new byte[mat.cols() * mat.rows()];
+        mat.getByteBuffer().get(data);
+        cvReleaseMat(mat);
+        return data;
+    }
+
+    /**
+     * 接続していなければ接続する
+     * @return 接続している場合true
+     */
+    private boolean connect() {
+        if (out != null) return true;
+        long now = System.currentTimeMillis();
+        if (now - lastAttempt < RECONNECT_MILLIS) return false;
+        lastAttempt = now;
+        try {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            ClusterProtocol.writeHello(out, ClusterProtocol.HELLO_CAPTURE, table);
+            logger.log(Level.INFO, "Connected to coordinator {0}:{1} as table {2}", new Object[]{host, port, table});
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot connect to coordinator {0}:{1}: {2}", new Object[]{host, port, e.getMessage()});
+            disconnect();
+            return false;
+        }
+    }
+
+    private void disconnect() {
+        out = null;
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+        socket = null;
+    }
+
+    /**
+     * 接続を切る
+     * @since 2011/12/27
+     */
+    public void close() {
+        disconnect();
+        logger.log(Level.INFO, "ClusterCaptureNode table {0}: {1} frames, {2} sent ({3} KB), {4} dropped",
+                new Object[]{table, frames, sent, bytes >> 10, dropped});
+    }
+
+    /**
+     * カメラまたはダミー画像のフレームを送り続ける
+     * @param args ホスト [ポート] 対局台 [-camera N] [-dummy FILE] [-roi] [-fps F] [-quality Q]
+     * @since 2011/12/27
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: java org.ubilab.cicp2011.cv.ClusterCaptureNode HOST [port] TABLE [-camera N] [-dummy FILE] [-roi] [-fps F] [-quality Q]");
+            System.exit(1);
+        }
+        int port = ClusterProtocol.DEFAULT_PORT, table = 0, camera = 0, quality = DEFAULT_QUALITY;
+        double fps = 0;
+        boolean crop = false;
+        String dummy = null;
+        int n = 0;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-camera")) camera = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-dummy")) dummy = args[++i];
+            else if (args[i].equals("-roi")) crop = true;
+            else if (args[i].equals("-fps")) fps = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-quality")) quality = Integer.parseInt(args[++i]);
+            else if (n++ == 0) table = Integer.parseInt(args[i]);
+            else {
+                port = table;
+                table = Integer.parseInt(args[i]);
+            }
+        }
+        // ダミー画像は間隔を指定しなければ送り続けてしまうため，既定で10fpsとする
+        if (dummy != null && fps <= 0) fps = 10;
+
+        CvCapture capture = null;
+        IplImage still = null;
+        if (dummy != null) {
+            still = NativeMemory.track(NativeMemory.Category.FRAME, cvLoadImage(dummy, CV_LOAD_IMAGE_COLOR));
+            if (still == null || still.isNull()) {
+                System.err.println("Cannot load " + dummy);
+                System.exit(1);
+            }
+        } else {
+            capture = cvCreateCameraCapture(camera);
+        }
+
+        final ClusterCaptureNode node = new ClusterCaptureNode(args[0], port, table, quality, crop);
+        final Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                main.interrupt();
+                try {
+                    main.join(1000);
+                } catch (InterruptedException e) {
+                }
+            }
+        }));
+        long interval = fps > 0 ? (long)(1e9 / fps) : 0;
+        long next = System.nanoTime();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                IplImage frame = still != null ? still : cvQueryFrame(capture);
+                if (frame == null) break;
+                node.send(frame);
+                if (interval > 0) {
+                    next += interval;
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+                    else next = System.nanoTime();
+                }
+            }
+        } catch (InterruptedException e) {
+            // 終了
+        } finally {
+            node.close();
+            if (capture != null) cvReleaseCapture(capture);
+            if (still != null) NativeMemory.releaseImage(still);
+        }
+    }
+}
@@ -0,0 +1,567 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * 複数の対局台のフレームを複数のワーカに振り分けて処理するコーディネータ
+ * <pre>
+ * キャプチャ側（ClusterCaptureNode）とワーカ（ClusterWorker）はいずれもこのコーディネータに接続する．
+ * 受け取ったフレームには対局台ごとの通し番号を振って共通の待ち行列に入れ，
+ * 各ワーカは同時に処理できるフレーム数（HELLO_WORKER）に空きがある間だけ待ち行列から取り出す．
+ * 処理の速いワーカほど多くのフレームを受け持つため，負荷は自然に分散する．
+ * 待ち行列がmaxPendingを超えた場合は最も古いフレームを捨てる．
+ * ワーカが切断した場合や，jobTimeoutを過ぎても結果を返さない場合は接続を切り，
+ * 処理中のフレームを待ち行列の先頭に戻して他のワーカに割り当てる（MAX_ATTEMPTS回まで）．
+ * 結果は対局台ごとに通し番号順に並べ替えて出力する．捨てたフレームや処理できなかったフレームも
+ * マス目の数-1の結果として出力するため，後続のフレームが待たされ続けることはない．
+ * 1台のマシンで動作を確認する場合は，別々のプロセスとして次のように起動する．
+ * <blockquote>
+ * java org.ubilab.cicp2011.cv.ClusterCoordinator [ポート]
+ * java org.ubilab.cicp2011.cv.ClusterWorker localhost [ポート] [スレッド数]      （ワーカの数だけ）
+ * java org.ubilab.cicp2011.cv.ClusterCaptureNode localhost [ポート] 対局台 -dummy dummy.jpg  （対局台の数だけ）
+ * </blockquote>
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/27
+ */
+public class ClusterCoordinator {
+    /** 既定の待ち行列の上限 */
+    public static final int DEFAULT_MAX_PENDING = 64;
+    /** 既定の結果を待つ時間の上限[ms] */
+    public static final long DEFAULT_JOB_TIMEOUT = 5000;
+    /** 1フレームを割り当てる回数の上限 */
+    public static final int MAX_ATTEMPTS = 3;
+    /** 応答のないワーカを調べる間隔[ms] */
+    private static final long WATCHDOG_MILLIS = 500;
+
+    /** 1フレーム分の処理 */
+    private static class Job {
+        final long id;
+        final Table table;
+        final long frame;
+        final long receivedTime;
+        final int roiX, roiY;
+        final boolean cropped;
+        final byte[] jpeg;
+        int attempts = 0;
+        long sentTime = 0;
+        boolean done = false;
+
+        Job(long id, Table table, long frame, ClusterProtocol.Message m) {
+            this.id = id;
+            this.table = table;
+            this.frame = frame;
+            this.receivedTime = System.nanoTime();
+            this.roiX = m.roiX;
+            this.roiY = m.roiY;
+            this.cropped = m.cropped;
+            this.jpeg = m.jpeg;
+        }
+    }
+
+    /** 対局台ごとの状態 */
+    private static class Table {
+        final int id;
+        long nextFrame = 0;
+        long nextPublish = 0;
+        final TreeMap<Long, AnalyticResult> done = new TreeMap<Long, AnalyticResult>();
+        long received = 0, published = 0, dropped = 0, failed = 0;
+
+        Table(int id) {
+            this.id = id;
+        }
+    }
+
+    private static final Logger logger;
+    private final int requestedPort;
+    private final int maxPending;
+    private final long jobTimeout;
+    private final ClusterCoordinatorDelegate delegate;
+    private final LinkedBlockingDeque<Job> pending = new LinkedBlockingDeque<Job>();
+    private final ConcurrentHashMap<Integer, Table> tables = new ConcurrentHashMap<Integer, Table>();
+    private final CopyOnWriteArrayList<WorkerLink> workers = new CopyOnWriteArrayList<WorkerLink>();
+    private final List<Socket> captures = new CopyOnWriteArrayList<Socket>();
+    private final AtomicLong jobIds = new AtomicLong(1);
+    private final AtomicLong reassigned = new AtomicLong();
+    private ServerSocket server = null;
+    private volatile boolean running = false;
+    private Thread acceptThread, watchdogThread;
+
+    static {
+        logger = Logger.getLogger(ClusterCoordinator.class.getName());
+    }
+
+    /**
+     * 接続したワーカ
+     */
+    private class WorkerLink {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final String name;
+        final Semaphore credits;
+        /** 処理中のフレーム（送った順） */
+        final LinkedHashMap<Long, Job> outstanding = new LinkedHashMap<Long, Job>();
+        Thread sender;
+        boolean alive = true;
+        long completed = 0;
+
+        WorkerLink(Socket socket, DataInputStream in, int capacity) throws IOException {
+            this.socket = socket;
+            this.in = in;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.name = String.valueOf(socket.getRemoteSocketAddress());
+            this.credits = new Semaphore(Math.max(1, capacity));
+        }
+
+        /**
+         * 空きがある間，待ち行列のフレームを送る
+         */
+        void sendLoop() {
+            try {
+                while (true) {
+                    credits.acquire();
+                    Job job = pending.take();
+                    synchronized (this) {
+                        if (!alive) {
+                            pending.addFirst(job);
+                            return;
+                        }
+                        job.attempts++;
+                        job.sentTime = System.nanoTime();
+                        outstanding.put(job.id, job);
+                    }
+                    ClusterProtocol.writeFrame(out, job.id, job.table.id, job.frame, job.roiX, job.roiY, job.cropped, job.jpeg);
+                }
+            } catch (InterruptedException e) {
+                // failで停止した
+            } catch (IOException e) {
+                fail("send failed: " + e.getMessage());
+            }
+        }
+
+        /**
+         * 結果を受け取る
+         */
+        void receiveLoop() {
+            try {
+                while (true) {
+                    ClusterProtocol.Message m = ClusterProtocol.read(in);
+                    if (m.type != ClusterProtocol.RESULT) throw new IOException("Unexpected message type: " + m.type);
+                    Job job;
+                    synchronized (this) {
+                        job = outstanding.remove(m.job);
+                        if (job != null) completed++;
+                    }
+                    // 再割り当て済みのフレームの結果は無視する
+                    if (job == null) continue;
+                    credits.release();
+                    AnalyticResult r = new AnalyticResult(job.frame, m.roiX, m.roiY, m.roiWidth, m.roiHeight, m.count,
+                            m.cells == null ? null : new BoardState(m.cells), job.receivedTime, System.nanoTime());
+                    complete(job, r);
+                }
+            } catch (EOFException e) {
+                fail("disconnected");
+            } catch (IOException e) {
+                fail(e.getMessage());
+            }
+        }
+
+        /**
+         * 最も古い処理中のフレームを送った時刻を返す
+         * @return 時刻（System.nanoTime）．処理中のフレームがない場合は0
+         */
+        synchronized long oldestSentTime() {
+            for (Job j : outstanding.values()) return j.sentTime;
+            return 0;
+        }
+
+        /**
+         * 接続を切り，処理中のフレームを他のワーカに割り当て直す
+         */
+        void fail(String reason) {
+            List<Job> jobs;
+            synchronized (this) {
+                if (!alive) return;
+                alive = false;
+                jobs = new ArrayList<Job>(outstanding.values());
+                outstanding.clear();
+            }
+            workers.remove(this);
+            closeQuietly(socket);
+            if (sender != null) sender.interrupt();
+            if (running) logger.log(Level.WARNING, "Worker {0} lost ({1}), reassigning {2} frames", new Object[]{name, reason, jobs.size()});
+            // 元の順序のまま待ち行列の先頭に戻す
+            for (int i = jobs.size() - 1; i >= 0; i--) {
+                Job job = jobs.get(i);
+                if (job.attempts >= MAX_ATTEMPTS || !running) {
+                    synchronized (job.table) {
+                        job.table.failed++;
+                    }
+                    complete(job, null);
+                } else {
+                    reassigned.incrementAndGet();
+                    pending.addFirst(job);
+                }
+            }
+        }
+    }
+
+    /**
+     * 既定の設定でコーディネータを生成する
+     * @param port 待ち受けポート．0の場合は空きポートを使用する
+     * @param delegate 処理結果の出力先
+     * @since 2011/12/27
+     */
+    public ClusterCoordinator(int port, ClusterCoordinatorDelegate delegate) {
+        this(port, DEFAULT_MAX_PENDING, DEFAULT_JOB_TIMEOUT, delegate);
+    }
+
+    /**
+     * コーディネータを生成する
+     * @param port 待ち受けポート．0の場合は空きポートを使用する
+     * @param maxPending 待ち行列の上限
+     * @param jobTimeout ワーカが結果を返すまでの時間の上限[ms]
+     * @param delegate 処理結果の出力先
+     * @since 2011/12/27
+     */
+    public ClusterCoordinator(int port, int maxPending, long jobTimeout, ClusterCoordinatorDelegate delegate) {
+        this.requestedPort = port;
+        this.maxPending = Math.max(1, maxPending);
+        this.jobTimeout = jobTimeout;
+        this.delegate = delegate;
+    }
+
+    /**
+     * 待ち受けを開始する
+     * <pre>
+     * 他のマシンのワーカ・キャプチャ側が接続できるよう，すべてのインターフェースで待ち受ける．
+     * </pre>
+     * @throws IOException ポートを開けない場合
+     * @since 2011/12/27
+     */
+    public synchronized void start() throws IOException {
+        if (running) return;
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(requestedPort));
+        running = true;
+
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "ClusterCoordinator-accept");
+        acceptThread.start();
+        watchdogThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watchdogLoop();
+            }
+        }, "ClusterCoordinator-watchdog");
+        watchdogThread.setDaemon(true);
+        watchdogThread.start();
+        logger.log(Level.INFO, "ClusterCoordinator listening on port {0}", getPort());
+    }
+
+    /**
+     * 待ち受けているポート番号を返す
+     * @return ポート番号．開始前は-1
+     * @since 2011/12/27
+     */
+    public int getPort() {
+        ServerSocket s = server;
+        return s == null ? -1 : s.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                if (running) logger.log(Level.WARNING, "Accept failed", e);
+                continue;
+            }
+            Thread th = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "ClusterCoordinator-" + socket.getRemoteSocketAddress());
+            th.setDaemon(true);
+            th.start();
+        }
+    }
+
+    /**
+     * 接続の種別を判定して処理する
+     */
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            ClusterProtocol.Message hello = ClusterProtocol.read(in);
+            if (hello.type == ClusterProtocol.HELLO_WORKER) {
+                final WorkerLink link = new WorkerLink(socket, in, hello.value);
+                workers.add(link);
+                logger.log(Level.INFO, "Worker {0} connected (capacity {1})", new Object[]{link.name, hello.value});
+                link.sender = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        link.sendLoop();
+                    }
+                }, "ClusterCoordinator-send-" + link.name);
+                link.sender.setDaemon(true);
+                link.sender.start();
+                link.receiveLoop();
+            } else if (hello.type == ClusterProtocol.HELLO_CAPTURE) {
+                captures.add(socket);
+                logger.log(Level.INFO, "Capture node {0} connected for table {1}", new Object[]{socket.getRemoteSocketAddress(), hello.value});
+                try {
+                    receiveFrames(in, hello.value);
+                } finally {
+                    captures.remove(socket);
+                    closeQuietly(socket);
+                }
+            } else {
+                throw new IOException("Unexpected first message type: " + hello.type);
+            }
+        } catch (EOFException e) {
+            closeQuietly(socket);
+        } catch (IOException e) {
+            if (running) logger.log(Level.WARNING, "Connection " + socket.getRemoteSocketAddress() + " failed", e);
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * キャプチャ側からフレームを受け取り，待ち行列に入れる
+     */
+    private void receiveFrames(DataInputStream in, int tableId) throws IOException {
+        Table table = tables.get(tableId);
+        if (table == null) {
+            tables.putIfAbsent(tableId, new Table(tableId));
+            table = tables.get(tableId);
+        }
+        try {
+            while (running) {
+                ClusterProtocol.Message m = ClusterProtocol.read(in);
+                if (m.type != ClusterProtocol.FRAME) throw new IOException("Unexpected message type: " + m.type);
+                submit(table, m);
+            }
+        } catch (EOFException e) {
+            logger.log(Level.INFO, "Capture node for table {0} disconnected", tableId);
+        }
+    }
+
+    /**
+     * フレームに通し番号を振って待ち行列に入れる
+     * <pre>
+     * 待ち行列が上限を超えた場合は最も古いフレームを捨てる．
+     * </pre>
+     */
+    private void submit(Table table, ClusterProtocol.Message m) {
+        Job job;
+        synchronized (table) {
+            job = new Job(jobIds.getAndIncrement(), table, table.nextFrame++, m);
+            table.received++;
+        }
+        pending.addLast(job);
+        while (pending.size() > maxPending) {
+            Job old = pending.pollFirst();
+            if (old == null) break;
+            synchronized (old.table) {
+                old.table.dropped++;
+            }
+            complete(old, null);
+        }
+    }
+
+    /**
+     * 処理の終わったフレームを対局台ごとに通し番号順に出力する
+     * @param job 処理したフレーム
+     * @param result 処理結果．捨てたか処理できなかった場合null
+     */
+    private void complete(Job job, AnalyticResult result) {
+        Table table = job.table;
+        synchronized (table) {
+            if (job.done) return;
+            job.done = true;
+            if (result == null) {
+                result = new AnalyticResult(job.frame, 0, 0, 0, 0, -1, null, job.receivedTime, System.nanoTime());
+            }
+            table.done.put(job.frame, result);
+            while (!table.done.isEmpty() && table.done.firstKey() == table.nextPublish) {
+                AnalyticResult r = table.done.remove(table.nextPublish);
+                table.nextPublish++;
+                table.published++;
+                if (delegate != null) {
+                    try {
+                        delegate.publishResult(table.id, r);
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Delegate failed to publish result", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 結果を返さないワーカの接続を切る
+     */
+    private void watchdogLoop() {
+        long timeout = jobTimeout * 1000000;
+        while (running) {
+            try {
+                Thread.sleep(WATCHDOG_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (WorkerLink w : workers) {
+                long sent = w.oldestSentTime();
+                if (sent != 0 && now - sent > timeout) w.fail("no result for " + jobTimeout + " ms");
+            }
+        }
+    }
+
+    /**
+     * 接続中のワーカの数を返す
+     * @return ワーカの数
+     * @since 2011/12/27
+     */
+    public int getWorkerCount() {
+        return workers.size();
+    }
+
+    /**
+     * 割り当てを待っているフレーム数を返す
+     * @return フレーム数
+     * @since 2011/12/27
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * ワーカの障害で割り当て直したフレーム数を返す
+     * @return フレーム数
+     * @since 2011/12/27
+     */
+    public long getReassignedCount() {
+        return reassigned.get();
+    }
+
+    /**
+     * 対局台ごとの状況を文字列で返す
+     * @return 状況
+     * @since 2011/12/27
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d workers, %d pending, %d reassigned", workers.size(), pending.size(), reassigned.get()));
+        for (Map.Entry<Integer, Table> e : new TreeMap<Integer, Table>(tables).entrySet()) {
+            Table t = e.getValue();
+            synchronized (t) {
+                sb.append(String.format("; table %d: %d received, %d published, %d dropped, %d failed",
+                        t.id, t.received, t.published, t.dropped, t.failed));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 待ち受けを終了し，すべての接続を切る
+     * <pre>
+     * 処理中・待ち行列のフレームは処理できなかった結果として出力する．
+     * </pre>
+     * @since 2011/12/27
+     */
+    public void stop() {
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+        }
+        closeQuietly(server);
+        for (Socket s : captures) closeQuietly(s);
+        for (WorkerLink w : workers) w.fail("coordinator stopped");
+        Job job;
+        while ((job = pending.pollFirst()) != null) {
+            synchronized (job.table) {
+                job.table.dropped++;
+            }
+            complete(job, null);
+        }
+        try {
+            acceptThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.log(Level.INFO, "ClusterCoordinator stop: {0}", getSummary());
+    }
+
+    private static void closeQuietly(Socket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static void closeQuietly(ServerSocket s) {
+        try {
+            if (s != null) s.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * コーディネータを起動し，結果と状況をログに出力する
+     * @param args [ポート] [待ち行列の上限] [タイムアウト[ms]]
+     * @since 2011/12/27
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port        = args.length > 0 ? Integer.parseInt(args[0]) : ClusterProtocol.DEFAULT_PORT;
+        int maxPending  = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MAX_PENDING;
+        long timeout    = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_JOB_TIMEOUT;
+        final ClusterCoordinator c = new ClusterCoordinator(port, maxPending, timeout, new ClusterCoordinatorDelegate() {
+            @Override
+            public void publishResult(int table, AnalyticResult result) {
+                if (logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "Table {0}: {1}", new Object[]{table, result});
+            }
+        });
+        c.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                c.stop();
+            }
+        }, "ClusterCoordinator-shutdown"));
+        while (true) {
+            Thread.sleep(10000);
+            logger.info(c.getSummary());
+        }
+    }
+}
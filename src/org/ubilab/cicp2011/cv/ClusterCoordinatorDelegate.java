@@ -0,0 +1,20 @@
+package org.ubilab.cicp2011.cv;
+
+/**
+ * ClusterCoordinatorのデリゲートインターフェース
+ * @author atsushi-o
+ * @since 2011/12/27
+ */
+public interface ClusterCoordinatorDelegate {
+    /**
+     * 対局台ごとの処理結果を出力する
+     * <pre>
+     * 同じ対局台の結果はフレーム順に呼び出される．異なる対局台の結果は別のスレッドから同時に呼び出されることがある．
+     * ワーカの障害などで処理できなかったフレームも，マス目の数-1の結果として順番どおりに出力する．
+     * </pre>
+     * @param table 対局台の番号
+     * @param result 1フレーム分の処理結果（フレーム番号は対局台ごとの通し番号）
+     * @since 2011/12/27
+     */
+    public void publishResult(int table, AnalyticResult result);
+}
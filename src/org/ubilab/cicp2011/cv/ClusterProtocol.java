@@ -0,0 +1,182 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * 分散処理（ClusterCoordinator・ClusterWorker・ClusterCaptureNode）のメッセージを読み書きするクラス
+ * <pre>
+ * メッセージはビッグエンディアンで以下の形式とする．
+ * <blockquote>
+ * int    以降のバイト数
+ * byte   種別
+ * HELLO_CAPTURE: int 対局台の番号
+ * HELLO_WORKER:  int 同時に処理できるフレーム数
+ * FRAME:  long ジョブ番号, int 対局台の番号, long フレーム番号, int ROIのx, int ROIのy, byte ROIの切り出し済みか,
+ *         int JPEGのバイト数, byte[] JPEG
+ * RESULT: long ジョブ番号, int ROIのx, int ROIのy, int ROIの幅, int ROIの高さ, int マス目の数,
+ *         byte 盤面の有無, [byte[81] 全マスの状態]
+ * </blockquote>
+ * キャプチャ側が送るFRAMEのジョブ番号は0とし，コーディネータが振り直してワーカに送る．
+ * ROIが切り出し済みの場合，JPEGはAnalyticProcess#getROIViewの出力で，ROIのx・yはフレーム内の位置を表す．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/27
+ */
+public final class ClusterProtocol {
+    /** キャプチャ側の接続 */
+    public static final byte HELLO_CAPTURE  = 1;
+    /** ワーカの接続 */
+    public static final byte HELLO_WORKER   = 2;
+    /** フレーム */
+    public static final byte FRAME          = 3;
+    /** 処理結果 */
+    public static final byte RESULT         = 4;
+    /** 既定のポート番号 */
+    public static final int DEFAULT_PORT    = 7420;
+    /** メッセージの最大バイト数 */
+    public static final int MAX_LENGTH      = 32 << 20;
+
+    private ClusterProtocol() {}
+
+    /**
+     * 受信したメッセージ
+     * @since 2011/12/27
+     */
+    public static class Message {
+        public byte type;
+        /** HELLO_CAPTUREの対局台の番号またはHELLO_WORKERのフレーム数 */
+        public int value;
+        public long job;
+        public int table;
+        public long frame;
+        public int roiX, roiY, roiWidth, roiHeight;
+        public boolean cropped;
+        public byte[] jpeg;
+        public int count;
+        public byte[] cells;
+    }
+
+    /**
+     * 接続時のメッセージを送る
+     * @param out 出力先
+     * @param type HELLO_CAPTUREまたはHELLO_WORKER
+     * @param value 対局台の番号または同時に処理できるフレーム数
+     * @throws IOException 送信に失敗した場合
+     * @since 2011/12/27
+     */
+    public static void writeHello(DataOutputStream out, byte type, int value) throws IOException {
+        out.writeInt(1 + 4);
+        out.writeByte(type);
+        out.writeInt(value);
+        out.flush();
+    }
+
+    /**
+     * フレームを送る
+     * @param out 出力先
+     * @param job ジョブ番号（キャプチャ側は0）
+     * @param table 対局台の番号
+     * @param frame フレーム番号
+     * @param roiX ROIのx座標（切り出していない場合は0）
+     * @param roiY ROIのy座標（切り出していない場合は0）
+     * @param cropped ROIを切り出し済みの場合true
+     * @param jpeg JPEGで圧縮した画像
+     * @throws IOException 送信に失敗した場合
+     * @since 2011/12/27
+     */
+    public static void writeFrame(DataOutputStream out, long job, int table, long frame, int roiX, int roiY,
+            boolean cropped, byte[] jpeg) throws IOException {
+        out.writeInt(1 + 8 + 4 + 8 + 4 + 4 + 1 + 4 + jpeg.length);
+        out.writeByte(FRAME);
+        out.writeLong(job);
+        out.writeInt(table);
+        out.writeLong(frame);
+        out.writeInt(roiX);
+        out.writeInt(roiY);
+        out.writeBoolean(cropped);
+        out.writeInt(jpeg.length);
+        out.write(jpeg);
+        out.flush();
+    }
+
+    /**
+     * 処理結果を送る
+     * @param out 出力先
+     * @param job ジョブ番号
+     * @param roiX ROIのx座標
+     * @param roiY ROIのy座標
+     * @param roiWidth ROIの幅
+     * @param roiHeight ROIの高さ
+     * @param count マス目の数．処理できなかった場合は負の値
+     * @param state 盤面．ない場合null
+     * @throws IOException 送信に失敗した場合
+     * @since 2011/12/27
+     */
+    public static void writeResult(DataOutputStream out, long job, int roiX, int roiY, int roiWidth, int roiHeight,
+            int count, BoardState state) throws IOException {
+        out.writeInt(1 + 8 + 4 * 5 + 1 + (state == null ? 0 : BoardState.CELLS));
+        out.writeByte(RESULT);
+        out.writeLong(job);
+        out.writeInt(roiX);
+        out.writeInt(roiY);
+        out.writeInt(roiWidth);
+        out.writeInt(roiHeight);
+        out.writeInt(count);
+        out.writeBoolean(state != null);
+        if (state != null) {
+            byte[] cells = new byte[BoardState.CELLS];
+            state.copyTo(cells, 0);
+            out.write(cells);
+        }
+        out.flush();
+    }
+
+    /**
+     * 次のメッセージを受信する
+     * @param in 入力元
+     * @return 受信したメッセージ
+     * @throws IOException 受信に失敗した場合，形式が不正な場合．切断された場合はEOFException
+     * @since 2011/12/27
+     */
+    public static Message read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > MAX_LENGTH) throw new IOException("Invalid message length: " + length);
+        Message m = new Message();
+        m.type = in.readByte();
+        switch (m.type) {
+            case HELLO_CAPTURE:
+            case HELLO_WORKER:
+                m.value = in.readInt();
+                break;
+            case FRAME:
+                m.job = in.readLong();
+                m.table = in.readInt();
+                m.frame = in.readLong();
+                m.roiX = in.readInt();
+                m.roiY = in.readInt();
+                m.cropped = in.readBoolean();
+                int n = in.readInt();
+                if (n < 0 || n > length) throw new IOException("Invalid image length: " + n);
+                m.jpeg = new byte[n];
+                in.readFully(m.jpeg);
+                break;
+            case RESULT:
+                m.job = in.readLong();
+                m.roiX = in.readInt();
+                m.roiY = in.readInt();
+                m.roiWidth = in.readInt();
+                m.roiHeight = in.readInt();
+                m.count = in.readInt();
+                if (in.readBoolean()) {
+                    m.cells = new byte[BoardState.CELLS];
+                    in.readFully(m.cells);
+                }
+                break;
+            default:
+                throw new IOException("Unknown message type: " + m.type);
+        }
+        return m;
+    }
+}
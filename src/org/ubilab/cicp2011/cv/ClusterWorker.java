@@ -0,0 +1,288 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_highgui.*;
+
+/**
+ * ClusterCoordinatorから受け取ったフレームを処理して結果を返すワーカ
+ * <pre>
+ * 指定したスレッド数でフレームを並列に処理する．同時に受け取るフレーム数はスレッド数の2倍とし，
+ * 処理中に次のフレームの転送を済ませておく．
+ * コーディネータとの接続が切れた場合は，受け取ったフレームを捨てて接続し直す．
+ * 捨てたフレームはコーディネータが他のワーカに割り当て直す．
+ * <blockquote>
+ * java org.ubilab.cicp2011.cv.ClusterWorker ホスト [ポート] [スレッド数] [-java]
+ * </blockquote>
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/27
+ */
+public class ClusterWorker {
+    /** 接続し直すまでの時間[ms] */
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private static final Logger logger;
+    private final String host;
+    private final int port;
+    private final int threads;
+    private final AnalyticProcess.Backend backend;
+    private final AtomicLong processed = new AtomicLong();
+    private volatile boolean running = false;
+    private volatile Socket socket = null;
+    private Thread mainThread;
+
+    static {
+        logger = Logger.getLogger(ClusterWorker.class.getName());
+    }
+
+    /**
+     * ワーカを生成する
+     * @param host コーディネータのホスト名
+     * @param port コーディネータのポート
+     * @param threads 処理スレッド数
+     * @param backend 処理の実装
+     * @since 2011/12/27
+     */
+    public ClusterWorker(String host, int port, int threads, AnalyticProcess.Backend backend) {
+        this.host = host;
+        this.port = port;
+        this.threads = Math.max(1, threads);
+        this.backend = backend;
+    }
+
+    /**
+     * 処理を開始する
+     * @since 2011/12/27
+     */
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        mainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                connectLoop();
+            }
+        }, "ClusterWorker");
+        mainThread.start();
+    }
+
+    /**
+     * 切断されるたびに接続し直す
+     */
+    private void connectLoop() {
+        while (running) {
+            try {
+                socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                logger.log(Level.INFO, "Connected to coordinator {0}:{1}", new Object[]{host, port});
+                serve(socket);
+            } catch (EOFException e) {
+                if (running) logger.log(Level.WARNING, "Coordinator {0}:{1} disconnected", new Object[]{host, port});
+            } catch (IOException e) {
+                if (running) logger.log(Level.WARNING, "Cannot communicate with coordinator {0}:{1}: {2}", new Object[]{host, port, e.getMessage()});
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                closeSocket();
+            }
+            if (!running) break;
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 1つの接続でフレームを受け取り，処理スレッドに渡す
+     */
+    private void serve(Socket s) throws IOException, InterruptedException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        ClusterProtocol.writeHello(out, ClusterProtocol.HELLO_WORKER, threads * 2);
+
+        final BlockingQueue<ClusterProtocol.Message> queue = new LinkedBlockingQueue<ClusterProtocol.Message>();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    processLoop(queue, out);
+                }
+            }, "ClusterWorker-" + i);
+            workers[i].start();
+        }
+        try {
+            while (running) {
+                ClusterProtocol.Message m = ClusterProtocol.read(in);
+                if (m.type != ClusterProtocol.FRAME) throw new IOException("Unexpected message type: " + m.type);
+                queue.put(m);
+            }
+        } finally {
+            // 送信中の処理スレッドが止まるよう先に切断する
+            closeSocket();
+            for (Thread th : workers) th.interrupt();
+            for (Thread th : workers) th.join();
+        }
+    }
+
+    /**
+     * 処理スレッド：フレームを1枚ずつ処理して結果を返す
+     */
+    private void processLoop(BlockingQueue<ClusterProtocol.Message> queue, DataOutputStream out) {
+        CvMemStorage workStorage = NativeMemory.createStorage();
+        AnalyticProcess proc = new AnalyticProcess(null, false, null, workStorage);
+        proc.setBackend(backend);
+        try {
+            while (true) {
+                ClusterProtocol.Message m = queue.take();
+                int[] roi = new int[4];
+                BoardState state = new BoardState();
+                int count;
+                try {
+                    count = analyze(proc, m, roi, state);
+                } catch (RuntimeException e) {
+                    // 1フレームの失敗で接続を切らず，処理できなかった結果として返す
+                    logger.log(Level.WARNING, "Frame " + m.frame + " of table " + m.table + " failed", e);
+                    count = -1;
+                }
+                cvClearMemStorage(workStorage);
+                NativeMemory.updateStorage(workStorage);
+                synchronized (out) {
+                    ClusterProtocol.writeResult(out, m.job, roi[0], roi[1], roi[2], roi[3], count, count < 0 ? null : state);
+                }
+                processed.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            // 接続が切れた
+        } catch (IOException e) {
+            // 受信側で検出して接続し直す
+            closeSocket();
+        } finally {
+            NativeMemory.releaseStorage(workStorage);
+        }
+    }
+
+    /**
+     * 1フレームを処理する
+     * @param proc 処理スレッドの画像処理
+     * @param m 受け取ったフレーム
+     * @param roi 検出したROI（x, y, 幅, 高さ）の出力先
+     * @param state マス目の検出結果の出力先
+     * @return 検出されたマス目の数．処理できなかった場合は-1
+     */
+    private int analyze(AnalyticProcess proc, ClusterProtocol.Message m, int[] roi, BoardState state) {
+        CvMat buf = CvMat.create(1, m.jpeg.length, CV_8UC1);
+        buf.getByteBuffer().put(m.jpeg);
+        IplImage img = cvDecodeImage(buf, CV_LOAD_IMAGE_COLOR);
+        cvReleaseMat(buf);
+        if (img == null || img.isNull()) {
+            logger.log(Level.WARNING, "Cannot decode frame {0} of table {1}", new Object[]{m.frame, m.table});
+            return -1;
+        }
+        NativeMemory.track(NativeMemory.Category.FRAME, img);
+        try {
+            if (m.cropped) {
+                // キャプチャ側で切り出し済み
+                roi[0] = m.roiX;
+                roi[1] = m.roiY;
+                roi[2] = img.width();
+                roi[3] = img.height();
+                return proc.getRects(img, state);
+            }
+            CvRect rect = proc.getROI(img);
+            roi[0] = rect.x();
+            roi[1] = rect.y();
+            roi[2] = rect.width();
+            roi[3] = rect.height();
+            if (rect.width() * rect.height() <= 0) return 0;
+            IplImage roiFrame = proc.getROIView(img, rect);
+            try {
+                return proc.getRects(roiFrame, state);
+            } finally {
+                NativeMemory.releaseImage(roiFrame);
+            }
+        } finally {
+            NativeMemory.releaseImage(img);
+        }
+    }
+
+    private void closeSocket() {
+        Socket s = socket;
+        if (s == null) return;
+        try {
+            s.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * 処理したフレーム数を返す
+     * @return フレーム数
+     * @since 2011/12/27
+     */
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    /**
+     * 処理を終了する
+     * @since 2011/12/27
+     */
+    public void stop() {
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+        }
+        closeSocket();
+        mainThread.interrupt();
+        try {
+            mainThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.log(Level.INFO, "ClusterWorker stop: {0} frames processed", processed.get());
+    }
+
+    /**
+     * ワーカを起動する
+     * @param args ホスト [ポート] [スレッド数] [-java]
+     * @since 2011/12/27
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java org.ubilab.cicp2011.cv.ClusterWorker HOST [port] [threads] [-java]");
+            System.exit(1);
+        }
+        AnalyticProcess.Backend backend = AnalyticProcess.Backend.OPENCV;
+        int port = ClusterProtocol.DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int n = 0;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-java")) backend = AnalyticProcess.Backend.JAVA;
+            else if (n++ == 0) port = Integer.parseInt(args[i]);
+            else threads = Integer.parseInt(args[i]);
+        }
+        final ClusterWorker w = new ClusterWorker(args[0], port, threads, backend);
+        w.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                w.stop();
+            }
+        }, "ClusterWorker-shutdown"));
+    }
+}
@@ -0,0 +1,303 @@
+package org.ubilab.cicp2011.cv;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+import static com.googlecode.javacv.cpp.opencv_video.*;
+
+/**
+ * 盤の特徴点をピラミッドLucas-Kanade法で追跡してROIを求めるクラス
+ * <pre>
+ * ROIが検出されたフレームで盤上の特徴点（格子線の交点など）をcvGoodFeaturesToTrackで選び，
+ * 以降のフレームはcvCalcOpticalFlowPyrLKで数十点を追跡して，点の移動から求めた拡大・平行移動で盤の四隅を動かす．
+ * エッジ検出とHough変換を行わないため，盤が動かない間のROI検出の処理量は大幅に小さい．
+ * 追跡できた点の割合がMIN_FOUND_RATIOを下回った場合，点の移動が拡大・平行移動で説明できない（残差がMAX_RESIDUALを超える）場合，
+ * 追跡がMAX_TRACK_FRAMESフレーム続いた場合はnullを返して検出し直させる．
+ * 前回のフレームの画像ピラミッドを保持して再利用する（CV_LKFLOW_PYR_A_READY）．
+ * フレームの順序を前提とするが，AnalyticPipelineは1スレッドの盤検出ステージでのみ呼ぶため前処理ステージのスレッド数は問わない．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/20
+ */
+public class CornerTracker implements RoiTracker {
+    /** 追跡する特徴点の最大数 */
+    public static final int MAX_POINTS = 48;
+    /** 追跡を続ける点の割合の下限（ROI検出時の点数に対する割合） */
+    public static final double MIN_FOUND_RATIO = 0.5;
+    /** 点の移動の残差（中央値）の上限[px] */
+    public static final double MAX_RESIDUAL = 3.0;
+    /** 検出し直すまでの最大の追跡フレーム数 */
+    public static final int MAX_TRACK_FRAMES = 300;
+    /** 点ごとの追跡誤差の上限（OpticalFlowTrackerのサンプルと同じ値） */
+    private static final float MAX_POINT_ERROR = 550;
+    private static final int WINDOW = 15;
+    private static final int LEVELS = 3;
+
+    private static final Logger logger;
+    private final RoiDetector next;
+    private IplImage prevGray = null, curGray = null, prevPyr = null, curPyr = null;
+    private boolean pyrReady = false;
+    private final CvPoint2D32f prevPts = new CvPoint2D32f(MAX_POINTS);
+    private final CvPoint2D32f curPts = new CvPoint2D32f(MAX_POINTS);
+    private final byte[] status = new byte[MAX_POINTS];
+    private final float[] error = new float[MAX_POINTS];
+    private final float[] px = new float[MAX_POINTS], py = new float[MAX_POINTS];
+    private int count = 0, seedCount = 0, trackedFrames = 0;
+    private float[] corners = null;
+    private boolean tracking = false;
+    private long frames = 0, redetections = 0;
+    private double lastResidual = 0;
+
+    static {
+        logger = Logger.getLogger(CornerTracker.class.getName());
+    }
+
+    /**
+     * 追跡できない場合に用いるRoiDetectorを指定してインスタンスを生成する
+     * @param next 追跡できない場合に用いるRoiDetector．nullの場合はHough変換を用いる
+     * @since 2011/12/20
+     */
+    public CornerTracker(RoiDetector next) {
+        this.next = next;
+    }
+
+    @Override
+    public synchronized CvRect detect(IplImage input) {
+        frames++;
+        if (tracking) {
+            CvRect r = track(input);
+            if (r != null) return r;
+            tracking = false;
+        }
+        redetections++;
+        CvRect r = next == null ? null : next.detect(input);
+        if (r != null) seed(input, r);
+        return r;
+    }
+
+    @Override
+    public synchronized void redetected(IplImage input, CvRect roi) {
+        seed(input, roi);
+    }
+
+    /**
+     * ROI内の特徴点を選んで追跡を開始する
+     * @since 2011/12/20
+     */
+    private void seed(IplImage input, CvRect roi) {
+        prepare(input.width(), input.height());
+        cvCvtColor(input, prevGray, CV_RGB2GRAY);
+        pyrReady = false;
+
+        // ROI内のみで特徴点を選ぶ
+        CvSize roiSize = cvSize(roi.width(), roi.height());
+        IplImage eig = NativeMemory.createImage(NativeMemory.Category.SCRATCH, roiSize, IPL_DEPTH_32F, 1);
+        IplImage tmp = NativeMemory.createImage(NativeMemory.Category.SCRATCH, roiSize, IPL_DEPTH_32F, 1);
+        int[] n = {MAX_POINTS};
+        cvSetImageROI(prevGray, roi);
+        cvGoodFeaturesToTrack(prevGray, eig, tmp, prevPts, n, 0.05, 10.0, null, 3, 0, 0.04);
+        if (n[0] > 0) {
+            cvFindCornerSubPix(prevGray, prevPts, n[0], cvSize(5, 5), cvSize(-1, -1),
+                    cvTermCriteria(CV_TERMCRIT_ITER | CV_TERMCRIT_EPS, 20, 0.03));
+        }
+        cvResetImageROI(prevGray);
+        NativeMemory.releaseImage(eig);
+        NativeMemory.releaseImage(tmp);
+
+        count = n[0];
+        for (int i = 0; i < count; i++) {
+            prevPts.position(i);
+            px[i] = prevPts.x() + roi.x();
+            py[i] = prevPts.y() + roi.y();
+        }
+        prevPts.position(0);
+        seedCount = count;
+        trackedFrames = 0;
+        corners = new float[]{roi.x(), roi.y(), roi.x() + roi.width(), roi.y(),
+                roi.x() + roi.width(), roi.y() + roi.height(), roi.x(), roi.y() + roi.height()};
+        tracking = count >= 4;
+        if (logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "Tracking {0} points in ROI {1}", new Object[]{count, roi});
+    }
+
+    /**
+     * 前のフレームから特徴点を追跡してROIを求める
+     * @return 追跡したROI．検出し直す必要がある場合null
+     * @since 2011/12/20
+     */
+    private CvRect track(IplImage input) {
+        if (prevGray.width() != input.width() || prevGray.height() != input.height()) return null;
+        if (++trackedFrames > MAX_TRACK_FRAMES) return null;
+        cvCvtColor(input, curGray, CV_RGB2GRAY);
+
+        for (int i = 0; i < count; i++) {
+            prevPts.position(i).x(px[i]).y(py[i]);
+        }
+        prevPts.position(0);
+        cvCalcOpticalFlowPyrLK(prevGray, curGray, prevPyr, curPyr, prevPts, curPts, count,
+                cvSize(WINDOW, WINDOW), LEVELS, status, error,
+                cvTermCriteria(CV_TERMCRIT_ITER | CV_TERMCRIT_EPS, 20, 0.3), pyrReady ? CV_LKFLOW_PYR_A_READY : 0);
+
+        // 追跡できた点
+        float[] ox = new float[count], oy = new float[count], nx = new float[count], ny = new float[count];
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            curPts.position(i);
+            float x = curPts.x(), y = curPts.y();
+            if (status[i] == 0 || error[i] > MAX_POINT_ERROR || x < 0 || y < 0 || x >= input.width() || y >= input.height()) continue;
+            ox[found] = px[i];
+            oy[found] = py[i];
+            nx[found] = x;
+            ny[found] = y;
+            found++;
+        }
+        curPts.position(0);
+        if (found < Math.max(4, seedCount * MIN_FOUND_RATIO)) {
+            if (logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "Lost tracking: {0}/{1} points", new Object[]{found, seedCount});
+            return null;
+        }
+
+        // 拡大率と平行移動（重心の差）
+        double ocx = 0, ocy = 0, ncx = 0, ncy = 0;
+        for (int i = 0; i < found; i++) {
+            ocx += ox[i];
+            ocy += oy[i];
+            ncx += nx[i];
+            ncy += ny[i];
+        }
+        ocx /= found;
+        ocy /= found;
+        ncx /= found;
+        ncy /= found;
+        double[] ratio = new double[found];
+        int nr = 0;
+        for (int i = 0; i < found; i++) {
+            double d0 = Math.hypot(ox[i] - ocx, oy[i] - ocy);
+            if (d0 > 1) ratio[nr++] = Math.hypot(nx[i] - ncx, ny[i] - ncy) / d0;
+        }
+        double scale = nr > 0 ? median(ratio, nr) : 1;
+        double tx = ncx - scale * ocx, ty = ncy - scale * ocy;
+
+        double[] residual = new double[found];
+        for (int i = 0; i < found; i++) {
+            residual[i] = Math.hypot(nx[i] - (scale * ox[i] + tx), ny[i] - (scale * oy[i] + ty));
+        }
+        lastResidual = median(residual, found);
+        if (lastResidual > MAX_RESIDUAL) {
+            if (logger.isLoggable(Level.FINE)) logger.log(Level.FINE, "Lost tracking: residual {0} px", String.format("%.2f", lastResidual));
+            return null;
+        }
+
+        // 盤の四隅を動かしてROIを求める
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < 8; i += 2) {
+            corners[i] = (float)(scale * corners[i] + tx);
+            corners[i + 1] = (float)(scale * corners[i + 1] + ty);
+            minX = Math.min(minX, corners[i]);
+            maxX = Math.max(maxX, corners[i]);
+            minY = Math.min(minY, corners[i + 1]);
+            maxY = Math.max(maxY, corners[i + 1]);
+        }
+        int x0 = Math.max(0, Math.round(minX)), y0 = Math.max(0, Math.round(minY));
+        int x1 = Math.min(input.width(), Math.round(maxX)), y1 = Math.min(input.height(), Math.round(maxY));
+        if (x1 - x0 < BoardState.SIZE || y1 - y0 < BoardState.SIZE) return null;
+
+        // 次のフレームに備えて入れ替える
+        System.arraycopy(nx, 0, px, 0, found);
+        System.arraycopy(ny, 0, py, 0, found);
+        count = found;
+        IplImage t = prevGray;
+        prevGray = curGray;
+        curGray = t;
+        t = prevPyr;
+        prevPyr = curPyr;
+        curPyr = t;
+        pyrReady = true;
+        return cvRect(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    private static double median(double[] values, int n) {
+        double[] v = Arrays.copyOf(values, n);
+        Arrays.sort(v);
+        return n % 2 == 1 ? v[n / 2] : (v[n / 2 - 1] + v[n / 2]) / 2;
+    }
+
+    /**
+     * 作業用画像を確保する
+     * @since 2011/12/20
+     */
+    private void prepare(int width, int height) {
+        if (prevGray != null && prevGray.width() == width && prevGray.height() == height) return;
+        releaseImages();
+        CvSize size = cvSize(width, height);
+        // cvCalcOpticalFlowPyrLKのピラミッドの作業領域（OpticalFlowTrackerのサンプルと同じ大きさ）
+        CvSize pyrSize = cvSize(width + 8, height / 3);
+        prevGray = NativeMemory.createImage(NativeMemory.Category.SCRATCH, size, IPL_DEPTH_8U, 1);
+        curGray = NativeMemory.createImage(NativeMemory.Category.SCRATCH, size, IPL_DEPTH_8U, 1);
+        prevPyr = NativeMemory.createImage(NativeMemory.Category.SCRATCH, pyrSize, IPL_DEPTH_8U, 1);
+        curPyr = NativeMemory.createImage(NativeMemory.Category.SCRATCH, pyrSize, IPL_DEPTH_8U, 1);
+    }
+
+    private void releaseImages() {
+        NativeMemory.releaseImage(prevGray);
+        NativeMemory.releaseImage(curGray);
+        NativeMemory.releaseImage(prevPyr);
+        NativeMemory.releaseImage(curPyr);
+        prevGray = curGray = prevPyr = curPyr = null;
+    }
+
+    /**
+     * 追跡している盤の四隅を返す
+     * @return 4頂点の座標（x, yの繰り返し）．追跡していない場合null
+     * @since 2011/12/20
+     */
+    public synchronized float[] getCorners() {
+        return tracking && corners != null ? corners.clone() : null;
+    }
+
+    /**
+     * 処理したフレームのうち，追跡できずに検出し直したフレームの割合を返す
+     * @return 再検出率（0〜1）
+     * @since 2011/12/20
+     */
+    public synchronized double getRedetectionRate() {
+        return frames == 0 ? 0 : (double)redetections / frames;
+    }
+
+    /**
+     * 追跡できずに検出し直したフレーム数を返す
+     * @return フレーム数
+     * @since 2011/12/20
+     */
+    public synchronized long getRedetectionCount() {
+        return redetections;
+    }
+
+    /**
+     * 処理したフレーム数を返す
+     * @return フレーム数
+     * @since 2011/12/20
+     */
+    public synchronized long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * 直前の追跡での点の移動の残差を返す
+     * @return 残差の中央値[px]
+     * @since 2011/12/20
+     */
+    public synchronized double getLastResidual() {
+        return lastResidual;
+    }
+
+    /**
+     * 作業用画像を解放する
+     * @since 2011/12/20
+     */
+    public synchronized void release() {
+        releaseImages();
+        tracking = false;
+    }
+}
@@ -16,11 +16,14 @@ package org.ubilab.cicp2011.cv;
  * @since 2011/11/30
  */
 public class CvController extends javax.swing.JFrame {
-    private static final CvController instance;
     private CvControllerDelegate delegate;
-    
-    static {
-        instance = new CvController();
+
+    /**
+     * インスタンスを初めて要求されたときに生成するためのホルダクラス
+     * @since 2011/12/10
+     */
+    private static class Holder {
+        private static final CvController instance = new CvController();
     }
 
     /** Creates new form CvController */
@@ -30,10 +33,13 @@ public class CvController extends javax.swing.JFrame {
     
     /**
      * CvControllerのインスタンスを返す
+     * <pre>
+     * ウインドウは初回の呼び出し時に生成される．
+     * </pre>
      * @return CvControllerのインスタンス
      */
     public static CvController getInstance() {
-        return instance;
+        return Holder.instance;
     }
     
     /**
@@ -0,0 +1,110 @@
+package org.ubilab.cicp2011.cv;
+
+import java.util.HashMap;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import javax.swing.JFrame;
+import com.googlecode.javacv.CanvasFrame;
+import static com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * デバッグ用のウインドウ（CvControllerとCanvasFrame）をまとめて管理するクラス
+ * <pre>
+ * Swing/AWTのクラスを参照するのはこのクラスとCvControllerのみとし，
+ * デバッグモード以外ではインスタンスを生成しないことで，サーバモードでは
+ * Swing/AWTのクラスを一切読み込まない．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/10
+ */
+class CvDebugView {
+    private static final Logger logger;
+    private final HashMap<String, CanvasFrame> canvas;
+    private final CvController cController;
+
+    static {
+        logger = Logger.getLogger(CvDebugView.class.getName());
+    }
+
+    /**
+     * コントローラウインドウを表示する
+     * @param delegate コントローラのデリゲートクラス
+     * @since 2011/12/10
+     */
+    CvDebugView(CvControllerDelegate delegate) {
+        canvas = new HashMap<String, CanvasFrame>();
+        cController = CvController.getInstance();
+        cController.setDelegate(delegate);
+        cController.setVisible(true);
+    }
+
+    /**
+     * 指定した名前のCanvasFrameを生成する
+     * @param key CanvasFrameの名前
+     * @since 2011/12/10
+     */
+    synchronized void createCanvas(String key) {
+        logger.log(Level.INFO, "Create New CanvasFrame: {0}", key);
+        if (!canvas.containsKey(key)) {
+            CanvasFrame tmp = new CanvasFrame(key);
+            tmp.setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+            canvas.put(key, tmp);
+        }
+    }
+
+    /**
+     * Imageを指定したkeyのCanvasFrameに表示する
+     * @param key CanvasFrame名
+     * @param image 表示する画像
+     * @since 2011/12/10
+     */
+    synchronized void showImage(String key, IplImage image) {
+        CanvasFrame f = canvas.get(key);
+        if (f != null) {
+            f.setSize(image.width(), image.height());
+            f.showImage(image);
+        }
+    }
+
+    /**
+     * CanvasFrameの表示/非表示を切り替える
+     * @param b 表示/非表示
+     * @since 2011/12/10
+     */
+    synchronized void setVisible(boolean b) {
+        for (CanvasFrame f : canvas.values()) {
+            f.setVisible(b);
+        }
+    }
+
+    /**
+     * コントローラのテキストエリアに文を追記する
+     * @param str 追記する文
+     * @since 2011/12/10
+     */
+    void addText(String str) {
+        cController.addText(str);
+    }
+
+    /**
+     * コントローラのテキストエリアを初期化する
+     * @since 2011/12/10
+     */
+    void clearText() {
+        cController.clearText();
+    }
+
+    /**
+     * すべてのウインドウを閉じてリソースを解放する
+     * @since 2011/12/10
+     */
+    synchronized void dispose() {
+        logger.info("Close all CanvasFrame");
+        for (CanvasFrame cf : canvas.values()) {
+            cf.setVisible(false);
+            cf.dispose();
+        }
+        canvas.clear();
+        cController.dispose();
+    }
+}
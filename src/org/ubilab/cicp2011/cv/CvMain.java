@@ -1,10 +1,16 @@
 package org.ubilab.cicp2011.cv;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import java.util.logging.Level;
-import javax.swing.JFrame;
-import com.googlecode.javacv.*;
+import com.googlecode.javacpp.Loader;
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_imgproc;
+import com.googlecode.javacv.cpp.opencv_highgui;
+import com.googlecode.javacv.cpp.opencv_video;
 import static com.googlecode.javacv.cpp.opencv_core.*;
 import static com.googlecode.javacv.cpp.opencv_highgui.*;
 
@@ -15,22 +21,50 @@ import static com.googlecode.javacv.cpp.opencv_highgui.*;
  * <blockquote>
  * new CvMain.Builder(0).build();
  * </blockquote>
+ * headless(true)を指定するとサーバモードとなり，Swing/AWTのクラスを読み込まずに動作する．
+ * サーバモードではshutdown()で処理中のフレームを出力してから資源を解放し，System.exitは呼ばない．
+ * 起動時にはネイティブライブラリの読み込みとダミー画像による暖機運転をバックグラウンドで行い，
+ * 完了するまでキャプチャの処理を待たせる（awaitReady()を参照）．
  * </pre>
  * @author atsushi-o
  * @since 2011/11/17
  */
-public class CvMain implements AnalyticProcessDelegate, CvControllerDelegate {
+public class CvMain implements AnalyticProcessDelegate, AnalyticPipelineDelegate, CvControllerDelegate {
     private CvCapture capture;
     private boolean debug;
     private boolean useDummy;
-    private static final HashMap<String, CanvasFrame> canvas;
+    private boolean headless;
     private static final Logger logger;
-    private AnalyticProcess curThread = null;
-    private CvController cController = null;
+    private CvDebugView view = null;
+    private final CaptureScheduler scheduler;
+    private volatile boolean shutdown = false;
     private IplImage _dummyPic = null;
+    private TiledExecutor tiler = null;
+    private AnalyticPipeline pipeline = null;
+    private BoardStateServer stateServer = null;
+    private GameRecordLog gameRecord = null;
+    private PieceRecognizer recognizer = null;
+    private AnalyticProcess.Backend backend;
+    private WoodColorDetector woodDetector = null;
+    private BandedLineDetector lineDetector = null;
+    private LensCorrector lensCorrector = null;
+    private BoardGeometryStore geometryStore = null;
+    private RoiDetector roiDetector = null;
+    private CornerTracker tracker = null;
+    private OcclusionDetector occlusion = null;
+    private ResultCache resultCache = null;
+    private File cacheFile = null;
+    private TemporalVoter voter = null;
+    private FrameHistory history = null;
+    private SessionRecorder recorder = null;
+    private StageImageSink stageSink = null;
+    private SharedFrameSource sharedSource = null;
+    private QualityController quality = null;
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private final long startTime;
+    private volatile long startupMillis = -1;
     
     static {
-        canvas = new HashMap<String, CanvasFrame>();
         logger = Logger.getLogger(CvMain.class.getName());
     }
 
@@ -47,6 +81,31 @@ public class CvMain implements AnalyticProcessDelegate, CvControllerDelegate {
         private int height      = 960;
         private boolean debug   = false;
         private boolean useDummy= false;
+        private boolean headless= false;
+        private int threads     = 1;
+        private int streamPort  = -1;
+        private String gameRecord = null;
+        private int warmup      = 3;
+        private long memoryBudget = -1;
+        private String templates = null;
+        private AnalyticProcess.Backend backend = AnalyticProcess.Backend.OPENCV;
+        private boolean woodColor = false;
+        private boolean bandedLines = false;
+        private String calibration = null;
+        private String geometry = null;
+        private boolean tracking = false;
+        private boolean occlusion = false;
+        private int resultCache = 0;
+        private String cacheFile = null;
+        private int voteWindow = 0;
+        private int history     = 0;
+        private String historyDir = "history";
+        private String session  = null;
+        private SessionRecorder.Format sessionFormat = SessionRecorder.Format.MJPEG;
+        private String shared   = null;
+        private int workerIndex = 0;
+        private int workerCount = 1;
+        private double latencyTarget = 0;
         
         /**
          * 必須パラメータを指定
@@ -61,6 +120,30 @@ public class CvMain implements AnalyticProcessDelegate, CvControllerDelegate {
         public Builder height(int val)      { height = val; return this; }
         public Builder debug(boolean val)   { debug = val; return this; }
         public Builder useDummy(boolean val){ useDummy = val; return this; }
+        public Builder headless(boolean val){ headless = val; return this; }
+        public Builder threads(int val)     { threads = val; return this; }
+        public Builder streamPort(int val)  { streamPort = val; return this; }
+        public Builder gameRecord(String val){ gameRecord = val; return this; }
+        public Builder warmup(int val)      { warmup = val; return this; }
+        public Builder memoryBudget(long val){ memoryBudget = val; return this; }
+        public Builder templates(String val){ templates = val; return this; }
+        public Builder backend(AnalyticProcess.Backend val) { backend = val; return this; }
+        public Builder woodColor(boolean val){ woodColor = val; return this; }
+        public Builder bandedLines(boolean val){ bandedLines = val; return this; }
+        public Builder calibration(String val){ calibration = val; return this; }
+        public Builder geometry(String val) { geometry = val; return this; }
+        public Builder tracking(boolean val){ tracking = val; return this; }
+        public Builder occlusion(boolean val){ occlusion = val; return this; }
+        public Builder resultCache(int val) { resultCache = val; return this; }
+        public Builder cacheFile(String val){ cacheFile = val; return this; }
+        public Builder voteWindow(int val)  { voteWindow = val; return this; }
+        public Builder history(int val)     { history = val; return this; }
+        public Builder historyDir(String val){ historyDir = val; return this; }
+        public Builder session(String val)  { session = val; return this; }
+        public Builder sessionFormat(SessionRecorder.Format val) { sessionFormat = val; return this; }
+        public Builder shared(String val)   { shared = val; return this; }
+        public Builder worker(int index, int count) { workerIndex = index; workerCount = count; return this; }
+        public Builder latencyTarget(double val) { latencyTarget = val; return this; }
         
         /**
          * CvMainのインスタンスを生成する
@@ -68,6 +151,8 @@ public class CvMain implements AnalyticProcessDelegate, CvControllerDelegate {
          * @since 2011/11/21
          */
         public CvMain build() {
+            // AWTのクラスが読み込まれる前に設定する
+            if (headless) System.setProperty("java.awt.headless", "true");
             return new CvMain(this);
         }
     }
@@ -79,45 +164,133 @@ public class CvMain implements AnalyticProcessDelegate, CvControllerDelegate {
      * @since 2011/11/21
      */
     private CvMain(Builder param) {
+        startTime = System.nanoTime();
+
+        // 共有メモリのフレーム（キャプチャは別プロセス）
+        if (param.shared != null) {
+            try {
+                sharedSource = new SharedFrameSource(SharedFrameRing.open(new File(param.shared)), param.workerIndex, param.workerCount, this);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot open shared frame ring, capture from camera", e);
+            }
+        }
+
         // カメラ設定
-        capture = cvCreateCameraCapture(param.camera);
-        cvSetCaptureProperty(capture, CV_CAP_PROP_FRAME_WIDTH, param.width);
-        cvSetCaptureProperty(capture, CV_CAP_PROP_FRAME_HEIGHT, param.height);
+        if (sharedSource == null) {
+            capture = cvCreateCameraCapture(param.camera);
+            cvSetCaptureProperty(capture, CV_CAP_PROP_FRAME_WIDTH, param.width);
+            cvSetCaptureProperty(capture, CV_CAP_PROP_FRAME_HEIGHT, param.height);
+        }
         
         // デバッグ用設定
-        debug = param.debug;
+        headless = param.headless;
+        debug = param.debug && !headless;
         if (debug) {
+            view = new CvDebugView(this);
             createCanvas("Source");
             createCanvas("Hough");
             createCanvas("ROI View");
-            
-            cController = CvController.getInstance();
-            cController.setDelegate(this);
-            cController.setVisible(true);
+            view.setVisible(true);
         }
-        _setVisible(debug);
         useDummy = param.useDummy;
+        backend = param.backend;
+        if (param.woodColor) woodDetector = new WoodColorDetector();
+        if (param.bandedLines) lineDetector = new BandedLineDetector();
+        roiDetector = woodDetector;
+        if (param.geometry != null) {
+            // 前回の盤の位置を復元し，無効な場合は色またはHough変換で検出する
+            geometryStore = new BoardGeometryStore(new File(param.geometry), woodDetector, BoardGeometryStore.DEFAULT_SAVE_INTERVAL);
+            roiDetector = geometryStore;
+            BoardGeometry g = geometryStore.getLoaded();
+            if (g != null && lineDetector != null) lineDetector.restore(g.getBandCenters());
+        }
+        if (param.occlusion) occlusion = new OcclusionDetector();
+        if (param.latencyTarget > 0) quality = new QualityController(param.latencyTarget);
+        if (param.voteWindow > 1) voter = new TemporalVoter(param.voteWindow);
+        if (param.history > 0) history = new FrameHistory(param.history, new File(param.historyDir), FrameHistory.DEFAULT_DUMP_INTERVAL);
+        stageSink = history;
+        if (param.session != null) {
+            // 処理途中の画像を書き出し，履歴の保持にも渡す
+            recorder = new SessionRecorder(new File(param.session), param.sessionFormat,
+                    SessionRecorder.DEFAULT_FPS, SessionRecorder.DEFAULT_QUEUE_SIZE, history);
+            stageSink = recorder;
+        }
+        if (param.tracking) {
+            // 盤の特徴点を追跡し，見失った場合のみ検出し直す
+            tracker = new CornerTracker(roiDetector);
+            roiDetector = tracker;
+        }
+        if (param.calibration != null) {
+            try {
+                lensCorrector = LensCorrector.load(param.calibration);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot load calibration, lens undistortion disabled", e);
+            }
+        }
+
+        // ネイティブメモリの上限[MB]（負の場合はシステムプロパティの設定に従う）
+        if (param.memoryBudget >= 0) NativeMemory.setBudget(param.memoryBudget << 20);
+
+        // 並列実行設定
+        if (param.threads > 1) tiler = new TiledExecutor(param.threads);
+
+        // 駒認識
+        if (param.templates != null) {
+            recognizer = new PieceRecognizer(new File(param.templates), Math.max(1, Runtime.getRuntime().availableProcessors()));
+            if (!recognizer.isAvailable()) {
+                recognizer.shutdown();
+                recognizer = null;
+            }
+        }
+
+        // 解析結果のキャッシュ（駒認識・補正の有無で結果が変わるため設定に含める）
+        if (param.resultCache > 0) {
+            resultCache = new ResultCache(param.resultCache, 0,
+                    backend + ",pieces=" + (recognizer != null) + ",undistort=" + (lensCorrector != null));
+            if (param.cacheFile != null) {
+                cacheFile = new File(param.cacheFile);
+                if (cacheFile.exists()) {
+                    try {
+                        resultCache.load(cacheFile);
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Cannot load result cache", e);
+                    }
+                }
+            }
+        }
+
+        // 盤面配信サーバ
+        if (param.streamPort >= 0) {
+            stateServer = new BoardStateServer(param.streamPort);
+            try {
+                stateServer.start();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot start BoardStateServer", e);
+                stateServer = null;
+            }
+        }
+
+        // 棋譜ファイル
+        if (param.gameRecord != null) {
+            try {
+                gameRecord = new GameRecordLog(new File(param.gameRecord));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot open game record file", e);
+            }
+        }
         
-        logger.log(Level.INFO, "CvMain start: camera{0} ({1}x{2}) {3}", new Object[]{param.camera, param.width, param.height, debug?"DEBUG":""});
-    }
-         
-    @Override
-    public void capture() {
-        if (cController != null) cController.clearText();
-        _print("位置推定処理スレッドを開始...");
-        Thread th = new Thread(new Runnable() {
+        // キャプチャ要求は1つのスレッドで順に処理する
+        scheduler = new CaptureScheduler(new CaptureScheduler.Handler() {
             @Override
-            public void run() {
-                try {
-                    curThread = new AnalyticProcess(useDummy?_dummyFrame():_captureFrame(), debug, CvMain.this);
-                    curThread.start();
-                    // スレッドの実行が終了するまで待機
-                    curThread.join();
-                } catch (IllegalThreadStateException e) {
-                } catch (InterruptedException e) {
-                } finally {
-                    curThread = null;
-                }
+            public AnalyticProcess prepare() throws InterruptedException {
+                awaitReady();
+                _print("位置推定処理を開始...");
+                return createCaptureProcess();
+            }
+
+            @Override
+            public void completed(AnalyticResult result) {
+                publishResult(result);
                 _print("完了\n");
 
                 _print("メモリ解放処理...");
@@ -127,53 +300,364 @@ public class CvMain implements AnalyticProcessDelegate, CvControllerDelegate {
                 _print("=== 位置推定処理終了 ===\n");
             }
         });
+        scheduler.start();
+
+        logger.log(Level.INFO, "CvMain start: camera{0} ({1}x{2}) {3}", new Object[]{param.camera, param.width, param.height, debug?"DEBUG":headless?"SERVER":""});
+
+        // 暖機運転
+        final int warmup = param.warmup;
+        Thread th = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                warmUp(warmup);
+            }
+        }, "CvMain-warmup");
+        th.setDaemon(true);
         th.start();
     }
 
+    /**
+     * ネイティブライブラリを読み込み，ダミー画像で解析処理を指定回数実行する
+     * <pre>
+     * 初回キャプチャ時のライブラリ読み込み・クラス初期化・JITコンパイルの遅延を起動時に済ませておく．
+     * 暖機運転の結果は出力しない．失敗した場合も準備完了として扱う．
+     * 盤の検出器は状態（復元した筋の位置や直前の角など）を持つため，暖機運転では専用のインスタンスを用いる．
+     * </pre>
+     * @param iterations 解析処理の実行回数
+     * @since 2011/12/11
+     */
+    private void warmUp(int iterations) {
+        try {
+            Loader.load(opencv_core.class);
+            Loader.load(opencv_imgproc.class);
+            Loader.load(opencv_highgui.class);
+            if (tracker != null) Loader.load(opencv_video.class);
+            // AnalyticProcessのstatic初期化（CvMemStorageの確保）を済ませる
+            Class.forName(AnalyticProcess.class.getName());
+
+            IplImage frame = iterations > 0 ? NativeMemory.track(NativeMemory.Category.FRAME, cvLoadImage("dummy.jpg", CV_LOAD_IMAGE_COLOR)) : null;
+            if (frame == null && iterations > 0) {
+                logger.warning("Cannot load dummy.jpg, skip warm-up iterations.");
+            } else if (frame != null) {
+                WoodColorDetector wood = woodDetector != null ? new WoodColorDetector() : null;
+                BandedLineDetector lines = lineDetector != null ? new BandedLineDetector() : null;
+                try {
+                    for (int i = 0; i < iterations && !shutdown; i++) {
+                        AnalyticProcess ap = new AnalyticProcess(frame, false, null);
+                        ap.setTiledExecutor(tiler);
+                        ap.setPieceRecognizer(recognizer);
+                        ap.setBackend(backend);
+                        // ダミー画像で保存済みの盤の位置を照合しないよう，復元は用いない
+                        ap.setRoiDetector(wood);
+                        ap.setLineDetector(lines);
+                        ap.setLensCorrector(lensCorrector);
+                        ap.start();
+                        ap.join();
+                    }
+                } finally {
+                    if (wood != null) wood.release();
+                    NativeMemory.releaseImage(frame);
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            logger.log(Level.WARNING, "Warm-up failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Warm-up failed", e);
+        } finally {
+            startupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+            ready.countDown();
+            logger.log(Level.INFO, "CvMain ready: {0} ms ({1} warm-up runs)",
+                    new Object[]{String.valueOf(startupMillis), iterations});
+        }
+    }
+
+    /**
+     * 暖機運転が完了しているかどうかを返す
+     * @return 完了している場合true
+     * @since 2011/12/11
+     */
+    public boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    /**
+     * 暖機運転が完了するまで待機する
+     * @throws InterruptedException 待機中に割り込まれた場合
+     * @since 2011/12/11
+     */
+    public void awaitReady() throws InterruptedException {
+        ready.await();
+    }
+
+    /**
+     * 暖機運転が完了するまで指定時間だけ待機する
+     * @param timeout 最大待機時間
+     * @param unit timeoutの単位
+     * @return 完了した場合true，タイムアウトした場合false
+     * @throws InterruptedException 待機中に割り込まれた場合
+     * @since 2011/12/11
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit);
+    }
+
+    /**
+     * インスタンス生成から準備完了までの時間を返す
+     * @return 起動時間[ms]．準備完了前は-1
+     * @since 2011/12/11
+     */
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+
+    /**
+     * 現在の解析の品質の段階を返す
+     * <pre>
+     * 変更の履歴と理由はログ（QualityController）に出力する．
+     * </pre>
+     * @return 品質の段階．処理時間の目標値を指定していない場合null
+     * @since 2011/12/28
+     */
+    public QualityController.Quality getQuality() {
+        return quality == null ? null : quality.getQuality();
+    }
+
+    /**
+     * 盤の特徴点の追跡に失敗してROIを検出し直したフレームの割合を返す
+     * @return 再検出率（0〜1）．追跡を用いない場合は-1
+     * @since 2011/12/20
+     */
+    public double getRedetectionRate() {
+        return tracker == null ? -1 : tracker.getRedetectionRate();
+    }
+         
     @Override
-    public void quit() {
-        curThread = null;
-        AnalyticProcess.releaseMemStorage();
-        if (_dummyPic != null) cvReleaseImage(_dummyPic);
-        disposeAllCanvas();
-        cController.dispose();
-        System.exit(0);
+    public void capture() {
+        if (shutdown) return;
+        if (sharedSource != null) {
+            logger.warning("Single capture is not available with a shared frame ring, use startPipeline.");
+            return;
+        }
+        if (NativeMemory.isOverBudget()) {
+            // 前のフレームの処理が終わらずメモリを使い切っている場合はキャプチャしない
+            NativeMemory.frameShed();
+            logger.log(Level.WARNING, "Capture skipped, native memory over budget: {0}", NativeMemory.getSummary());
+            return;
+        }
+        if (view != null) view.clearText();
+        // 解析中の要求はまとめ，古いフレームの解析は中止して最新のフレームを解析する
+        scheduler.request();
+    }
+
+    /**
+     * 最新のフレームをキャプチャし，単発の解析処理を生成する
+     * @return 解析処理
+     * @since 2011/12/29
+     */
+    private AnalyticProcess createCaptureProcess() {
+        AnalyticProcess ap = new AnalyticProcess(useDummy?_dummyFrame():_captureFrame(), debug, this);
+        ap.setTiledExecutor(tiler);
+        ap.setPieceRecognizer(recognizer);
+        ap.setBackend(backend);
+        ap.setRoiDetector(roiDetector);
+        ap.setLineDetector(lineDetector);
+        ap.setLensCorrector(lensCorrector);
+        ap.setOcclusionDetector(occlusion);
+        ap.setResultCache(resultCache);
+        ap.setStageImageSink(stageSink);
+        ap.setQualityController(quality);
+        return ap;
+    }
+
+    /**
+     * フレームを連続してキャプチャし，パイプライン実行で処理する
+     * @since 2011/12/06
+     */
+    public synchronized void startPipeline() {
+        if (pipeline != null || shutdown) return;
+        AnalyticPipeline.Builder builder;
+        if (sharedSource != null) {
+            // 結果の出力時にスロットを書き込み側に返すため，出力はSharedFrameSourceを経由する
+            builder = new AnalyticPipeline.Builder(sharedSource, sharedSource);
+        } else {
+            builder = new AnalyticPipeline.Builder(new FrameSource() {
+                @Override
+                public IplImage grab() {
+                    IplImage frame = useDummy?_dummyFrame():_captureFrame();
+                    return frame == null ? null : NativeMemory.cloneImage(NativeMemory.Category.FRAME, frame);
+                }
+            }, this);
+        }
+        pipeline = builder.tiledExecutor(tiler).pieceRecognizer(recognizer).backend(backend).roiDetector(roiDetector)
+                .lineDetector(lineDetector).lensCorrector(lensCorrector)
+                .occlusionDetector(occlusion).resultCache(resultCache).stageImageSink(stageSink).qualityController(quality).build();
+        pipeline.start();
+    }
+
+    /**
+     * パイプライン実行を停止する
+     * <pre>
+     * 処理中のフレームの結果をすべて出力してから戻る．
+     * </pre>
+     * @since 2011/12/06
+     */
+    public synchronized void stopPipeline() {
+        if (pipeline == null) return;
+        // 次のフレームを待っているキャプチャステージを終わらせる
+        if (sharedSource != null) sharedSource.close();
+        pipeline.stop();
+        pipeline = null;
     }
 
     @Override
-    public final void createCanvas(String key) {
-        logger.log(Level.INFO, "Create New CanvasFrame: {0}", key);
-        synchronized(this) {
-            if (!canvas.containsKey(key)) {
-                CanvasFrame tmp = new CanvasFrame(key);
-                tmp.setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
-                canvas.put(key, tmp);
+    public void publishResult(AnalyticResult result) {
+        logger.log(Level.FINE, "Result: {0}", result);
+        if (history != null) history.check(result);
+        // 1フレームだけのマスの揺らぎは配信・記録しない
+        if (voter != null) result = voter.apply(result);
+        if (geometryStore != null) {
+            float[] corners = tracker != null ? tracker.getCorners() : null;
+            if (corners == null && woodDetector != null) corners = woodDetector.getLastCorners();
+            geometryStore.record(result, corners, lineDetector == null ? null : lineDetector.getBandCenters());
+        }
+        if (stateServer != null) stateServer.publish(result.getFrameId(), result.getBoardState());
+        if (gameRecord != null) {
+            try {
+                gameRecord.append(result);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot append to game record file", e);
             }
         }
     }
-    
+
     /**
-     * すべてのCanvasFrameを閉じてリソースを解放する
-     * @since 2011/11/30
+     * 保持している直近のフレームをディレクトリに書き出す
+     * @return 書き出したディレクトリ．履歴を保持していないか失敗した場合null
+     * @since 2011/12/24
      */
-    private synchronized void disposeAllCanvas() {
-        logger.info("Close all CanvasFrame");
-        for (CanvasFrame cf : canvas.values()) {
-            cf.setVisible(false);
-            cf.dispose();
-        }
-        canvas.clear();
+    public File dumpHistory() {
+        return history == null ? null : history.dump("manual");
     }
-    
+
     @Override
-    public final void showImage(String key, IplImage image) {
+    public void quit() {
+        shutdown();
+        if (view != null) {
+            view.dispose();
+            System.exit(0);
+        }
+    }
+
+    /**
+     * 処理中のフレームを出力し終えてから資源を解放する
+     * <pre>
+     * 新たなキャプチャの受け付けを止め，実行中の処理の終了を待ってから
+     * ネイティブメモリ・カメラ・配信サーバなどを解放する．System.exitは呼ばない．
+     * </pre>
+     * @since 2011/12/10
+     */
+    public void shutdown() {
         synchronized(this) {
-            if (canvas.containsKey(key)) {
-                CanvasFrame f = canvas.get(key);
-                f.setSize(image.width(), image.height());
-                f.showImage(image);
+            if (shutdown) return;
+            shutdown = true;
+        }
+        logger.info("CvMain shutdown: draining in-flight frames.");
+        stopPipeline();
+
+        // 暖機運転は実行中の1回を終えたところで止まる
+        try {
+            awaitReady();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // 実行中のキャプチャ処理の終了を待機
+        scheduler.shutdown();
+        if (scheduler.getRequestCount() > 0) logger.log(Level.INFO, "Capture requests: {0}", scheduler);
+
+        if (tiler != null) tiler.shutdown();
+        if (recognizer != null) recognizer.shutdown();
+        if (woodDetector != null) {
+            logger.log(Level.INFO, "Wood color ROI: {0} hits, {1} fallbacks",
+                    new Object[]{woodDetector.getHitCount(), woodDetector.getFallbackCount()});
+            woodDetector.release();
+        }
+        if (lineDetector != null) {
+            logger.log(Level.INFO, "Banded lines: {0} estimations in {1} frames, {2} angles per point",
+                    new Object[]{lineDetector.getEstimationCount(), lineDetector.getFrameCount(), lineDetector.getAngleCount()});
+        }
+        if (lensCorrector != null) lensCorrector.release();
+        if (occlusion != null) {
+            logger.log(Level.INFO, "Occlusion: {0} occlusions, {1} frames skipped",
+                    new Object[]{occlusion.getOcclusionCount(), occlusion.getSkippedFrames()});
+            occlusion.release();
+        }
+        if (tracker != null) {
+            logger.log(Level.INFO, "Corner tracking: {0} redetections in {1} frames ({2})",
+                    new Object[]{tracker.getRedetectionCount(), tracker.getFrameCount(), String.format("%.1f%%", tracker.getRedetectionRate() * 100)});
+            tracker.release();
+        }
+        if (geometryStore != null) {
+            geometryStore.save();
+            logger.log(Level.INFO, "Board geometry: restored ROI used for {0} frames", geometryStore.getRestoredFrames());
+        }
+        if (sharedSource != null) {
+            logger.log(Level.INFO, "Shared frames: {0} skipped", sharedSource.getSkippedCount());
+            sharedSource.release();
+        }
+        if (recorder != null) {
+            recorder.close();
+            logger.log(Level.INFO, "Session recording: {0} images recorded, {1} dropped",
+                    new Object[]{recorder.getRecordedCount(), recorder.getDroppedCount()});
+        }
+        if (history != null) {
+            logger.log(Level.INFO, "Frame history: {0} anomalies, {1} dumps",
+                    new Object[]{history.getAnomalyCount(), history.getDumpCount()});
+            history.release();
+        }
+        if (voter != null) logger.log(Level.INFO, "Temporal voting: {0}", voter);
+        if (quality != null) logger.log(Level.INFO, "Quality control: {0}", quality);
+        if (resultCache != null) {
+            logger.log(Level.INFO, "Result cache: {0}", resultCache);
+            if (cacheFile != null) {
+                try {
+                    resultCache.save(cacheFile);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Cannot save result cache", e);
+                }
             }
+            resultCache.release();
+        }
+        if (stateServer != null) stateServer.stop();
+        if (gameRecord != null) gameRecord.close();
+        PipelineTrace.stop();
+        AnalyticProcess.releaseMemStorage();
+        if (_dummyPic != null) {
+            NativeMemory.releaseImage(_dummyPic);
+            _dummyPic = null;
         }
+        if (capture != null) {
+            cvReleaseCapture(capture);
+            capture = null;
+        }
+        logger.log(Level.INFO, "CvMain shutdown completed: {0}", NativeMemory.getSummary());
+    }
+
+    @Override
+    public final void createCanvas(String key) {
+        if (view != null) view.createCanvas(key);
+    }
+
+    @Override
+    public final void showImage(String key, IplImage image) {
+        if (view != null) view.showImage(key, image);
+    }
+
+    @Override
+    public void addText(String str) {
+        if (view != null) view.addText(str);
     }
 
     /**
@@ -203,34 +687,127 @@ public class CvMain implements AnalyticProcessDelegate, CvControllerDelegate {
      */
     private IplImage _dummyFrame() {
         if (_dummyPic == null) {
-            _dummyPic = cvLoadImage("dummy.jpg", CV_LOAD_IMAGE_COLOR);
+            _dummyPic = NativeMemory.track(NativeMemory.Category.FRAME, cvLoadImage("dummy.jpg", CV_LOAD_IMAGE_COLOR));
         }
         showImage("Source", _dummyPic);
         return _dummyPic;
     }
     
-    /**
-     * デバッグ用CanvasFrameの表示/非表示を切り替える
-     * @param b 表示/非表示
-     * @since 2011/11/21
-     */
-    private void _setVisible(boolean b) {
-        for (CanvasFrame f : canvas.values()) {
-            f.setVisible(b);
-        }
-    }
-    
     /**
      * デバッグ用出力関数
      * @param str 出力文字列
      * @since 2011/12/01
      */
     private void _print(String str) {
-        if (cController != null) cController.addText(str);
-        else System.out.print(str);
+        if (view != null) view.addText(str);
+        else if (!headless) System.out.print(str);
+        else if (logger.isLoggable(Level.FINE)) logger.fine(str.trim());
     }
     
+    /**
+     * エントリポイント
+     * <pre>
+     * 引数なしの場合はデバッグウインドウ付きでダミー画像を処理する．
+     * <blockquote>
+     * -server          サーバモード（ヘッドレス・連続処理）で起動する
+     * -camera N        カメラのインデックス
+     * -dummy           カメラの代わりにダミー画像を用いる
+     * -stream PORT     盤面配信サーバを起動する
+     * -record FILE     棋譜ファイルに記録する
+     * -threads N       ストリップ分割の並列数
+     * -warmup N        起動時の暖機運転の回数
+     * -budget MB       ネイティブメモリの上限
+     * -templates DIR   駒のテンプレート画像のディレクトリ（指定した場合は駒を認識する）
+     * -java            画像処理にJavaによる実装を用いる
+     * -wood            盤の色によるROI検出を用いる（確信度が低い場合はHough変換）
+     * -banded          Hough変換の投票を格子線の向きに限定する
+     * -undistort FILE  LensCorrectorで保存した校正ファイルでROI領域の歪みを補正する
+     * -geometry FILE   盤の位置を保存し，次回の起動時に復元する
+     * -track           盤の特徴点をLucas-Kanade法で追跡し，見失った場合のみROIを検出し直す
+     * -occlusion       手などで盤が遮蔽されている間はマス検出・駒認識を行わない
+     * -cache N         知覚ハッシュが一致するフレームの解析結果をN件まで再利用する
+     * -cachefile FILE  解析結果のキャッシュを保存し，次回の起動時に読み込む
+     * -vote N          直近Nフレームの過半数で一致したときのみマスの状態を切り替える
+     * -history N       直近Nフレームの元画像・処理途中の画像を保持し，異常時に書き出す
+     * -historydir DIR  保持した画像の書き出し先（既定はhistory）
+     * -session DIR     元画像・処理途中の画像をMotion JPEGの動画として書き出す
+     * -sessionimages   -sessionで動画の代わりに連番のJPEG画像として書き出す
+     * -shared FILE     カメラの代わりにSharedFrameRingのリングファイルからフレームを読み出す
+     * -worker K/N      -sharedでN個の解析プロセスのうちK番目（0から）としてフレームを分担する
+     * -latency MS      処理時間がMSミリ秒を超える間は解析の品質を段階的に下げる
+     * </blockquote>
+     * </pre>
+     * @param args コマンドライン引数
+     */
     public static void main(String[] args) {
-        new CvMain.Builder(0).debug(true).useDummy(true).build();
+        if (args.length == 0) {
+            new CvMain.Builder(0).debug(true).useDummy(true).build();
+            return;
+        }
+
+        boolean server = false;
+        int camera = 0;
+        boolean dummy = false, java = false, wood = false, banded = false, track = false, occluded = false, sessionImages = false;
+        int port = -1, threads = 1, warmup = 3, cache = 0, vote = 0, historyFrames = 0;
+        long budget = -1;
+        String record = null, templates = null, calibration = null, geometry = null, cacheFile = null, historyDir = "history", session = null, shared = null;
+        int workerIndex = 0, workerCount = 1;
+        double latency = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-server")) server = true;
+            else if (args[i].equals("-dummy")) dummy = true;
+            else if (args[i].equals("-java")) java = true;
+            else if (args[i].equals("-wood")) wood = true;
+            else if (args[i].equals("-banded")) banded = true;
+            else if (args[i].equals("-track")) track = true;
+            else if (args[i].equals("-occlusion")) occluded = true;
+            else if (args[i].equals("-sessionimages")) sessionImages = true;
+            else if (args[i].equals("-camera") && i+1 < args.length) camera = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-stream") && i+1 < args.length) port = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-record") && i+1 < args.length) record = args[++i];
+            else if (args[i].equals("-threads") && i+1 < args.length) threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-warmup") && i+1 < args.length) warmup = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-budget") && i+1 < args.length) budget = Long.parseLong(args[++i]);
+            else if (args[i].equals("-templates") && i+1 < args.length) templates = args[++i];
+            else if (args[i].equals("-undistort") && i+1 < args.length) calibration = args[++i];
+            else if (args[i].equals("-geometry") && i+1 < args.length) geometry = args[++i];
+            else if (args[i].equals("-cache") && i+1 < args.length) cache = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-cachefile") && i+1 < args.length) cacheFile = args[++i];
+            else if (args[i].equals("-vote") && i+1 < args.length) vote = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-history") && i+1 < args.length) historyFrames = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-historydir") && i+1 < args.length) historyDir = args[++i];
+            else if (args[i].equals("-session") && i+1 < args.length) session = args[++i];
+            else if (args[i].equals("-shared") && i+1 < args.length) shared = args[++i];
+            else if (args[i].equals("-latency") && i+1 < args.length) latency = Double.parseDouble(args[++i]);
+            else if (args[i].equals("-worker") && i+1 < args.length) {
+                String[] w = args[++i].split("/");
+                workerIndex = Integer.parseInt(w[0]);
+                workerCount = w.length > 1 ? Integer.parseInt(w[1]) : 1;
+            }
+        }
+
+        final CvMain main = new CvMain.Builder(camera).headless(server).debug(!server).useDummy(dummy)
+                .streamPort(port).gameRecord(record).threads(threads).warmup(warmup).memoryBudget(budget).templates(templates)
+                .backend(java ? AnalyticProcess.Backend.JAVA : AnalyticProcess.Backend.OPENCV).woodColor(wood).bandedLines(banded).calibration(calibration)
+                .geometry(geometry).tracking(track).occlusion(occluded)
+                .resultCache(cache).cacheFile(cacheFile).voteWindow(vote)
+                .history(historyFrames).historyDir(historyDir)
+                .session(session).sessionFormat(sessionImages ? SessionRecorder.Format.IMAGES : SessionRecorder.Format.MJPEG)
+                .shared(shared).worker(workerIndex, workerCount).latencyTarget(latency).build();
+        if (server) {
+            // SIGTERMなどでの終了時にも処理中のフレームを出力してから終了する
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    main.shutdown();
+                }
+            }, "CvMain-shutdown"));
+            try {
+                main.awaitReady();
+            } catch (InterruptedException e) {
+                return;
+            }
+            main.startPipeline();
+        }
     }
 }
@@ -0,0 +1,223 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+import static com.googlecode.javacv.cpp.opencv_highgui.*;
+
+/**
+ * 直近のフレームと処理途中の画像をネイティブメモリのリングバッファに保持し，誤検出の後から調べられるようにするクラス
+ * <pre>
+ * 画像の名前（"Source"，"Hough"，"ROI View"など）ごとにcapacity枚の画像を最初の受け取り時に確保し，
+ * 以降はcvCopyで上書きするだけでメモリの確保は行わない．1チャンネルの画像は3チャンネルに変換して保持する．
+ * 各名前の画像の大きさは最初に受け取った画像と"Source"の大きさの大きい方とし，それを超える画像は左上を切り出して保持する．
+ * 保持した画像はdumpで（またはcheckが異常と判定した場合に自動で）ディレクトリに書き出す．
+ * 確保したメモリはNativeMemoryのHISTORYに計上されるため，上限を設定する場合はその分を含めること．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/24
+ */
+public class FrameHistory implements StageImageSink {
+    /** 保持する画像の名前の最大数 */
+    public static final int MAX_KEYS = 8;
+    /** 異常とみなすマス目の数の変化 */
+    public static final int ANOMALY_SQUARE_DELTA = 20;
+    /** 異常とみなすROIの面積の変化の割合 */
+    public static final double ANOMALY_AREA_RATIO = 0.5;
+    /** 自動で書き出す最小の間隔[ms] */
+    public static final long DEFAULT_DUMP_INTERVAL = 60 * 1000;
+
+    private static final Logger logger;
+    private final int capacity;
+    private final File dir;
+    private final long dumpInterval;
+    private final Track[] tracks = new Track[MAX_KEYS];
+    private int trackCount = 0;
+    private int frameWidth = 0, frameHeight = 0;
+    private int lastSquares = -1;
+    private long lastArea = -1;
+    private long lastDump = 0;
+    private long dumps = 0, anomalies = 0;
+
+    static {
+        logger = Logger.getLogger(FrameHistory.class.getName());
+    }
+
+    /** 名前ごとのリングバッファ */
+    private static class Track {
+        final String key;
+        final IplImage[] slots;
+        final long[] ids;
+        final int[] widths, heights;
+        int head = 0, count = 0;
+
+        Track(String key, int capacity) {
+            this.key = key;
+            slots = new IplImage[capacity];
+            ids = new long[capacity];
+            widths = new int[capacity];
+            heights = new int[capacity];
+        }
+    }
+
+    /**
+     * インスタンスを生成する
+     * @param capacity 名前ごとに保持する画像の数
+     * @param dir 書き出し先のディレクトリ
+     * @param dumpInterval 異常時に自動で書き出す最小の間隔[ms]
+     * @since 2011/12/24
+     */
+    public FrameHistory(int capacity, File dir, long dumpInterval) {
+        this.capacity = Math.max(1, capacity);
+        this.dir = dir;
+        this.dumpInterval = dumpInterval;
+    }
+
+    @Override
+    public synchronized void stageImage(long frameId, String key, IplImage image) {
+        if (image == null || image.isNull()) return;
+        if ("Source".equals(key)) {
+            frameWidth = Math.max(frameWidth, image.width());
+            frameHeight = Math.max(frameHeight, image.height());
+        }
+        Track t = track(key, image);
+        if (t == null) return;
+
+        int slot = t.head;
+        IplImage dst = t.slots[slot];
+        if (dst == null) {
+            dst = NativeMemory.createImage(NativeMemory.Category.HISTORY,
+                    cvSize(Math.max(image.width(), frameWidth), Math.max(image.height(), frameHeight)), IPL_DEPTH_8U, 3);
+            t.slots[slot] = dst;
+        }
+        int w = Math.min(image.width(), dst.width()), h = Math.min(image.height(), dst.height());
+        CvRect rect = cvRect(0, 0, w, h);
+        cvSetImageROI(dst, rect);
+        // 入力画像は他のスレッドも参照するためROIを設定せず，切り出しはヘッダで行う
+        CvArr src = w != image.width() || h != image.height() ? cvGetSubRect(image, new CvMat(), rect) : image;
+        if (image.nChannels() == 1) cvCvtColor(src, dst, CV_GRAY2BGR);
+        else cvCopy(src, dst);
+        cvResetImageROI(dst);
+
+        t.ids[slot] = frameId;
+        t.widths[slot] = w;
+        t.heights[slot] = h;
+        t.head = (slot + 1) % capacity;
+        if (t.count < capacity) t.count++;
+    }
+
+    /**
+     * 名前に対応するリングバッファを返す
+     * @return リングバッファ．名前の数が上限に達しているか保持できない画像の場合null
+     */
+    private Track track(String key, IplImage image) {
+        for (int i = 0; i < trackCount; i++) {
+            if (tracks[i].key.equals(key)) return tracks[i];
+        }
+        if (trackCount == MAX_KEYS || image.depth() != IPL_DEPTH_8U || (image.nChannels() != 1 && image.nChannels() != 3)) return null;
+        Track t = new Track(key, capacity);
+        tracks[trackCount++] = t;
+        return t;
+    }
+
+    /**
+     * 処理結果を調べ，異常な場合は保持している画像を書き出す
+     * <pre>
+     * 前回の有効な結果からマス目の数がANOMALY_SQUARE_DELTA以上，またはROIの面積がANOMALY_AREA_RATIO以上変化した場合を異常とする．
+     * 書き出しは前回からdumpInterval以上経過している場合のみ行う．
+     * </pre>
+     * @param result 処理結果
+     * @return 書き出した場合true
+     * @since 2011/12/24
+     */
+    public boolean check(AnalyticResult result) {
+        if (!result.isValid()) return false;
+        String reason = null;
+        synchronized (this) {
+            int squares = result.getSquareCount();
+            long area = (long)result.getRoiWidth() * result.getRoiHeight();
+            if (lastSquares >= 0 && Math.abs(squares - lastSquares) >= ANOMALY_SQUARE_DELTA) {
+                reason = "squares" + lastSquares + "to" + squares;
+            } else if (lastArea > 0 && Math.abs(area - lastArea) >= lastArea * ANOMALY_AREA_RATIO) {
+                reason = "roi" + lastArea + "to" + area;
+            }
+            lastSquares = squares;
+            lastArea = area;
+            if (reason == null) return false;
+            anomalies++;
+            if (System.currentTimeMillis() - lastDump < dumpInterval) return false;
+        }
+        logger.log(Level.INFO, "Anomaly at frame {0} ({1}), dumping frame history", new Object[]{result.getFrameId(), reason});
+        return dump(reason) != null;
+    }
+
+    /**
+     * 保持している画像をディレクトリに書き出す
+     * <pre>
+     * dirの下に時刻と理由を名前とするディレクトリを作り，「フレーム番号-名前.png」として古い順に書き出す．
+     * 書き出しの間はstageImageを待たせる．
+     * </pre>
+     * @param reason 書き出しの理由（ディレクトリ名に用いる）
+     * @return 書き出したディレクトリ．失敗した場合null
+     * @since 2011/12/24
+     */
+    public synchronized File dump(String reason) {
+        lastDump = System.currentTimeMillis();
+        File out = new File(dir, new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(lastDump))
+                + "-" + reason.replaceAll("[^0-9A-Za-z_.-]", "_"));
+        if (!out.mkdirs()) {
+            logger.log(Level.WARNING, "Cannot create frame history directory: {0}", out);
+            return null;
+        }
+        int written = 0;
+        for (int i = 0; i < trackCount; i++) {
+            Track t = tracks[i];
+            String name = t.key.replaceAll("[^0-9A-Za-z_.-]", "_");
+            for (int n = 0; n < t.count; n++) {
+                int slot = (t.head - t.count + n + capacity) % capacity;
+                IplImage img = t.slots[slot];
+                cvSetImageROI(img, cvRect(0, 0, t.widths[slot], t.heights[slot]));
+                File f = new File(out, String.format("%08d-%s.png", t.ids[slot], name));
+                if (cvSaveImage(f.getPath(), img) != 0) written++;
+                cvResetImageROI(img);
+            }
+        }
+        dumps++;
+        logger.log(Level.INFO, "Dumped {0} images to {1}", new Object[]{written, out});
+        return out;
+    }
+
+    /**
+     * 異常と判定した回数を返す
+     * @return 回数
+     * @since 2011/12/24
+     */
+    public synchronized long getAnomalyCount() {
+        return anomalies;
+    }
+
+    /**
+     * 書き出した回数を返す
+     * @return 回数
+     * @since 2011/12/24
+     */
+    public synchronized long getDumpCount() {
+        return dumps;
+    }
+
+    /**
+     * 保持している画像を解放する
+     * @since 2011/12/24
+     */
+    public synchronized void release() {
+        for (int i = 0; i < trackCount; i++) {
+            for (IplImage img : tracks[i].slots) NativeMemory.releaseImage(img);
+            tracks[i] = null;
+        }
+        trackCount = 0;
+    }
+}
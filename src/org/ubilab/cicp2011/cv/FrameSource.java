@@ -0,0 +1,20 @@
+package org.ubilab.cicp2011.cv;
+
+import static com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * AnalyticPipelineへフレームを供給するインターフェース
+ * @author atsushi-o
+ * @since 2011/12/06
+ */
+public interface FrameSource {
+    /**
+     * 次のフレームを取得する
+     * <pre>
+     * 返されたフレームの所有権は呼び出し側に移り，処理後にcvReleaseImageで解放される．
+     * </pre>
+     * @return 取得したフレーム．これ以上フレームがない場合はnull
+     * @since 2011/12/06
+     */
+    public IplImage grab();
+}
@@ -0,0 +1,419 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.zip.CRC32;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * 盤面と推定した指し手を記録する追記専用の棋譜ファイル
+ * <pre>
+ * ファイルをメモリマップし，盤面が変化するたびに固定長のレコードを追記する．
+ * レコードは一時バッファで組み立ててから末尾にCRC32を書き込むため，書き込み途中で
+ * プロセスが落ちても，開き直したときにCRCが一致する最後のレコードまでを有効として復旧する．
+ * メモリマップの書き出し順は保証されないため，壊れたレコードの後ろに以前のセッションのレコードが
+ * 残っている場合がある．ファイルを開くたびにヘッダの世代番号を1つ進めて各レコードに書き込み，
+ * 世代番号が前のレコードより小さいレコード以降は古いセッションの残骸として捨てる．
+ * 手数はレコード番号と一致するため，任意の手数の盤面を直接読み出せる．
+ *
+ * ファイル形式（ビッグエンディアン）
+ * <blockquote>
+ * ヘッダ（64バイト）: int マジック, int バージョン, int レコード長, int 世代番号, long 作成時刻
+ * レコード（128バイト）:
+ *   long 時刻[ms], long フレーム番号, int 手数,
+ *   byte 移動元マス, byte 移動先マス, byte 移動先の状態, byte 予約,
+ *   byte[81] 全マスの状態, 予約, int 世代番号, 予約, int CRC32（先頭124バイト）
+ * </blockquote>
+ * マスが特定できない場合の移動元・移動先は-1とする．
+ * 記録した棋譜は
+ * <blockquote>
+ * java org.ubilab.cicp2011.cv.GameRecordLog game.kif [-board]
+ * </blockquote>
+ * でテキストとして出力できる．出力は読み出し専用で開くため，記録中のファイルにも使える．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/09
+ */
+public class GameRecordLog {
+    /** ヘッダのバイト数 */
+    public static final int HEADER_SIZE = 64;
+    /** レコードのバイト数 */
+    public static final int RECORD_SIZE = 128;
+
+    private static final int MAGIC = 0x4b494655; // "KIFU"
+    private static final int VERSION = 2;
+    private static final int OFF_TIME   = 0;
+    private static final int OFF_FRAME  = 8;
+    private static final int OFF_MOVE   = 16;
+    private static final int OFF_FROM   = 20;
+    private static final int OFF_TO     = 21;
+    private static final int OFF_PIECE  = 22;
+    private static final int OFF_CELLS  = 24;
+    private static final int OFF_GEN    = 108;
+    private static final int OFF_CRC    = RECORD_SIZE - 4;
+    /** ファイルを拡張する単位（レコード数） */
+    private static final int GROW_RECORDS = 4096;
+    /** ヘッダ内の世代番号の位置 */
+    private static final int HEADER_OFF_GEN = 12;
+    private static final String[] RANKS = {"一", "二", "三", "四", "五", "六", "七", "八", "九"};
+
+    private static final Logger logger;
+    private final File file;
+    private final boolean readOnly;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private final byte[] scratch = new byte[RECORD_SIZE];
+    private final byte[] lastCells = new byte[BoardState.CELLS];
+    private MappedByteBuffer map;
+    private final int generation;
+    private int capacity;
+    private int count;
+
+    static {
+        logger = Logger.getLogger(GameRecordLog.class.getName());
+    }
+
+    /**
+     * 1手分のレコード
+     * <pre>
+     * readで内容を上書きして使い回す．
+     * </pre>
+     * @since 2011/12/09
+     */
+    public static class Entry {
+        public long timestamp;
+        public long frameId;
+        public int moveNumber;
+        public int from;
+        public int to;
+        public byte piece;
+        public final byte[] cells = new byte[BoardState.CELLS];
+    }
+
+    /**
+     * 棋譜ファイルを開く
+     * <pre>
+     * ファイルが存在しない場合は新規に作成する．
+     * 存在する場合は有効なレコードの末尾から追記する．
+     * 追記するレコードの世代番号はファイルに記録された世代番号の次とする．
+     * </pre>
+     * @param file 棋譜ファイル
+     * @throws IOException ファイルを開けない場合，または棋譜ファイルでない場合
+     * @since 2011/12/09
+     */
+    public GameRecordLog(File file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * 棋譜ファイルを開く
+     * <pre>
+     * 読み出し専用の場合はファイルを一切変更しない（世代番号を進めず，閉じるときに切り詰めない）．
+     * 別のプロセスが記録中のファイルも開ける．その時点でCRCが一致する最後のレコードまでを読み出す．
+     * </pre>
+     * @param file 棋譜ファイル
+     * @param readOnly 読み出し専用で開く場合true
+     * @throws IOException ファイルを開けない場合，または棋譜ファイルでない場合
+     * @since 2011/12/30
+     */
+    public GameRecordLog(File file, boolean readOnly) throws IOException {
+        this.file = file;
+        this.readOnly = readOnly;
+        raf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+        channel = raf.getChannel();
+
+        if (readOnly && raf.length() < HEADER_SIZE) {
+            channel.close();
+            raf.close();
+            throw new IOException("Not a game record file: " + file);
+        } else if (raf.length() < HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0).putLong(System.currentTimeMillis());
+            header.rewind();
+            channel.write(header, 0);
+            generation = 1;
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getInt() != RECORD_SIZE) {
+                channel.close();
+                raf.close();
+                throw new IOException("Not a game record file: " + file);
+            }
+            generation = header.getInt() + 1;
+        }
+        int existing = (int)((raf.length() - HEADER_SIZE) / RECORD_SIZE);
+        if (readOnly) {
+            // 記録中のセッションのレコードはヘッダの世代番号と同じなので，次の世代番号を上限として復旧する
+            capacity = existing;
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + (long)existing * RECORD_SIZE);
+        } else {
+            // 世代番号はレコードより先にディスクへ書き出し，同じ番号が2つのセッションで使われないようにする
+            ByteBuffer gen = ByteBuffer.allocate(4);
+            gen.putInt(generation).flip();
+            channel.write(gen, HEADER_OFF_GEN);
+            channel.force(false);
+            remap(Math.max(existing, GROW_RECORDS));
+        }
+        count = recover(existing);
+        if (count > 0) {
+            readCells(count - 1, lastCells);
+        }
+        logger.log(Level.INFO, "GameRecordLog open: {0} ({1} records)", new Object[]{file, String.valueOf(count)});
+    }
+
+    /**
+     * 指定したレコード数を格納できるようにマップし直す
+     * @param records 格納するレコード数
+     * @since 2011/12/09
+     */
+    private void remap(int records) throws IOException {
+        capacity = records;
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)capacity * RECORD_SIZE);
+    }
+
+    /**
+     * CRCが一致し，世代番号が減少しない連続したレコード数を数える
+     * @param existing ファイル上のレコード数
+     * @return 有効なレコード数
+     * @since 2011/12/09
+     */
+    private int recover(int existing) {
+        int valid = 0, prevGen = 0;
+        while (valid < existing && isValid(valid)) {
+            int gen = map.getInt(HEADER_SIZE + valid * RECORD_SIZE + OFF_GEN);
+            // 後のセッションが上書きしたレコードより後ろは，それ以前のセッションの残骸
+            if (gen < prevGen || gen >= generation) break;
+            prevGen = gen;
+            valid++;
+        }
+        if (valid < existing) {
+            logger.log(Level.WARNING, "GameRecordLog {0}: discard {1} broken or unused records after move {2}",
+                    new Object[]{file, String.valueOf(existing - valid), String.valueOf(valid)});
+        }
+        return valid;
+    }
+
+    /**
+     * レコードのCRCを検証する
+     * @param index レコード番号
+     * @return CRCが一致する場合true
+     * @since 2011/12/09
+     */
+    private boolean isValid(int index) {
+        int off = HEADER_SIZE + index * RECORD_SIZE;
+        for (int i = 0; i < RECORD_SIZE; i++) scratch[i] = map.get(off + i);
+        crc.reset();
+        crc.update(scratch, 0, OFF_CRC);
+        int stored = ((scratch[OFF_CRC] & 0xff) << 24) | ((scratch[OFF_CRC+1] & 0xff) << 16)
+                | ((scratch[OFF_CRC+2] & 0xff) << 8) | (scratch[OFF_CRC+3] & 0xff);
+        return stored == (int)crc.getValue() && map.getInt(off + OFF_MOVE) == index;
+    }
+
+    /**
+     * 処理結果の盤面が前回の記録から変化していればレコードを追記する
+     * @param result 処理結果
+     * @return 追記した場合true
+     * @throws IOException ファイルの拡張に失敗した場合
+     * @since 2011/12/09
+     */
+    public boolean append(AnalyticResult result) throws IOException {
+        BoardState state = result.getBoardState();
+        if (state == null) return false;
+        return append(System.currentTimeMillis(), result.getFrameId(), state);
+    }
+
+    /**
+     * 盤面が前回の記録から変化していればレコードを追記する
+     * @param timestamp 時刻[ms]
+     * @param frameId フレーム番号
+     * @param state 盤面
+     * @return 追記した場合true
+     * @throws IOException ファイルの拡張に失敗した場合
+     * @throws IllegalStateException 読み出し専用で開いた場合
+     * @since 2011/12/09
+     */
+    public synchronized boolean append(long timestamp, long frameId, BoardState state) throws IOException {
+        if (readOnly) throw new IllegalStateException("Opened read-only");
+        boolean changed = count == 0;
+        int from = -1, to = -1;
+        for (int i = 0; i < BoardState.CELLS; i++) {
+            byte v = state.get(i);
+            if (v == lastCells[i]) continue;
+            changed = true;
+            if (v == BoardState.EMPTY) from = from == -1 ? i : -2;
+            else to = to == -1 ? i : -2;
+        }
+        if (!changed) return false;
+        // 移動元・移動先が複数ある場合は特定できない
+        if (from < -1) from = -1;
+        if (to < -1) to = -1;
+        if (count == 0) from = to = -1;
+
+        if (count >= capacity) remap(capacity + GROW_RECORDS);
+
+        // レコードを組み立ててから一括で書き込む
+        putLong(scratch, OFF_TIME, timestamp);
+        putLong(scratch, OFF_FRAME, frameId);
+        putInt(scratch, OFF_MOVE, count);
+        scratch[OFF_FROM] = (byte)from;
+        scratch[OFF_TO] = (byte)to;
+        scratch[OFF_PIECE] = to >= 0 ? state.get(to) : 0;
+        scratch[OFF_PIECE+1] = 0;
+        state.copyTo(scratch, OFF_CELLS);
+        for (int i = OFF_CELLS + BoardState.CELLS; i < OFF_CRC; i++) scratch[i] = 0;
+        putInt(scratch, OFF_GEN, generation);
+        crc.reset();
+        crc.update(scratch, 0, OFF_CRC);
+        putInt(scratch, OFF_CRC, (int)crc.getValue());
+
+        int off = HEADER_SIZE + count * RECORD_SIZE;
+        map.position(off);
+        map.put(scratch, 0, OFF_CRC);
+        // CRCを最後に書き込むことでレコードを確定させる
+        map.putInt(off + OFF_CRC, getInt(scratch, OFF_CRC));
+
+        state.copyTo(lastCells, 0);
+        count++;
+        return true;
+    }
+
+    /**
+     * 記録されているレコード数（最終手数+1）を返す
+     * @return レコード数
+     * @since 2011/12/09
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * 指定した手数のレコードを読み出す
+     * @param moveNumber 手数（0が最初に記録した盤面）
+     * @param entry 読み出し先
+     * @return 読み出し先のentry
+     * @throws IndexOutOfBoundsException 手数が記録の範囲外の場合
+     * @since 2011/12/09
+     */
+    public synchronized Entry read(int moveNumber, Entry entry) {
+        if (moveNumber < 0 || moveNumber >= count) throw new IndexOutOfBoundsException("move " + moveNumber);
+        int off = HEADER_SIZE + moveNumber * RECORD_SIZE;
+        entry.timestamp = map.getLong(off + OFF_TIME);
+        entry.frameId = map.getLong(off + OFF_FRAME);
+        entry.moveNumber = map.getInt(off + OFF_MOVE);
+        entry.from = map.get(off + OFF_FROM);
+        entry.to = map.get(off + OFF_TO);
+        entry.piece = map.get(off + OFF_PIECE);
+        readCells(moveNumber, entry.cells);
+        return entry;
+    }
+
+    /**
+     * 指定した手数の盤面を読み出す
+     * @param moveNumber 手数
+     * @param dst 読み出し先（81要素）
+     * @since 2011/12/09
+     */
+    private void readCells(int moveNumber, byte[] dst) {
+        int off = HEADER_SIZE + moveNumber * RECORD_SIZE + OFF_CELLS;
+        for (int i = 0; i < BoardState.CELLS; i++) dst[i] = map.get(off + i);
+    }
+
+    /**
+     * マップした内容をディスクへ書き出す
+     * @since 2011/12/09
+     */
+    public synchronized void sync() {
+        if (!readOnly) map.force();
+    }
+
+    /**
+     * 棋譜ファイルを閉じる
+     * <pre>
+     * 未使用の領域を切り詰めてから閉じる．読み出し専用の場合は切り詰めない．
+     * </pre>
+     * @since 2011/12/09
+     */
+    public synchronized void close() {
+        if (readOnly) {
+            map = null;
+            try {
+                channel.close();
+                raf.close();
+            } catch (IOException e) {
+            }
+            return;
+        }
+        try {
+            map.force();
+            map = null;
+            channel.truncate(HEADER_SIZE + (long)count * RECORD_SIZE);
+        } catch (IOException e) {
+            // マップ中は切り詰められない環境がある．次回のオープン時に復旧される
+            logger.log(Level.FINE, "Cannot truncate game record file", e);
+        } finally {
+            try {
+                channel.close();
+                raf.close();
+            } catch (IOException e) {
+            }
+        }
+        logger.log(Level.INFO, "GameRecordLog close: {0} ({1} records)", new Object[]{file, String.valueOf(count)});
+    }
+
+    /**
+     * マス番号を棋譜の表記（筋・段）に変換する
+     * @param index マス番号．負の場合は不明
+     * @return 「７六」形式の文字列
+     * @since 2011/12/09
+     */
+    public static String cellName(int index) {
+        if (index < 0 || index >= BoardState.CELLS) return "??";
+        int col = index % BoardState.SIZE, row = index / BoardState.SIZE;
+        return (BoardState.SIZE - col) + RANKS[row];
+    }
+
+    private static void putLong(byte[] b, int off, long v) {
+        putInt(b, off, (int)(v >>> 32));
+        putInt(b, off + 4, (int)v);
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte)(v >>> 24);
+        b[off+1] = (byte)(v >>> 16);
+        b[off+2] = (byte)(v >>> 8);
+        b[off+3] = (byte)v;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off+1] & 0xff) << 16) | ((b[off+2] & 0xff) << 8) | (b[off+3] & 0xff);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: GameRecordLog <record file> [-board]");
+            return;
+        }
+        boolean board = args.length > 1 && args[1].equals("-board");
+        GameRecordLog log = new GameRecordLog(new File(args[0]), true);
+        try {
+            Entry e = new Entry();
+            for (int i = 0; i < log.size(); i++) {
+                log.read(i, e);
+                System.out.printf("%4d  %tT  frame %-8d %s -> %s%n", e.moveNumber, new Date(e.timestamp),
+                        e.frameId, cellName(e.from), cellName(e.to));
+                if (board) System.out.print(new BoardState(e.cells));
+            }
+        } finally {
+            log.close();
+        }
+    }
+}
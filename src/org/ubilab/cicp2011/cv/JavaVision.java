@@ -0,0 +1,612 @@
+package org.ubilab.cicp2011.cv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+
+/**
+ * AnalyticProcessで用いる画像処理のJava実装
+ * <pre>
+ * グレースケール変換・平滑化（CV_BLUR）・Canny・二値化・膨張・確率的Hough変換・輪郭抽出・輪郭の面積を
+ * byte配列の画像（Plane）に対して行う．JNIを経由せず，内側のループはプリミティブ配列への
+ * 単純なアクセスのみとしているためJITでインライン展開される．
+ * 各処理はOpenCV 2.3の同名の関数と同じ境界処理・丸め・判定順序に従うが，
+ * 確率的Hough変換は乱数列が異なるため検出される線分は一致しない．
+ * 計測にはJavaVisionBenchmarkを用いる．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/15
+ */
+public final class JavaVision {
+    /** Cannyの非極大抑制に用いるtan(22.5°)の固定小数点表現 */
+    private static final int CANNY_TG22 = (int)(0.4142135623730950488016887242097 * (1 << 15) + 0.5);
+    /** 輪郭追跡の8近傍（画面上で時計回り，右から） */
+    private static final int[] DX = {1, 1, 0, -1, -1, -1, 0, 1};
+    private static final int[] DY = {0, 1, 1, 1, 0, -1, -1, -1};
+
+    private JavaVision() {}
+
+    /**
+     * 1チャンネル8ビットの画像
+     * @since 2011/12/15
+     */
+    public static final class Plane {
+        public final int width;
+        public final int height;
+        public final byte[] data;
+
+        public Plane(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.data = new byte[width * height];
+        }
+    }
+
+    /**
+     * ビューをグレースケールの画像に変換する（cvCvtColor CV_RGB2GRAY）
+     * <pre>
+     * AnalyticProcessと同じく先頭チャンネルをRとして扱う．1チャンネルの場合はそのままコピーする．
+     * </pre>
+     * @param src 1または3チャンネルのビュー
+     * @return グレースケール画像
+     * @since 2011/12/15
+     */
+    public static Plane gray(PixelView src) {
+        int w = src.getWidth(), h = src.getHeight(), ch = src.getChannels();
+        if (ch != 1 && ch != 3) throw new IllegalArgumentException("Unsupported channels: " + ch);
+        Plane dst = new Plane(w, h);
+        ByteBuffer buf = src.getBuffer();
+        byte[] d = dst.data;
+        for (int y = 0; y < h; y++) {
+            int p = src.offset(0, y), q = y * w;
+            if (ch == 1) {
+                for (int x = 0; x < w; x++) d[q + x] = buf.get(p + x);
+            } else {
+                // OpenCVと同じ14ビット固定小数点の係数
+                for (int x = 0; x < w; x++, p += 3) {
+                    int r = buf.get(p) & 0xff, g = buf.get(p + 1) & 0xff, b = buf.get(p + 2) & 0xff;
+                    d[q + x] = (byte)((r * 4899 + g * 9617 + b * 1868 + (1 << 13)) >> 14);
+                }
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * 画像を1チャンネル8ビットのIplImageへ書き込む
+     * @param src 画像
+     * @param dst 書き込み先（srcと同じ大きさ）
+     * @since 2011/12/15
+     */
+    public static void copyTo(Plane src, IplImage dst) {
+        PixelView v = PixelView.of(dst);
+        if (v.getChannels() != 1 || v.getWidth() != src.width || v.getHeight() != src.height) {
+            throw new IllegalArgumentException("Destination must be a 1-channel image of the same size");
+        }
+        ByteBuffer buf = v.getBuffer();
+        for (int y = 0; y < src.height; y++) {
+            int p = v.offset(0, y), q = y * src.width;
+            for (int x = 0; x < src.width; x++) buf.put(p + x, src.data[q + x]);
+        }
+    }
+
+    /**
+     * 正規化ボックスフィルタで平滑化する（cvSmooth CV_BLUR）
+     * <pre>
+     * カーネルの中心は(ksize/2, ksize/2)，境界はcvSmoothと同じく端の画素の複製（BORDER_REPLICATE）．
+     * </pre>
+     * @param src 入力画像
+     * @param dst 出力画像（srcと同じでもよい）
+     * @param ksize カーネルサイズ
+     * @since 2011/12/15
+     */
+    public static void boxBlur(Plane src, Plane dst, int ksize) {
+        int w = src.width, h = src.height, anchor = ksize / 2;
+        // in-placeの場合は上の行を書き換える前の値が必要になるため入力を複製する
+        byte[] s = src == dst ? src.data.clone() : src.data;
+        byte[] d = dst.data;
+        double scale = 1.0 / (ksize * ksize);
+        int[] xs = new int[w * ksize];
+        for (int x = 0; x < w; x++) {
+            for (int k = 0; k < ksize; k++) xs[x * ksize + k] = replicate(x + k - anchor, w);
+        }
+        int[] col = new int[w];
+
+        for (int y = 0; y < h; y++) {
+            // 縦方向の和
+            Arrays.fill(col, 0);
+            for (int k = 0; k < ksize; k++) {
+                int r = replicate(y + k - anchor, h) * w;
+                for (int x = 0; x < w; x++) col[x] += s[r + x] & 0xff;
+            }
+            // 横方向の和
+            int q = y * w;
+            for (int x = 0; x < w; x++) {
+                int sum = 0;
+                for (int k = 0, i = x * ksize; k < ksize; k++, i++) sum += col[xs[i]];
+                d[q + x] = (byte)(int)Math.rint(sum * scale);
+            }
+        }
+    }
+
+    /**
+     * Cannyのエッジ検出を行う（cvCanny，アパーチャ3，L1ノルム）
+     * @param src 入力画像
+     * @param dst 出力画像（エッジ255，その他0．srcと同じでもよい）
+     * @param low ヒステリシスの下側閾値
+     * @param high ヒステリシスの上側閾値
+     * @since 2011/12/15
+     */
+    public static void canny(Plane src, Plane dst, double low, double high) {
+        int w = src.width, h = src.height;
+        if (low > high) {
+            double t = low;
+            low = high;
+            high = t;
+        }
+        int lo = (int)Math.floor(low), hi = (int)Math.floor(high);
+        byte[] s = src.data;
+
+        // Sobel（境界は複製）
+        short[] dx = new short[w * h], dy = new short[w * h];
+        int[] mag = new int[(w + 2) * (h + 2)];
+        int ms = w + 2;
+        for (int y = 0; y < h; y++) {
+            int r0 = Math.max(y - 1, 0) * w, r1 = y * w, r2 = Math.min(y + 1, h - 1) * w;
+            for (int x = 0; x < w; x++) {
+                int xl = Math.max(x - 1, 0), xr = Math.min(x + 1, w - 1);
+                int a = s[r0 + xl] & 0xff, b = s[r0 + x] & 0xff, c = s[r0 + xr] & 0xff;
+                int e = s[r1 + xl] & 0xff,                       f = s[r1 + xr] & 0xff;
+                int g = s[r2 + xl] & 0xff, k = s[r2 + x] & 0xff, l = s[r2 + xr] & 0xff;
+                int gx = (c + 2 * f + l) - (a + 2 * e + g);
+                int gy = (g + 2 * k + l) - (a + 2 * b + c);
+                dx[r1 + x] = (short)gx;
+                dy[r1 + x] = (short)gy;
+                mag[(y + 1) * ms + x + 1] = Math.abs(gx) + Math.abs(gy);
+            }
+        }
+
+        // 非極大抑制（0: 弱いエッジ候補, 1: エッジでない, 2: エッジ）
+        byte[] map = new byte[ms * (h + 2)];
+        Arrays.fill(map, (byte)1);
+        int[] stack = new int[Math.max(16, w * h / 8)];
+        int sp = 0;
+        for (int y = 0; y < h; y++) {
+            int mr = (y + 1) * ms + 1;
+            for (int x = 0; x < w; x++) {
+                int m = mag[mr + x];
+                int mp = mr + x;
+                if (m <= lo) continue;
+                int xs = dx[y * w + x], ys = dy[y * w + x];
+                int ax = Math.abs(xs), ay = Math.abs(ys) << 15;
+                int tg22x = ax * CANNY_TG22;
+                int tg67x = tg22x + ((ax + ax) << 15);
+                boolean peak;
+                if (ay < tg22x) {
+                    peak = m > mag[mp - 1] && m >= mag[mp + 1];
+                } else if (ay > tg67x) {
+                    peak = m > mag[mp - ms] && m >= mag[mp + ms];
+                } else {
+                    int sgn = (xs ^ ys) < 0 ? -1 : 1;
+                    peak = m > mag[mp - ms - sgn] && m > mag[mp + ms + sgn];
+                }
+                if (!peak) continue;
+                if (m > hi) {
+                    map[mp] = 2;
+                    if (sp == stack.length) stack = Arrays.copyOf(stack, sp * 2);
+                    stack[sp++] = mp;
+                } else {
+                    map[mp] = 0;
+                }
+            }
+        }
+
+        // ヒステリシス
+        while (sp > 0) {
+            int p = stack[--sp];
+            for (int k = 0; k < 8; k++) {
+                int q = p + DY[k] * ms + DX[k];
+                if (map[q] == 0) {
+                    map[q] = 2;
+                    if (sp == stack.length) stack = Arrays.copyOf(stack, sp * 2);
+                    stack[sp++] = q;
+                }
+            }
+        }
+
+        byte[] d = dst.data;
+        for (int y = 0; y < h; y++) {
+            int mr = (y + 1) * ms + 1, q = y * w;
+            for (int x = 0; x < w; x++) d[q + x] = map[mr + x] == 2 ? (byte)255 : 0;
+        }
+    }
+
+    /**
+     * 二値化する（cvThreshold CV_THRESH_BINARY）
+     * @param src 入力画像
+     * @param dst 出力画像（srcと同じでもよい）
+     * @param threshold 閾値
+     * @param max 閾値を超えた画素の値
+     * @since 2011/12/15
+     */
+    public static void threshold(Plane src, Plane dst, double threshold, int max) {
+        int th = (int)Math.floor(threshold);
+        byte[] s = src.data, d = dst.data;
+        byte m = (byte)max;
+        for (int i = 0; i < s.length; i++) d[i] = (s[i] & 0xff) > th ? m : 0;
+    }
+
+    /**
+     * 3x3の矩形カーネルで膨張する（cvDilate）
+     * @param src 入力画像
+     * @param dst 出力画像（srcと同じでもよい）
+     * @param iterations 繰り返し回数
+     * @since 2011/12/15
+     */
+    public static void dilate(Plane src, Plane dst, int iterations) {
+        int w = src.width, h = src.height;
+        byte[] cur = src.data;
+        byte[] rowMax = new byte[w * h];
+        for (int it = 0; it < iterations; it++) {
+            // 横方向の最大値
+            for (int y = 0; y < h; y++) {
+                int q = y * w;
+                for (int x = 0; x < w; x++) {
+                    int v = cur[q + x] & 0xff;
+                    if (x > 0) v = Math.max(v, cur[q + x - 1] & 0xff);
+                    if (x + 1 < w) v = Math.max(v, cur[q + x + 1] & 0xff);
+                    rowMax[q + x] = (byte)v;
+                }
+            }
+            // 縦方向の最大値
+            byte[] d = dst.data;
+            for (int y = 0; y < h; y++) {
+                int q = y * w;
+                for (int x = 0; x < w; x++) {
+                    int v = rowMax[q + x] & 0xff;
+                    if (y > 0) v = Math.max(v, rowMax[q - w + x] & 0xff);
+                    if (y + 1 < h) v = Math.max(v, rowMax[q + w + x] & 0xff);
+                    d[q + x] = (byte)v;
+                }
+            }
+            cur = d;
+        }
+        if (iterations <= 0 && src != dst) System.arraycopy(src.data, 0, dst.data, 0, src.data.length);
+    }
+
+    /**
+     * 確率的Hough変換で線分を検出する（cvHoughLines2 CV_HOUGH_PROBABILISTIC）
+     * @param src 二値画像
+     * @param rho 距離の分解能
+     * @param theta 角度の分解能[rad]
+     * @param threshold 投票数の閾値
+     * @param lineLength 線分の最小長
+     * @param lineGap 同じ線分とみなす点の最大間隔
+     * @param random 点の選択に用いる乱数
+     * @return 検出された線分の端点（x1, y1, x2, y2の繰り返し）
+     * @since 2011/12/15
+     */
+    public static int[] houghLinesP(Plane src, double rho, double theta, int threshold,
+            int lineLength, int lineGap, Random random) {
+        return houghLinesP(src, rho, theta, threshold, lineLength, lineGap, random, null);
+    }
+
+    /**
+     * 投票する角度を限定して確率的Hough変換で線分を検出する
+     * <pre>
+     * 角度はthetaを単位とした直線の法線の向き（0〜π/thetaの添字）で指定する．
+     * 1点あたりの投票と取り消しの回数が指定した角度の数に比例して減り，
+     * 指定外の向きの線分（駒の文字や背景の縁）は検出されない．
+     * </pre>
+     * @param src 二値画像
+     * @param rho 距離の分解能
+     * @param theta 角度の分解能[rad]
+     * @param threshold 投票数の閾値
+     * @param lineLength 線分の最小長
+     * @param lineGap 同じ線分とみなす点の最大間隔
+     * @param random 点の選択に用いる乱数
+     * @param angles 投票する角度の添字．nullの場合はすべての角度
+     * @return 検出された線分の端点（x1, y1, x2, y2の繰り返し）
+     * @since 2011/12/17
+     */
+    public static int[] houghLinesP(Plane src, double rho, double theta, int threshold,
+            int lineLength, int lineGap, Random random, int[] angles) {
+        final int shift = 16;
+        int w = src.width, h = src.height;
+        int numrho = (int)Math.round(((w + h) * 2 + 1) / rho);
+        int offset = (numrho - 1) / 2;
+        float irho = (float)(1 / rho);
+        if (angles == null) {
+            angles = new int[(int)Math.round(Math.PI / theta)];
+            for (int n = 0; n < angles.length; n++) angles[n] = n;
+        }
+        int numangle = angles.length;
+        float[] tcos = new float[numangle], tsin = new float[numangle];
+        for (int n = 0; n < numangle; n++) {
+            tcos[n] = (float)(Math.cos(angles[n] * theta) * irho);
+            tsin[n] = (float)(Math.sin(angles[n] * theta) * irho);
+        }
+        int[] accum = new int[numangle * numrho];
+        byte[] s = src.data;
+        byte[] mask = new byte[w * h];
+
+        // 非ゼロ画素の収集
+        int count = 0;
+        for (int i = 0; i < s.length; i++) if (s[i] != 0) count++;
+        int[] points = new int[count];
+        count = 0;
+        for (int i = 0; i < s.length; i++) {
+            if (s[i] != 0) {
+                points[count++] = i;
+                mask[i] = 1;
+            }
+        }
+
+        int[] lines = new int[64];
+        int nlines = 0;
+        int[] end = new int[4];
+        for (; count > 0; count--) {
+            // 未処理の点から無作為に1点選ぶ
+            int idx = random.nextInt(count);
+            int pt = points[idx];
+            points[idx] = points[count - 1];
+            int i = pt / w, j = pt % w;
+            if (mask[pt] == 0) continue;
+
+            // 投票
+            int maxVal = threshold - 1, maxN = 0;
+            for (int n = 0; n < numangle; n++) {
+                int r = Math.round(j * tcos[n] + i * tsin[n]) + offset;
+                int val = ++accum[n * numrho + r];
+                if (maxVal < val) {
+                    maxVal = val;
+                    maxN = n;
+                }
+            }
+            if (maxVal < threshold) continue;
+
+            // 選ばれた直線に沿って両方向へ線分の端を探す
+            float a = -tsin[maxN], b = tcos[maxN];
+            int x0 = j, y0 = i, dx0, dy0;
+            boolean xflag;
+            if (Math.abs(a) > Math.abs(b)) {
+                xflag = true;
+                dx0 = a > 0 ? 1 : -1;
+                dy0 = Math.round(b * (1 << shift) / Math.abs(a));
+                y0 = (y0 << shift) + (1 << (shift - 1));
+            } else {
+                xflag = false;
+                dy0 = b > 0 ? 1 : -1;
+                dx0 = Math.round(a * (1 << shift) / Math.abs(b));
+                x0 = (x0 << shift) + (1 << (shift - 1));
+            }
+            for (int k = 0; k < 2; k++) {
+                int gap = 0, x = x0, y = y0, dx = k == 0 ? dx0 : -dx0, dy = k == 0 ? dy0 : -dy0;
+                for (;; x += dx, y += dy) {
+                    int j1 = xflag ? x : x >> shift, i1 = xflag ? y >> shift : y;
+                    if (j1 < 0 || j1 >= w || i1 < 0 || i1 >= h) break;
+                    if (mask[i1 * w + j1] != 0) {
+                        gap = 0;
+                        end[k * 2] = j1;
+                        end[k * 2 + 1] = i1;
+                    } else if (++gap > lineGap) {
+                        break;
+                    }
+                }
+            }
+            boolean good = Math.abs(end[2] - end[0]) >= lineLength || Math.abs(end[3] - end[1]) >= lineLength;
+
+            // 線分上の点を取り除き，検出された線分であれば投票も取り消す
+            for (int k = 0; k < 2; k++) {
+                int x = x0, y = y0, dx = k == 0 ? dx0 : -dx0, dy = k == 0 ? dy0 : -dy0;
+                for (;; x += dx, y += dy) {
+                    int j1 = xflag ? x : x >> shift, i1 = xflag ? y >> shift : y;
+                    int p = i1 * w + j1;
+                    if (mask[p] != 0) {
+                        if (good) {
+                            for (int n = 0; n < numangle; n++) {
+                                int r = Math.round(j1 * tcos[n] + i1 * tsin[n]) + offset;
+                                accum[n * numrho + r]--;
+                            }
+                        }
+                        mask[p] = 0;
+                    }
+                    if (i1 == end[k * 2 + 1] && j1 == end[k * 2]) break;
+                }
+            }
+
+            if (good) {
+                if (nlines + 4 > lines.length) lines = Arrays.copyOf(lines, lines.length * 2);
+                lines[nlines++] = end[0];
+                lines[nlines++] = end[1];
+                lines[nlines++] = end[2];
+                lines[nlines++] = end[3];
+            }
+        }
+        return Arrays.copyOf(lines, nlines);
+    }
+
+    /**
+     * 二値画像の輪郭を抽出する（cvFindContours CV_RETR_LIST, CV_CHAIN_APPROX_SIMPLE）
+     * <pre>
+     * Suzukiらの境界追跡により外側の境界と穴の境界をすべて抽出し，
+     * 水平・垂直・斜めに連続する点は端点のみを残す．
+     * OpenCVと同じく画像の最外周の画素は0として扱う．入力画像は変更しない．
+     * </pre>
+     * @param src 二値画像（0以外を1とみなす）
+     * @return 輪郭ごとの点列（x, yの繰り返し）
+     * @since 2011/12/15
+     */
+    public static List<int[]> findContours(Plane src) {
+        int w = src.width, h = src.height;
+        List<int[]> contours = new ArrayList<int[]>();
+        if (w < 3 || h < 3) return contours;
+        int[] f = new int[w * h];
+        byte[] s = src.data;
+        for (int y = 1; y < h - 1; y++) {
+            for (int x = 1; x < w - 1; x++) f[y * w + x] = s[y * w + x] != 0 ? 1 : 0;
+        }
+
+        int nbd = 1;
+        int[] buf = new int[256];
+        for (int y = 1; y < h - 1; y++) {
+            for (int x = 1; x < w - 1; x++) {
+                int p = y * w + x;
+                int v = f[p];
+                int start;
+                if (v == 1 && f[p - 1] == 0) {
+                    // 外側の境界の開始点
+                    start = 4;
+                } else if (v >= 1 && f[p + 1] == 0) {
+                    // 穴の境界の開始点
+                    start = 0;
+                } else {
+                    continue;
+                }
+                nbd++;
+                buf = followBorder(f, w, x, y, start, nbd, buf);
+                contours.add(compress(buf));
+            }
+        }
+        return contours;
+    }
+
+    /**
+     * 1本の境界を追跡する
+     * @param f ラベル画像（追跡済みの画素には±nbdが書き込まれる）
+     * @param start 開始点から見て追跡を始める方向（外側の境界は左，穴の境界は右）
+     * @return 点数を先頭に格納した点列のバッファ
+     * @since 2011/12/15
+     */
+    private static int[] followBorder(int[] f, int w, int x, int y, int start, int nbd, int[] buf) {
+        int n = 0;
+        // 開始点の周囲を時計回りに探索する
+        int d1 = -1;
+        for (int k = 0; k < 8; k++) {
+            int d = (start + k) & 7;
+            if (f[(y + DY[d]) * w + x + DX[d]] != 0) {
+                d1 = d;
+                break;
+            }
+        }
+        if (d1 < 0) {
+            // 孤立点
+            f[y * w + x] = -nbd;
+            buf[0] = 1;
+            buf[1] = x;
+            buf[2] = y;
+            return buf;
+        }
+
+        int x1 = x + DX[d1], y1 = y + DY[d1];
+        int x3 = x, y3 = y;
+        int prev = d1;  // (x3, y3)から見た直前の点の方向
+        while (true) {
+            // 直前の点の次から反時計回りに探索する
+            boolean eastZero = false;
+            int d4 = prev;
+            for (int k = 1; k <= 8; k++) {
+                int d = (prev - k) & 7;
+                if (f[(y3 + DY[d]) * w + x3 + DX[d]] != 0) {
+                    d4 = d;
+                    break;
+                }
+                if (d == 0) eastZero = true;
+            }
+            int p3 = y3 * w + x3;
+            if (eastZero) f[p3] = -nbd;
+            else if (f[p3] == 1) f[p3] = nbd;
+
+            if (2 * n + 3 > buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+            buf[1 + 2 * n] = x3;
+            buf[2 + 2 * n] = y3;
+            n++;
+
+            int x4 = x3 + DX[d4], y4 = y3 + DY[d4];
+            if (x4 == x && y4 == y && x3 == x1 && y3 == y1) break;
+            prev = (d4 + 4) & 7;
+            x3 = x4;
+            y3 = y4;
+        }
+        buf[0] = n;
+        return buf;
+    }
+
+    /**
+     * 直線上に並ぶ点を取り除く（CV_CHAIN_APPROX_SIMPLE）
+     * @param buf followBorderの点列のバッファ
+     * @return 方向が変わる点のみの点列
+     * @since 2011/12/15
+     */
+    private static int[] compress(int[] buf) {
+        int n = buf[0];
+        if (n <= 2) return Arrays.copyOfRange(buf, 1, 1 + 2 * n);
+        int[] out = new int[2 * n];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            int pi = (i + n - 1) % n, ni = (i + 1) % n;
+            int x = buf[1 + 2 * i], y = buf[2 + 2 * i];
+            int dxIn = x - buf[1 + 2 * pi], dyIn = y - buf[2 + 2 * pi];
+            int dxOut = buf[1 + 2 * ni] - x, dyOut = buf[2 + 2 * ni] - y;
+            if (dxIn != dxOut || dyIn != dyOut) {
+                out[m++] = x;
+                out[m++] = y;
+            }
+        }
+        if (m == 0) {
+            out[m++] = buf[1];
+            out[m++] = buf[2];
+        }
+        return Arrays.copyOf(out, m);
+    }
+
+    /**
+     * 輪郭の面積を求める（cvContourArea）
+     * @param contour 点列（x, yの繰り返し）
+     * @return 面積（絶対値）
+     * @since 2011/12/15
+     */
+    public static double contourArea(int[] contour) {
+        int n = contour.length / 2;
+        if (n < 3) return 0;
+        long a = 0;
+        int px = contour[2 * n - 2], py = contour[2 * n - 1];
+        for (int i = 0; i < n; i++) {
+            int x = contour[2 * i], y = contour[2 * i + 1];
+            a += (long)px * y - (long)x * py;
+            px = x;
+            py = y;
+        }
+        return Math.abs(a) * 0.5;
+    }
+
+    /**
+     * 点列の外接矩形を求める（cvBoundingRect）
+     * @param points 点列（x, yの繰り返し）
+     * @return 外接矩形（x, y, 幅, 高さ）．点がない場合はすべて0
+     * @since 2011/12/15
+     */
+    public static int[] boundingRect(int[] points) {
+        if (points.length < 2) return new int[4];
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i + 1 < points.length; i += 2) {
+            minX = Math.min(minX, points[i]);
+            maxX = Math.max(maxX, points[i]);
+            minY = Math.min(minY, points[i + 1]);
+            maxY = Math.max(maxY, points[i + 1]);
+        }
+        return new int[]{minX, minY, maxX - minX + 1, maxY - minY + 1};
+    }
+
+    /**
+     * 境界の複製（BORDER_REPLICATE）
+     * @since 2011/12/15
+     */
+    private static int replicate(int p, int len) {
+        return p < 0 ? 0 : p >= len ? len - 1 : p;
+    }
+}
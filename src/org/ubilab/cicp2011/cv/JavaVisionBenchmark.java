@@ -0,0 +1,103 @@
+package org.ubilab.cicp2011.cv;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_highgui.*;
+
+/**
+ * OpenCVとJavaによる実装（JavaVision）の処理時間と結果を比較するベンチマーク
+ * <pre>
+ * AnalyticProcessの前処理・Hough変換によるROI検出・マス検出をそれぞれの実装で繰り返し実行し，
+ * 段階ごとの平均処理時間と，エッジ画像の差分画素数・ROI・検出されたマス目の数を出力する．
+ * <blockquote>
+ * java org.ubilab.cicp2011.cv.JavaVisionBenchmark [画像] [繰り返し回数]
+ * </blockquote>
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/15
+ */
+public class JavaVisionBenchmark {
+    private JavaVisionBenchmark() {}
+
+    /** 1つの実装の計測結果 */
+    private static class Result {
+        double edgeMillis, houghMillis, rectsMillis;
+        IplImage edge;
+        CvRect roi;
+        int squares;
+    }
+
+    /**
+     * 指定した実装で処理を繰り返し実行する
+     * @since 2011/12/15
+     */
+    private static Result run(AnalyticProcess.Backend backend, IplImage input, int iterations) {
+        CvMemStorage storage = NativeMemory.createStorage();
+        AnalyticProcess proc = new AnalyticProcess(null, false, null, storage);
+        proc.setBackend(backend);
+        Result r = new Result();
+
+        // JITのウォームアップ
+        for (int i = 0; i < 3; i++) {
+            IplImage edge = proc.getEdgeImage(input);
+            proc.getROIFromEdge(edge);
+            NativeMemory.releaseImage(edge);
+        }
+
+        for (int i = 0; i < iterations; i++) {
+            if (r.edge != null) NativeMemory.releaseImage(r.edge);
+            long t0 = System.nanoTime();
+            r.edge = proc.getEdgeImage(input);
+            long t1 = System.nanoTime();
+            r.roi = proc.getROIFromEdge(r.edge);
+            long t2 = System.nanoTime();
+            r.edgeMillis += (t1 - t0) / 1e6;
+            r.houghMillis += (t2 - t1) / 1e6;
+
+            if (r.roi.width() * r.roi.height() > 0) {
+                IplImage roiFrame = proc.getROIView(input, r.roi);
+                long t3 = System.nanoTime();
+                r.squares = proc.getRects(roiFrame, null);
+                r.rectsMillis += (System.nanoTime() - t3) / 1e6;
+                NativeMemory.releaseImage(roiFrame);
+            }
+            cvClearMemStorage(storage);
+        }
+        r.edgeMillis /= iterations;
+        r.houghMillis /= iterations;
+        r.rectsMillis /= iterations;
+        NativeMemory.releaseStorage(storage);
+        return r;
+    }
+
+    private static void print(String name, Result r) {
+        System.out.printf("%-7s edge %8.2f ms  hough %8.2f ms  rects %8.2f ms  total %8.2f ms  ROI (%d, %d, %d, %d)  squares %d%n",
+                name, r.edgeMillis, r.houghMillis, r.rectsMillis, r.edgeMillis + r.houghMillis + r.rectsMillis,
+                r.roi.x(), r.roi.y(), r.roi.width(), r.roi.height(), r.squares);
+    }
+
+    public static void main(String[] args) {
+        String file    = args.length > 0 ? args[0] : "dummy.jpg";
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        IplImage input = cvLoadImage(file, CV_LOAD_IMAGE_COLOR);
+        if (input == null) {
+            System.err.println("Cannot load image: " + file);
+            return;
+        }
+        System.out.printf("%s %dx%d, %d iterations%n", file, input.width(), input.height(), iterations);
+
+        Result cv = run(AnalyticProcess.Backend.OPENCV, input, iterations);
+        Result java = run(AnalyticProcess.Backend.JAVA, input, iterations);
+        print("OpenCV", cv);
+        print("Java", java);
+
+        double cvTotal = cv.edgeMillis + cv.houghMillis + cv.rectsMillis;
+        double javaTotal = java.edgeMillis + java.houghMillis + java.rectsMillis;
+        System.out.printf("edge diff %d pixels, speedup %.2f%n",
+                TiledExecutor.countDifference(cv.edge, java.edge), cvTotal / javaTotal);
+
+        NativeMemory.releaseImage(cv.edge);
+        NativeMemory.releaseImage(java.edge);
+        cvReleaseImage(input);
+    }
+}
@@ -0,0 +1,437 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import com.googlecode.javacpp.Pointer;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+import static com.googlecode.javacv.cpp.opencv_highgui.*;
+import static com.googlecode.javacv.cpp.opencv_calib3d.*;
+
+/**
+ * レンズの歪みを補正するクラス
+ * <pre>
+ * チェッカーボードを撮影した画像から事前にカメラの内部パラメータと歪み係数を求めてファイルに保存し，
+ * 実行時はそれを読み込んで補正する．補正の写像（cvInitUndistortMap）はフレームサイズごとに一度だけ計算し，
+ * 固定小数点形式（cvConvertMaps）に変換して保持する．
+ * 毎フレームの補正は盤のROIに対応する部分の写像だけを用いてcvRemapするため，処理量はROIの面積に比例する．
+ * ROIは歪んだフレーム上で検出した矩形を補正後の座標に変換した外接矩形とする．
+ * 校正は次のように行う（列数・行数はチェッカーボードの内側の交点の数）．
+ * <blockquote>
+ * java org.ubilab.cicp2011.cv.LensCorrector 出力ファイル 列数 行数 画像...
+ * </blockquote>
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/18
+ */
+public class LensCorrector {
+    private static final Logger logger;
+    private final int calibWidth, calibHeight;
+    private final double[] camera;
+    private final double[] distortion;
+    private Maps maps = null;
+    private int lastX = -1, lastY = -1, lastWidth = -1, lastHeight = -1;
+    private CvRect lastRect = null;
+
+    static {
+        logger = Logger.getLogger(LensCorrector.class.getName());
+    }
+
+    /**
+     * 固定小数点形式の補正の写像
+     * <pre>
+     * cvRemapはロックの外で行うため，prepareやreleaseで置き換えた後も使用中のスレッドがなくなるまで解放しない．
+     * フィールドはLensCorrectorのロック内で操作する．
+     * </pre>
+     */
+    private static class Maps {
+        final IplImage xy, alpha;
+        int users = 0;
+        boolean retired = false;
+
+        Maps(IplImage xy, IplImage alpha) {
+            this.xy = xy;
+            this.alpha = alpha;
+        }
+
+        /** 使用をやめる */
+        void leave() {
+            users--;
+            if (retired && users == 0) free();
+        }
+
+        /** 置き換えられたことを記録し，使用中でなければ解放する */
+        void retire() {
+            retired = true;
+            if (users == 0) free();
+        }
+
+        private void free() {
+            NativeMemory.releaseImage(xy);
+            NativeMemory.releaseImage(alpha);
+        }
+    }
+
+    /**
+     * 内部パラメータと歪み係数を指定してインスタンスを生成する
+     * @param width 校正に用いた画像の幅
+     * @param height 校正に用いた画像の高さ
+     * @param camera カメラ行列（3x3，行優先）
+     * @param distortion 歪み係数（k1, k2, p1, p2[, k3]）
+     * @since 2011/12/18
+     */
+    public LensCorrector(int width, int height, double[] camera, double[] distortion) {
+        if (camera.length != 9) throw new IllegalArgumentException("camera matrix must be 3x3");
+        if (distortion.length != 4 && distortion.length != 5) throw new IllegalArgumentException("distortion must have 4 or 5 coefficients");
+        this.calibWidth = width;
+        this.calibHeight = height;
+        this.camera = camera.clone();
+        this.distortion = distortion.clone();
+    }
+
+    /**
+     * チェッカーボードの画像から内部パラメータと歪み係数を求める
+     * @param files 画像ファイル
+     * @param cols チェッカーボードの内側の交点の列数
+     * @param rows チェッカーボードの内側の交点の行数
+     * @return 校正結果
+     * @throws IOException 画像を読み込めない場合，またはチェッカーボードを検出できた画像がない場合
+     * @since 2011/12/18
+     */
+    public static LensCorrector calibrate(List<String> files, int cols, int rows) throws IOException {
+        int n = cols * rows;
+        CvSize pattern = cvSize(cols, rows);
+        CvPoint2D32f corners = new CvPoint2D32f(n);
+        int[] found = new int[1];
+        List<float[]> views = new ArrayList<float[]>();
+        int width = -1, height = -1;
+
+        for (String file : files) {
+            IplImage gray = cvLoadImage(file, CV_LOAD_IMAGE_GRAYSCALE);
+            if (gray == null || gray.isNull()) throw new IOException("Cannot load image: " + file);
+            try {
+                if (width < 0) {
+                    width = gray.width();
+                    height = gray.height();
+                } else if (gray.width() != width || gray.height() != height) {
+                    throw new IOException("Image size differs: " + file);
+                }
+                int ok = cvFindChessboardCorners(gray, pattern, corners, found,
+                        CV_CALIB_CB_ADAPTIVE_THRESH | CV_CALIB_CB_NORMALIZE_IMAGE);
+                if (ok == 0 || found[0] != n) {
+                    logger.log(Level.WARNING, "Chessboard not found: {0}", file);
+                    continue;
+                }
+                cvFindCornerSubPix(gray, corners, n, cvSize(11, 11), cvSize(-1, -1),
+                        cvTermCriteria(CV_TERMCRIT_EPS + CV_TERMCRIT_ITER, 30, 0.1));
+                float[] pts = new float[n * 2];
+                for (int i = 0; i < n; i++) {
+                    corners.position(i);
+                    pts[i * 2] = corners.x();
+                    pts[i * 2 + 1] = corners.y();
+                }
+                corners.position(0);
+                views.add(pts);
+                logger.log(Level.INFO, "Chessboard found: {0}", file);
+            } finally {
+                cvReleaseImage(gray);
+            }
+        }
+        if (views.isEmpty()) throw new IOException("No chessboard found in " + files.size() + " images");
+
+        // 物体座標はチェッカーボードのマスを単位とする（内部パラメータには影響しない）
+        int total = views.size() * n;
+        CvMat objectPoints = CvMat.create(total, 3, CV_32F);
+        CvMat imagePoints = CvMat.create(total, 2, CV_32F);
+        CvMat pointCounts = CvMat.create(views.size(), 1, CV_32S);
+        for (int v = 0; v < views.size(); v++) {
+            float[] pts = views.get(v);
+            for (int i = 0; i < n; i++) {
+                int k = v * n + i;
+                objectPoints.put(k * 3, i % cols);
+                objectPoints.put(k * 3 + 1, i / cols);
+                objectPoints.put(k * 3 + 2, 0);
+                imagePoints.put(k * 2, pts[i * 2]);
+                imagePoints.put(k * 2 + 1, pts[i * 2 + 1]);
+            }
+            pointCounts.put(v, n);
+        }
+        CvMat cameraMat = CvMat.create(3, 3, CV_64F);
+        CvMat distMat = CvMat.create(5, 1, CV_64F);
+        double error = cvCalibrateCamera2(objectPoints, imagePoints, pointCounts, cvSize(width, height),
+                cameraMat, distMat, null, null, 0);
+        logger.log(Level.INFO, "Calibrated with {0} images, reprojection error {1}",
+                new Object[]{views.size(), String.format("%.3f", error)});
+
+        LensCorrector corrector = new LensCorrector(width, height, toArray(cameraMat), toArray(distMat));
+        objectPoints.release();
+        imagePoints.release();
+        pointCounts.release();
+        cameraMat.release();
+        distMat.release();
+        return corrector;
+    }
+
+    /**
+     * 内部パラメータと歪み係数をファイルに保存する（cvWrite）
+     * @param file 保存先のファイル（.xmlまたは.yml）
+     * @throws IOException ファイルを開けない場合
+     * @since 2011/12/18
+     */
+    public void save(String file) throws IOException {
+        CvFileStorage fs = cvOpenFileStorage(file, null, CV_STORAGE_WRITE, null);
+        if (fs == null || fs.isNull()) throw new IOException("Cannot open " + file);
+        CvMat cameraMat = toMat(camera, 3, 3);
+        CvMat distMat = toMat(distortion, distortion.length, 1);
+        try {
+            cvWriteInt(fs, "image_width", calibWidth);
+            cvWriteInt(fs, "image_height", calibHeight);
+            cvWrite(fs, "camera_matrix", cameraMat, cvAttrList());
+            cvWrite(fs, "distortion_coefficients", distMat, cvAttrList());
+        } finally {
+            cameraMat.release();
+            distMat.release();
+            cvReleaseFileStorage(fs);
+        }
+    }
+
+    /**
+     * saveで保存したファイルから読み込む
+     * @param file 読み込むファイル
+     * @return 読み込んだ内部パラメータと歪み係数による補正
+     * @throws IOException ファイルを開けない場合，または必要な項目がない場合
+     * @since 2011/12/18
+     */
+    public static LensCorrector load(String file) throws IOException {
+        CvFileStorage fs = cvOpenFileStorage(file, null, CV_STORAGE_READ, null);
+        if (fs == null || fs.isNull()) throw new IOException("Cannot open " + file);
+        try {
+            int width = cvReadIntByName(fs, null, "image_width", -1);
+            int height = cvReadIntByName(fs, null, "image_height", -1);
+            Pointer cameraPtr = cvReadByName(fs, null, "camera_matrix", cvAttrList());
+            Pointer distPtr = cvReadByName(fs, null, "distortion_coefficients", cvAttrList());
+            if (width <= 0 || height <= 0 || cameraPtr == null || cameraPtr.isNull() || distPtr == null || distPtr.isNull()) {
+                throw new IOException("Not a calibration file: " + file);
+            }
+            CvMat cameraMat = new CvMat(cameraPtr);
+            CvMat distMat = new CvMat(distPtr);
+            LensCorrector corrector = new LensCorrector(width, height, toArray(cameraMat), toArray(distMat));
+            cvReleaseMat(cameraMat);
+            cvReleaseMat(distMat);
+            logger.log(Level.INFO, "Loaded calibration {0}: camera {1}, distortion {2}",
+                    new Object[]{file, Arrays.toString(corrector.camera), Arrays.toString(corrector.distortion)});
+            return corrector;
+        } finally {
+            cvReleaseFileStorage(fs);
+        }
+    }
+
+    /**
+     * ROI領域の歪みを補正した画像を返す
+     * <pre>
+     * 返された画像は呼び出し側で解放すること．
+     * </pre>
+     * @param input 入力画像（歪んだフレーム）
+     * @param roi 入力画像上で検出したROI
+     * @return 補正後の座標でROIを囲む領域の画像
+     * @since 2011/12/18
+     */
+    public IplImage undistortRegion(IplImage input, CvRect roi) {
+        return undistortRegion(input, roi, null);
+    }
+
+    /**
+     * ROI領域の歪みを補正した画像と，その領域の補正後の座標を返す
+     * <pre>
+     * 返された画像は呼び出し側で解放すること．
+     * </pre>
+     * @param input 入力画像（歪んだフレーム）
+     * @param roi 入力画像上で検出したROI
+     * @param region 補正後の座標で画像の領域を受け取る矩形．nullの場合は受け取らない
+     * @return 補正後の座標でROIを囲む領域の画像
+     * @since 2011/12/30
+     */
+    public IplImage undistortRegion(IplImage input, CvRect roi, CvRect region) {
+        CvRect r;
+        Maps m;
+        synchronized (this) {
+            prepare(input.width(), input.height());
+            r = mapRect(roi, input.width(), input.height());
+            m = maps;
+            m.users++;
+            if (region != null) region.x(r.x()).y(r.y()).width(r.width()).height(r.height());
+        }
+        try {
+            IplImage dst = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvSize(r.width(), r.height()), input.depth(), input.nChannels());
+            CvMat subXY = cvGetSubRect(m.xy, new CvMat(), r);
+            CvMat subAlpha = cvGetSubRect(m.alpha, new CvMat(), r);
+            cvRemap(input, dst, subXY, subAlpha, CV_INTER_LINEAR | CV_WARP_FILL_OUTLIERS, cvScalarAll(0));
+            return dst;
+        } finally {
+            synchronized (this) {
+                m.leave();
+            }
+        }
+    }
+
+    /**
+     * フレーム全体の歪みを補正した画像を返す
+     * <pre>
+     * 校正結果の確認用．返された画像は呼び出し側で解放すること．
+     * </pre>
+     * @param input 入力画像
+     * @return 補正した画像
+     * @since 2011/12/18
+     */
+    public IplImage undistort(IplImage input) {
+        return undistortRegion(input, cvRect(0, 0, input.width(), input.height()));
+    }
+
+    /**
+     * フレームサイズに対応する補正の写像を用意する
+     * @since 2011/12/18
+     */
+    private void prepare(int width, int height) {
+        if (maps != null && maps.xy.width() == width && maps.xy.height() == height) return;
+        releaseMaps();
+        long start = System.nanoTime();
+
+        CvMat cameraMat = scaledCamera(width, height);
+        CvMat distMat = toMat(distortion, distortion.length, 1);
+        IplImage mapX = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvSize(width, height), IPL_DEPTH_32F, 1);
+        IplImage mapY = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvSize(width, height), IPL_DEPTH_32F, 1);
+        cvInitUndistortMap(cameraMat, distMat, mapX, mapY);
+
+        // 浮動小数点の写像より小さく，cvRemapでの補間も速い固定小数点形式に変換する
+        IplImage mapXY = NativeMemory.createImage(NativeMemory.Category.TABLE, cvSize(width, height), IPL_DEPTH_16S, 2);
+        IplImage mapAlpha = NativeMemory.createImage(NativeMemory.Category.TABLE, cvSize(width, height), IPL_DEPTH_16U, 1);
+        cvConvertMaps(mapX, mapY, mapXY, mapAlpha);
+        maps = new Maps(mapXY, mapAlpha);
+
+        NativeMemory.releaseImage(mapX);
+        NativeMemory.releaseImage(mapY);
+        cameraMat.release();
+        distMat.release();
+        lastRect = null;
+        logger.log(Level.INFO, "Undistortion map {0}x{1} prepared in {2} ms",
+                new Object[]{width, height, String.format("%.1f", (System.nanoTime() - start) / 1e6)});
+    }
+
+    /**
+     * 入力画像上のROIを補正後の座標に変換した外接矩形を求める
+     * <pre>
+     * 直前と同じROIの場合は前回の結果を返す．
+     * </pre>
+     * @since 2011/12/18
+     */
+    private CvRect mapRect(CvRect roi, int width, int height) {
+        if (lastRect != null && roi.x() == lastX && roi.y() == lastY && roi.width() == lastWidth && roi.height() == lastHeight) {
+            return lastRect;
+        }
+        // 四隅と各辺の中点（樽型の歪みでは辺の中点が最も内側に寄る）
+        double x0 = roi.x(), y0 = roi.y(), x1 = roi.x() + roi.width(), y1 = roi.y() + roi.height();
+        double xm = (x0 + x1) / 2, ym = (y0 + y1) / 2;
+        double[] pts = {x0, y0, xm, y0, x1, y0, x1, ym, x1, y1, xm, y1, x0, y1, x0, ym};
+        CvMat src = CvMat.create(1, pts.length / 2, CV_32F, 2);
+        CvMat dst = CvMat.create(1, pts.length / 2, CV_32F, 2);
+        for (int i = 0; i < pts.length; i++) src.put(i, pts[i]);
+        CvMat cameraMat = scaledCamera(width, height);
+        CvMat distMat = toMat(distortion, distortion.length, 1);
+        cvUndistortPoints(src, dst, cameraMat, distMat, null, cameraMat);
+
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < pts.length; i += 2) {
+            minX = Math.min(minX, dst.get(i));
+            maxX = Math.max(maxX, dst.get(i));
+            minY = Math.min(minY, dst.get(i + 1));
+            maxY = Math.max(maxY, dst.get(i + 1));
+        }
+        src.release();
+        dst.release();
+        cameraMat.release();
+        distMat.release();
+
+        int rx0 = Math.max(0, (int)Math.floor(minX)), ry0 = Math.max(0, (int)Math.floor(minY));
+        int rx1 = Math.min(width, (int)Math.ceil(maxX)), ry1 = Math.min(height, (int)Math.ceil(maxY));
+        if (rx1 <= rx0 || ry1 <= ry0) {
+            // 補正後の座標が画像外になる場合はROIをそのまま用いる
+            rx0 = Math.max(0, roi.x());
+            ry0 = Math.max(0, roi.y());
+            rx1 = Math.min(width, roi.x() + roi.width());
+            ry1 = Math.min(height, roi.y() + roi.height());
+        }
+        lastX = roi.x();
+        lastY = roi.y();
+        lastWidth = roi.width();
+        lastHeight = roi.height();
+        lastRect = cvRect(rx0, ry0, Math.max(1, rx1 - rx0), Math.max(1, ry1 - ry0));
+        return lastRect;
+    }
+
+    /**
+     * フレームサイズに合わせてカメラ行列を拡大縮小する
+     * @since 2011/12/18
+     */
+    private CvMat scaledCamera(int width, int height) {
+        double sx = (double)width / calibWidth, sy = (double)height / calibHeight;
+        double[] k = camera.clone();
+        k[0] *= sx;
+        k[2] *= sx;
+        k[4] *= sy;
+        k[5] *= sy;
+        return toMat(k, 3, 3);
+    }
+
+    private static CvMat toMat(double[] values, int rows, int cols) {
+        CvMat mat = CvMat.create(rows, cols, CV_64F);
+        for (int i = 0; i < values.length; i++) mat.put(i, values[i]);
+        return mat;
+    }
+
+    private static double[] toArray(CvMat mat) {
+        double[] values = new double[mat.rows() * mat.cols()];
+        for (int i = 0; i < values.length; i++) values[i] = mat.get(i);
+        return values;
+    }
+
+    private void releaseMaps() {
+        if (maps != null) maps.retire();
+        maps = null;
+    }
+
+    /**
+     * 補正の写像を解放する
+     * <pre>
+     * 他のスレッドがundistortRegionで使用中の写像は，その処理が終わってから解放する．
+     * </pre>
+     * @since 2011/12/18
+     */
+    public synchronized void release() {
+        releaseMaps();
+        lastRect = null;
+    }
+
+    /**
+     * チェッカーボードの画像から校正を行い，結果をファイルに保存する
+     * @param args 出力ファイル 列数 行数 画像...
+     */
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.err.println("Usage: LensCorrector output.xml cols rows image...");
+            return;
+        }
+        try {
+            LensCorrector corrector = calibrate(Arrays.asList(args).subList(3, args.length),
+                    Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            corrector.save(args[0]);
+            System.out.printf("camera %s%ndistortion %s%nsaved to %s%n",
+                    Arrays.toString(corrector.camera), Arrays.toString(corrector.distortion), args[0]);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Calibration failed", e);
+        }
+    }
+}
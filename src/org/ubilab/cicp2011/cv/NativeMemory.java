@@ -0,0 +1,332 @@
+package org.ubilab.cicp2011.cv;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import com.googlecode.javacpp.Pointer;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+
+/**
+ * ネイティブメモリの確保量を分類ごとに集計するクラス
+ * <pre>
+ * cvCreateImageやCvMemStorageはJavaヒープの外に確保されるため，ヒープの使用量には現れない．
+ * AnalyticProcess・AnalyticPipeline・CvMainでのネイティブメモリの確保と解放はすべてこのクラスを通して行い，
+ * 分類（フレーム・作業用画像・輪郭用ストレージ）ごとの使用中バイト数を記録する．
+ * 全体の上限（バジェット）を設定すると，上限を超えている間は新しいフレームのキャプチャを待たせ，
+ * 一定時間待っても解放されない場合はフレームを捨てる．
+ * 上限はシステムプロパティ org.ubilab.cicp2011.cv.memory.budget にMB単位で指定でき，0の場合は無制限．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/12
+ */
+public final class NativeMemory {
+    /** 確保の分類 */
+    public enum Category {
+        /** キャプチャしたフレーム */
+        FRAME,
+        /** 処理途中の作業用画像 */
+        SCRATCH,
+        /** 輪郭・直線検出用のメモリストレージ */
+        CONTOUR,
+        /** 事前に計算して保持する変換表（歪み補正の写像など） */
+        TABLE,
+        /** 障害解析用に保持する直近のフレーム */
+        HISTORY
+    }
+
+    private static final Logger logger;
+    private static final ConcurrentHashMap<Pointer, Entry> entries;
+    private static final AtomicLongArray live;
+    private static final AtomicLong total;
+    private static final AtomicLong peak;
+    private static final AtomicLong shed;
+    private static final Object lock = new Object();
+    private static volatile long budget;
+
+    static {
+        logger = Logger.getLogger(NativeMemory.class.getName());
+        entries = new ConcurrentHashMap<Pointer, Entry>();
+        live = new AtomicLongArray(Category.values().length);
+        total = new AtomicLong(0);
+        peak = new AtomicLong(0);
+        shed = new AtomicLong(0);
+        budget = Long.getLong("org.ubilab.cicp2011.cv.memory.budget", 0) << 20;
+    }
+
+    /** 集計中の確保 */
+    private static class Entry {
+        final Category category;
+        long bytes;
+
+        Entry(Category category, long bytes) {
+            this.category = category;
+            this.bytes = bytes;
+        }
+    }
+
+    private NativeMemory() {}
+
+    /**
+     * 画像を確保する（cvCreateImage）
+     * @param category 分類
+     * @param size 画像サイズ
+     * @param depth ビット深度
+     * @param channels チャンネル数
+     * @return 確保した画像
+     * @since 2011/12/12
+     */
+    public static IplImage createImage(Category category, CvSize size, int depth, int channels) {
+        return track(category, cvCreateImage(size, depth, channels));
+    }
+
+    /**
+     * 画像を複製する（cvCloneImage）
+     * @param category 複製した画像の分類
+     * @param image 複製元の画像
+     * @return 複製した画像
+     * @since 2011/12/12
+     */
+    public static IplImage cloneImage(Category category, IplImage image) {
+        return track(category, cvCloneImage(image));
+    }
+
+    /**
+     * 他の方法で確保された画像を集計の対象に加える
+     * <pre>
+     * cvLoadImageなどで読み込んだ画像に用いる．解放はreleaseImageで行うこと．
+     * </pre>
+     * @param category 分類
+     * @param image 画像
+     * @return imageをそのまま返す
+     * @since 2011/12/12
+     */
+    public static IplImage track(Category category, IplImage image) {
+        if (image == null || image.isNull()) return image;
+        add(image, category, image.imageSize());
+        return image;
+    }
+
+    /**
+     * 画像を解放する（cvReleaseImage）
+     * <pre>
+     * 集計の対象でない画像もそのまま解放する．
+     * </pre>
+     * @param image 解放する画像
+     * @since 2011/12/12
+     */
+    public static void releaseImage(IplImage image) {
+        if (image == null || image.isNull()) return;
+        remove(image);
+        cvReleaseImage(image);
+    }
+
+    /**
+     * メモリストレージを確保する（cvCreateMemStorage）
+     * <pre>
+     * ストレージが保持するブロックの量はupdateStorageを呼んだ時点で集計する．
+     * 子ストレージのブロックは親から借りたものなので，集計は親ストレージに対して行えばよい．
+     * </pre>
+     * @return 確保したストレージ
+     * @since 2011/12/12
+     */
+    public static CvMemStorage createStorage() {
+        CvMemStorage storage = CvMemStorage.create();
+        add(storage, Category.CONTOUR, 0);
+        updateStorage(storage);
+        return storage;
+    }
+
+    /**
+     * メモリストレージが保持しているブロックの量を集計し直す
+     * @param storage createStorageで確保したストレージ
+     * @since 2011/12/12
+     */
+    public static void updateStorage(CvMemStorage storage) {
+        Entry e = entries.get(storage);
+        if (e == null) return;
+        long bytes = 0;
+        for (CvMemBlock b = storage.bottom(); b != null && !b.isNull(); b = b.next()) {
+            bytes += storage.block_size();
+        }
+        synchronized(e) {
+            long diff = bytes - e.bytes;
+            if (diff == 0) return;
+            e.bytes = bytes;
+            change(Category.CONTOUR, diff);
+        }
+    }
+
+    /**
+     * メモリストレージを解放する（cvReleaseMemStorage）
+     * @param storage 解放するストレージ
+     * @since 2011/12/12
+     */
+    public static void releaseStorage(CvMemStorage storage) {
+        if (storage == null || storage.isNull()) return;
+        remove(storage);
+        cvReleaseMemStorage(storage);
+    }
+
+    /**
+     * 分類ごとの使用中バイト数を返す
+     * @param category 分類
+     * @return 使用中のバイト数
+     * @since 2011/12/12
+     */
+    public static long getLiveBytes(Category category) {
+        return live.get(category.ordinal());
+    }
+
+    /**
+     * 全体の使用中バイト数を返す
+     * @return 使用中のバイト数
+     * @since 2011/12/12
+     */
+    public static long getLiveBytes() {
+        return total.get();
+    }
+
+    /**
+     * 使用中バイト数の最大値を返す
+     * @return 最大のバイト数
+     * @since 2011/12/12
+     */
+    public static long getPeakBytes() {
+        return peak.get();
+    }
+
+    /**
+     * 上限を返す
+     * @return 上限のバイト数．0の場合は無制限
+     * @since 2011/12/12
+     */
+    public static long getBudget() {
+        return budget;
+    }
+
+    /**
+     * 上限を設定する
+     * @param bytes 上限のバイト数．0以下の場合は無制限
+     * @since 2011/12/12
+     */
+    public static void setBudget(long bytes) {
+        budget = Math.max(0, bytes);
+        synchronized(lock) {
+            lock.notifyAll();
+        }
+        logger.log(Level.INFO, "Native memory budget: {0}", budget > 0 ? (budget >> 20) + " MB" : "unlimited");
+    }
+
+    /**
+     * 使用中バイト数が上限を超えているかどうかを返す
+     * @return 超えている場合true
+     * @since 2011/12/12
+     */
+    public static boolean isOverBudget() {
+        long b = budget;
+        return b > 0 && total.get() >= b;
+    }
+
+    /**
+     * 使用中バイト数が上限を下回るまで待機する
+     * @param timeout 最大待機時間[ms]
+     * @return 上限を下回っている場合true，タイムアウトした場合false
+     * @throws InterruptedException 待機中に割り込まれた場合
+     * @since 2011/12/12
+     */
+    public static boolean awaitBudget(long timeout) throws InterruptedException {
+        if (!isOverBudget()) return true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized(lock) {
+            while (isOverBudget()) {
+                long rest = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (rest <= 0) return false;
+                lock.wait(rest);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 上限を超えていたためにフレームを捨てたことを記録する
+     * @since 2011/12/12
+     */
+    public static void frameShed() {
+        long n = shed.incrementAndGet();
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "Frame shed by native memory budget ({0} total): {1}",
+                    new Object[]{String.valueOf(n), getSummary()});
+        }
+    }
+
+    /**
+     * 上限を超えていたために捨てたフレームの数を返す
+     * @return 捨てたフレームの数
+     * @since 2011/12/12
+     */
+    public static long getShedCount() {
+        return shed.get();
+    }
+
+    /**
+     * 分類ごとの使用量を文字列で返す
+     * @return 使用量の一覧
+     * @since 2011/12/12
+     */
+    public static String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Category c : Category.values()) {
+            sb.append(c.name()).append('=').append(getLiveBytes(c) >> 10).append("KB, ");
+        }
+        sb.append("total=").append(getLiveBytes() >> 10).append("KB");
+        sb.append(", peak=").append(getPeakBytes() >> 10).append("KB");
+        if (budget > 0) sb.append(", budget=").append(budget >> 10).append("KB");
+        return sb.toString();
+    }
+
+    /**
+     * 確保を集計に加える
+     * @since 2011/12/12
+     */
+    private static void add(Pointer p, Category category, long bytes) {
+        Entry old = entries.put(p, new Entry(category, bytes));
+        if (old != null) {
+            // 解放を経ずに同じアドレスが再利用された場合
+            change(old.category, -old.bytes);
+        }
+        change(category, bytes);
+    }
+
+    /**
+     * 確保を集計から取り除く
+     * @since 2011/12/12
+     */
+    private static void remove(Pointer p) {
+        Entry e = entries.remove(p);
+        if (e == null) return;
+        synchronized(e) {
+            change(e.category, -e.bytes);
+        }
+    }
+
+    /**
+     * 使用中バイト数を増減する
+     * @since 2011/12/12
+     */
+    private static void change(Category category, long diff) {
+        live.addAndGet(category.ordinal(), diff);
+        long t = total.addAndGet(diff);
+        if (diff > 0) {
+            long p;
+            while (t > (p = peak.get()) && !peak.compareAndSet(p, t)) {}
+        } else if (budget > 0 && t - diff >= budget) {
+            // 上限を超えていた状態からの解放のみ待機中のスレッドへ通知する
+            synchronized(lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package org.ubilab.cicp2011.cv;
+
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+
+/**
+ * 盤の上に手がかざされている間のマス検出・駒認識を止めるクラス
+ * <pre>
+ * ROIを64x64に縮小したグレースケール画像で，前フレームとの差分（動き）と背景との差分（前景）の画素の割合を求め，
+ * 次の状態を遷移する．
+ * <blockquote>
+ * CLEAR    → 動きまたは前景がしきい値を超えた → OCCLUDED
+ * OCCLUDED → 動きが収まった → SETTLING
+ * SETTLING → 再び動いた → OCCLUDED
+ * SETTLING → 動きのない状態がstableMillis続き，前景が小さい（または長く続いた） → CLEAR（背景を更新）
+ * </blockquote>
+ * shouldAnalyzeはCLEARの間と，SETTLINGからCLEARに戻ったフレーム（手が離れた後の1回）でのみtrueを返す．
+ * 盤の木目と肌の色は色差が近く色による判定では盤自体を誤検出するため，色ではなく差分を用いる．
+ * 動きの判定はフレーム順を前提とするため，盤検出ステージ（1スレッド）から呼ぶこと．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/21
+ */
+public class OcclusionDetector {
+    /**
+     * 遮蔽の状態
+     * @since 2011/12/21
+     */
+    public enum State {
+        /** 遮蔽なし */
+        CLEAR,
+        /** 遮蔽中 */
+        OCCLUDED,
+        /** 遮蔽が終わり，静止するのを待っている */
+        SETTLING
+    }
+
+    /** 縮小後の一辺の画素数 */
+    private static final int SIZE = 64;
+    /** 差分とみなす輝度差 */
+    private static final int DIFF_THRESHOLD = 25;
+    /** 遮蔽とみなす動きの割合 */
+    public static final double MOTION_ON = 0.03;
+    /** 静止とみなす動きの割合 */
+    public static final double MOTION_OFF = 0.01;
+    /** 遮蔽とみなす前景の割合（駒1〜2枚の移動は約2.5%） */
+    public static final double FOREGROUND_ON = 0.10;
+    /** 既定の静止の待ち時間[ms] */
+    public static final long DEFAULT_STABLE_MILLIS = 500;
+    /** 前景が残っていても背景を更新するまでの時間[ms]（照明の変化や盤の移動） */
+    public static final long MAX_SETTLE_MILLIS = 5000;
+
+    private static final Logger logger;
+    private final long stableMillis;
+    private IplImage small = null, cur = null, prev = null, background = null, diff = null;
+    private State state = State.CLEAR;
+    private boolean initialized = false;
+    private long settleStart = 0;
+    private CvRect heldRoi = null;
+    private double lastMotion = 0, lastForeground = 0;
+    private long occlusions = 0, skipped = 0;
+
+    static {
+        logger = Logger.getLogger(OcclusionDetector.class.getName());
+    }
+
+    /**
+     * 既定の待ち時間でインスタンスを生成する
+     * @since 2011/12/21
+     */
+    public OcclusionDetector() {
+        this(DEFAULT_STABLE_MILLIS);
+    }
+
+    /**
+     * 静止の待ち時間を指定してインスタンスを生成する
+     * @param stableMillis 遮蔽が終わってから解析を再開するまでに静止している時間[ms]
+     * @since 2011/12/21
+     */
+    public OcclusionDetector(long stableMillis) {
+        this.stableMillis = stableMillis;
+    }
+
+    /**
+     * フレームのROIを調べ，マス検出・駒認識を行うかどうかを返す
+     * @param input 入力フレーム
+     * @param roi 盤のROI
+     * @return 解析を行う場合true．遮蔽中または静止待ちの場合false
+     * @since 2011/12/21
+     */
+    public synchronized boolean shouldAnalyze(IplImage input, CvRect roi) {
+        if (roi.width() <= 0 || roi.height() <= 0) return true;
+        prepare();
+        CvMat sub = cvGetSubRect(input, new CvMat(), roi);
+        cvResize(sub, small, CV_INTER_AREA);
+        cvCvtColor(small, cur, CV_RGB2GRAY);
+        long now = System.nanoTime() / 1000000;
+
+        if (!initialized) {
+            cvCopy(cur, prev);
+            cvCopy(cur, background);
+            initialized = true;
+            heldRoi = cvRect(roi.x(), roi.y(), roi.width(), roi.height());
+            return true;
+        }
+        lastMotion = fraction(cur, prev);
+        lastForeground = fraction(cur, background);
+        cvCopy(cur, prev);
+
+        State before = state;
+        boolean analyze = false;
+        switch (state) {
+            case CLEAR:
+                if (lastMotion > MOTION_ON || lastForeground > FOREGROUND_ON) {
+                    state = State.OCCLUDED;
+                    occlusions++;
+                } else {
+                    // 静止している間は背景を少しずつ更新する（照明のゆっくりした変化）
+                    if (lastMotion < MOTION_OFF) cvAddWeighted(background, 0.9, cur, 0.1, 0, background);
+                    heldRoi = cvRect(roi.x(), roi.y(), roi.width(), roi.height());
+                    analyze = true;
+                }
+                break;
+            case OCCLUDED:
+                if (lastMotion < MOTION_OFF) {
+                    state = State.SETTLING;
+                    settleStart = now;
+                }
+                break;
+            case SETTLING:
+                if (lastMotion >= MOTION_OFF) {
+                    state = State.OCCLUDED;
+                } else if (now - settleStart >= stableMillis
+                        && (lastForeground <= FOREGROUND_ON || now - settleStart >= MAX_SETTLE_MILLIS)) {
+                    // 駒が動いた後の盤面を新しい背景とし，1回だけ解析する
+                    cvCopy(cur, background);
+                    state = State.CLEAR;
+                    analyze = true;
+                }
+                break;
+            default:
+                break;
+        }
+        if (!analyze) skipped++;
+        if (before != state && logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "Occlusion {0} -> {1} (motion {2}, foreground {3})", new Object[]{before, state,
+                    String.format("%.3f", lastMotion), String.format("%.3f", lastForeground)});
+        }
+        return analyze;
+    }
+
+    /**
+     * 2つの画像で輝度差がしきい値を超える画素の割合を求める
+     * @since 2011/12/21
+     */
+    private double fraction(IplImage a, IplImage b) {
+        cvAbsDiff(a, b, diff);
+        cvThreshold(diff, diff, DIFF_THRESHOLD, 255, CV_THRESH_BINARY);
+        return (double)cvCountNonZero(diff) / (SIZE * SIZE);
+    }
+
+    private void prepare() {
+        if (small != null) return;
+        CvSize size = cvSize(SIZE, SIZE);
+        small = NativeMemory.createImage(NativeMemory.Category.SCRATCH, size, IPL_DEPTH_8U, 3);
+        cur = NativeMemory.createImage(NativeMemory.Category.SCRATCH, size, IPL_DEPTH_8U, 1);
+        prev = NativeMemory.createImage(NativeMemory.Category.SCRATCH, size, IPL_DEPTH_8U, 1);
+        background = NativeMemory.createImage(NativeMemory.Category.SCRATCH, size, IPL_DEPTH_8U, 1);
+        diff = NativeMemory.createImage(NativeMemory.Category.SCRATCH, size, IPL_DEPTH_8U, 1);
+    }
+
+    /**
+     * 遮蔽中に用いるROIを返す
+     * <pre>
+     * 手がかざされている間はROI検出の結果も乱れるため，遮蔽前の最後のROIを用いる．
+     * </pre>
+     * @return 遮蔽中または静止待ちの場合は遮蔽前のROI．それ以外はnull
+     * @since 2011/12/21
+     */
+    public synchronized CvRect getHeldRoi() {
+        return state == State.CLEAR || heldRoi == null ? null : cvRect(heldRoi.x(), heldRoi.y(), heldRoi.width(), heldRoi.height());
+    }
+
+    /**
+     * 現在の状態を返す
+     * @return 遮蔽の状態
+     * @since 2011/12/21
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * 遮蔽を検出した回数を返す
+     * @return 回数
+     * @since 2011/12/21
+     */
+    public synchronized long getOcclusionCount() {
+        return occlusions;
+    }
+
+    /**
+     * 解析を省いたフレーム数を返す
+     * @return フレーム数
+     * @since 2011/12/21
+     */
+    public synchronized long getSkippedFrames() {
+        return skipped;
+    }
+
+    /**
+     * 作業用画像を解放する
+     * @since 2011/12/21
+     */
+    public synchronized void release() {
+        NativeMemory.releaseImage(small);
+        NativeMemory.releaseImage(cur);
+        NativeMemory.releaseImage(prev);
+        NativeMemory.releaseImage(background);
+        NativeMemory.releaseImage(diff);
+        small = cur = prev = background = diff = null;
+        initialized = false;
+    }
+}
@@ -0,0 +1,352 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+import static com.googlecode.javacv.cpp.opencv_highgui.*;
+
+/**
+ * マスの画像をテンプレートと照合して駒の種類と向きを認識するクラス
+ * <pre>
+ * 駒の種類ごとのテンプレート画像（先手向き・グレースケール）を読み込み，
+ * マスの大きさに合わせた拡大縮小・傾き・先後（180度回転）の変形を一度だけ作成してネイティブメモリに保持する．
+ * マスの大きさが変わるまでは変形済みのテンプレートを使い回す．
+ * 照合は駒のあるマス（BoardStateでOCCUPIED）のみをスレッドプールで並列に行い，
+ * 前回そのマスで認識した種類から順に照合して，十分に高い一致度が得られた時点で打ち切る．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/14
+ */
+public class PieceRecognizer {
+    /** この一致度以上のテンプレートが見つかった時点で照合を打ち切る */
+    public static final double ACCEPT_SCORE = 0.85;
+    /** この一致度未満の場合は駒を認識できなかったものとする */
+    public static final double MIN_SCORE    = 0.55;
+    /** マスに対する駒の大きさの比 */
+    private static final double PIECE_RATIO = 0.8;
+    private static final double[] SCALES = {0.9, 1.0, 1.1};
+    private static final double[] ANGLES = {-4.0, 0.0, 4.0};
+
+    private static final Logger logger;
+    private final ExecutorService pool;
+    private final EnumMap<PieceType, IplImage> templates;
+    private final PieceType[] last = new PieceType[BoardState.CELLS];
+    private Variant[][] variants = null;
+    private int variantWidth = -1, variantHeight = -1;
+    private int minWidth, minHeight;
+    private volatile double lastMillis = 0;
+
+    static {
+        logger = Logger.getLogger(PieceRecognizer.class.getName());
+    }
+
+    /**
+     * 認識された駒
+     * @since 2011/12/14
+     */
+    public static class Piece {
+        private final PieceType type;
+        private final boolean gote;
+        private final double score;
+
+        Piece(PieceType type, boolean gote, double score) {
+            this.type = type;
+            this.gote = gote;
+            this.score = score;
+        }
+
+        public PieceType getType()  { return type; }
+        public boolean isGote()     { return gote; }
+        public double getScore()    { return score; }
+
+        @Override
+        public String toString() {
+            return (gote ? "v" : "^") + type.getKanji();
+        }
+    }
+
+    /** 変形済みのテンプレート */
+    private static class Variant {
+        final PieceType type;
+        final boolean gote;
+        final IplImage image;
+
+        Variant(PieceType type, boolean gote, IplImage image) {
+            this.type = type;
+            this.gote = gote;
+            this.image = image;
+        }
+    }
+
+    /**
+     * テンプレート画像を読み込みインスタンスを生成する
+     * @param dir テンプレート画像のディレクトリ
+     * @param threads 照合に用いるスレッド数
+     * @since 2011/12/14
+     */
+    public PieceRecognizer(File dir, int threads) {
+        templates = new EnumMap<PieceType, IplImage>(PieceType.class);
+        StringBuilder missing = new StringBuilder();
+        for (PieceType type : PieceType.values()) {
+            File f = new File(dir, type.getFileName() + ".png");
+            IplImage img = f.isFile() ? cvLoadImage(f.getPath(), CV_LOAD_IMAGE_GRAYSCALE) : null;
+            if (img == null || img.isNull()) {
+                missing.append(' ').append(type.getFileName());
+                continue;
+            }
+            templates.put(type, NativeMemory.track(NativeMemory.Category.SCRATCH, img));
+        }
+        if (missing.length() > 0) {
+            logger.log(Level.WARNING, "Piece templates not found in {0}:{1}", new Object[]{dir, missing});
+        }
+
+        pool = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private int count = 0;
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread th = new Thread(r, "PieceRecognizer-" + (count++));
+                th.setDaemon(true);
+                return th;
+            }
+        });
+        logger.log(Level.INFO, "PieceRecognizer start: {0} templates, {1} threads",
+                new Object[]{templates.size(), Math.max(1, threads)});
+    }
+
+    /**
+     * テンプレートが1つ以上読み込まれているかどうかを返す
+     * @return 認識可能な場合true
+     * @since 2011/12/14
+     */
+    public boolean isAvailable() {
+        return !templates.isEmpty();
+    }
+
+    /**
+     * 直前の認識に要した時間を返す
+     * @return 処理時間[ms]
+     * @since 2011/12/14
+     */
+    public double getLastMillis() {
+        return lastMillis;
+    }
+
+    /**
+     * ROI領域の画像から各マスの駒を認識する
+     * <pre>
+     * 入力画像には輪郭などが描画されていないこと（AnalyticProcess#getRectsの前に複製しておく）．
+     * </pre>
+     * @param roiImage ROI領域の画像（1または3チャンネル）
+     * @param state 駒のあるマスを示す盤面．nullの場合は全マスを照合する
+     * @return マスごとの駒（81要素）．空きマスや認識できなかったマスはnull．
+     *         照合の途中で割り込まれた場合は割り込みの状態を戻してnullを返す
+     * @since 2011/12/14
+     */
+    public synchronized Piece[] recognize(IplImage roiImage, BoardState state) {
+        Piece[] pieces = new Piece[BoardState.CELLS];
+        if (!isAvailable()) return pieces;
+        long start = System.nanoTime();
+
+        int w = roiImage.width(), h = roiImage.height();
+        int cellW = w / BoardState.SIZE, cellH = h / BoardState.SIZE;
+        if (cellW < 8 || cellH < 8) return pieces;
+        prepareVariants(cellW, cellH);
+
+        final IplImage gray;
+        if (roiImage.nChannels() == 1) {
+            gray = roiImage;
+        } else {
+            gray = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvSize(w, h), IPL_DEPTH_8U, 1);
+            cvCvtColor(roiImage, gray, CV_RGB2GRAY);
+        }
+
+        try {
+            List<Callable<Piece>> tasks = new ArrayList<Callable<Piece>>();
+            List<Integer> indices = new ArrayList<Integer>();
+            for (int i = 0; i < BoardState.CELLS; i++) {
+                if (state != null && state.get(i) == BoardState.EMPTY) {
+                    last[i] = null;
+                    continue;
+                }
+                // BoardState#cellIndexと同じ分割
+                int col = i % BoardState.SIZE, row = i / BoardState.SIZE;
+                int x0 = (col * w + BoardState.SIZE - 1) / BoardState.SIZE;
+                int x1 = ((col + 1) * w + BoardState.SIZE - 1) / BoardState.SIZE;
+                int y0 = (row * h + BoardState.SIZE - 1) / BoardState.SIZE;
+                int y1 = ((row + 1) * h + BoardState.SIZE - 1) / BoardState.SIZE;
+                final CvRect rect = cvRect(x0, y0, x1 - x0, y1 - y0);
+                final PieceType prior = last[i];
+                tasks.add(new Callable<Piece>() {
+                    @Override
+                    public Piece call() {
+                        return match(gray, rect, prior);
+                    }
+                });
+                indices.add(i);
+            }
+
+            List<Future<Piece>> futures = pool.invokeAll(tasks);
+            for (int k = 0; k < futures.size(); k++) {
+                pieces[indices.get(k)] = futures.get(k).get();
+            }
+            // 全マスの照合が終わってから前回の種類を更新する
+            for (int k = 0; k < futures.size(); k++) {
+                int i = indices.get(k);
+                last[i] = pieces[i] == null ? null : pieces[i].getType();
+            }
+        } catch (InterruptedException e) {
+            // 一部のマスだけを認識した盤面は出力しない
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Piece recognition failed", e.getCause());
+        } finally {
+            if (gray != roiImage) NativeMemory.releaseImage(gray);
+        }
+
+        lastMillis = (System.nanoTime() - start) / 1e6;
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "Piece recognition: {0} ms", String.format("%.1f", lastMillis));
+        }
+        return pieces;
+    }
+
+    /**
+     * 1マス分の照合を行う
+     * @param gray グレースケールのROI画像
+     * @param rect マスの矩形
+     * @param prior 前回このマスで認識した種類．最初に照合する
+     * @return 認識した駒．認識できなかった場合null
+     * @since 2011/12/14
+     */
+    private Piece match(IplImage gray, CvRect rect, PieceType prior) {
+        int cw = rect.width(), ch = rect.height();
+        if (cw < minWidth || ch < minHeight) return null;
+        CvMat cell = cvGetSubRect(gray, new CvMat(), rect);
+        IplImage result = NativeMemory.createImage(NativeMemory.Category.SCRATCH,
+                cvSize(cw - minWidth + 1, ch - minHeight + 1), IPL_DEPTH_32F, 1);
+        double[] min = new double[1], max = new double[1];
+        Variant best = null;
+        double bestScore = -1;
+
+        try {
+            for (int k = -1; k < variants.length && bestScore < ACCEPT_SCORE; k++) {
+                // 前回の種類を最初に照合し，以降は残りの種類を順に照合する
+                int t = k < 0 ? (prior == null ? -1 : prior.ordinal()) : k;
+                if (t < 0 || (k >= 0 && prior != null && t == prior.ordinal())) continue;
+                for (Variant v : variants[t]) {
+                    int rw = cw - v.image.width() + 1, rh = ch - v.image.height() + 1;
+                    if (rw < 1 || rh < 1) continue;
+                    CvMat r = cvGetSubRect(result, new CvMat(), cvRect(0, 0, rw, rh));
+                    cvMatchTemplate(cell, v.image, r, CV_TM_CCOEFF_NORMED);
+                    cvMinMaxLoc(r, min, max, null, null, null);
+                    if (max[0] > bestScore) {
+                        bestScore = max[0];
+                        best = v;
+                        if (bestScore >= ACCEPT_SCORE) break;
+                    }
+                }
+            }
+        } finally {
+            NativeMemory.releaseImage(result);
+        }
+        return best == null || bestScore < MIN_SCORE ? null : new Piece(best.type, best.gote, bestScore);
+    }
+
+    /**
+     * マスの大きさに合わせた変形済みテンプレートを作成する
+     * <pre>
+     * 前回作成したときとマスの大きさの差が4画素以内で，最も小さいテンプレートがマスに収まる場合は作成済みのものを使う．
+     * </pre>
+     * @param cellW マスの幅
+     * @param cellH マスの高さ
+     * @since 2011/12/14
+     */
+    private void prepareVariants(int cellW, int cellH) {
+        if (variants != null && Math.abs(cellW - variantWidth) <= 4 && Math.abs(cellH - variantHeight) <= 4
+                && cellW >= minWidth && cellH >= minHeight) return;
+        releaseVariants();
+        long start = System.nanoTime();
+
+        // 縮小時に上下左右へ照合の余地を残すため，変形後の大きさはマスより小さくする
+        int limitW = cellW - 2, limitH = cellH - 2;
+        minWidth = limitW;
+        minHeight = limitH;
+        variants = new Variant[PieceType.values().length][];
+        int total = 0;
+        IplImage mapImage = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvSize(3, 2), IPL_DEPTH_32F, 1);
+        CvMat map = cvGetMat(mapImage, new CvMat(), null, 0);
+        for (PieceType type : PieceType.values()) {
+            List<Variant> list = new ArrayList<Variant>();
+            IplImage src = templates.get(type);
+            if (src != null) {
+                double fit = Math.min(cellW * PIECE_RATIO / src.width(), cellH * PIECE_RATIO / src.height());
+                for (double scale : SCALES) {
+                    int tw = (int)Math.round(src.width() * fit * scale);
+                    int th = (int)Math.round(src.height() * fit * scale);
+                    if (tw < 4 || th < 4 || tw > limitW || th > limitH) continue;
+                    IplImage resized = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvSize(tw, th), IPL_DEPTH_8U, 1);
+                    cvResize(src, resized, CV_INTER_AREA);
+                    CvScalar background = cvAvg(resized, null);
+                    for (double angle : ANGLES) {
+                        IplImage sente = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvSize(tw, th), IPL_DEPTH_8U, 1);
+                        if (angle == 0) {
+                            cvCopy(resized, sente);
+                        } else {
+                            cv2DRotationMatrix(cvPoint2D32f(tw / 2.0, th / 2.0), angle, 1.0, map);
+                            cvWarpAffine(resized, sente, map, CV_INTER_LINEAR + CV_WARP_FILL_OUTLIERS, background);
+                        }
+                        IplImage gote = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvSize(tw, th), IPL_DEPTH_8U, 1);
+                        cvFlip(sente, gote, -1);
+                        list.add(new Variant(type, false, sente));
+                        list.add(new Variant(type, true, gote));
+                    }
+                    NativeMemory.releaseImage(resized);
+                    minWidth = Math.min(minWidth, tw);
+                    minHeight = Math.min(minHeight, th);
+                }
+            }
+            variants[type.ordinal()] = list.toArray(new Variant[list.size()]);
+            total += list.size();
+        }
+        NativeMemory.releaseImage(mapImage);
+        variantWidth = cellW;
+        variantHeight = cellH;
+        logger.log(Level.INFO, "Piece template variants: {0} for {1}x{2} cells ({3} ms)", new Object[]{
+                total, cellW, cellH, String.valueOf((System.nanoTime() - start) / 1000000)});
+    }
+
+    /**
+     * 変形済みテンプレートを解放する
+     * @since 2011/12/14
+     */
+    private void releaseVariants() {
+        if (variants == null) return;
+        for (Variant[] list : variants) {
+            for (Variant v : list) NativeMemory.releaseImage(v.image);
+        }
+        variants = null;
+    }
+
+    /**
+     * スレッドプールを停止し，テンプレートを解放する
+     * @since 2011/12/14
+     */
+    public synchronized void shutdown() {
+        pool.shutdownNow();
+        releaseVariants();
+        for (IplImage img : templates.values()) NativeMemory.releaseImage(img);
+        templates.clear();
+    }
+}
@@ -0,0 +1,77 @@
+package org.ubilab.cicp2011.cv;
+
+/**
+ * 将棋の駒の種類
+ * <pre>
+ * テンプレート画像は PieceRecognizer に指定したディレクトリの「ファイル名.png」から読み込む．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/14
+ */
+public enum PieceType {
+    /** 歩兵 */
+    FU("歩", "fu", false),
+    /** 香車 */
+    KYO("香", "kyo", false),
+    /** 桂馬 */
+    KEI("桂", "kei", false),
+    /** 銀将 */
+    GIN("銀", "gin", false),
+    /** 金将 */
+    KIN("金", "kin", false),
+    /** 角行 */
+    KAKU("角", "kaku", false),
+    /** 飛車 */
+    HI("飛", "hi", false),
+    /** 王将 */
+    OU("王", "ou", false),
+    /** と金 */
+    TO("と", "to", true),
+    /** 成香 */
+    NARIKYO("杏", "narikyo", true),
+    /** 成桂 */
+    NARIKEI("圭", "narikei", true),
+    /** 成銀 */
+    NARIGIN("全", "narigin", true),
+    /** 竜馬 */
+    UMA("馬", "uma", true),
+    /** 竜王 */
+    RYU("竜", "ryu", true);
+
+    private final String kanji;
+    private final String fileName;
+    private final boolean promoted;
+
+    private PieceType(String kanji, String fileName, boolean promoted) {
+        this.kanji = kanji;
+        this.fileName = fileName;
+        this.promoted = promoted;
+    }
+
+    /**
+     * 駒を表す漢字1文字を返す
+     * @return 漢字
+     * @since 2011/12/14
+     */
+    public String getKanji() {
+        return kanji;
+    }
+
+    /**
+     * テンプレート画像のファイル名（拡張子を除く）を返す
+     * @return ファイル名
+     * @since 2011/12/14
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * 成駒かどうかを返す
+     * @return 成駒の場合true
+     * @since 2011/12/14
+     */
+    public boolean isPromoted() {
+        return promoted;
+    }
+}
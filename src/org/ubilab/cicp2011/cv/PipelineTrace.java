@@ -0,0 +1,337 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * パイプラインのイベントを低負荷で記録するトレーサ
+ * <pre>
+ * フレームのキャプチャ・各ステージの開始/終了・ROIの変化・結果出力を
+ * プリミティブ配列のリングバッファに記録し，バックグラウンドスレッドがファイルへ書き出す．
+ * 記録時には文字列の生成もオブジェクトの確保も行わず，無効時は1回の分岐のみで戻る．
+ * システムプロパティ org.ubilab.cicp2011.cv.trace にファイル名を指定すると起動時から記録する．
+ * 記録したファイルは
+ * <blockquote>
+ * java org.ubilab.cicp2011.cv.PipelineTrace trace.bin [閾値ms]
+ * </blockquote>
+ * でテキストとして出力でき，閾値を指定すると閾値より長いステージのみを出力する．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/07
+ */
+public final class PipelineTrace {
+    /** フレームキャプチャ（value: フレームのバイト数） */
+    public static final int FRAME_CAPTURE   = 1;
+    /** ステージ開始（arg: ステージ番号） */
+    public static final int STAGE_BEGIN     = 2;
+    /** ステージ終了（arg: ステージ番号, value: 出力のバイト数） */
+    public static final int STAGE_END       = 3;
+    /** ROIの変化（arg: x&lt;&lt;16|y, value: 幅&lt;&lt;16|高さ） */
+    public static final int ROI_CHANGE      = 4;
+    /** 結果出力（value: 検出されたマス目の数） */
+    public static final int RESULT_PUBLISH  = 5;
+    /** リングバッファの溢れ（value: 失われたイベント数） */
+    public static final int EVENTS_LOST     = 6;
+
+    private static final int MAGIC = 0x50545243; // "PTRC"
+    private static final int VERSION = 2;
+    private static final String[] TYPE_NAMES = {"", "CAPTURE", "BEGIN", "END", "ROI", "PUBLISH", "LOST"};
+
+    private static final Logger logger;
+    private static final int capacity;
+    private static final int mask;
+    private static final long[] times;
+    private static final long[] frames;
+    private static final long[] threadIds;
+    private static final int[] types;
+    private static final int[] args;
+    private static final int[] values;
+    private static final AtomicLongArray committed;
+    private static final AtomicLong cursor;
+    private static volatile boolean enabled = false;
+    private static Thread writer = null;
+
+    static {
+        logger = Logger.getLogger(PipelineTrace.class.getName());
+        int bits = Integer.getInteger("org.ubilab.cicp2011.cv.trace.bits", 16);
+        capacity = 1 << bits;
+        mask = capacity - 1;
+        times = new long[capacity];
+        frames = new long[capacity];
+        threadIds = new long[capacity];
+        types = new int[capacity];
+        args = new int[capacity];
+        values = new int[capacity];
+        committed = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) committed.set(i, -1);
+        cursor = new AtomicLong(0);
+
+        String file = System.getProperty("org.ubilab.cicp2011.cv.trace");
+        if (file != null && file.length() > 0) {
+            try {
+                start(new File(file));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot start pipeline trace", e);
+            }
+        }
+    }
+
+    private PipelineTrace() {}
+
+    /**
+     * 記録中かどうかを返す
+     * @return 記録中の場合true
+     * @since 2011/12/07
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 指定したファイルへの記録を開始する
+     * @param file 出力ファイル
+     * @throws IOException ファイルを開けない場合
+     * @since 2011/12/07
+     */
+    public static synchronized void start(File file) throws IOException {
+        if (writer != null) return;
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop(out);
+            }
+        }, "PipelineTrace-writer");
+        writer.setDaemon(true);
+        enabled = true;
+        writer.start();
+        logger.log(Level.INFO, "Pipeline trace start: {0} ({1} events buffer)", new Object[]{file, capacity});
+    }
+
+    /**
+     * 記録を停止し，バッファに残ったイベントを書き出してファイルを閉じる
+     * @since 2011/12/07
+     */
+    public static synchronized void stop() {
+        if (writer == null) return;
+        enabled = false;
+        writer.interrupt();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+        logger.info("Pipeline trace stop.");
+    }
+
+    /**
+     * フレームのキャプチャを記録する
+     * @param frameId フレーム番号
+     * @param bytes フレームのバイト数
+     * @since 2011/12/07
+     */
+    public static void frameCaptured(long frameId, int bytes) {
+        if (enabled) record(FRAME_CAPTURE, frameId, 0, bytes);
+    }
+
+    /**
+     * ステージの開始を記録する
+     * @param stage ステージ
+     * @param frameId フレーム番号
+     * @since 2011/12/07
+     */
+    public static void stageBegin(AnalyticPipeline.Stage stage, long frameId) {
+        if (enabled) record(STAGE_BEGIN, frameId, stage.ordinal(), 0);
+    }
+
+    /**
+     * ステージの終了を記録する
+     * @param stage ステージ
+     * @param frameId フレーム番号
+     * @param bytes ステージ出力のバイト数
+     * @since 2011/12/07
+     */
+    public static void stageEnd(AnalyticPipeline.Stage stage, long frameId, int bytes) {
+        if (enabled) record(STAGE_END, frameId, stage.ordinal(), bytes);
+    }
+
+    /**
+     * ROIの変化を記録する
+     * @param frameId フレーム番号
+     * @param x 左上x座標
+     * @param y 左上y座標
+     * @param width 幅
+     * @param height 高さ
+     * @since 2011/12/07
+     */
+    public static void roiChanged(long frameId, int x, int y, int width, int height) {
+        if (enabled) record(ROI_CHANGE, frameId, (x << 16) | (y & 0xffff), (width << 16) | (height & 0xffff));
+    }
+
+    /**
+     * 結果の出力を記録する
+     * @param frameId フレーム番号
+     * @param squares 検出されたマス目の数
+     * @since 2011/12/07
+     */
+    public static void resultPublished(long frameId, int squares) {
+        if (enabled) record(RESULT_PUBLISH, frameId, 0, squares);
+    }
+
+    /**
+     * リングバッファにイベントを1件記録する
+     * @since 2011/12/07
+     */
+    private static void record(int type, long frameId, int arg, int value) {
+        long seq = cursor.getAndIncrement();
+        int slot = (int)(seq & mask);
+        committed.set(slot, -1);
+        times[slot] = System.nanoTime();
+        frames[slot] = frameId;
+        threadIds[slot] = Thread.currentThread().getId();
+        types[slot] = type;
+        args[slot] = arg;
+        values[slot] = value;
+        committed.set(slot, seq);
+    }
+
+    /**
+     * リングバッファのイベントを定期的にファイルへ書き出す
+     * @param out 出力先
+     * @since 2011/12/07
+     */
+    private static void writeLoop(DataOutputStream out) {
+        long read = cursor.get();
+        try {
+            while (true) {
+                boolean last = !enabled;
+                long end = cursor.get();
+                if (end - read > capacity) {
+                    // 書き出しが追いつかず上書きされたイベントを記録
+                    writeEvent(out, System.nanoTime(), -1, 0, EVENTS_LOST, 0, (int)(end - read - capacity));
+                    read = end - capacity;
+                }
+                for (; read < end; read++) {
+                    int slot = (int)(read & mask);
+                    if (committed.get(slot) != read) {
+                        // 書き込み途中のイベントは次回に回す
+                        break;
+                    }
+                    long t = times[slot], f = frames[slot], th = threadIds[slot];
+                    int ty = types[slot], a = args[slot], v = values[slot];
+                    if (committed.get(slot) != read) continue;
+                    writeEvent(out, t, f, th, ty, a, v);
+                }
+                out.flush();
+                if (last) break;
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    // stop()による割り込み．残りを書き出して終了する
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Pipeline trace write failed", e);
+            enabled = false;
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * イベントを1件書き出す
+     * @since 2011/12/07
+     */
+    private static void writeEvent(DataOutputStream out, long time, long frame, long thread,
+            int type, int arg, int value) throws IOException {
+        out.writeLong(time);
+        out.writeLong(frame);
+        out.writeLong(thread);
+        out.writeInt(type);
+        out.writeInt(arg);
+        out.writeInt(value);
+    }
+
+    /**
+     * 記録ファイルをテキストとして出力する
+     * @param argv 記録ファイル名と，省略可能なステージ時間の閾値[ms]
+     * @throws IOException 記録ファイルを読めない場合
+     */
+    public static void main(String[] argv) throws IOException {
+        if (argv.length < 1) {
+            System.err.println("usage: PipelineTrace <trace file> [threshold ms]");
+            return;
+        }
+        double threshold = argv.length > 1 ? Double.parseDouble(argv[1]) : -1;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(argv[0])));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.err.println("Not a pipeline trace file: " + argv[0]);
+                return;
+            }
+            AnalyticPipeline.Stage[] stages = AnalyticPipeline.Stage.values();
+            Map<String, Long> begins = new HashMap<String, Long>();
+            long origin = -1;
+            while (true) {
+                long time, frame, thread;
+                int type, arg, value;
+                try {
+                    time = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                frame = in.readLong();
+                thread = in.readLong();
+                type = in.readInt();
+                arg = in.readInt();
+                value = in.readInt();
+                if (origin < 0) origin = time;
+                double ms = (time - origin) / 1e6;
+
+                if (threshold < 0) {
+                    String detail;
+                    switch (type) {
+                        case STAGE_BEGIN: detail = stages[arg].name(); break;
+                        case STAGE_END:   detail = stages[arg].name() + " " + value + " bytes"; break;
+                        case ROI_CHANGE:  detail = String.format("(%d, %d, %d, %d)", arg >>> 16, arg & 0xffff, value >>> 16, value & 0xffff); break;
+                        case FRAME_CAPTURE: detail = value + " bytes"; break;
+                        default:          detail = String.valueOf(value); break;
+                    }
+                    System.out.printf("%12.3f  thread %-4d %-8s frame %-8d %s%n",
+                            ms, thread, TYPE_NAMES[type], frame, detail);
+                } else if (type == STAGE_BEGIN) {
+                    begins.put(frame + ":" + arg, time);
+                } else if (type == STAGE_END) {
+                    Long begin = begins.remove(frame + ":" + arg);
+                    if (begin != null && (time - begin) / 1e6 >= threshold) {
+                        System.out.printf("%12.3f  frame %-8d %-16s %8.3f ms%n",
+                                ms, frame, stages[arg].name(), (time - begin) / 1e6);
+                    }
+                } else if (type == EVENTS_LOST) {
+                    System.out.printf("%12.3f  %d events lost%n", ms, value);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.ubilab.cicp2011.cv;
+
+import java.nio.ByteBuffer;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+
+/**
+ * IplImageの画素をコピーせずに参照するビュー
+ * <pre>
+ * 画像データ全体をdirect ByteBufferとして参照し，矩形領域と行の間隔（widthStep）を考慮して画素を読む．
+ * 画素1つごとのJNI呼び出しも，Java配列へのコピーも行わない．
+ * ビューは元の画像のメモリを直接参照するため，元の画像を解放した後は使用しないこと．
+ * 8ビットの画像のみ扱う．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/13
+ */
+public final class PixelView {
+    private final ByteBuffer buffer;
+    private final int x0, y0;
+    private final int width, height;
+    private final int channels;
+    private final int step;
+
+    private PixelView(ByteBuffer buffer, int x0, int y0, int width, int height, int channels, int step) {
+        this.buffer = buffer;
+        this.x0 = x0;
+        this.y0 = y0;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.step = step;
+    }
+
+    /**
+     * 画像のビューを生成する
+     * <pre>
+     * 画像にROIが設定されている場合はROIの範囲のビューとなる．
+     * </pre>
+     * @param image 8ビットの画像
+     * @return ビュー
+     * @since 2011/12/13
+     */
+    public static PixelView of(IplImage image) {
+        return of(image, cvGetImageROI(image));
+    }
+
+    /**
+     * 画像の矩形領域のビューを生成する
+     * @param image 8ビットの画像
+     * @param rect 矩形領域
+     * @return ビュー
+     * @since 2011/12/13
+     */
+    public static PixelView of(IplImage image, CvRect rect) {
+        if (image.depth() != IPL_DEPTH_8U) {
+            throw new IllegalArgumentException("Only 8-bit images are supported: depth " + image.depth());
+        }
+        int x = rect.x(), y = rect.y(), w = rect.width(), h = rect.height();
+        if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > image.width() || y + h > image.height()) {
+            throw new IllegalArgumentException("Rect out of image: (" + x + ", " + y + ", " + w + ", " + h + ")");
+        }
+        return new PixelView(image.getByteBuffer(), x, y, w, h, image.nChannels(), image.widthStep());
+    }
+
+    /**
+     * このビューの矩形領域のビューを生成する
+     * @param x ビュー上の左上x座標
+     * @param y ビュー上の左上y座標
+     * @param w 幅
+     * @param h 高さ
+     * @return ビュー
+     * @since 2011/12/13
+     */
+    public PixelView sub(int x, int y, int w, int h) {
+        if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height) {
+            throw new IllegalArgumentException("Rect out of view: (" + x + ", " + y + ", " + w + ", " + h + ")");
+        }
+        return new PixelView(buffer, x0 + x, y0 + y, w, h, channels, step);
+    }
+
+    /**
+     * 画像データ全体を参照するバッファを返す
+     * <pre>
+     * ビューの画素(x, y)のチャンネルcはoffset(x, y) + cの位置にある．
+     * </pre>
+     * @return direct ByteBuffer
+     * @since 2011/12/13
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * 画素の先頭のバッファ上の位置を返す
+     * @param x ビュー上のx座標
+     * @param y ビュー上のy座標
+     * @return バッファ上の位置
+     * @since 2011/12/13
+     */
+    public int offset(int x, int y) {
+        return (y0 + y) * step + (x0 + x) * channels;
+    }
+
+    /**
+     * 画素値を返す（先頭チャンネル）
+     * @param x ビュー上のx座標
+     * @param y ビュー上のy座標
+     * @return 0〜255の画素値
+     * @since 2011/12/13
+     */
+    public int get(int x, int y) {
+        return buffer.get(offset(x, y)) & 0xff;
+    }
+
+    /**
+     * 画素値を返す
+     * @param x ビュー上のx座標
+     * @param y ビュー上のy座標
+     * @param c チャンネル
+     * @return 0〜255の画素値
+     * @since 2011/12/13
+     */
+    public int get(int x, int y, int c) {
+        return buffer.get(offset(x, y) + c) & 0xff;
+    }
+
+    public int getWidth()    { return width; }
+    public int getHeight()   { return height; }
+    public int getChannels() { return channels; }
+    public int getStep()     { return step; }
+}
@@ -0,0 +1,288 @@
+package org.ubilab.cicp2011.cv;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+
+/**
+ * キャプチャから結果出力までの処理時間を目標値以内に保つよう，解析の品質を段階的に切り替えるクラス
+ * <pre>
+ * 出力された結果の処理時間を指数移動平均で平滑化し，目標値を超えた場合は品質を1段階下げ，
+ * 目標値のHEADROOM倍を下回った場合は1段階上げる．変更の効果は処理中のフレームが出力されるまで現れないため，
+ * 下げた後はSTEP_DOWN_HOLDフレーム，上げた後はSTEP_UP_HOLDフレームの間は次の変更を行わない．
+ * 品質の段階は累積的で，下の段階は上の段階の省略をすべて含む．
+ * <ol>
+ * <li>FULL：すべてのフレームで盤を検出する</li>
+ * <li>REUSE_ROI：前回検出したROIを用い，ROI_REFRESHフレームごとにのみ盤を検出し直す</li>
+ * <li>HALF_RESOLUTION：ROI領域の画像を縦横1/2に縮小してマス目を検出する</li>
+ * <li>REDUCED_RATE：フレームの取得間隔を目標値以上に空ける</li>
+ * </ol>
+ * 現在の段階はgetLevelで，変更の履歴と理由はgetChangesで取得できる．
+ * AnalyticPipelineとAnalyticProcessの両方から同時に用いてよい．呼び出し側ごとのフレーム番号は起点が異なるため，
+ * ROIの再利用にはnextSequenceで発行した通し番号を用いる．フレームを取得するたびに番号を発行し，
+ * そのフレームのreuseRoiとroiDetectedに渡すこと．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/28
+ */
+public class QualityController {
+    /**
+     * 解析の品質の段階（高い順）
+     */
+    public enum Quality {
+        /** 省略なし */
+        FULL,
+        /** ROIの再利用 */
+        REUSE_ROI,
+        /** マス検出の解像度を1/2にする */
+        HALF_RESOLUTION,
+        /** フレームの取得間隔を空ける */
+        REDUCED_RATE
+    }
+
+    /**
+     * 品質の変更の記録
+     * @since 2011/12/28
+     */
+    public static class Change {
+        private final long time;
+        private final long frameId;
+        private final Quality from, to;
+        private final String reason;
+
+        Change(long time, long frameId, Quality from, Quality to, String reason) {
+            this.time = time;
+            this.frameId = frameId;
+            this.from = from;
+            this.to = to;
+            this.reason = reason;
+        }
+
+        /** @return 変更した時刻（System.currentTimeMillis） */
+        public long getTime()       { return time; }
+        /** @return 変更のきっかけとなった結果のフレーム番号 */
+        public long getFrameId()    { return frameId; }
+        public Quality getFrom()    { return from; }
+        public Quality getTo()      { return to; }
+        public String getReason()   { return reason; }
+
+        @Override
+        public String toString() {
+            return String.format("frame %d: %s -> %s (%s)", frameId, from, to, reason);
+        }
+    }
+
+    /** 既定の処理時間の目標値[ms] */
+    public static final double DEFAULT_TARGET_MILLIS = 200;
+    /** 処理時間の指数移動平均の係数 */
+    public static final double SMOOTHING = 0.2;
+    /** 品質を上げる処理時間の目標値に対する割合 */
+    public static final double HEADROOM = 0.6;
+    /** 品質を下げた後，次の変更までに出力を待つフレーム数 */
+    public static final int STEP_DOWN_HOLD = 10;
+    /** 品質を上げた後，次の変更までに出力を待つフレーム数 */
+    public static final int STEP_UP_HOLD = 30;
+    /** REUSE_ROI以下で盤を検出し直す間隔[フレーム] */
+    public static final int ROI_REFRESH = 15;
+    /** 保持する変更の記録の数 */
+    private static final int MAX_CHANGES = 32;
+
+    private static final Logger logger;
+    private final double targetMillis;
+    private volatile Quality quality = Quality.FULL;
+    private double latency = -1;
+    private int sinceChange = 0;
+    private long frames = 0;
+    private final LinkedList<Change> changes = new LinkedList<Change>();
+    private long changeCount = 0;
+    private int[] roi = null;
+    private long roiSequence = 0;
+    private long sequence = 0;
+    private long nextAdmit = 0;
+    private final long[] framesAt = new long[Quality.values().length];
+
+    static {
+        logger = Logger.getLogger(QualityController.class.getName());
+    }
+
+    /**
+     * 既定の目標値でインスタンスを生成する
+     * @since 2011/12/28
+     */
+    public QualityController() {
+        this(DEFAULT_TARGET_MILLIS);
+    }
+
+    /**
+     * インスタンスを生成する
+     * @param targetMillis 処理時間の目標値[ms]
+     * @since 2011/12/28
+     */
+    public QualityController(double targetMillis) {
+        if (targetMillis <= 0) throw new IllegalArgumentException("targetMillis must be positive: " + targetMillis);
+        this.targetMillis = targetMillis;
+    }
+
+    /**
+     * 出力された結果の処理時間を記録し，必要に応じて品質を切り替える
+     * @param result 出力された結果
+     * @since 2011/12/28
+     */
+    public synchronized void record(AnalyticResult result) {
+        double ms = result.getLatencyMillis();
+        latency = latency < 0 ? ms : latency + SMOOTHING * (ms - latency);
+        frames++;
+        framesAt[quality.ordinal()]++;
+        sinceChange++;
+
+        int level = quality.ordinal();
+        if (latency > targetMillis && level < Quality.values().length - 1 && sinceChange >= STEP_DOWN_HOLD) {
+            change(result.getFrameId(), Quality.values()[level + 1],
+                    String.format("latency %.1f ms > target %.1f ms", latency, targetMillis));
+        } else if (latency < targetMillis * HEADROOM && level > 0 && sinceChange >= STEP_UP_HOLD) {
+            change(result.getFrameId(), Quality.values()[level - 1],
+                    String.format("latency %.1f ms < %.1f ms", latency, targetMillis * HEADROOM));
+        }
+    }
+
+    private void change(long frameId, Quality to, String reason) {
+        Change c = new Change(System.currentTimeMillis(), frameId, quality, to, reason);
+        changes.addLast(c);
+        if (changes.size() > MAX_CHANGES) changes.removeFirst();
+        changeCount++;
+        quality = to;
+        sinceChange = 0;
+        logger.log(Level.INFO, "Quality {0}", c);
+    }
+
+    /**
+     * ROIの再利用に用いるフレームの通し番号を発行する
+     * <pre>
+     * 取得したフレームごとに1回呼ぶ．番号はこのインスタンスを共有するすべての呼び出し側で単調に増加する．
+     * </pre>
+     * @return 通し番号
+     * @since 2011/12/30
+     */
+    public synchronized long nextSequence() {
+        return sequence++;
+    }
+
+    /**
+     * 前回検出したROIを再利用できる場合に返す
+     * <pre>
+     * REUSE_ROI以下の段階で，検出から経過したフレーム数がROI_REFRESH未満の場合のみ返す．
+     * nullを返した場合は盤を検出し，roiDetectedで通知すること．
+     * </pre>
+     * @param sequence 処理するフレームのnextSequenceで発行した番号
+     * @return 再利用するROI．検出し直す場合null
+     * @since 2011/12/28
+     */
+    public synchronized CvRect reuseRoi(long sequence) {
+        if (quality.compareTo(Quality.REUSE_ROI) < 0 || roi == null) return null;
+        if (sequence - roiSequence >= ROI_REFRESH || sequence < roiSequence) return null;
+        return cvRect(roi[0], roi[1], roi[2], roi[3]);
+    }
+
+    /**
+     * 盤を検出したことを通知する
+     * @param sequence 検出したフレームのnextSequenceで発行した番号
+     * @param rect 検出したROI
+     * @since 2011/12/28
+     */
+    public synchronized void roiDetected(long sequence, CvRect rect) {
+        if (rect == null || rect.width() * rect.height() <= 0) return;
+        // 複数スレッドで前処理を行う場合，古いフレームの検出結果で上書きしない
+        if (roi != null && sequence < roiSequence) return;
+        roi = new int[]{rect.x(), rect.y(), rect.width(), rect.height()};
+        roiSequence = sequence;
+    }
+
+    /**
+     * マス検出の解像度を下げるかどうかを返す
+     * @return HALF_RESOLUTION以下の段階の場合true
+     * @since 2011/12/28
+     */
+    public boolean reduceResolution() {
+        return quality.compareTo(Quality.HALF_RESOLUTION) >= 0;
+    }
+
+    /**
+     * REDUCED_RATEの段階で，前回のフレームの取得から目標値だけ経過するまで待機する
+     * <pre>
+     * 1フレームを取得するたびに呼ぶ．他の段階では待機しない．
+     * </pre>
+     * @throws InterruptedException 待機中に割り込まれた場合
+     * @since 2011/12/28
+     */
+    public void awaitSlot() throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (quality != Quality.REDUCED_RATE) {
+                nextAdmit = now;
+                return;
+            }
+            wait = nextAdmit - now;
+            nextAdmit = Math.max(nextAdmit, now) + (long)(targetMillis * 1e6);
+        }
+        if (wait > 0) Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+    }
+
+    /**
+     * 現在の品質の段階を返す
+     * @return 品質の段階
+     * @since 2011/12/28
+     */
+    public Quality getQuality() {
+        return quality;
+    }
+
+    /**
+     * 平滑化した処理時間を返す
+     * @return 処理時間[ms]．結果を記録していない場合は負の値
+     * @since 2011/12/28
+     */
+    public synchronized double getLatencyMillis() {
+        return latency;
+    }
+
+    /**
+     * 処理時間の目標値を返す
+     * @return 目標値[ms]
+     * @since 2011/12/28
+     */
+    public double getTargetMillis() {
+        return targetMillis;
+    }
+
+    /**
+     * 直近の品質の変更を古い順に返す
+     * @return 変更の記録（最大MAX_CHANGES件）
+     * @since 2011/12/28
+     */
+    public synchronized List<Change> getChanges() {
+        return new ArrayList<Change>(changes);
+    }
+
+    /**
+     * 品質を変更した回数を返す
+     * @return 回数
+     * @since 2011/12/28
+     */
+    public synchronized long getChangeCount() {
+        return changeCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%s, latency %.1f ms (target %.1f ms), %d changes", quality, latency, targetMillis, changeCount));
+        for (Quality q : Quality.values()) {
+            sb.append(String.format(", %s %.1f%%", q, frames == 0 ? 0.0 : framesAt[q.ordinal()] * 100.0 / frames));
+        }
+        return sb.toString();
+    }
+}
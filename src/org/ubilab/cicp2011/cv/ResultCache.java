@@ -0,0 +1,411 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+
+/**
+ * 盤の領域の知覚ハッシュをキーとして解析結果を保持するキャッシュ
+ * <pre>
+ * フレームのROI領域を33x32に縮小したグレースケール画像で隣り合う画素の大小を比べた1024ビットの差分ハッシュ（dHash）と
+ * ROIの位置・大きさをキーとし，同じキーのフレームはマス目の検出と駒の認識を行わずに保持した結果を返す．
+ * フレーム全体のハッシュでは盤上の駒1つの移動が埋もれてしまうため，ハッシュは盤の領域だけから求める．
+ * 再処理やリプレイで同じ静止画やほぼ同じフレームが繰り返される場合に効果がある．
+ * maxDistanceを指定するとROIが同じでハミング距離がそれ以下のキーも一致とみなす．
+ * 件数はcapacityまでとし，最も長く参照されていない結果から捨てる（LRU）．
+ * save・loadでファイルに保存・復元できる．検出の閾値などの設定（configuration）が異なるファイルは読み込まない．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/22
+ */
+public class ResultCache {
+    /** ハッシュの縮小後の幅（隣との比較で1列減る） */
+    private static final int HASH_WIDTH = 33;
+    /** ハッシュの縮小後の高さ */
+    private static final int HASH_HEIGHT = 32;
+    /** ハッシュのlong数 */
+    private static final int HASH_LONGS = (HASH_WIDTH - 1) * HASH_HEIGHT / 64;
+    /** 保存ファイルの識別子 */
+    private static final int MAGIC = 0x52434333;
+    /** 1件あたりのおおよそのヒープ使用量（キー・ROI・盤面・参照） */
+    private static final int ENTRY_BYTES = HASH_LONGS * 8 + BoardState.CELLS + 160;
+    /** 駒の認識結果1件あたりのおおよそのヒープ使用量 */
+    private static final int PIECES_BYTES = BoardState.CELLS * 32;
+
+    private static final Logger logger;
+    private final int capacity;
+    private final int maxDistance;
+    private final String configuration;
+    private final LinkedHashMap<Key, Cached> entries;
+    private IplImage small = null, gray = null;
+    private long hits = 0, misses = 0, memory = 0;
+
+    static {
+        logger = Logger.getLogger(ResultCache.class.getName());
+    }
+
+    /**
+     * ROI領域の知覚ハッシュ
+     * @since 2011/12/22
+     */
+    public static final class Key {
+        private final long[] bits;
+        private final int roiX, roiY, roiWidth, roiHeight;
+        private final int hash;
+
+        Key(long[] bits, int roiX, int roiY, int roiWidth, int roiHeight) {
+            this.bits = bits;
+            this.roiX = roiX;
+            this.roiY = roiY;
+            this.roiWidth = roiWidth;
+            this.roiHeight = roiHeight;
+            this.hash = (((Arrays.hashCode(bits) * 31 + roiX) * 31 + roiY) * 31 + roiWidth) * 31 + roiHeight;
+        }
+
+        /**
+         * ROIの位置・大きさが同じかどうかを返す
+         * @param other 比較するハッシュ
+         * @return 同じ場合true
+         * @since 2011/12/30
+         */
+        public boolean sameRoi(Key other) {
+            return roiX == other.roiX && roiY == other.roiY && roiWidth == other.roiWidth && roiHeight == other.roiHeight;
+        }
+
+        /**
+         * ハミング距離を返す
+         * @param other 比較するハッシュ
+         * @return 異なるビットの数
+         * @since 2011/12/22
+         */
+        public int distance(Key other) {
+            int d = 0;
+            for (int i = 0; i < bits.length; i++) d += Long.bitCount(bits[i] ^ other.bits[i]);
+            return d;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && sameRoi((Key)obj) && Arrays.equals(bits, ((Key)obj).bits);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /** 保持する結果（フレーム番号・時刻を除く） */
+    private static class Cached {
+        final int roiX, roiY, roiWidth, roiHeight;
+        final int regionX, regionY, regionWidth, regionHeight;
+        final int count;
+        final BoardState state;
+        final PieceRecognizer.Piece[] pieces;
+
+        Cached(int roiX, int roiY, int roiWidth, int roiHeight, int regionX, int regionY, int regionWidth, int regionHeight,
+                int count, BoardState state, PieceRecognizer.Piece[] pieces) {
+            this.roiX = roiX;
+            this.roiY = roiY;
+            this.roiWidth = roiWidth;
+            this.roiHeight = roiHeight;
+            this.regionX = regionX;
+            this.regionY = regionY;
+            this.regionWidth = regionWidth;
+            this.regionHeight = regionHeight;
+            this.count = count;
+            this.state = state;
+            this.pieces = pieces;
+        }
+
+        int bytes() {
+            return ENTRY_BYTES + (pieces == null ? 0 : PIECES_BYTES);
+        }
+    }
+
+    /**
+     * インスタンスを生成する
+     * @param capacity 保持する最大件数
+     * @param maxDistance 一致とみなす最大のハミング距離（0の場合は完全一致のみ）
+     * @param configuration 結果に影響する設定を表す文字列（保存ファイルの照合に用いる）
+     * @since 2011/12/22
+     */
+    public ResultCache(int capacity, int maxDistance, String configuration) {
+        this.capacity = Math.max(1, capacity);
+        this.maxDistance = Math.max(0, maxDistance);
+        this.configuration = AnalyticProcess.thresholdSignature() + ";" + configuration;
+        entries = new LinkedHashMap<Key, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Cached> eldest) {
+                if (size() <= ResultCache.this.capacity) return false;
+                memory -= eldest.getValue().bytes();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * フレームのROI領域の知覚ハッシュを求める
+     * @param frame フレーム
+     * @param roi フレーム上で検出したROI（幅・高さが正であること）
+     * @return ハッシュ
+     * @since 2011/12/22
+     */
+    public Key hash(IplImage frame, CvRect roi) {
+        long[] bits = new long[HASH_LONGS];
+        synchronized (this) {
+            if (small == null) {
+                small = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvSize(HASH_WIDTH, HASH_HEIGHT), IPL_DEPTH_8U, 3);
+                gray = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvSize(HASH_WIDTH, HASH_HEIGHT), IPL_DEPTH_8U, 1);
+            }
+            cvResize(cvGetSubRect(frame, new CvMat(), roi), small, CV_INTER_AREA);
+            cvCvtColor(small, gray, CV_RGB2GRAY);
+            PixelView v = PixelView.of(gray);
+            int bit = 0;
+            for (int y = 0; y < HASH_HEIGHT; y++) {
+                for (int x = 0; x + 1 < HASH_WIDTH; x++, bit++) {
+                    if (v.get(x, y) < v.get(x + 1, y)) bits[bit >> 6] |= 1L << (bit & 63);
+                }
+            }
+        }
+        return new Key(bits, roi.x(), roi.y(), roi.width(), roi.height());
+    }
+
+    /**
+     * ハッシュに対応する結果を返す
+     * <pre>
+     * ハミング距離で近いキーを探す場合も，ROIの位置・大きさが同じキーに限る．
+     * </pre>
+     * @param key ROI領域のハッシュ
+     * @param frameId 結果に設定するフレーム番号
+     * @param captureTime 結果に設定するキャプチャ時刻
+     * @return 保持していた結果．ない場合null
+     * @since 2011/12/22
+     */
+    public synchronized AnalyticResult get(Key key, long frameId, long captureTime) {
+        Cached e = entries.get(key);
+        if (e == null && maxDistance > 0) {
+            // 近いハッシュを探す
+            Key best = null;
+            int bestDistance = maxDistance + 1;
+            for (Key k : entries.keySet()) {
+                if (!k.sameRoi(key)) continue;
+                int d = k.distance(key);
+                if (d < bestDistance) {
+                    bestDistance = d;
+                    best = k;
+                }
+            }
+            if (best != null) e = entries.get(best);
+        }
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new AnalyticResult(frameId, e.roiX, e.roiY, e.roiWidth, e.roiHeight,
+                e.regionX, e.regionY, e.regionWidth, e.regionHeight, e.count,
+                e.state == null ? null : e.state.copy(), e.pieces == null ? null : e.pieces.clone(), captureTime, System.nanoTime());
+    }
+
+    /**
+     * 解析結果を保持する
+     * <pre>
+     * 処理できなかった結果は保持しない．
+     * </pre>
+     * @param key ROI領域のハッシュ
+     * @param result 解析結果
+     * @since 2011/12/22
+     */
+    public void put(Key key, AnalyticResult result) {
+        if (key == null || result == null || !result.isValid()) return;
+        BoardState state = result.getBoardState();
+        Cached e = new Cached(result.getRoiX(), result.getRoiY(), result.getRoiWidth(), result.getRoiHeight(),
+                result.getRegionX(), result.getRegionY(), result.getRegionWidth(), result.getRegionHeight(),
+                result.getSquareCount(), state == null ? null : state.copy(), result.getPieces());
+        synchronized (this) {
+            Cached old = entries.put(key, e);
+            if (old != null) memory -= old.bytes();
+            memory += e.bytes();
+        }
+    }
+
+    /**
+     * ファイルに保存する
+     * <pre>
+     * 参照の古い順に書き出すため，読み込み後もLRUの順序が保たれる．
+     * </pre>
+     * @param file 保存先のファイル
+     * @throws IOException 書き込みに失敗した場合
+     * @since 2011/12/22
+     */
+    public synchronized void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeUTF(configuration);
+            out.writeInt(entries.size());
+            for (Map.Entry<Key, Cached> me : entries.entrySet()) {
+                Cached e = me.getValue();
+                for (long b : me.getKey().bits) out.writeLong(b);
+                out.writeInt(e.roiX);
+                out.writeInt(e.roiY);
+                out.writeInt(e.roiWidth);
+                out.writeInt(e.roiHeight);
+                out.writeInt(e.regionX);
+                out.writeInt(e.regionY);
+                out.writeInt(e.regionWidth);
+                out.writeInt(e.regionHeight);
+                out.writeInt(e.count);
+                out.writeBoolean(e.state != null);
+                if (e.state != null) {
+                    byte[] cells = new byte[BoardState.CELLS];
+                    e.state.copyTo(cells, 0);
+                    out.write(cells);
+                }
+                out.writeBoolean(e.pieces != null);
+                if (e.pieces != null) {
+                    for (PieceRecognizer.Piece p : e.pieces) {
+                        out.writeByte(p == null ? -1 : p.getType().ordinal());
+                        if (p != null) {
+                            out.writeBoolean(p.isGote());
+                            out.writeFloat((float)p.getScore());
+                        }
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            if (!file.delete() || !tmp.renameTo(file)) throw new IOException("Cannot replace " + file);
+        }
+        logger.log(Level.INFO, "Saved {0} cached results to {1}", new Object[]{entries.size(), file});
+    }
+
+    /**
+     * ファイルから読み込んで追加する
+     * @param file 読み込むファイル
+     * @return 読み込んだ件数．設定が異なるファイルの場合は0
+     * @throws IOException 読み込みに失敗した場合，または形式が異なる場合
+     * @since 2011/12/22
+     */
+    public synchronized int load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) throw new IOException("Not a result cache file: " + file);
+            String conf = in.readUTF();
+            if (!conf.equals(configuration)) {
+                logger.log(Level.INFO, "Result cache {0} was made with different settings, ignored", file);
+                return 0;
+            }
+            int n = in.readInt();
+            PieceType[] types = PieceType.values();
+            for (int i = 0; i < n; i++) {
+                long[] bits = new long[HASH_LONGS];
+                for (int j = 0; j < bits.length; j++) bits[j] = in.readLong();
+                int x = in.readInt(), y = in.readInt(), w = in.readInt(), h = in.readInt();
+                int rx = in.readInt(), ry = in.readInt(), rw = in.readInt(), rh = in.readInt(), count = in.readInt();
+                BoardState state = null;
+                if (in.readBoolean()) {
+                    byte[] cells = new byte[BoardState.CELLS];
+                    in.readFully(cells);
+                    state = new BoardState(cells);
+                }
+                PieceRecognizer.Piece[] pieces = null;
+                if (in.readBoolean()) {
+                    pieces = new PieceRecognizer.Piece[BoardState.CELLS];
+                    for (int j = 0; j < pieces.length; j++) {
+                        int t = in.readByte();
+                        if (t < 0) continue;
+                        if (t >= types.length) throw new IOException("Broken result cache file: " + file);
+                        pieces[j] = new PieceRecognizer.Piece(types[t], in.readBoolean(), in.readFloat());
+                    }
+                }
+                Cached e = new Cached(x, y, w, h, rx, ry, rw, rh, count, state, pieces);
+                Cached old = entries.put(new Key(bits, x, y, w, h), e);
+                if (old != null) memory -= old.bytes();
+                memory += e.bytes();
+            }
+            logger.log(Level.INFO, "Loaded {0} cached results from {1}", new Object[]{n, file});
+            return n;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * キャッシュが一致した回数を返す
+     * @return 回数
+     * @since 2011/12/22
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * キャッシュが一致しなかった回数を返す
+     * @return 回数
+     * @since 2011/12/22
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * キャッシュが一致した割合を返す
+     * @return 割合（0〜1）
+     * @since 2011/12/22
+     */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    /**
+     * 保持している件数を返す
+     * @return 件数
+     * @since 2011/12/22
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 保持している結果のおおよそのヒープ使用量を返す
+     * @return 使用量[byte]
+     * @since 2011/12/22
+     */
+    public synchronized long getMemoryBytes() {
+        return memory;
+    }
+
+    /**
+     * 作業用画像を解放する
+     * @since 2011/12/22
+     */
+    public synchronized void release() {
+        NativeMemory.releaseImage(small);
+        NativeMemory.releaseImage(gray);
+        small = gray = null;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d entries (%d KB), %d hits, %d misses (%.1f%%)",
+                entries.size(), memory / 1024, hits, misses, getHitRate() * 100);
+    }
+}
@@ -0,0 +1,22 @@
+package org.ubilab.cicp2011.cv;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+
+/**
+ * 盤のROIを検出する処理
+ * <pre>
+ * AnalyticProcessに設定すると，Hough変換によるROI検出の前に呼ばれる．
+ * 十分な確信度でROIを検出できなかった場合はnullを返し，AnalyticProcessはHough変換による検出に切り替える．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/16
+ */
+public interface RoiDetector {
+    /**
+     * ROIを検出する
+     * @param input 入力フレーム
+     * @return 検出されたROI．確信度が低い場合はnull
+     * @since 2011/12/16
+     */
+    public CvRect detect(IplImage input);
+}
@@ -0,0 +1,22 @@
+package org.ubilab.cicp2011.cv;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+
+/**
+ * フレーム間でROIを追跡する処理
+ * <pre>
+ * RoiDetectorとして追跡に失敗した場合にnullを返すと，AnalyticProcessはHough変換でROIを検出し直し，
+ * その結果をredetectedで通知する．追跡処理はこれを起点に追跡を再開する．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/20
+ */
+public interface RoiTracker extends RoiDetector {
+    /**
+     * Hough変換によるROIの再検出の結果を通知する
+     * @param input ROIを検出したフレーム
+     * @param roi 検出されたROI
+     * @since 2011/12/20
+     */
+    public void redetected(IplImage input, CvRect roi);
+}
@@ -0,0 +1,262 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+import static com.googlecode.javacv.cpp.opencv_highgui.*;
+
+/**
+ * 処理途中の画像を別スレッドでファイルに書き出すクラス
+ * <pre>
+ * デバッグ表示と同じ画像（"Source"，"Hough"，"ROI View"）を受け取り，名前ごとに
+ * 連番のJPEG画像（IMAGES）またはMotion JPEGの動画（MJPEG）として書き出す．
+ * 受け取った画像は複製してキューに入れるだけで，圧縮と書き込みは書き出しスレッドで行う．
+ * 複製先の画像はqueueSize枚を使い回し，すべて書き出し待ちの場合はその画像を捨てる（解析を待たせない）．
+ * MJPEGの場合，動画の大きさは名前ごとに最初の画像の大きさとし，異なる大きさの画像は拡大・縮小して書き込む．
+ * 動画ファイルを開けなかった名前の画像は以降書き出さない．
+ * nextを指定した場合は受け取った画像をそのまま渡す．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/25
+ */
+public class SessionRecorder implements StageImageSink {
+    /**
+     * 書き出し形式
+     * @since 2011/12/25
+     */
+    public enum Format {
+        /** 名前ごとのディレクトリに連番のJPEG画像 */
+        IMAGES,
+        /** 名前ごとのMotion JPEGのAVIファイル */
+        MJPEG
+    }
+
+    /** 既定のキューの長さ */
+    public static final int DEFAULT_QUEUE_SIZE = 8;
+    /** MJPEGの既定のフレームレート */
+    public static final double DEFAULT_FPS = 10;
+
+    /** 書き出し待ちの画像 */
+    private static class Item {
+        IplImage image = null;
+        String key;
+        long frameId;
+    }
+
+    /** 終端を表す要素 */
+    private static final Item END = new Item();
+
+    private static final Logger logger;
+    private final File dir;
+    private final Format format;
+    private final double fps;
+    private final StageImageSink next;
+    private final int queueSize;
+    private final BlockingQueue<Item> pending;
+    private final BlockingQueue<Item> free;
+    private final Map<String, CvVideoWriter> writers = new HashMap<String, CvVideoWriter>();
+    private final Map<String, IplImage> resized = new HashMap<String, IplImage>();
+    private final Set<String> failed = new HashSet<String>();
+    private final AtomicLong recorded = new AtomicLong(), dropped = new AtomicLong();
+    private final Thread encoder;
+    private int allocated = 0;
+    private volatile boolean closed = false;
+
+    static {
+        logger = Logger.getLogger(SessionRecorder.class.getName());
+    }
+
+    /**
+     * インスタンスを生成し，書き出しスレッドを開始する
+     * @param dir 書き出し先のディレクトリ
+     * @param format 書き出し形式
+     * @param fps MJPEGのフレームレート
+     * @param queueSize 書き出し待ちにできる画像の数
+     * @param next 画像をそのまま渡す先．nullの場合は渡さない
+     * @since 2011/12/25
+     */
+    public SessionRecorder(File dir, Format format, double fps, int queueSize, StageImageSink next) {
+        this.dir = dir;
+        this.format = format;
+        this.fps = fps;
+        this.next = next;
+        this.queueSize = Math.max(1, queueSize);
+        pending = new ArrayBlockingQueue<Item>(this.queueSize + 1);
+        free = new ArrayBlockingQueue<Item>(this.queueSize);
+        if (!dir.isDirectory() && !dir.mkdirs()) logger.log(Level.WARNING, "Cannot create recording directory: {0}", dir);
+
+        encoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encodeLoop();
+            }
+        }, "SessionRecorder");
+        encoder.setDaemon(true);
+        encoder.start();
+    }
+
+    @Override
+    public void stageImage(long frameId, String key, IplImage image) {
+        if (next != null) next.stageImage(frameId, key, image);
+        if (closed || image == null || image.isNull()) return;
+
+        Item item = free.poll();
+        if (item == null) {
+            synchronized (this) {
+                if (allocated < queueSize) {
+                    allocated++;
+                    item = new Item();
+                }
+            }
+            if (item == null) {
+                // 書き出しが追いつかない場合は捨てる
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        IplImage buf = item.image;
+        if (buf == null || buf.width() != image.width() || buf.height() != image.height() || buf.nChannels() != image.nChannels()) {
+            NativeMemory.releaseImage(buf);
+            buf = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvGetSize(image), image.depth(), image.nChannels());
+            item.image = buf;
+        }
+        cvCopy(image, buf);
+        item.key = key;
+        item.frameId = frameId;
+        // closeとの競合で終端の後ろに入れないよう，終了の確認とキューへの追加をまとめて行う
+        synchronized (this) {
+            if (!closed) {
+                pending.add(item);
+                return;
+            }
+        }
+        NativeMemory.releaseImage(item.image);
+    }
+
+    /**
+     * 書き出しスレッド
+     * @since 2011/12/25
+     */
+    private void encodeLoop() {
+        try {
+            while (true) {
+                Item item = pending.take();
+                if (item == END) break;
+                try {
+                    if (write(item)) recorded.incrementAndGet();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Cannot record " + item.key + " of frame " + item.frameId, e);
+                }
+                free.add(item);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (CvVideoWriter w : writers.values()) cvReleaseVideoWriter(w);
+            writers.clear();
+            for (IplImage img : resized.values()) NativeMemory.releaseImage(img);
+            resized.clear();
+            // 書き出し待ちと使い回し用の画像を解放する
+            Item item;
+            while ((item = free.poll()) != null) NativeMemory.releaseImage(item.image);
+            while ((item = pending.poll()) != null) NativeMemory.releaseImage(item.image);
+        }
+    }
+
+    /**
+     * 1枚の画像を書き出す
+     * @return 書き出した場合true．動画ファイルを開けなかった名前の場合false
+     * @since 2011/12/25
+     */
+    private boolean write(Item item) {
+        String name = item.key.replaceAll("[^0-9A-Za-z_.-]", "_");
+        if (format == Format.IMAGES) {
+            File sub = new File(dir, name);
+            if (!sub.isDirectory() && !sub.mkdirs()) throw new IllegalStateException("Cannot create " + sub);
+            cvSaveImage(new File(sub, String.format("%08d.jpg", item.frameId)).getPath(), item.image);
+            return true;
+        }
+
+        CvVideoWriter w = writers.get(item.key);
+        IplImage frame = resized.get(item.key);
+        if (w == null) {
+            if (failed.contains(item.key)) return false;
+            File file = new File(dir, name + ".avi");
+            w = cvCreateVideoWriter(file.getPath(), CV_FOURCC('M', 'J', 'P', 'G'), fps, cvGetSize(item.image), 1);
+            if (w == null || w.isNull()) {
+                // 開き直しても失敗するため，警告は最初の1回だけにする
+                failed.add(item.key);
+                throw new IllegalStateException("Cannot open video writer: " + file);
+            }
+            writers.put(item.key, w);
+            frame = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvGetSize(item.image), IPL_DEPTH_8U, 3);
+            resized.put(item.key, frame);
+        }
+        // 動画の大きさ・チャンネル数に合わせる
+        IplImage src = item.image;
+        if (src.nChannels() == 1) {
+            if (src.width() == frame.width() && src.height() == frame.height()) {
+                cvCvtColor(src, frame, CV_GRAY2BGR);
+            } else {
+                IplImage color = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvGetSize(src), IPL_DEPTH_8U, 3);
+                cvCvtColor(src, color, CV_GRAY2BGR);
+                cvResize(color, frame, CV_INTER_LINEAR);
+                NativeMemory.releaseImage(color);
+            }
+        } else if (src.width() == frame.width() && src.height() == frame.height()) {
+            cvCopy(src, frame);
+        } else {
+            cvResize(src, frame, CV_INTER_LINEAR);
+        }
+        cvWriteFrame(w, frame);
+        return true;
+    }
+
+    /**
+     * 書き出した画像の数を返す
+     * @return 画像の数
+     * @since 2011/12/25
+     */
+    public long getRecordedCount() {
+        return recorded.get();
+    }
+
+    /**
+     * 書き出しが追いつかずに捨てた画像の数を返す
+     * @return 画像の数
+     * @since 2011/12/25
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * 書き出し待ちの画像をすべて書き出してから終了する
+     * <pre>
+     * 以降に受け取った画像は書き出さない．キューの画像は書き出しスレッドが終了時に解放する．
+     * </pre>
+     * @since 2011/12/25
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        try {
+            // 書き出し待ちはqueueSize以下のため，終端は待たずに入る
+            pending.put(END);
+            encoder.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package org.ubilab.cicp2011.cv;
+
+import com.googlecode.javacpp.BytePointer;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+import static com.googlecode.javacv.cpp.opencv_highgui.*;
+
+/**
+ * 同一ホストのプロセス間でフレームを受け渡すメモリマップのリングファイル
+ * <pre>
+ * カメラのキャプチャを行うプロセス（書き込み側）と解析を行うプロセス（読み出し側）を分け，
+ * ネイティブのキャプチャ処理が落ちても解析側が巻き込まれないようにする．
+ * 書き込み側はフレームを空いているスロットにコピーし，フレーム番号を公開する．
+ * 読み出し側はスロットの画像データを指すIplImageのヘッダを作るだけで，画像はコピーしない．
+ *
+ * 各スロットは先頭のシーケンス番号で保護する（フレームnの書き込み中は2n-1，完了後は2n）．
+ * 読み出し側は使用中のスロットのバイト範囲に共有ロック（FileLock）をかけ，書き込み側は
+ * 排他ロックを取れたスロットにのみ書き込むため，解析中の画像が上書きされることはない．
+ * すべてのスロットが使用中の場合，書き込み側はそのフレームを捨てる．
+ * 読み出し側は常に最新のフレームを取り，partitionを指定した場合はフレーム番号の剰余で分担する．
+ * 同じJVMの中では重なる範囲をロックできないため，書き込み側と読み出し側は別のプロセスとすること．
+ *
+ * ファイル形式（ビッグエンディアン）
+ * <blockquote>
+ * ヘッダ（64バイト）: int マジック, int バージョン, int スロット数, int 幅, int 高さ, int チャンネル数,
+ *   int 行のバイト数, int スロットのバイト数, long 最新のフレーム番号, long 作成時刻[ms],
+ *   int 最新のスロット, int 書き込み終了フラグ
+ * スロット: long シーケンス番号, long フレーム番号, long キャプチャ時刻[ms], 予約（64バイトまで）, 画像データ
+ * </blockquote>
+ * 書き込み側は
+ * <blockquote>
+ * java org.ubilab.cicp2011.cv.SharedFrameRing FILE [カメラ] [幅] [高さ] [スロット数]
+ * </blockquote>
+ * で起動する．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/26
+ */
+public class SharedFrameRing {
+    /** ヘッダのバイト数 */
+    public static final int HEADER_SIZE = 64;
+    /** スロットのヘッダのバイト数 */
+    public static final int SLOT_HEADER_SIZE = 64;
+    /** 既定のスロット数 */
+    public static final int DEFAULT_SLOTS = 16;
+    /** 新しいフレームを待つ間隔[ms] */
+    public static final long POLL_MILLIS = 2;
+
+    private static final int MAGIC = 0x5346524d; // "SFRM"
+    private static final int VERSION = 1;
+    private static final int OFF_SLOTS    = 8;
+    private static final int OFF_WIDTH    = 12;
+    private static final int OFF_HEIGHT   = 16;
+    private static final int OFF_CHANNELS = 20;
+    private static final int OFF_STEP     = 24;
+    private static final int OFF_SLOTSIZE = 28;
+    private static final int OFF_LATEST   = 32;
+    private static final int OFF_CREATED  = 40;
+    private static final int OFF_LATEST_SLOT = 48;
+    private static final int OFF_CLOSED   = 52;
+    private static final int SLOT_SEQ     = 0;
+    private static final int SLOT_FRAME   = 8;
+    private static final int SLOT_TIME    = 16;
+
+    private static final Logger logger;
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final boolean writer;
+    private final int slots, width, height, channels, step, slotSize;
+    /** 書き込み側がスロットに書き込むためのヘッダ */
+    private final IplImage[] slotImages;
+    private int nextSlot = 0;
+    private long lastRead = 0;
+    private long written = 0, dropped = 0;
+
+    static {
+        logger = Logger.getLogger(SharedFrameRing.class.getName());
+    }
+
+    /**
+     * 読み出し側で取得したフレーム
+     * <pre>
+     * imageはスロットのデータを直接参照する．releaseを呼ぶまでスロットは上書きされない．
+     * imageのヘッダは最初にgetImageを呼んだときに作成し，
+     * cvReleaseImage（NativeMemory#releaseImage）で解放してよい（データは解放されない）．
+     * </pre>
+     * @since 2011/12/26
+     */
+    public static final class Lease {
+        private final FileLock lock;
+        private final ByteBuffer data;
+        private final int width, height, channels, step;
+        private final long frame;
+        private final long captureTime;
+        private IplImage image = null;
+
+        Lease(FileLock lock, ByteBuffer data, int width, int height, int channels, int step, long frame, long captureTime) {
+            this.lock = lock;
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+            this.step = step;
+            this.frame = frame;
+            this.captureTime = captureTime;
+        }
+
+        /**
+         * スロットの画像データを参照する画像を返す
+         * @return 画像
+         * @since 2011/12/26
+         */
+        public synchronized IplImage getImage() {
+            if (image == null) {
+                image = cvCreateImageHeader(cvSize(width, height), IPL_DEPTH_8U, channels);
+                cvSetData(image, new BytePointer(data), step);
+                // cvReleaseImageでマップされた領域を解放しないようにする
+                image.imageDataOrigin(null);
+            }
+            return image;
+        }
+
+        public long getFrameNumber()    { return frame; }
+        public long getCaptureTime()    { return captureTime; }
+
+        /**
+         * スロットのロックを解除し，書き込み側が再利用できるようにする
+         * @since 2011/12/26
+         */
+        public void release() {
+            try {
+                if (lock.isValid()) lock.release();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot release frame slot lock", e);
+            }
+        }
+    }
+
+    private SharedFrameRing(File file, boolean writer, int slots, int width, int height, int channels) throws IOException {
+        this.file = file;
+        this.writer = writer;
+        raf = new RandomAccessFile(file, writer ? "rw" : "r");
+        channel = raf.getChannel();
+        try {
+            if (writer) {
+                IplImage probe = cvCreateImageHeader(cvSize(width, height), IPL_DEPTH_8U, channels);
+                step = probe.widthStep();
+                cvReleaseImageHeader(probe);
+                // 画像データを64バイト境界に揃える
+                slotSize = (SLOT_HEADER_SIZE + step * height + 63) & ~63;
+                this.slots = slots;
+                this.width = width;
+                this.height = height;
+                this.channels = channels;
+                long length = HEADER_SIZE + (long)slots * slotSize;
+                boolean reuse = raf.length() == length && sameGeometry();
+                if (!reuse) raf.setLength(0);
+                raf.setLength(length);
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+                if (!reuse) {
+                    map.putInt(0, MAGIC).putInt(4, VERSION).putInt(OFF_SLOTS, slots)
+                            .putInt(OFF_WIDTH, width).putInt(OFF_HEIGHT, height).putInt(OFF_CHANNELS, channels)
+                            .putInt(OFF_STEP, step).putInt(OFF_SLOTSIZE, slotSize)
+                            .putLong(OFF_LATEST, 0).putLong(OFF_CREATED, System.currentTimeMillis()).putInt(OFF_LATEST_SLOT, 0);
+                }
+                // 前回の書き込み側が落ちた後に再開する場合も，フレーム番号は続きから振る
+                map.putInt(OFF_CLOSED, 0);
+                slotImages = new IplImage[slots];
+                for (int i = 0; i < slots; i++) {
+                    slotImages[i] = cvCreateImageHeader(cvSize(width, height), IPL_DEPTH_8U, channels);
+                    cvSetData(slotImages[i], new BytePointer(slice(dataOffset(i), step * height)), step);
+                }
+            } else {
+                if (raf.length() < HEADER_SIZE) throw new IOException("Not a shared frame ring: " + file);
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) throw new IOException("Not a shared frame ring: " + file);
+                this.slots = header.getInt(OFF_SLOTS);
+                this.width = header.getInt(OFF_WIDTH);
+                this.height = header.getInt(OFF_HEIGHT);
+                this.channels = header.getInt(OFF_CHANNELS);
+                step = header.getInt(OFF_STEP);
+                slotSize = header.getInt(OFF_SLOTSIZE);
+                long length = HEADER_SIZE + (long)this.slots * slotSize;
+                if (raf.length() < length) throw new IOException("Truncated shared frame ring: " + file);
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                slotImages = null;
+                lastRead = map.getLong(OFF_LATEST);
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 既存のファイルが同じ形式かどうかを調べる
+     */
+    private boolean sameGeometry() throws IOException {
+        if (raf.length() < HEADER_SIZE) return false;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        return header.getInt(0) == MAGIC && header.getInt(4) == VERSION && header.getInt(OFF_SLOTS) == slots
+                && header.getInt(OFF_WIDTH) == width && header.getInt(OFF_HEIGHT) == height
+                && header.getInt(OFF_CHANNELS) == channels && header.getInt(OFF_STEP) == step && header.getInt(OFF_SLOTSIZE) == slotSize;
+    }
+
+    /**
+     * 書き込み側としてリングファイルを作成する
+     * <pre>
+     * 同じ形式のファイルが既にある場合はそれを再利用し，フレーム番号を続きから振る．
+     * </pre>
+     * @param file リングファイル
+     * @param slots スロット数（読み出し側が同時に使用するフレーム数より多くすること）
+     * @param width フレームの幅
+     * @param height フレームの高さ
+     * @param channels フレームのチャンネル数
+     * @return 書き込み側のインスタンス
+     * @throws IOException ファイルを作成できない場合
+     * @since 2011/12/26
+     */
+    public static SharedFrameRing create(File file, int slots, int width, int height, int channels) throws IOException {
+        return new SharedFrameRing(file, true, Math.max(2, slots), width, height, channels);
+    }
+
+    /**
+     * 読み出し側としてリングファイルを開く
+     * @param file リングファイル
+     * @return 読み出し側のインスタンス
+     * @throws IOException ファイルを開けない場合，またはリングファイルでない場合
+     * @since 2011/12/26
+     */
+    public static SharedFrameRing open(File file) throws IOException {
+        return new SharedFrameRing(file, false, 0, 0, 0, 0);
+    }
+
+    private long slotOffset(int slot) {
+        return HEADER_SIZE + (long)slot * slotSize;
+    }
+
+    private int dataOffset(int slot) {
+        return (int)slotOffset(slot) + SLOT_HEADER_SIZE;
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer b = map.duplicate();
+        b.position(offset).limit(offset + length);
+        return b.slice();
+    }
+
+    /**
+     * フレームを書き込む
+     * <pre>
+     * 大きさが異なるフレームは拡大・縮小して書き込む．
+     * </pre>
+     * @param frame フレーム（8bit，チャンネル数はリングと同じ）
+     * @return 書き込んだフレーム番号．すべてのスロットが使用中で捨てた場合-1
+     * @throws IOException ロックに失敗した場合
+     * @since 2011/12/26
+     */
+    public synchronized long write(IplImage frame) throws IOException {
+        if (!writer) throw new IllegalStateException("Opened for reading");
+        FileLock lock = null;
+        int slot = -1;
+        for (int i = 0; i < slots && lock == null; i++) {
+            slot = nextSlot;
+            nextSlot = (nextSlot + 1) % slots;
+            lock = channel.tryLock(slotOffset(slot), slotSize, false);
+        }
+        if (lock == null) {
+            dropped++;
+            return -1;
+        }
+        try {
+            int off = (int)slotOffset(slot);
+            long n = map.getLong(OFF_LATEST) + 1;
+            map.putLong(off + SLOT_SEQ, 2 * n - 1);
+            map.putLong(off + SLOT_FRAME, n);
+            map.putLong(off + SLOT_TIME, System.currentTimeMillis());
+            if (frame.width() == width && frame.height() == height) cvCopy(frame, slotImages[slot]);
+            else cvResize(frame, slotImages[slot], CV_INTER_LINEAR);
+            map.putLong(off + SLOT_SEQ, 2 * n);
+            map.putLong(OFF_LATEST, n);
+            map.putInt(OFF_LATEST_SLOT, slot);
+            written++;
+            return n;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * 最新のフレームを取得する
+     * <pre>
+     * 前回取得したフレームより新しいフレームが書き込まれるまで待つ．
+     * 取得したLeaseは使い終わった後にreleaseすること．
+     * </pre>
+     * @param index 分担の番号（0〜count-1）
+     * @param count 分担する読み出し側の数（1の場合はすべてのフレームが対象）
+     * @param timeout 待つ時間の上限[ms]
+     * @return 取得したフレーム．時間内に書き込まれなかった場合，または書き込み側が終了した場合null
+     * @throws IOException ロックに失敗した場合
+     * @throws InterruptedException 待機中に割り込まれた場合
+     * @since 2011/12/26
+     */
+    public synchronized Lease acquire(int index, int count, long timeout) throws IOException, InterruptedException {
+        if (writer) throw new IllegalStateException("Opened for writing");
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            long n = map.getLong(OFF_LATEST);
+            int slot = map.getInt(OFF_LATEST_SLOT);
+            if (n > lastRead && n % count == index && slot >= 0 && slot < slots) {
+                FileLock lock;
+                try {
+                    // 書き込み中の場合は完了するまで待つ
+                    lock = channel.lock(slotOffset(slot), slotSize, true);
+                } catch (ClosedByInterruptException e) {
+                    throw new InterruptedException("Interrupted while locking frame slot");
+                }
+                int off = (int)slotOffset(slot);
+                long seq = map.getLong(off + SLOT_SEQ);
+                if (seq == 2 * n && map.getLong(off + SLOT_FRAME) == n) {
+                    lastRead = n;
+                    return new Lease(lock, slice(off + SLOT_HEADER_SIZE, step * height), width, height, channels, step,
+                            n, map.getLong(off + SLOT_TIME));
+                }
+                // 最新の番号を読んだ後にスロットが再利用された，または書き込みが途中で止まっている．
+                // 次の書き込みを待つため，新しいフレームがない場合と同じく終了・時間切れを確かめてから待つ
+                lock.release();
+            }
+            if (isClosed() || System.currentTimeMillis() >= deadline) return null;
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    /**
+     * 書き込み側が終了したかどうかを返す
+     * @return 終了した場合true
+     * @since 2011/12/26
+     */
+    public boolean isClosed() {
+        return map.getInt(OFF_CLOSED) != 0;
+    }
+
+    public int getWidth()       { return width; }
+    public int getHeight()      { return height; }
+    public int getChannels()    { return channels; }
+    public int getSlotCount()   { return slots; }
+    public File getFile()       { return file; }
+
+    /**
+     * 書き込んだフレーム数を返す
+     * @return フレーム数
+     * @since 2011/12/26
+     */
+    public synchronized long getWrittenCount() {
+        return written;
+    }
+
+    /**
+     * すべてのスロットが使用中で捨てたフレーム数を返す
+     * @return フレーム数
+     * @since 2011/12/26
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * ファイルを閉じる
+     * <pre>
+     * 書き込み側の場合は終了フラグを立て，待っている読み出し側にnullを返させる．
+     * マップした領域はGCで解放されるまで有効なため，取得済みのLeaseの画像は参照できる．
+     * </pre>
+     * @since 2011/12/26
+     */
+    public synchronized void close() {
+        if (writer) {
+            map.putInt(OFF_CLOSED, 1);
+            map.force();
+            for (IplImage img : slotImages) cvReleaseImageHeader(img);
+        }
+        try {
+            raf.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot close shared frame ring", e);
+        }
+    }
+
+    /**
+     * カメラからキャプチャしたフレームをリングファイルに書き込み続ける
+     * @param args FILE [カメラ] [幅] [高さ] [スロット数]
+     * @since 2011/12/26
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java org.ubilab.cicp2011.cv.SharedFrameRing FILE [camera] [width] [height] [slots]");
+            System.exit(1);
+        }
+        int camera = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        int width  = args.length > 2 ? Integer.parseInt(args[2]) : 1280;
+        int height = args.length > 3 ? Integer.parseInt(args[3]) : 960;
+        int slots  = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_SLOTS;
+
+        CvCapture capture = cvCreateCameraCapture(camera);
+        cvSetCaptureProperty(capture, CV_CAP_PROP_FRAME_WIDTH, width);
+        cvSetCaptureProperty(capture, CV_CAP_PROP_FRAME_HEIGHT, height);
+        IplImage frame = cvQueryFrame(capture);
+        if (frame == null) {
+            System.err.println("Cannot capture from camera " + camera);
+            System.exit(1);
+        }
+        final SharedFrameRing ring = create(new File(args[0]), slots, frame.width(), frame.height(), frame.nChannels());
+        logger.log(Level.INFO, "Writing {0}x{1} frames to {2}", new Object[]{frame.width(), frame.height(), args[0]});
+        final Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                main.interrupt();
+                try {
+                    main.join(1000);
+                } catch (InterruptedException e) {
+                }
+            }
+        }));
+        try {
+            while (!Thread.currentThread().isInterrupted() && (frame = cvQueryFrame(capture)) != null) {
+                ring.write(frame);
+            }
+        } finally {
+            logger.log(Level.INFO, "{0} frames written, {1} dropped", new Object[]{ring.getWrittenCount(), ring.getDroppedCount()});
+            ring.close();
+            cvReleaseCapture(capture);
+        }
+    }
+}
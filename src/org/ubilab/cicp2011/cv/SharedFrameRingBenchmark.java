@@ -0,0 +1,153 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+
+/**
+ * SharedFrameRingによるプロセス間の受け渡しと，プロセス内のキューによる受け渡しのスループットを比較するベンチマーク
+ * <pre>
+ * プロセス内はCvMainと同じく，フレームを複製して長さ2のキューに入れ，別スレッドで取り出して解放する．
+ * プロセス間は子プロセスのJVMを読み出し側として起動し，リングファイルに書き込んだフレームを
+ * コピーせずに取得・解放する．どちらも指定した秒数だけ書き込み続け，
+ * 受け取り側に届いたフレーム数と書き込み側の1フレームあたりの時間を出力する．
+ * プロセス間の読み出し側は常に最新のフレームを取るため，書き込みが速い場合は届くフレーム数が書き込み数より少なくなる．
+ * <blockquote>
+ * java org.ubilab.cicp2011.cv.SharedFrameRingBenchmark [幅] [高さ] [秒数] [スロット数]
+ * </blockquote>
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/26
+ */
+public class SharedFrameRingBenchmark {
+    private SharedFrameRingBenchmark() {}
+
+    /**
+     * プロセス内のキューで受け渡す
+     * @return 書き込み数，受け取り数，経過時間[ns]
+     * @since 2011/12/26
+     */
+    private static long[] inProcess(final IplImage frame, long millis) throws InterruptedException {
+        final BlockingQueue<IplImage> queue = new ArrayBlockingQueue<IplImage>(2);
+        final AtomicLong received = new AtomicLong();
+        final IplImage end = frame;
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    IplImage img;
+                    while ((img = queue.take()) != end) {
+                        NativeMemory.releaseImage(img);
+                        received.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+
+        long written = 0;
+        long start = System.nanoTime(), deadline = start + millis * 1000000;
+        while (System.nanoTime() < deadline) {
+            queue.put(NativeMemory.cloneImage(NativeMemory.Category.FRAME, frame));
+            written++;
+        }
+        queue.put(end);
+        consumer.join();
+        return new long[]{written, received.get(), System.nanoTime() - start};
+    }
+
+    /**
+     * 子プロセスとリングファイルで受け渡す
+     * @return 書き込み数，受け取り数，経過時間[ns]，捨てたフレーム数
+     * @since 2011/12/26
+     */
+    private static long[] shared(IplImage frame, long millis, int slots) throws IOException, InterruptedException {
+        File file = File.createTempFile("frames", ".ring");
+        file.deleteOnExit();
+        SharedFrameRing ring = SharedFrameRing.create(file, slots, frame.width(), frame.height(), frame.nChannels());
+
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                SharedFrameRingBenchmark.class.getName(), "-reader", file.getPath());
+        pb.redirectErrorStream(true);
+        Process child = pb.start();
+        BufferedReader out = new BufferedReader(new InputStreamReader(child.getInputStream(), "UTF-8"));
+        String line;
+        while ((line = out.readLine()) != null && !line.equals("READY")) System.out.println("  reader: " + line);
+
+        long written = 0;
+        long start = System.nanoTime(), deadline = start + millis * 1000000;
+        while (System.nanoTime() < deadline) {
+            if (ring.write(frame) > 0) written++;
+        }
+        long elapsed = System.nanoTime() - start;
+        long dropped = ring.getDroppedCount();
+        ring.close();
+
+        long received = -1;
+        while ((line = out.readLine()) != null) {
+            if (line.startsWith("RESULT ")) received = Long.parseLong(line.substring(7).trim());
+            else System.out.println("  reader: " + line);
+        }
+        child.waitFor();
+        file.delete();
+        return new long[]{written, received, elapsed, dropped};
+    }
+
+    /**
+     * 子プロセス側：書き込み側が終了するまでフレームを取得して解放する
+     * @since 2011/12/26
+     */
+    private static void reader(String path) throws IOException, InterruptedException {
+        SharedFrameRing ring = SharedFrameRing.open(new File(path));
+        System.out.println("READY");
+        long received = 0;
+        while (true) {
+            SharedFrameRing.Lease lease = ring.acquire(0, 1, 1000);
+            if (lease == null) {
+                if (ring.isClosed()) break;
+                continue;
+            }
+            NativeMemory.releaseImage(lease.getImage());
+            lease.release();
+            received++;
+        }
+        ring.close();
+        System.out.println("RESULT " + received);
+    }
+
+    private static void report(String name, long[] r, long frameBytes) {
+        double sec = r[2] / 1e9;
+        System.out.printf("%-12s written %7d (%8.1f fps, %7.3f ms/frame)  received %7d (%8.1f fps, %8.1f MB/s)%n",
+                name, r[0], r[0] / sec, r[2] / 1e6 / Math.max(1, r[0]), r[1], r[1] / sec, r[1] * frameBytes / sec / (1 << 20));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2 && args[0].equals("-reader")) {
+            reader(args[1]);
+            return;
+        }
+        int width   = args.length > 0 ? Integer.parseInt(args[0]) : 1280;
+        int height  = args.length > 1 ? Integer.parseInt(args[1]) : 960;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int slots   = args.length > 3 ? Integer.parseInt(args[3]) : SharedFrameRing.DEFAULT_SLOTS;
+
+        IplImage frame = NativeMemory.createImage(NativeMemory.Category.FRAME, cvSize(width, height), IPL_DEPTH_8U, 3);
+        cvSet(frame, cvScalar(64, 128, 192, 0));
+        long frameBytes = frame.imageSize();
+        System.out.printf("%dx%d, %d KB/frame, %d s, %d slots%n", width, height, frameBytes >> 10, seconds, slots);
+
+        report("in-process", inProcess(frame, seconds * 1000L), frameBytes);
+        long[] r = shared(frame, seconds * 1000L, slots);
+        report("shared", r, frameBytes);
+        System.out.printf("shared: %d frames dropped with all slots in use%n", r[3]);
+        NativeMemory.releaseImage(frame);
+    }
+}
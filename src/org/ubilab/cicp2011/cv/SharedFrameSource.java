@@ -0,0 +1,115 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import static com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * SharedFrameRingからAnalyticPipelineへフレームを供給するクラス
+ * <pre>
+ * 画像はリングファイルのスロットを直接参照し，コピーしない．
+ * AnalyticPipelineは取得した順にフレーム番号を振り，結果をその順に出力するため，
+ * 結果の出力（publishResult）ごとに最も古いLeaseを解放してスロットを書き込み側に返す．
+ * そのため，AnalyticPipelineのdelegateにはこのインスタンスを指定し，結果は生成時に指定したdelegateへ渡す．
+ * <blockquote>
+ * SharedFrameSource s = new SharedFrameSource(SharedFrameRing.open(file), 0, 1, delegate);
+ * new AnalyticPipeline.Builder(s, s).build().start();
+ * </blockquote>
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/26
+ */
+public class SharedFrameSource implements FrameSource, AnalyticPipelineDelegate {
+    /** 書き込み側の終了を確認する間隔[ms] */
+    private static final long WAIT_MILLIS = 200;
+
+    private static final Logger logger;
+    private final SharedFrameRing ring;
+    private final int index, count;
+    private final AnalyticPipelineDelegate delegate;
+    private final ConcurrentLinkedQueue<SharedFrameRing.Lease> leases = new ConcurrentLinkedQueue<SharedFrameRing.Lease>();
+    private volatile boolean closed = false;
+    private long lastFrame = 0, skipped = 0;
+
+    static {
+        logger = Logger.getLogger(SharedFrameSource.class.getName());
+    }
+
+    /**
+     * インスタンスを生成する
+     * @param ring 読み出し側として開いたリングファイル
+     * @param index 分担の番号（0〜count-1）
+     * @param count 分担する解析プロセスの数
+     * @param delegate 処理結果の出力先
+     * @since 2011/12/26
+     */
+    public SharedFrameSource(SharedFrameRing ring, int index, int count, AnalyticPipelineDelegate delegate) {
+        if (count < 1 || index < 0 || index >= count) throw new IllegalArgumentException("partition " + index + "/" + count);
+        this.ring = ring;
+        this.index = index;
+        this.count = count;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public IplImage grab() {
+        try {
+            while (!closed) {
+                SharedFrameRing.Lease lease = ring.acquire(index, count, WAIT_MILLIS);
+                if (lease == null) {
+                    if (ring.isClosed()) break;
+                    continue;
+                }
+                if (lastFrame > 0) skipped += (lease.getFrameNumber() - lastFrame) / count - 1;
+                lastFrame = lease.getFrameNumber();
+                leases.add(lease);
+                return lease.getImage();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot read shared frame ring", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    @Override
+    public void publishResult(AnalyticResult result) {
+        // 結果は取得した順に出力される
+        SharedFrameRing.Lease lease = leases.poll();
+        if (lease != null) lease.release();
+        if (delegate != null) delegate.publishResult(result);
+    }
+
+    /**
+     * 分担のうち，処理が追いつかずに読み飛ばしたフレーム数を返す
+     * @return フレーム数
+     * @since 2011/12/26
+     */
+    public long getSkippedCount() {
+        return skipped;
+    }
+
+    /**
+     * フレームの取得を終了する
+     * <pre>
+     * 待機中のgrabはnullを返す．AnalyticPipeline#stopの前に呼ぶこと．
+     * </pre>
+     * @since 2011/12/26
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * 残っているLeaseを解放し，リングファイルを閉じる
+     * @since 2011/12/26
+     */
+    public void release() {
+        SharedFrameRing.Lease lease;
+        while ((lease = leases.poll()) != null) lease.release();
+        ring.close();
+    }
+}
@@ -0,0 +1,24 @@
+package org.ubilab.cicp2011.cv;
+
+import static com.googlecode.javacv.cpp.opencv_core.IplImage;
+
+/**
+ * 処理途中の画像の受け取り先
+ * <pre>
+ * AnalyticProcessはデバッグ表示（AnalyticProcessDelegate#showImage）と同じ箇所で画像を渡す．
+ * 画像は呼び出しから戻った後に解放・上書きされるため，保持する場合は複製すること．
+ * 複数のスレッドから呼ばれる．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/24
+ */
+public interface StageImageSink {
+    /**
+     * 処理途中の画像を受け取る
+     * @param frameId フレーム番号
+     * @param key 画像の名前（"Source"，"Hough"，"ROI View"）
+     * @param image 画像
+     * @since 2011/12/24
+     */
+    public void stageImage(long frameId, String key, IplImage image);
+}
@@ -0,0 +1,288 @@
+package org.ubilab.cicp2011.cv;
+
+import java.util.Arrays;
+
+/**
+ * 直近のフレームの多数決でマスごとの状態を安定させるクラス
+ * <pre>
+ * マスごとに直近windowフレームの観測をリングバッファ（byte配列）に保持し，
+ * 現在の状態と異なる値がquorum票以上集まった時点でそのマスの状態を切り替える．
+ * マス目の輪郭検出は照明や反射で1フレームだけ失敗することがあり，
+ * そのまま配信すると盤面が変化していないのに差分が送られるため，これを抑える．
+ * リングバッファと票数はプリミティブ配列で保持し，updateはオブジェクトを生成しない．
+ * 出力する盤面は状態が変化したときのみ新しいBoardStateを生成し，それ以外は同じインスタンスを返すため，
+ * 受け取った側で変更してはならない．
+ * 最初の観測はそのまま初期状態とする（駒も同様）．
+ * 駒の認識結果も同じ窓で多数決をとる．安定した状態がOCCUPIEDのマスでは，現在と異なる駒（種類と先後）の観測が
+ * quorum票以上集まった時点でその駒に切り替え，それまでは前の駒を保つ．駒を認識できなかった観測は票に数えない．
+ * 安定した状態がEMPTYのマスは駒なしとする．これにより，盤面と矛盾する駒や1フレームだけの誤認識は出力されない．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/23
+ */
+public class TemporalVoter {
+    /** 既定の窓の長さ[フレーム] */
+    public static final int DEFAULT_WINDOW = 5;
+
+    private final int window;
+    private final int quorum;
+    /** 観測のリングバッファ（スロット×マス） */
+    private final byte[] ring;
+    /** マスごとのOCCUPIEDの票数 */
+    private final int[] occupied;
+    private final byte[] stable;
+    /** 駒の観測のリングバッファ（スロット×マス）．認識していない場合null */
+    private final PieceRecognizer.Piece[] pieceRing;
+    private final PieceRecognizer.Piece[] stablePieces;
+    private BoardState stableState = null;
+    private int head = 0, filled = 0;
+    private long frames = 0, changes = 0, suppressed = 0;
+
+    /**
+     * 既定の窓の長さで，過半数を条件としてインスタンスを生成する
+     * @since 2011/12/23
+     */
+    public TemporalVoter() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * 窓の長さを指定し，過半数を条件としてインスタンスを生成する
+     * @param window 窓の長さ[フレーム]
+     * @since 2011/12/23
+     */
+    public TemporalVoter(int window) {
+        this(window, window / 2 + 1);
+    }
+
+    /**
+     * 窓の長さと状態を切り替える票数を指定してインスタンスを生成する
+     * @param window 窓の長さ[フレーム]
+     * @param quorum 状態を切り替えるのに必要な票数（window / 2より大きくwindow以下）
+     * @since 2011/12/23
+     */
+    public TemporalVoter(int window, int quorum) {
+        if (window < 1) throw new IllegalArgumentException("window must be positive: " + window);
+        if (quorum <= window / 2 || quorum > window) throw new IllegalArgumentException("quorum must be a majority of " + window + ": " + quorum);
+        this.window = window;
+        this.quorum = quorum;
+        ring = new byte[window * BoardState.CELLS];
+        occupied = new int[BoardState.CELLS];
+        stable = new byte[BoardState.CELLS];
+        pieceRing = new PieceRecognizer.Piece[window * BoardState.CELLS];
+        stablePieces = new PieceRecognizer.Piece[BoardState.CELLS];
+    }
+
+    /**
+     * 観測を追加する
+     * @param state 1フレーム分の盤面
+     * @return 安定した状態が変化した場合true
+     * @since 2011/12/23
+     */
+    public synchronized boolean update(BoardState state) {
+        return update(state, null);
+    }
+
+    /**
+     * 駒の認識結果を含む観測を追加する
+     * @param state 1フレーム分の盤面
+     * @param pieces マスごとの駒（81要素）．認識を行わなかった場合null
+     * @return 安定した状態が変化した場合true
+     * @since 2011/12/30
+     */
+    public synchronized boolean update(BoardState state, PieceRecognizer.Piece[] pieces) {
+        int base = head * BoardState.CELLS;
+        boolean full = filled == window;
+        for (int i = 0; i < BoardState.CELLS; i++) {
+            byte v = state.get(i) == BoardState.EMPTY ? 0 : (byte)1;
+            if (full) occupied[i] -= ring[base + i];
+            ring[base + i] = v;
+            occupied[i] += v;
+            pieceRing[base + i] = pieces == null ? null : pieces[i];
+        }
+        head = (head + 1) % window;
+        if (!full) filled++;
+        frames++;
+
+        if (stableState == null) {
+            state.copyTo(stable, 0);
+            stableState = new BoardState(stable);
+            for (int i = 0; i < BoardState.CELLS; i++) {
+                stablePieces[i] = pieces == null || stable[i] == BoardState.EMPTY ? null : pieces[i];
+            }
+            return true;
+        }
+        boolean changed = false;
+        for (int i = 0; i < BoardState.CELLS; i++) {
+            int occ = occupied[i];
+            if (stable[i] == BoardState.EMPTY) {
+                if (occ >= quorum) {
+                    stable[i] = BoardState.OCCUPIED;
+                    changed = true;
+                } else if (state.get(i) != BoardState.EMPTY) {
+                    suppressed++;
+                }
+            } else {
+                if (filled - occ >= quorum) {
+                    stable[i] = BoardState.EMPTY;
+                    changed = true;
+                } else if (state.get(i) == BoardState.EMPTY) {
+                    suppressed++;
+                }
+            }
+        }
+        if (changed) {
+            stableState = new BoardState(stable);
+            changes++;
+        }
+        votePieces();
+        return changed;
+    }
+
+    /**
+     * マスごとの駒の多数決をとる
+     * @since 2011/12/30
+     */
+    private void votePieces() {
+        for (int i = 0; i < BoardState.CELLS; i++) {
+            if (stable[i] == BoardState.EMPTY) {
+                stablePieces[i] = null;
+                continue;
+            }
+            // 新しい観測から順に，同じ駒の票数を数える
+            PieceRecognizer.Piece best = null;
+            int bestVotes = 0;
+            for (int k = 1; k <= filled; k++) {
+                PieceRecognizer.Piece p = pieceRing[((head - k + window) % window) * BoardState.CELLS + i];
+                if (p == null || (best != null && samePiece(p, best))) continue;
+                int votes = 0;
+                for (int j = 0; j < filled; j++) {
+                    PieceRecognizer.Piece q = pieceRing[j * BoardState.CELLS + i];
+                    if (q != null && samePiece(p, q)) votes++;
+                }
+                if (votes > bestVotes) {
+                    best = p;
+                    bestVotes = votes;
+                }
+            }
+            PieceRecognizer.Piece cur = stablePieces[i];
+            if (best != null && bestVotes >= quorum && (cur == null || !samePiece(cur, best))) stablePieces[i] = best;
+        }
+    }
+
+    private static boolean samePiece(PieceRecognizer.Piece a, PieceRecognizer.Piece b) {
+        return a.getType() == b.getType() && a.isGote() == b.isGote();
+    }
+
+    /**
+     * 処理結果の盤面と駒を多数決の結果に置き換える
+     * <pre>
+     * 盤面のない結果や処理できなかった結果は投票せずにそのまま返す．
+     * 駒の認識を行わなかった結果は駒をnullのまま返す．
+     * </pre>
+     * @param result 処理結果
+     * @return 安定した盤面に置き換えた処理結果
+     * @since 2011/12/23
+     */
+    public AnalyticResult apply(AnalyticResult result) {
+        BoardState state = result.getBoardState();
+        if (!result.isValid() || state == null) return result;
+        PieceRecognizer.Piece[] pieces = result.getPieces();
+        BoardState voted;
+        synchronized (this) {
+            update(state, pieces);
+            voted = stableState;
+            if (pieces != null) pieces = stablePieces.clone();
+        }
+        return new AnalyticResult(result.getFrameId(), result.getRoiX(), result.getRoiY(), result.getRoiWidth(), result.getRoiHeight(),
+                result.getRegionX(), result.getRegionY(), result.getRegionWidth(), result.getRegionHeight(),
+                result.getSquareCount(), voted, pieces, result.getCaptureTime(), result.getPublishTime());
+    }
+
+    /**
+     * 安定した盤面を返す
+     * @return 盤面．観測がない場合null
+     * @since 2011/12/23
+     */
+    public synchronized BoardState getState() {
+        return stableState;
+    }
+
+    /**
+     * マスの確信度を返す
+     * @param index マス番号
+     * @return 直近の観測のうち安定した状態と一致する割合（0〜1）．観測がない場合0
+     * @since 2011/12/23
+     */
+    public synchronized float getConfidence(int index) {
+        if (filled == 0) return 0;
+        int agree = stable[index] == BoardState.EMPTY ? filled - occupied[index] : occupied[index];
+        return (float)agree / filled;
+    }
+
+    /**
+     * 全マスの確信度を配列にコピーする
+     * @param dst コピー先の配列
+     * @param offset コピー先の開始位置
+     * @since 2011/12/23
+     */
+    public synchronized void copyConfidence(float[] dst, int offset) {
+        for (int i = 0; i < BoardState.CELLS; i++) dst[offset + i] = getConfidence(i);
+    }
+
+    /**
+     * 全マスのうち最も低い確信度を返す
+     * @return 確信度（0〜1）
+     * @since 2011/12/23
+     */
+    public synchronized float getMinConfidence() {
+        float min = 1;
+        for (int i = 0; i < BoardState.CELLS; i++) min = Math.min(min, getConfidence(i));
+        return filled == 0 ? 0 : min;
+    }
+
+    /**
+     * 観測したフレーム数を返す
+     * @return フレーム数
+     * @since 2011/12/23
+     */
+    public synchronized long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * 安定した状態が変化した回数を返す
+     * @return 回数
+     * @since 2011/12/23
+     */
+    public synchronized long getChangeCount() {
+        return changes;
+    }
+
+    /**
+     * 票数が足りずに抑えたマスの観測の数を返す
+     * @return マスの数の累計
+     * @since 2011/12/23
+     */
+    public synchronized long getSuppressedCount() {
+        return suppressed;
+    }
+
+    /**
+     * 観測を破棄する
+     * @since 2011/12/23
+     */
+    public synchronized void reset() {
+        Arrays.fill(ring, (byte)0);
+        Arrays.fill(occupied, 0);
+        Arrays.fill(pieceRing, null);
+        Arrays.fill(stablePieces, null);
+        stableState = null;
+        head = filled = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d frames, %d changes, %d cell flickers suppressed", frames, changes, suppressed);
+    }
+}
@@ -0,0 +1,326 @@
+package org.ubilab.cicp2011.cv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+
+/**
+ * 画像を水平ストリップに分割して並列に処理するクラス
+ * <pre>
+ * 各カーネルの近傍半径に応じたのりしろ（halo）付きでストリップを切り出し，
+ * スレッドプールで並列に処理した後，のりしろを除いた内側の行だけを出力画像へ書き戻す．
+ * 全ストリップの計算が終わってから書き戻すため，入力と出力が同じ画像（in-place）でもよい．
+ * のりしろがカーネル半径以上あれば，ストリップ境界でも単一スレッド実行と同じ画素を参照するので
+ * 結果は単一スレッド実行と一致する．一致するのは近傍半径が有限の処理（色変換・平滑化・二値化・膨張など）に限る．
+ * Cannyのヒステリシス閾値処理はエッジを任意の距離まで辿るため，applyではなくcannyを用いること．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/05
+ */
+public class TiledExecutor {
+    /** 画素単位の処理（色変換・二値化）に必要なのりしろ */
+    public static final int HALO_POINT  = 0;
+    /** 3x3近傍処理（平滑化・膨張）に必要なのりしろ */
+    public static final int HALO_3x3    = 1;
+
+    /** ヒステリシスで辿る8近傍 */
+    private static final int[] DX = {-1, 0, 1, -1, 1, -1, 0, 1};
+    private static final int[] DY = {-1, -1, -1, 0, 0, 1, 1, 1};
+
+    private static final Logger logger;
+    private final ExecutorService pool;
+    private final int threads;
+    private final int strips;
+
+    static {
+        logger = Logger.getLogger(TiledExecutor.class.getName());
+    }
+
+    /**
+     * ストリップ単位で実行する処理
+     * @since 2011/12/05
+     */
+    public interface StripOperation {
+        /**
+         * 1ストリップ分の処理を行う
+         * @param src のりしろを含む入力ストリップ
+         * @param dst 入力ストリップと同じ大きさの出力先
+         * @since 2011/12/05
+         */
+        public void apply(CvArr src, CvArr dst);
+    }
+
+    /**
+     * スレッド数と同数のストリップに分割するインスタンスを生成する
+     * @param threads 使用するスレッド数
+     * @since 2011/12/05
+     */
+    public TiledExecutor(int threads) {
+        this(threads, threads);
+    }
+
+    /**
+     * スレッド数とストリップ数を指定してインスタンスを生成する
+     * @param threads 使用するスレッド数
+     * @param strips 1フレームの分割数
+     * @since 2011/12/05
+     */
+    public TiledExecutor(int threads, int strips) {
+        if (threads < 1 || strips < 1) throw new IllegalArgumentException("threads and strips must be positive");
+        this.threads = threads;
+        this.strips = strips;
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count = 0;
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread th = new Thread(r, "TiledExecutor-" + (count++));
+                th.setDaemon(true);
+                return th;
+            }
+        });
+        logger.log(Level.INFO, "TiledExecutor start: {0} threads, {1} strips", new Object[]{threads, strips});
+    }
+
+    /**
+     * 使用するスレッド数を返す
+     * @return スレッド数
+     * @since 2011/12/05
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * 入力画像をストリップに分割して並列に処理し，出力画像に結合する
+     * @param src 入力画像
+     * @param dst 出力画像（入力と同じ高さ・幅．入力と同一でもよい）
+     * @param halo ストリップの上下に付加するのりしろの行数
+     * @param op ストリップ単位の処理
+     * @since 2011/12/05
+     */
+    public void apply(IplImage src, IplImage dst, int halo, final StripOperation op) {
+        final int width = src.width();
+        final int height = src.height();
+        final int n = Math.min(strips, height / (2*halo + 1));
+        if (n <= 1) {
+            op.apply(src, dst);
+            return;
+        }
+
+        final IplImage[] scratch = new IplImage[n];
+        final int[] top = new int[n+1];
+        final int[] haloTop = new int[n];
+        for (int i = 0; i <= n; i++) top[i] = height * i / n;
+
+        try {
+            // のりしろ付きで各ストリップを計算
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(n);
+            for (int i = 0; i < n; i++) {
+                final int sy0 = Math.max(0, top[i] - halo);
+                final int sy1 = Math.min(height, top[i+1] + halo);
+                haloTop[i] = sy0;
+                scratch[i] = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvSize(width, sy1-sy0), dst.depth(), dst.nChannels());
+                final CvMat srcStrip = cvGetSubRect(src, new CvMat(), cvRect(0, sy0, width, sy1-sy0));
+                final IplImage dstStrip = scratch[i];
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        op.apply(srcStrip, dstStrip);
+                        return null;
+                    }
+                });
+            }
+            invokeAll(tasks);
+
+            // のりしろを除いた内側の行を書き戻す
+            tasks.clear();
+            for (int i = 0; i < n; i++) {
+                final int rows = top[i+1] - top[i];
+                final CvMat inner = cvGetSubRect(scratch[i], new CvMat(), cvRect(0, top[i]-haloTop[i], width, rows));
+                final CvMat out = cvGetSubRect(dst, new CvMat(), cvRect(0, top[i], width, rows));
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        cvCopy(inner, out);
+                        return null;
+                    }
+                });
+            }
+            invokeAll(tasks);
+        } finally {
+            for (IplImage img : scratch) {
+                if (img != null) NativeMemory.releaseImage(img);
+            }
+        }
+    }
+
+    /**
+     * Cannyのエッジ検出をストリップに分割して並列に行う
+     * <pre>
+     * cvCannyの出力は，勾配が下側閾値を超える非極大抑制後の画素（弱いエッジ候補）のうち，
+     * 上側閾値を超える画素と8近傍で連結しているものである．
+     * 弱いエッジ候補と上側閾値を超える画素は，それぞれ両方の閾値を同じ値にしたcvCannyの出力と一致し，
+     * どちらもSobelの半径＋非極大抑制の1画素ののりしろがあれば決まるため，ストリップ分割して求める．
+     * ヒステリシスはストリップごとに内側の行だけで並列に辿った後，
+     * ストリップ境界の行に接するエッジから画像全体を辿り直して境界をまたぐ連結を復元する．
+     * これにより出力は単一スレッドのcvCannyと一致する．
+     * </pre>
+     * @param src 入力画像（8bit・1チャンネル）
+     * @param dst 出力画像（8bit・1チャンネル．入力と同一でもよい）
+     * @param low ヒステリシスの下側閾値
+     * @param high ヒステリシスの上側閾値
+     * @param aperture Sobelのアパーチャサイズ
+     * @since 2011/12/05
+     */
+    public void canny(IplImage src, IplImage dst, double low, double high, final int aperture) {
+        final int width = src.width();
+        final int height = src.height();
+        final int halo = aperture/2 + 1;
+        final int n = Math.min(strips, height / (2*halo + 1));
+        if (n <= 1) {
+            cvCanny(src, dst, low, high, aperture);
+            return;
+        }
+        final double lo = Math.min(low, high);
+        final double hi = Math.max(low, high);
+
+        IplImage weak = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvSize(width, height), IPL_DEPTH_8U, 1);
+        try {
+            // 弱いエッジ候補を先に求めるため，in-placeでも入力が残っている
+            apply(src, weak, halo, new StripOperation() {
+                @Override
+                public void apply(CvArr s, CvArr d) { cvCanny(s, d, lo, lo, aperture); }
+            });
+            apply(src, dst, halo, new StripOperation() {
+                @Override
+                public void apply(CvArr s, CvArr d) { cvCanny(s, d, hi, hi, aperture); }
+            });
+
+            final ByteBuffer w = weak.getByteBuffer();
+            final ByteBuffer e = dst.getByteBuffer();
+            final int ws = weak.widthStep(), es = dst.widthStep();
+            final int[] top = new int[n+1];
+            for (int i = 0; i <= n; i++) top[i] = height * i / n;
+
+            // ストリップ内のヒステリシス
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(n);
+            for (int i = 0; i < n; i++) {
+                final int y0 = top[i], y1 = top[i+1];
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        ByteBuffer wd = w.duplicate(), ed = e.duplicate();
+                        int[] stack = new int[64];
+                        int sp = 0;
+                        for (int y = y0; y < y1; y++) {
+                            for (int x = 0; x < width; x++) {
+                                if (ed.get(y*es + x) == 0) continue;
+                                if (sp == stack.length) stack = Arrays.copyOf(stack, sp * 2);
+                                stack[sp++] = y*width + x;
+                            }
+                        }
+                        hysteresis(wd, ws, ed, es, width, y0, y1, stack, sp);
+                        return null;
+                    }
+                });
+            }
+            invokeAll(tasks);
+
+            // ストリップ境界をまたぐ連結
+            int[] stack = new int[64];
+            int sp = 0;
+            for (int i = 1; i < n; i++) {
+                for (int y = top[i] - 1; y <= top[i]; y++) {
+                    for (int x = 0; x < width; x++) {
+                        if (e.get(y*es + x) == 0) continue;
+                        if (sp == stack.length) stack = Arrays.copyOf(stack, sp * 2);
+                        stack[sp++] = y*width + x;
+                    }
+                }
+            }
+            hysteresis(w, ws, e, es, width, 0, height, stack, sp);
+        } finally {
+            NativeMemory.releaseImage(weak);
+        }
+    }
+
+    /**
+     * エッジの画素から8近傍で連結する弱いエッジ候補を辿り，エッジにする
+     * @param weak 弱いエッジ候補（0以外が候補）
+     * @param ws weakの行の間隔
+     * @param edge エッジ（0以外がエッジ）．辿った画素に255を書き込む
+     * @param es edgeの行の間隔
+     * @param width 画像の幅
+     * @param y0 辿る範囲の先頭行
+     * @param y1 辿る範囲の末尾の次の行
+     * @param stack 辿り始めるエッジの画素（y*width+x）
+     * @param sp stackに積まれている数
+     */
+    private static void hysteresis(ByteBuffer weak, int ws, ByteBuffer edge, int es, int width, int y0, int y1, int[] stack, int sp) {
+        while (sp > 0) {
+            int p = stack[--sp];
+            int px = p % width, py = p / width;
+            for (int k = 0; k < 8; k++) {
+                int x = px + DX[k], y = py + DY[k];
+                if (x < 0 || x >= width || y < y0 || y >= y1) continue;
+                if (weak.get(y*ws + x) == 0 || edge.get(y*es + x) != 0) continue;
+                edge.put(y*es + x, (byte)255);
+                if (sp == stack.length) stack = Arrays.copyOf(stack, sp * 2);
+                stack[sp++] = y*width + x;
+            }
+        }
+    }
+
+    /**
+     * タスクをすべて実行し，完了するまで待機する
+     * @param tasks 実行するタスク
+     * @since 2011/12/05
+     */
+    private void invokeAll(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * 2枚の画像で値の異なる画素数を返す
+     * @param a 比較する画像（8bit・1チャンネル）
+     * @param b 比較する画像（8bit・1チャンネル）
+     * @return 値の異なる画素数
+     * @since 2011/12/05
+     */
+    public static int countDifference(IplImage a, IplImage b) {
+        IplImage mask = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvGetSize(a), IPL_DEPTH_8U, 1);
+        cvCmp(a, b, mask, CV_CMP_NE);
+        int diff = cvCountNonZero(mask);
+        NativeMemory.releaseImage(mask);
+        return diff;
+    }
+
+    /**
+     * スレッドプールを停止する
+     * @since 2011/12/05
+     */
+    public void shutdown() {
+        logger.info("Shutdown TiledExecutor.");
+        pool.shutdown();
+    }
+}
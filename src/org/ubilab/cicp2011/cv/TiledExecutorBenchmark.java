@@ -0,0 +1,119 @@
+package org.ubilab.cicp2011.cv;
+
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+import static com.googlecode.javacv.cpp.opencv_highgui.*;
+
+/**
+ * TiledExecutorの速度向上率と出力の一致を計測するベンチマーク
+ * <pre>
+ * AnalyticProcessと同じ前処理（グレースケール変換・平滑化・Canny・二値化・膨張）を
+ * 単一スレッドとストリップ分割の並列実行とで比較し，スレッド数ごとの速度向上率と
+ * 単一スレッド実行との差分画素数を出力する．
+ * 1画素でも一致しないスレッド数があった場合は終了コード1で終了する．
+ * <blockquote>
+ * java org.ubilab.cicp2011.cv.TiledExecutorBenchmark [画像] [幅] [高さ] [繰り返し回数]
+ * </blockquote>
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/05
+ */
+public class TiledExecutorBenchmark {
+    private TiledExecutorBenchmark() {}
+
+    /**
+     * 前処理一式を実行する
+     * @param tiler 並列実行に用いるTiledExecutor．nullの場合は単一スレッドで実行する
+     * @param input 入力画像（8bit・3チャンネル）
+     * @param gray 作業用画像
+     * @param edge 出力画像
+     * @since 2011/12/05
+     */
+    private static void process(TiledExecutor tiler, IplImage input, IplImage gray, IplImage edge) {
+        if (tiler == null) {
+            cvCvtColor(input, gray, CV_RGB2GRAY);
+            cvSmooth(gray, gray, CV_BLUR, 2);
+            cvCanny(gray, edge, 50.0, 200.0, 3);
+            cvThreshold(edge, edge, 128, 255, CV_THRESH_BINARY);
+            cvDilate(edge, edge, null, 1);
+            return;
+        }
+        tiler.apply(input, gray, TiledExecutor.HALO_POINT, new TiledExecutor.StripOperation() {
+            @Override
+            public void apply(CvArr s, CvArr d) { cvCvtColor(s, d, CV_RGB2GRAY); }
+        });
+        tiler.apply(gray, gray, TiledExecutor.HALO_3x3, new TiledExecutor.StripOperation() {
+            @Override
+            public void apply(CvArr s, CvArr d) { cvSmooth(s, d, CV_BLUR, 2); }
+        });
+        tiler.canny(gray, edge, 50.0, 200.0, 3);
+        tiler.apply(edge, edge, TiledExecutor.HALO_POINT, new TiledExecutor.StripOperation() {
+            @Override
+            public void apply(CvArr s, CvArr d) { cvThreshold(s, d, 128, 255, CV_THRESH_BINARY); }
+        });
+        tiler.apply(edge, edge, TiledExecutor.HALO_3x3, new TiledExecutor.StripOperation() {
+            @Override
+            public void apply(CvArr s, CvArr d) { cvDilate(s, d, null, 1); }
+        });
+    }
+
+    /**
+     * 前処理を繰り返し実行し，1回あたりの平均処理時間を返す
+     * @return 平均処理時間[ms]
+     * @since 2011/12/05
+     */
+    private static double measure(TiledExecutor tiler, IplImage input, IplImage gray, IplImage edge, int iterations) {
+        // JITのウォームアップ
+        for (int i = 0; i < 3; i++) process(tiler, input, gray, edge);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) process(tiler, input, gray, edge);
+        return (System.nanoTime() - start) / 1e6 / iterations;
+    }
+
+    public static void main(String[] args) {
+        String file    = args.length > 0 ? args[0] : "dummy.jpg";
+        int width      = args.length > 1 ? Integer.parseInt(args[1]) : 1920;
+        int height     = args.length > 2 ? Integer.parseInt(args[2]) : 1080;
+        int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        int cores      = Runtime.getRuntime().availableProcessors();
+
+        IplImage loaded = cvLoadImage(file, CV_LOAD_IMAGE_COLOR);
+        if (loaded == null) {
+            System.err.println("Cannot load image: " + file);
+            return;
+        }
+        IplImage input = cvCreateImage(cvSize(width, height), IPL_DEPTH_8U, 3);
+        cvResize(loaded, input, CV_INTER_LINEAR);
+        cvReleaseImage(loaded);
+
+        CvSize size = cvGetSize(input);
+        IplImage gray = cvCreateImage(size, IPL_DEPTH_8U, 1);
+        IplImage reference = cvCreateImage(size, IPL_DEPTH_8U, 1);
+        IplImage edge = cvCreateImage(size, IPL_DEPTH_8U, 1);
+
+        double base = measure(null, input, gray, reference, iterations);
+        System.out.printf("%dx%d, %d iterations, %d cores%n", width, height, iterations, cores);
+        System.out.printf("threads=single  %8.2f ms%n", base);
+
+        int mismatches = 0;
+        for (int t = 1; t <= cores; t++) {
+            TiledExecutor tiler = new TiledExecutor(t);
+            double time = measure(tiler, input, gray, edge, iterations);
+            int diff = TiledExecutor.countDifference(reference, edge);
+            System.out.printf("threads=%-6d  %8.2f ms  speedup=%5.2f  diff=%d%s%n",
+                    t, time, base / time, diff, diff == 0 ? "" : "  MISMATCH");
+            if (diff != 0) mismatches++;
+            tiler.shutdown();
+        }
+
+        cvReleaseImage(edge);
+        cvReleaseImage(reference);
+        cvReleaseImage(gray);
+        cvReleaseImage(input);
+        if (mismatches > 0) {
+            System.err.println("Tiled output differs from single-threaded output for " + mismatches + " thread counts");
+            System.exit(1);
+        }
+    }
+}
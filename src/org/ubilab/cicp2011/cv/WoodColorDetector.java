@@ -0,0 +1,205 @@
+package org.ubilab.cicp2011.cv;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+import static com.googlecode.javacv.cpp.opencv_core.*;
+import static com.googlecode.javacv.cpp.opencv_imgproc.*;
+import static com.googlecode.javacpp.Loader.*;
+
+/**
+ * 盤の木目の色からROIを検出するクラス
+ * <pre>
+ * フレームを縮小してHSVに変換し，木目の色の範囲にある画素を抽出する．
+ * 格子線を埋めるためにクロージングを行った後，最大の連結成分の外接矩形をROIとする．
+ * 最大の連結成分がフレームに対して小さすぎる場合や，外接矩形に対する面積の比（矩形度）が低い場合は
+ * 確信度が低いとしてnullを返す．縮小した画像のみを扱うため，Canny・Hough変換よりも大幅に軽い．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/16
+ */
+public class WoodColorDetector implements RoiDetector {
+    /** 縮小率 */
+    public static final int DEFAULT_SCALE = 4;
+    /** 木目の色の既定の範囲（H: 0〜180, S, V: 0〜255） */
+    public static final CvScalar DEFAULT_LOWER = cvScalar(8, 60, 90, 0);
+    public static final CvScalar DEFAULT_UPPER = cvScalar(32, 210, 255, 0);
+    /** 盤とみなす最小の面積比（フレームに対する連結成分の面積） */
+    public static final double MIN_AREA_RATIO = 0.05;
+    /** 盤とみなす最小の矩形度（外接矩形に対する連結成分の面積） */
+    public static final double MIN_RECTANGULARITY = 0.75;
+
+    private static final Logger logger;
+    private final int scale;
+    private final CvScalar lower, upper;
+    private final CvMemStorage storage;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private IplImage small = null, hsv = null, mask = null;
+    private double lastConfidence = 0;
+    private float[] lastCorners = null;
+
+    static {
+        logger = Logger.getLogger(WoodColorDetector.class.getName());
+    }
+
+    /**
+     * 既定の色の範囲でインスタンスを生成する
+     * @since 2011/12/16
+     */
+    public WoodColorDetector() {
+        this(DEFAULT_SCALE, DEFAULT_LOWER, DEFAULT_UPPER);
+    }
+
+    /**
+     * 縮小率と色の範囲を指定してインスタンスを生成する
+     * @param scale 縮小率
+     * @param lower HSVの下限
+     * @param upper HSVの上限
+     * @since 2011/12/16
+     */
+    public WoodColorDetector(int scale, CvScalar lower, CvScalar upper) {
+        this.scale = Math.max(1, scale);
+        this.lower = lower;
+        this.upper = upper;
+        storage = NativeMemory.createStorage();
+    }
+
+    @Override
+    public synchronized CvRect detect(IplImage input) {
+        int w = Math.max(1, input.width() / scale), h = Math.max(1, input.height() / scale);
+        prepare(w, h);
+
+        // 縮小・HSV変換・色の範囲で抽出
+        cvResize(input, small, CV_INTER_AREA);
+        cvCvtColor(small, hsv, CV_BGR2HSV);
+        cvInRangeS(hsv, lower, upper, mask);
+        // 格子線や駒による欠けを埋める
+        cvMorphologyEx(mask, mask, null, null, CV_MOP_CLOSE, 2);
+
+        // 最大の連結成分
+        CvSeq contours = new CvSeq(null);
+        cvFindContours(mask, storage, contours, sizeof(CvContour.class), CV_RETR_EXTERNAL, CV_CHAIN_APPROX_SIMPLE);
+        CvSeq best = null;
+        double bestArea = 0;
+        for (CvSeq c = contours; c != null && !c.isNull(); c = c.h_next()) {
+            if (c.elem_size() <= 0) continue;
+            double area = cvContourArea(c, CV_WHOLE_SEQ, 0);
+            if (area > bestArea) {
+                bestArea = area;
+                best = c;
+            }
+        }
+
+        CvRect result = null;
+        lastConfidence = 0;
+        lastCorners = null;
+        if (best != null) {
+            CvRect r = cvBoundingRect(best, 0);
+            double rectangularity = bestArea / Math.max(1, r.width() * r.height());
+            double areaRatio = bestArea / (w * h);
+            lastConfidence = areaRatio < MIN_AREA_RATIO ? 0 : rectangularity;
+            if (areaRatio >= MIN_AREA_RATIO && rectangularity >= MIN_RECTANGULARITY) {
+                // 元の解像度に戻す
+                int x0 = r.x() * scale, y0 = r.y() * scale;
+                int x1 = Math.min(input.width(), (r.x() + r.width()) * scale);
+                int y1 = Math.min(input.height(), (r.y() + r.height()) * scale);
+                result = cvRect(x0, y0, x1 - x0, y1 - y0);
+                lastCorners = corners(best);
+            }
+        }
+        cvClearMemStorage(storage);
+        NativeMemory.updateStorage(storage);
+
+        if (result != null) hits.incrementAndGet();
+        else misses.incrementAndGet();
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, "Wood color ROI: {0} (confidence {1})",
+                    new Object[]{result == null ? "fallback" : result.toString(), String.format("%.2f", lastConfidence)});
+        }
+        return result;
+    }
+
+    /**
+     * 連結成分を囲む最小面積の四角形の頂点を元の解像度で求める
+     * @param contour 連結成分の輪郭
+     * @return 4頂点の座標（x, yの繰り返し）
+     * @since 2011/12/16
+     */
+    private float[] corners(CvSeq contour) {
+        CvBox2D box = cvMinAreaRect2(contour, null);
+        CvPoint2D32f pts = new CvPoint2D32f(4);
+        cvBoxPoints(box, pts);
+        float[] c = new float[8];
+        for (int i = 0; i < 4; i++) {
+            pts.position(i);
+            c[i * 2] = pts.x() * scale;
+            c[i * 2 + 1] = pts.y() * scale;
+        }
+        return c;
+    }
+
+    /**
+     * 作業用画像を確保する
+     * @since 2011/12/16
+     */
+    private void prepare(int w, int h) {
+        if (small != null && small.width() == w && small.height() == h) return;
+        releaseImages();
+        small = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvSize(w, h), IPL_DEPTH_8U, 3);
+        hsv = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvSize(w, h), IPL_DEPTH_8U, 3);
+        mask = NativeMemory.createImage(NativeMemory.Category.SCRATCH, cvSize(w, h), IPL_DEPTH_8U, 1);
+    }
+
+    private void releaseImages() {
+        NativeMemory.releaseImage(small);
+        NativeMemory.releaseImage(hsv);
+        NativeMemory.releaseImage(mask);
+        small = hsv = mask = null;
+    }
+
+    /**
+     * 直前の検出の確信度（矩形度）を返す
+     * @return 0〜1の確信度
+     * @since 2011/12/16
+     */
+    public synchronized double getLastConfidence() {
+        return lastConfidence;
+    }
+
+    /**
+     * 直前に検出した盤を囲む四角形の頂点を返す
+     * @return 4頂点の座標（x, yの繰り返し）．検出できなかった場合null
+     * @since 2011/12/16
+     */
+    public synchronized float[] getLastCorners() {
+        return lastCorners == null ? null : lastCorners.clone();
+    }
+
+    /**
+     * 色による検出に成功した回数を返す
+     * @return 成功した回数
+     * @since 2011/12/16
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Hough変換による検出に切り替えた回数を返す
+     * @return 切り替えた回数
+     * @since 2011/12/16
+     */
+    public long getFallbackCount() {
+        return misses.get();
+    }
+
+    /**
+     * 作業用画像とメモリストレージを解放する
+     * @since 2011/12/16
+     */
+    public synchronized void release() {
+        releaseImages();
+        NativeMemory.releaseStorage(storage);
+    }
+}
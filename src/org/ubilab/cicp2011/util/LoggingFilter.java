@@ -0,0 +1,26 @@
+package org.ubilab.cicp2011.util;
+
+import java.util.logging.Filter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * ログファイル出力用のフィルタ
+ * <pre>
+ * logging.propertiesでは全体のレベルをFINEにしているため，Swing/AWTなど
+ * 外部ライブラリの詳細ログまでファイルに出力されてしまう．
+ * 本プロジェクト（org.ubilab）のロガー以外はINFO以上のみを通す．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/07
+ */
+public class LoggingFilter implements Filter {
+    private static final String PREFIX = "org.ubilab.";
+
+    @Override
+    public boolean isLoggable(LogRecord record) {
+        if (record.getLevel().intValue() >= Level.INFO.intValue()) return true;
+        String name = record.getLoggerName();
+        return name != null && name.startsWith(PREFIX);
+    }
+}
@@ -0,0 +1,121 @@
+package org.ubilab.cicp2011.cv;
+
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * BoardStateServerとBoardStateClientの配信のテスト
+ * @author atsushi-o
+ * @since 2011/12/30
+ */
+public class BoardStateServerTest {
+    private BoardStateServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new BoardStateServer(0, 2);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private static BoardState board(int... empty) {
+        BoardState s = new BoardState();
+        for (int i : empty) s.set(i, BoardState.EMPTY);
+        return s;
+    }
+
+    /**
+     * 接続直後にスナップショットを，以降は差分を受信して同じ盤面になること
+     */
+    @Test(timeout = 10000)
+    public void testSnapshotThenDelta() throws Exception {
+        server.publish(1, board(0, 1, 2));
+        BoardStateClient client = new BoardStateClient("localhost", server.getPort());
+        try {
+            assertEquals(1, client.readUpdate());
+            assertEquals(board(0, 1, 2), client.getState());
+
+            // 変化のない盤面は配信しない
+            server.publish(2, board(0, 1, 2));
+            server.publish(3, board(0, 2, 80));
+            assertEquals(3, client.readUpdate());
+            assertEquals(board(0, 2, 80), client.getState());
+            assertEquals(2, client.getReceivedCount());
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * 後から接続したクライアントも最新の盤面から始まること
+     */
+    @Test(timeout = 10000)
+    public void testLateSubscriber() throws Exception {
+        BoardStateClient first = new BoardStateClient("localhost", server.getPort());
+        waitForClients(1);
+        server.publish(1, board(10));
+        server.publish(2, board(10, 20));
+        BoardStateClient late = new BoardStateClient("localhost", server.getPort());
+        try {
+            assertEquals(2, late.readUpdate());
+            assertEquals(board(10, 20), late.getState());
+            while (first.readUpdate() != 2) {}
+            assertEquals(board(10, 20), first.getState());
+        } finally {
+            first.close();
+            late.close();
+        }
+    }
+
+    /**
+     * 読み出しが遅いクライアントも，差分を破棄した場合を含めて最新の盤面に追いつくこと
+     */
+    @Test(timeout = 20000)
+    public void testSlowSubscriberConverges() throws Exception {
+        BoardStateClient client = new BoardStateClient("localhost", server.getPort());
+        try {
+            waitForClients(1);
+            Random rand = new Random(2011);
+            BoardState state = new BoardState();
+            int frames = 2000;
+            for (int f = 1; f <= frames; f++) {
+                for (int i = 0; i < BoardState.CELLS; i++) {
+                    state.set(i, rand.nextInt(2) == 0 ? BoardState.EMPTY : BoardState.OCCUPIED);
+                }
+                server.publish(f, state);
+            }
+            long frameId;
+            do {
+                frameId = client.readUpdate();
+            } while (frameId != frames);
+            assertEquals(state, client.getState());
+            assertTrue(client.getReceivedCount() <= frames);
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * 切断したクライアントが配信先から外れること
+     */
+    @Test(timeout = 10000)
+    public void testDisconnect() throws Exception {
+        BoardStateClient client = new BoardStateClient("localhost", server.getPort());
+        waitForClients(1);
+        client.close();
+        waitForClients(0);
+        server.publish(1, board(5));
+        assertEquals(0, server.getClientCount());
+    }
+
+    private void waitForClients(int n) throws InterruptedException {
+        while (server.getClientCount() != n) Thread.sleep(10);
+    }
+}
@@ -0,0 +1,226 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * ClusterCoordinatorの並べ替えとワーカ障害時の再割り当てのテスト
+ * <pre>
+ * ワーカは画像を処理せず，対局台ごとのフレーム番号をマス目の数として返すソケットで代用する．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/30
+ */
+public class ClusterCoordinatorTest {
+    private static final int FRAMES = 100;
+
+    private ClusterCoordinator coordinator;
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    private final Map<Integer, List<AnalyticResult>> results = new HashMap<Integer, List<AnalyticResult>>();
+    private CountDownLatch published;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (coordinator != null) coordinator.stop();
+        synchronized (sockets) {
+            for (Socket s : sockets) closeQuietly(s);
+        }
+        for (Thread th : threads) th.join(5000);
+    }
+
+    private void startCoordinator(int maxPending, long jobTimeout, int expected) throws IOException {
+        published = new CountDownLatch(expected);
+        coordinator = new ClusterCoordinator(0, maxPending, jobTimeout, new ClusterCoordinatorDelegate() {
+            @Override
+            public void publishResult(int table, AnalyticResult result) {
+                synchronized (results) {
+                    List<AnalyticResult> list = results.get(table);
+                    if (list == null) {
+                        list = new ArrayList<AnalyticResult>();
+                        results.put(table, list);
+                    }
+                    list.add(result);
+                }
+                published.countDown();
+            }
+        });
+        coordinator.start();
+    }
+
+    private Socket connect() throws IOException {
+        Socket s = new Socket("localhost", coordinator.getPort());
+        s.setTcpNoDelay(true);
+        synchronized (sockets) {
+            sockets.add(s);
+        }
+        return s;
+    }
+
+    private void spawn(Runnable r) {
+        Thread th = new Thread(r);
+        th.setDaemon(true);
+        threads.add(th);
+        th.start();
+    }
+
+    /**
+     * 偽のワーカを接続する
+     * @param capacity 同時に処理するフレーム数
+     * @param replyLimit 結果を返すフレーム数．負の場合は制限しない
+     * @param closeAfter このフレーム数を受け取ったら結果を返さずに切断する．負の場合は切断しない
+     * @param received 受け取ったフレームごとに減らすラッチ．nullの場合は使わない
+     */
+    private void startWorker(final int capacity, final int replyLimit, final int closeAfter,
+            final CountDownLatch received) throws IOException {
+        final Socket s = connect();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        ClusterProtocol.writeHello(out, ClusterProtocol.HELLO_WORKER, capacity);
+        spawn(new Runnable() {
+            @Override
+            public void run() {
+                Random rand = new Random(s.getLocalPort());
+                int n = 0;
+                try {
+                    while (true) {
+                        ClusterProtocol.Message m = ClusterProtocol.read(in);
+                        n++;
+                        if (received != null) received.countDown();
+                        if (closeAfter >= 0 && n >= closeAfter) {
+                            s.close();
+                            return;
+                        }
+                        if (replyLimit >= 0 && n > replyLimit) continue;
+                        // 処理時間をばらつかせて，ワーカ間で結果の届く順番を入れ替える
+                        Thread.sleep(rand.nextInt(5));
+                        ClusterProtocol.writeResult(out, m.job, m.roiX, m.roiY, 90, 90, (int)m.frame, null);
+                    }
+                } catch (IOException e) {
+                    // コーディネータが切断した
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+    }
+
+    /**
+     * キャプチャ側を接続してフレームを送る
+     */
+    private void sendFrames(int table, int frames) throws IOException {
+        Socket s = connect();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        ClusterProtocol.writeHello(out, ClusterProtocol.HELLO_CAPTURE, table);
+        byte[] jpeg = new byte[100];
+        for (int i = 0; i < frames; i++) {
+            ClusterProtocol.writeFrame(out, 0, table, 1000 + i, 0, 0, false, jpeg);
+        }
+    }
+
+    private void startCapture(final int table, final int frames) {
+        spawn(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sendFrames(table, frames);
+                } catch (IOException e) {
+                    fail(e.getMessage());
+                }
+            }
+        });
+    }
+
+    private List<AnalyticResult> resultsOf(int table) {
+        synchronized (results) {
+            List<AnalyticResult> list = results.get(table);
+            return list == null ? new ArrayList<AnalyticResult>() : new ArrayList<AnalyticResult>(list);
+        }
+    }
+
+    /** 対局台の結果が通し番号順に揃い，処理したフレームはワーカの返した内容であること */
+    private void assertInOrder(int table, int frames, int firstValid) {
+        List<AnalyticResult> list = resultsOf(table);
+        assertEquals(frames, list.size());
+        for (int i = 0; i < frames; i++) {
+            AnalyticResult r = list.get(i);
+            assertEquals(i, r.getFrameId());
+            assertEquals(i < firstValid ? -1 : i, r.getSquareCount());
+        }
+    }
+
+    /**
+     * 結果の届く順番が入れ替わっても，対局台ごとにフレーム順に出力すること．
+     * ワーカが切断した場合，処理中のフレームを他のワーカに割り当て直すこと
+     */
+    @Test(timeout = 20000)
+    public void testReorderAndFailover() throws Exception {
+        startCoordinator(1000, 5000, 2 * FRAMES);
+        CountDownLatch received = new CountDownLatch(2);
+        startWorker(2, 0, 2, received);
+        startCapture(0, FRAMES);
+        startCapture(1, FRAMES);
+        // 最初のワーカが2フレームを受け取ったまま切断してから，正常なワーカを接続する
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        startWorker(2, -1, -1, null);
+        startWorker(3, -1, -1, null);
+
+        assertTrue(published.await(15, TimeUnit.SECONDS));
+        assertInOrder(0, FRAMES, 0);
+        assertInOrder(1, FRAMES, 0);
+        assertTrue(coordinator.getReassignedCount() >= 2);
+    }
+
+    /**
+     * 結果を返さなくなったワーカを時間切れで切断し，処理中のフレームを割り当て直すこと
+     */
+    @Test(timeout = 20000)
+    public void testStalledWorkerTimesOut() throws Exception {
+        startCoordinator(1000, 300, FRAMES);
+        CountDownLatch received = new CountDownLatch(2);
+        startWorker(2, 0, -1, received);
+        startCapture(0, FRAMES);
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        startWorker(2, -1, -1, null);
+
+        assertTrue(published.await(15, TimeUnit.SECONDS));
+        assertInOrder(0, FRAMES, 0);
+        assertTrue(coordinator.getReassignedCount() >= 2);
+        assertEquals(1, coordinator.getWorkerCount());
+    }
+
+    /**
+     * 待ち行列から溢れたフレームを処理できなかった結果として順番どおりに出力すること
+     */
+    @Test(timeout = 20000)
+    public void testOverflowPublishedAsFailed() throws Exception {
+        int maxPending = 4;
+        startCoordinator(maxPending, 5000, FRAMES);
+        sendFrames(0, FRAMES);
+        while (resultsOf(0).size() < FRAMES - maxPending) Thread.sleep(10);
+        startWorker(2, -1, -1, null);
+
+        assertTrue(published.await(15, TimeUnit.SECONDS));
+        assertInOrder(0, FRAMES, FRAMES - maxPending);
+    }
+
+    private static void closeQuietly(Socket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * GameRecordLogの記録と障害からの復旧のテスト
+ * @author atsushi-o
+ * @since 2011/12/30
+ */
+public class GameRecordLogTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("GameRecordLogTest", ".kif");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /** 手数nの盤面：マス0〜nを空きとする */
+    private static BoardState board(int n) {
+        BoardState s = new BoardState();
+        for (int i = 0; i <= n; i++) s.set(i, BoardState.EMPTY);
+        return s;
+    }
+
+    private void appendMoves(GameRecordLog log, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) assertTrue(log.append(1000 + i, i, board(i)));
+    }
+
+    private void assertMoves(GameRecordLog log, int n) {
+        assertEquals(n, log.size());
+        GameRecordLog.Entry e = new GameRecordLog.Entry();
+        for (int i = 0; i < n; i++) {
+            log.read(i, e);
+            assertEquals(i, e.moveNumber);
+            assertEquals(i, e.frameId);
+            assertEquals(board(i), new BoardState(e.cells));
+        }
+    }
+
+    /** レコードの1バイトを書き換えて書き込み途中の状態にする */
+    private void tear(int moveNumber) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long off = GameRecordLog.HEADER_SIZE + (long)moveNumber * GameRecordLog.RECORD_SIZE + 30;
+            raf.seek(off);
+            int b = raf.read();
+            raf.seek(off);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 閉じて開き直したときに記録した内容を読み出せること
+     */
+    @Test
+    public void testReopen() throws IOException {
+        GameRecordLog log = new GameRecordLog(file);
+        appendMoves(log, 0, 5);
+        // 変化のない盤面は記録しない
+        assertFalse(log.append(2000, 99, board(4)));
+        log.close();
+
+        log = new GameRecordLog(file);
+        try {
+            assertMoves(log, 5);
+            appendMoves(log, 5, 8);
+            assertMoves(log, 8);
+        } finally {
+            log.close();
+        }
+    }
+
+    /**
+     * レコードの途中で切れたファイルは完全なレコードまでを復旧すること
+     */
+    @Test
+    public void testRecoverTruncated() throws IOException {
+        GameRecordLog log = new GameRecordLog(file);
+        appendMoves(log, 0, 6);
+        log.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(GameRecordLog.HEADER_SIZE + 4L * GameRecordLog.RECORD_SIZE + GameRecordLog.RECORD_SIZE / 2);
+        raf.close();
+
+        log = new GameRecordLog(file);
+        try {
+            assertMoves(log, 4);
+            appendMoves(log, 4, 7);
+            assertMoves(log, 7);
+        } finally {
+            log.close();
+        }
+    }
+
+    /**
+     * 壊れたレコードで復旧を止め，その後ろのレコードを捨てること
+     */
+    @Test
+    public void testRecoverTornRecord() throws IOException {
+        GameRecordLog log = new GameRecordLog(file);
+        appendMoves(log, 0, 6);
+        log.close();
+        tear(3);
+
+        log = new GameRecordLog(file);
+        try {
+            assertMoves(log, 3);
+        } finally {
+            log.close();
+        }
+    }
+
+    /**
+     * 壊れたレコードの後ろに残った以前のセッションのレコードが，
+     * 再び追記した後の障害で復活しないこと
+     */
+    @Test
+    public void testStaleRecordNotResurrected() throws IOException {
+        GameRecordLog log = new GameRecordLog(file);
+        appendMoves(log, 0, 6);
+        log.sync();
+        // 1つ目のセッションが閉じずに落ち，手数2が書き込み途中だった
+        tear(2);
+
+        GameRecordLog second = new GameRecordLog(file);
+        GameRecordLog third = null;
+        try {
+            assertMoves(second, 2);
+            // 2つ目のセッションが手数2を記録した直後に落ちた．手数3〜5は1つ目のセッションの残骸
+            appendMoves(second, 2, 3);
+            second.sync();
+
+            third = new GameRecordLog(file);
+            assertMoves(third, 3);
+            appendMoves(third, 3, 5);
+            assertMoves(third, 5);
+        } finally {
+            if (third != null) third.close();
+            second.close();
+            log.close();
+        }
+    }
+
+    /**
+     * 読み出し専用で開いてもファイルを変更せず，記録中のセッションの追記と復旧に影響しないこと
+     */
+    @Test
+    public void testReadOnlyLeavesFileUntouched() throws IOException {
+        GameRecordLog log = new GameRecordLog(file);
+        try {
+            appendMoves(log, 0, 5);
+            log.sync();
+            long length = file.length();
+            byte[] header = readHeader();
+
+            GameRecordLog reader = new GameRecordLog(file, true);
+            try {
+                assertMoves(reader, 5);
+            } finally {
+                reader.close();
+            }
+            assertEquals(length, file.length());
+            assertArrayEquals(header, readHeader());
+
+            appendMoves(log, 5, 8);
+            log.sync();
+        } finally {
+            log.close();
+        }
+        log = new GameRecordLog(file);
+        try {
+            assertMoves(log, 8);
+        } finally {
+            log.close();
+        }
+    }
+
+    /**
+     * 読み出し専用で開いた棋譜には追記できないこと
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testReadOnlyRejectsAppend() throws IOException {
+        GameRecordLog log = new GameRecordLog(file);
+        appendMoves(log, 0, 1);
+        log.close();
+        GameRecordLog reader = new GameRecordLog(file, true);
+        try {
+            reader.append(2000, 1, board(1));
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * 存在しないファイルを読み出し専用で開いても作成しないこと
+     */
+    @Test
+    public void testReadOnlyMissingFile() {
+        try {
+            new GameRecordLog(file, true);
+            fail();
+        } catch (IOException e) {
+            // ファイルが存在しない
+        }
+        assertFalse(file.exists());
+    }
+
+    private byte[] readHeader() throws IOException {
+        byte[] b = new byte[GameRecordLog.HEADER_SIZE];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(b);
+        } finally {
+            raf.close();
+        }
+        return b;
+    }
+
+    /**
+     * 古い形式のファイルや棋譜ファイルでないファイルを開かないこと
+     */
+    @Test(expected = IOException.class)
+    public void testRejectForeignFile() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(new byte[GameRecordLog.HEADER_SIZE + GameRecordLog.RECORD_SIZE]);
+        raf.close();
+        new GameRecordLog(file);
+    }
+}
@@ -0,0 +1,189 @@
+package org.ubilab.cicp2011.cv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * SharedFrameRingの読み出し側のシーケンス番号の扱いのテスト
+ * <pre>
+ * 書き込み側はネイティブのライブラリを用いるため，ファイル形式に従ってリングファイルを直接書き換えて代用する．
+ * </pre>
+ * @author atsushi-o
+ * @since 2011/12/30
+ */
+public class SharedFrameRingTest {
+    private static final int SLOTS = 4, WIDTH = 4, HEIGHT = 2, CHANNELS = 3, STEP = 12;
+    private static final int SLOT_SIZE = (SharedFrameRing.SLOT_HEADER_SIZE + STEP * HEIGHT + 63) & ~63;
+
+    private File file;
+    private RandomAccessFile raf;
+    private MappedByteBuffer map;
+    private SharedFrameRing reader;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("SharedFrameRingTest", ".ring");
+        raf = new RandomAccessFile(file, "rw");
+        long length = SharedFrameRing.HEADER_SIZE + (long)SLOTS * SLOT_SIZE;
+        raf.setLength(length);
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        map.putInt(0, 0x5346524d).putInt(4, 1).putInt(8, SLOTS).putInt(12, WIDTH).putInt(16, HEIGHT)
+                .putInt(20, CHANNELS).putInt(24, STEP).putInt(28, SLOT_SIZE).putLong(32, 0).putLong(40, 0)
+                .putInt(48, 0).putInt(52, 0);
+        reader = SharedFrameRing.open(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        reader.close();
+        raf.close();
+        file.delete();
+    }
+
+    private int slotOffset(int slot) {
+        return SharedFrameRing.HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /** フレームnの書き込みを始める（シーケンス番号を2n-1にする） */
+    private void begin(long n, int slot) {
+        int off = slotOffset(slot);
+        map.putLong(off, 2 * n - 1);
+        map.putLong(off + 8, n);
+        map.putLong(off + 16, 1000 + n);
+    }
+
+    /** フレームnの書き込みを完了する */
+    private void finish(long n, int slot) {
+        map.putLong(slotOffset(slot), 2 * n);
+    }
+
+    /** 最新のフレームを公開する */
+    private void publish(long n, int slot) {
+        map.putLong(32, n);
+        map.putInt(48, slot);
+    }
+
+    private void write(long n, int slot) {
+        begin(n, slot);
+        finish(n, slot);
+        publish(n, slot);
+    }
+
+    /**
+     * 最新のフレームだけを取得し，新しいフレームがなければ時間切れになること
+     */
+    @Test(timeout = 5000)
+    public void testAcquireLatest() throws Exception {
+        write(1, 0);
+        write(2, 1);
+        write(3, 2);
+        SharedFrameRing.Lease lease = reader.acquire(0, 1, 1000);
+        assertNotNull(lease);
+        assertEquals(3, lease.getFrameNumber());
+        assertEquals(1003, lease.getCaptureTime());
+        lease.release();
+
+        assertNull(reader.acquire(0, 1, 20));
+        write(4, 3);
+        lease = reader.acquire(0, 1, 1000);
+        assertEquals(4, lease.getFrameNumber());
+        lease.release();
+    }
+
+    /**
+     * 公開されたスロットの書き込みが途中で止まっている場合，待ち続けずに時間切れになること
+     */
+    @Test(timeout = 5000)
+    public void testTornSequenceTimesOut() throws Exception {
+        write(1, 0);
+        begin(2, 1);
+        publish(2, 1);
+        long start = System.currentTimeMillis();
+        assertNull(reader.acquire(0, 1, 100));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+    }
+
+    /**
+     * 書き込みの途中を読んだ場合，完了を待ってから取得すること
+     */
+    @Test(timeout = 5000)
+    public void testTornSequenceCompletes() throws Exception {
+        begin(1, 0);
+        publish(1, 0);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                }
+                finish(1, 0);
+            }
+        });
+        producer.start();
+        SharedFrameRing.Lease lease = reader.acquire(0, 1, 2000);
+        producer.join();
+        assertNotNull(lease);
+        assertEquals(1, lease.getFrameNumber());
+        lease.release();
+    }
+
+    /**
+     * 公開された番号と異なるフレームでスロットが再利用されていた場合，次の公開を待つこと
+     */
+    @Test(timeout = 5000)
+    public void testSlotReused() throws Exception {
+        write(5, 0);
+        // フレーム5を公開した後，読み出す前にスロット0がフレーム6で上書きされた
+        begin(6, 0);
+        finish(6, 0);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                }
+                publish(6, 0);
+            }
+        });
+        producer.start();
+        SharedFrameRing.Lease lease = reader.acquire(0, 1, 2000);
+        producer.join();
+        assertNotNull(lease);
+        assertEquals(6, lease.getFrameNumber());
+        lease.release();
+    }
+
+    /**
+     * 分担の番号に合わないフレームは取得しないこと
+     */
+    @Test(timeout = 5000)
+    public void testPartition() throws Exception {
+        write(4, 0);
+        assertNull(reader.acquire(1, 2, 20));
+        write(5, 1);
+        SharedFrameRing.Lease lease = reader.acquire(1, 2, 1000);
+        assertEquals(5, lease.getFrameNumber());
+        lease.release();
+    }
+
+    /**
+     * 書き込み側が終了した場合，時間切れを待たずにnullを返すこと
+     */
+    @Test(timeout = 5000)
+    public void testClosedWhileTorn() throws Exception {
+        begin(1, 0);
+        publish(1, 0);
+        map.putInt(52, 1);
+        assertTrue(reader.isClosed());
+        assertNull(reader.acquire(0, 1, 60000));
+    }
+}
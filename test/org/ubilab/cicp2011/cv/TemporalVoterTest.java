@@ -0,0 +1,80 @@
+package org.ubilab.cicp2011.cv;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * TemporalVoterの多数決のテスト
+ * @author atsushi-o
+ * @since 2011/12/30
+ */
+public class TemporalVoterTest {
+    private TemporalVoter voter;
+    private long frame;
+
+    @Before
+    public void setUp() {
+        voter = new TemporalVoter(5, 3);
+        frame = 0;
+    }
+
+    /** マス0〜2に駒があり，マス0の駒がtypeの観測 */
+    private AnalyticResult observe(PieceType type, boolean gote) {
+        BoardState s = new BoardState();
+        for (int i = 3; i < BoardState.CELLS; i++) s.set(i, BoardState.EMPTY);
+        PieceRecognizer.Piece[] pieces = new PieceRecognizer.Piece[BoardState.CELLS];
+        if (type != null) pieces[0] = new PieceRecognizer.Piece(type, gote, 0.9);
+        pieces[1] = new PieceRecognizer.Piece(PieceType.OU, false, 0.9);
+        return voter.apply(new AnalyticResult(frame++, 0, 0, 90, 90, 81 - 3, s, pieces, 0, 0));
+    }
+
+    private static void assertPiece(PieceType type, boolean gote, PieceRecognizer.Piece p) {
+        assertNotNull(p);
+        assertEquals(type, p.getType());
+        assertEquals(gote, p.isGote());
+    }
+
+    /**
+     * 1フレームだけの誤認識では駒が変わらず，quorum票集まった時点で切り替わること
+     */
+    @Test
+    public void testPieceNeedsQuorum() {
+        assertPiece(PieceType.FU, false, observe(PieceType.FU, false).getPieces()[0]);
+        assertPiece(PieceType.FU, false, observe(PieceType.KIN, false).getPieces()[0]);
+        // 認識できなかった観測は票に数えず，前の駒を保つ
+        assertPiece(PieceType.FU, false, observe(null, false).getPieces()[0]);
+        assertPiece(PieceType.FU, false, observe(PieceType.FU, true).getPieces()[0]);
+        assertPiece(PieceType.FU, false, observe(PieceType.KIN, false).getPieces()[0]);
+        assertPiece(PieceType.KIN, false, observe(PieceType.KIN, false).getPieces()[0]);
+        assertPiece(PieceType.OU, false, observe(PieceType.KIN, false).getPieces()[1]);
+    }
+
+    /**
+     * 安定した状態がEMPTYのマスには駒を出力しないこと
+     */
+    @Test
+    public void testNoPieceOnEmptyCell() {
+        observe(PieceType.FU, false);
+        // マス5に駒があるという1フレームだけの観測
+        BoardState s = new BoardState();
+        for (int i = 3; i < BoardState.CELLS; i++) if (i != 5) s.set(i, BoardState.EMPTY);
+        PieceRecognizer.Piece[] pieces = new PieceRecognizer.Piece[BoardState.CELLS];
+        pieces[5] = new PieceRecognizer.Piece(PieceType.HI, false, 0.9);
+        AnalyticResult r = voter.apply(new AnalyticResult(frame++, 0, 0, 90, 90, 81 - 4, s, pieces, 0, 0));
+        assertEquals(BoardState.EMPTY, r.getBoardState().get(5));
+        assertNull(r.getPieces()[5]);
+        assertPiece(PieceType.FU, false, r.getPieces()[0]);
+    }
+
+    /**
+     * 駒の認識を行わなかった結果は駒をnullのまま返すこと
+     */
+    @Test
+    public void testWithoutPieces() {
+        BoardState s = new BoardState();
+        AnalyticResult r = voter.apply(new AnalyticResult(frame++, 0, 0, 90, 90, 0, s, 0, 0));
+        assertNull(r.getPieces());
+        assertEquals(s, r.getBoardState());
+    }
+}